@@ -9,19 +9,59 @@ repositories {
     mavenCentral()
 }
 
+// Annotation processor that writes the @RegisterTool index (see ToolIndex); built before main
+val processor: SourceSet by sourceSets.creating
+
+// JMH benchmarks of the agent loop hot paths, run with the jmh task below
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+val jmhImplementation: Configuration by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+
 dependencies {
+    annotationProcessor(processor.output)
     implementation("com.openai:openai-java:1.5.0")
     implementation("org.reflections:reflections:0.10.2")
     implementation ("com.squareup.okhttp3:okhttp:4.12.0")
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    jmhImplementation("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    // The benchmark tools are discovered through a generated index, like the main ones
+    "jmhAnnotationProcessor"(processor.output)
 }
 
 java {
     toolchain {
-        languageVersion.set(JavaLanguageVersion.of(17))
+        languageVersion.set(JavaLanguageVersion.of(21))
     }
 }
+tasks.withType<JavaCompile> {
+    // Keep parameter names in the class files for tools discovered by reflection
+    options.compilerArgs.add("-parameters")
+}
+
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+// Writes machine-readable results, so runs can be compared before a release. Pass JMH options
+// with -PjmhArgs, e.g. ./gradlew jmh -PjmhArgs="PromptBenchmark -prof gc"
+val jmhResults = layout.buildDirectory.file("reports/jmh/results.json")
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks and writes the results as JSON."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    args("-rf", "json", "-rff", jmhResults.get().asFile.absolutePath)
+    providers.gradleProperty("jmhArgs").orNull?.let { extra ->
+        args(extra.split(" ").filter { it.isNotBlank() })
+    }
+    outputs.upToDateWhen { false }
+    doFirst {
+        jmhResults.get().asFile.parentFile.mkdirs()
+    }
+}
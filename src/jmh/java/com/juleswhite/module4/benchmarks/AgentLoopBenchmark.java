@@ -0,0 +1,62 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.ActionRegistry;
+import com.juleswhite.module4.Agent;
+import com.juleswhite.module4.Environment;
+import com.juleswhite.module4.EventSink;
+import com.juleswhite.module4.Memory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole agent sessions against a FakeLLM: every step of the loop except waiting for a
+ * model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AgentLoopBenchmark {
+
+    @Param({"function", "json"})
+    public String language;
+
+    @Param({"5", "20"})
+    public int iterations;
+
+    private Agent agent;
+    private FakeLLM llm;
+
+    @Setup
+    public void createAgent() {
+        // The scripted session: tool calls, then terminate
+        List<String> script = new ArrayList<>();
+        for (int i = 1; i < iterations; i++) {
+            script.add(Fixtures.response(language, "add", Map.of("a", i, "b", i * 7)));
+        }
+        script.add(Fixtures.response(language, "terminate", Map.of("message", "The total is 42.")));
+        llm = new FakeLLM(script);
+
+        ActionRegistry registry = Fixtures.registry();
+        agent = new Agent(Fixtures.goals(), registry, Fixtures.language(language), new Environment(registry), llm);
+
+        // The agent reports each step on the console, which would measure the terminal instead
+        agent.setEventSink(new EventSink(EventSink.Level.OFF, 1));
+    }
+
+    @Benchmark
+    public Memory runSession() throws Exception {
+        llm.reset();
+        return agent.run(Fixtures.TASK, new Memory(), iterations);
+    }
+}
@@ -0,0 +1,64 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.RegisterTool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small tools with the argument types real tools use, registered by the benchmarks.
+ */
+public class BenchmarkTools {
+
+    @RegisterTool(tags = {"math"})
+    public static int add(int a, int b) {
+        /**
+         * Adds two numbers.
+         *
+         * @param a The first number
+         * @param b The second number
+         * @return The sum
+         */
+        return a + b;
+    }
+
+    @RegisterTool(tags = {"text"})
+    public static String repeat(String text, Integer times, Boolean upperCase) {
+        /**
+         * Repeats a text a number of times.
+         *
+         * @param text The text to repeat
+         * @param times How many times to repeat it
+         * @param upperCase Whether to upper-case the result
+         * @return The repeated text
+         */
+        String repeated = text.repeat(times);
+        return Boolean.TRUE.equals(upperCase) ? repeated.toUpperCase() : repeated;
+    }
+
+    @RegisterTool(tags = {"lookup"})
+    public static Map<String, Object> lookup(String key, Double weight) {
+        /**
+         * Looks up a key and returns it with its weighted score.
+         *
+         * @param key The key to look up
+         * @param weight The weight applied to the score
+         * @return A map containing the key and its score
+         */
+        Map<String, Object> result = new HashMap<>();
+        result.put("key", key);
+        result.put("score", key.length() * weight);
+        return result;
+    }
+
+    @RegisterTool(terminal = true)
+    public static String terminate(String message) {
+        /**
+         * Terminates the session with a final message.
+         *
+         * @param message The final message
+         * @return The message
+         */
+        return message;
+    }
+}
@@ -0,0 +1,46 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.Environment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Environment.convertToType for the conversions tool arguments need.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConvertBenchmark {
+
+    // Fields rather than constants, so the JIT can't fold the conversions away
+    public Object text = "value";
+    public Object numberText = "42";
+    public Object integer = 42;
+    public Object booleanText = "true";
+
+    @Benchmark
+    public Object sameType() {
+        return Environment.convertToType(text, String.class);
+    }
+
+    @Benchmark
+    public Object stringToInteger() {
+        return Environment.convertToType(numberText, Integer.class);
+    }
+
+    @Benchmark
+    public Object integerToDouble() {
+        return Environment.convertToType(integer, double.class);
+    }
+
+    @Benchmark
+    public Object stringToBoolean() {
+        return Environment.convertToType(booleanText, Boolean.class);
+    }
+}
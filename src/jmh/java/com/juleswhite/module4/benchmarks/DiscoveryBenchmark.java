@@ -0,0 +1,52 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.ActionRegistry;
+import com.juleswhite.module4.ToolDiscovery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ToolDiscovery.discoverTools, both the first discovery in a JVM and the discovery
+ * every later agent does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiscoveryBenchmark {
+
+    /**
+     * The first discovery in a fresh JVM, which loads the tool indexes or scans the classpath.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public Map<String, ToolDiscovery.RegisteredTool> firstDiscovery() {
+        return ToolDiscovery.discoverTools(Fixtures.TOOLS_PACKAGE, "com.juleswhite.module4");
+    }
+
+    /**
+     * Discovery into a new registry once the packages have been scanned.
+     */
+    @Benchmark
+    public Map<String, ToolDiscovery.RegisteredTool> discoverTools() {
+        return new ToolDiscovery().discover(Fixtures.TOOLS_PACKAGE);
+    }
+
+    /**
+     * Setting up an agent's ActionRegistry, including binding each discovered tool.
+     */
+    @Benchmark
+    public ActionRegistry createRegistry() {
+        return Fixtures.registry();
+    }
+}
@@ -0,0 +1,81 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.Action;
+import com.juleswhite.module4.ActionRegistry;
+import com.juleswhite.module4.Environment;
+import com.juleswhite.module4.Tool;
+import com.juleswhite.module4.ToolInvoker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Environment.executeAction with each kind of binding, and the tool invocation inside
+ * it: the compiled MethodHandle binding against the reflective Method.invoke it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExecuteBenchmark {
+
+    private Environment environment;
+    private Action functionAction;
+    private Action methodAction;
+
+    private Method method;
+    private ToolInvoker invoker;
+    private Map<String, Object> args;
+
+    @Setup
+    public void createActions() throws Exception {
+        ActionRegistry registry = Fixtures.registry();
+        method = BenchmarkTools.class.getMethod("repeat", String.class, Integer.class, Boolean.class);
+
+        // The same tool again, bound to its Method rather than to a function
+        Tool repeat = registry.getAction("repeat").getTool();
+        registry.register(new Tool("repeatByMethod", repeat.getDescription(), repeat.getParameters()), method);
+
+        environment = new Environment(registry);
+        args = Map.of("text", "abc", "times", 3, "upperCase", true);
+        functionAction = registry.getAction("repeat", args);
+        methodAction = registry.getAction("repeatByMethod", args);
+        invoker = ToolInvoker.compile("repeat", method, null);
+    }
+
+    /**
+     * A discovered tool, bound to a function that calls it directly.
+     */
+    @Benchmark
+    public Map<String, Object> executeFunctionBinding() {
+        return environment.executeAction(functionAction);
+    }
+
+    /**
+     * A tool bound to its Method.
+     */
+    @Benchmark
+    public Map<String, Object> executeMethodBinding() {
+        return environment.executeAction(methodAction);
+    }
+
+    @Benchmark
+    public Object invokeMethodHandle() throws Exception {
+        return invoker.invoke(args);
+    }
+
+    /**
+     * The reflective invocation tools used before bindings were compiled.
+     */
+    @Benchmark
+    public Object invokeReflectively() throws Exception {
+        return method.invoke(null, Environment.prepareArguments(method, args));
+    }
+}
@@ -0,0 +1,42 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.LLM.Prompt;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A stand-in for the LLM that replays a fixed script of responses, so the agent loop can be
+ * measured without a network or a model and every run sees the same responses.
+ */
+public class FakeLLM implements Function<Prompt, String> {
+
+    private final List<String> script;
+    private int next;
+    private long promptMessages;
+
+    public FakeLLM(List<String> script) {
+        this.script = script;
+    }
+
+    @Override
+    public String apply(Prompt prompt) {
+        // Touch the prompt the way a real client would before sending it
+        promptMessages += prompt.getMessages().size();
+        return script.get(next++ % script.size());
+    }
+
+    /**
+     * Starts the script again from the first response.
+     */
+    public void reset() {
+        next = 0;
+    }
+
+    /**
+     * Gets the total number of messages in the prompts received so far.
+     */
+    public long getPromptMessages() {
+        return promptMessages;
+    }
+}
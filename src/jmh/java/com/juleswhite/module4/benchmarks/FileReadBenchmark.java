@@ -0,0 +1,89 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.FileRangeReader;
+import com.juleswhite.module4.FileReadCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how readFile gets a file's first chunk: reading the whole file onto the heap as it
+ * used to, mapping only the chunk with FileRangeReader, and going through a FileReadCache.
+ *
+ * Run with "-prof gc" to compare the bytes allocated per read (gc.alloc.rate.norm) as well as
+ * the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileReadBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    private Path directory;
+    private Path file;
+    private FileRangeReader reader;
+    private FileRangeReader cachedReader;
+    private FileReadCache cache;
+
+    @Setup
+    public void createFile() throws IOException {
+        directory = Files.createTempDirectory("file-read-benchmark");
+        file = directory.resolve("sample.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            long written = 0;
+            for (int line = 1; written < fileSize; line++) {
+                String text = "line " + line + ": the quick brown fox jumps over the lazy dog, größer als 42\n";
+                writer.write(text);
+                written += text.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        reader = new FileRangeReader();
+        cache = new FileReadCache(FileReadCache.DEFAULT_MAX_BYTES, FileReadCache.DEFAULT_MAX_TEXT_CHARS,
+                FileReadCache.DEFAULT_MAX_ENTRY_BYTES);
+        cachedReader = new FileRangeReader(cache);
+    }
+
+    @TearDown
+    public void deleteFile() throws IOException {
+        cache.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * The whole file as a String, as readFile returned it before reads were ranged.
+     */
+    @Benchmark
+    public String readAllBytes() throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public FileRangeReader.Chunk readFirstChunk() throws IOException {
+        return reader.read(file, 0, Long.MAX_VALUE, FileRangeReader.DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * Files over the cache's entry limit are read as in readFirstChunk.
+     */
+    @Benchmark
+    public FileRangeReader.Chunk readFirstChunkCached() throws IOException {
+        return cachedReader.read(file, 0, Long.MAX_VALUE, FileRangeReader.DEFAULT_MAX_TOKENS);
+    }
+}
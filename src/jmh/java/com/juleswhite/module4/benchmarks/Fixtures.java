@@ -0,0 +1,110 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.juleswhite.module4.ActionRegistry;
+import com.juleswhite.module4.AgentLanguage;
+import com.juleswhite.module4.AgentLanguages;
+import com.juleswhite.module4.Goal;
+import com.juleswhite.module4.Memory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Goals, memories, tools and model responses shared by the benchmarks. Everything is built from
+ * fixed data so that runs can be compared with each other.
+ */
+final class Fixtures {
+
+    static final String TOOLS_PACKAGE = BenchmarkTools.class.getPackageName();
+
+    static final String TASK = "Add up the numbers in the report and look up the weighted score of each section.";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Fixtures() {
+    }
+
+    static List<Goal> goals() {
+        return List.of(
+                new Goal(1, "Compute", "Use the tools to compute what the user asks for."),
+                new Goal(2, "Terminate", "Call terminate with the final answer when you are done."));
+    }
+
+    /**
+     * Creates a registry with the benchmark tools.
+     */
+    static ActionRegistry registry() {
+        ActionRegistry registry = new ActionRegistry();
+        registry.discoverTools(TOOLS_PACKAGE);
+        return registry;
+    }
+
+    /**
+     * Creates a language by name: "function" or "json".
+     */
+    static AgentLanguage language(String name) {
+        return switch (name) {
+            case "function" -> new AgentLanguages.FunctionCallingLanguage();
+            case "json" -> new AgentLanguages.JsonActionLanguage();
+            default -> throw new IllegalArgumentException("Unknown language: " + name);
+        };
+    }
+
+    /**
+     * Creates a memory holding the task followed by size - 1 items of a conversation.
+     */
+    static Memory memory(int size) {
+        Memory memory = new Memory();
+        memory.addMemory(Map.of("type", "user", "content", TASK));
+        for (int i = 1; i < size; i++) {
+            memory.addMemory(item(i));
+        }
+        return memory;
+    }
+
+    /**
+     * Gets the i-th item of the conversation: tool calls alternating with their results.
+     */
+    static Map<String, Object> item(int i) {
+        if (i % 2 == 1) {
+            return Map.of("type", "assistant", "content",
+                    toJson(Map.of("tool", "add", "args", Map.of("a", i, "b", i * 7))));
+        }
+        return Map.of("type", "user", "content",
+                toJson(Map.of("tool_executed", true, "result", i * 4, "section", "Section " + i)));
+    }
+
+    /**
+     * Formats a model response calling one tool, in the form the language expects.
+     */
+    static String response(String language, String tool, Map<String, Object> args) {
+        String call = toJson(Map.of("tool", tool, "args", args));
+        if (language.equals("function")) {
+            return call;
+        }
+        return "The next step is to call " + tool + " with the values from the report.\n\n"
+                + "```action\n" + call + "\n```";
+    }
+
+    /**
+     * Formats a model response calling several tools at once.
+     */
+    static String parallelResponse(String language, List<Map<String, Object>> calls) {
+        String list = toJson(calls);
+        if (language.equals("function")) {
+            return list;
+        }
+        return "These lookups are independent, so I will run them together.\n\n"
+                + "```action\n" + list + "\n```";
+    }
+
+    static String toJson(Object value) {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
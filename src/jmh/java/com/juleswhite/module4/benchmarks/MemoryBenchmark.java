@@ -0,0 +1,48 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.Memory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Memory.getMemories at several memory sizes, reading every item as callers do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemoryBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int memorySize;
+
+    private Memory memory;
+
+    @Setup
+    public void createMemory() {
+        memory = Fixtures.memory(memorySize);
+    }
+
+    @Benchmark
+    public void getMemories(Blackhole blackhole) {
+        for (Map<String, Object> item : memory.getMemories()) {
+            blackhole.consume(item.get("content"));
+        }
+    }
+
+    @Benchmark
+    public void getFirstMemories(Blackhole blackhole) {
+        for (Map<String, Object> item : memory.getMemories(10)) {
+            blackhole.consume(item.get("content"));
+        }
+    }
+}
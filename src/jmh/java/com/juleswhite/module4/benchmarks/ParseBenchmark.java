@@ -0,0 +1,51 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.AgentLanguage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures AgentLanguage.parseResponse and parseResponses for both languages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseBenchmark {
+
+    @Param({"function", "json"})
+    public String language;
+
+    private AgentLanguage agentLanguage;
+    private String response;
+    private String parallelResponse;
+
+    @Setup
+    public void createResponses() {
+        agentLanguage = Fixtures.language(language);
+        response = Fixtures.response(language, "repeat", Map.of("text", "abc", "times", 3, "upperCase", true));
+        parallelResponse = Fixtures.parallelResponse(language, List.of(
+                Map.of("tool", "lookup", "args", Map.of("key", "revenue", "weight", 0.5)),
+                Map.of("tool", "lookup", "args", Map.of("key", "costs", "weight", 0.25)),
+                Map.of("tool", "add", "args", Map.of("a", 19, "b", 23))));
+    }
+
+    @Benchmark
+    public Map<String, Object> parseResponse() throws Exception {
+        return agentLanguage.parseResponse(response);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> parseParallelResponse() throws Exception {
+        return agentLanguage.parseResponses(parallelResponse);
+    }
+}
@@ -0,0 +1,99 @@
+package com.juleswhite.module4.benchmarks;
+
+import com.juleswhite.module4.ActionRegistry;
+import com.juleswhite.module4.AgentLanguage;
+import com.juleswhite.module4.Environment;
+import com.juleswhite.module4.Goal;
+import com.juleswhite.module4.LLM.Prompt;
+import com.juleswhite.module4.Memory;
+import com.juleswhite.module4.Tool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures AgentLanguage.constructPrompt for both languages at several memory sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PromptBenchmark {
+
+    // Memory items appended in one measured batch of appendAndConstructPrompt
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"function", "json"})
+    public String language;
+
+    @Param({"10", "100", "1000"})
+    public int memorySize;
+
+    private List<Goal> goals;
+    private List<Tool> tools;
+    private Environment environment;
+
+    private AgentLanguage agentLanguage;
+    private Memory memory;
+    private int appended;
+
+    @Setup(Level.Trial)
+    public void createRegistry() {
+        ActionRegistry registry = Fixtures.registry();
+        goals = Fixtures.goals();
+        tools = registry.getTools();
+        environment = new Environment(registry);
+    }
+
+    @Setup(Level.Iteration)
+    public void createMemory() {
+        agentLanguage = Fixtures.language(language);
+        memory = Fixtures.memory(memorySize);
+        appended = 0;
+        agentLanguage.constructPrompt(tools, environment, goals, memory);
+    }
+
+    /**
+     * A prompt for a memory that hasn't changed since the last one.
+     */
+    @Benchmark
+    public Prompt constructPrompt() {
+        return agentLanguage.constructPrompt(tools, environment, goals, memory);
+    }
+
+    /**
+     * One agent loop iteration's prompt: a new memory item, then the prompt. Each batch starts
+     * again from a memory of memorySize items, so the time per batch shows whether the cost of an
+     * iteration stays flat as the memory grows.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10, batchSize = BATCH_SIZE)
+    @Measurement(iterations = 10, batchSize = BATCH_SIZE)
+    public Prompt appendAndConstructPrompt() {
+        memory.addMemory(Fixtures.item(memorySize + appended++));
+        return agentLanguage.constructPrompt(tools, environment, goals, memory);
+    }
+
+    /**
+     * A prompt rendered from scratch, as every iteration was before prompts were built
+     * incrementally.
+     */
+    @Benchmark
+    public Prompt constructPromptFromScratch() {
+        // The language keeps what it rendered per Memory, so a new Memory starts with nothing
+        Memory fresh = new Memory();
+        fresh.replaceRecords(memory.getRecords());
+        return agentLanguage.constructPrompt(tools, environment, goals, fresh);
+    }
+}
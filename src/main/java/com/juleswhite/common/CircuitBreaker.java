@@ -0,0 +1,188 @@
+package com.juleswhite.common;
+
+import java.time.Duration;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops calls to an endpoint that is failing, so callers fail fast instead of queueing behind
+ * requests that will time out.
+ *
+ * The breaker watches the outcome of the last windowSize calls. Once at least minimumCalls
+ * have been seen and the share of failures reaches failureRateThreshold, it opens and rejects
+ * every call for openDuration. After that it lets a single probe through (half-open): if the
+ * probe succeeds the breaker closes with a fresh window, otherwise it opens again.
+ *
+ * Every call that was allowed must be reported back with exactly one of onSuccess, onFailure
+ * or onIgnored; the last is for outcomes that say nothing about the endpoint's health, such as
+ * a cancelled request.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openNanos;
+
+    // A lock rather than synchronized, so virtual threads waiting here are not pinned
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Outcomes of the last calls as a ring buffer, true for a failure
+    private final boolean[] window;
+    private int position;
+    private int recorded;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long rejected;
+
+    /**
+     * Opens when half of the last 20 calls (at least 10 seen) failed, for 30 seconds.
+     */
+    public CircuitBreaker() {
+        this(20, 10, 0.5, Duration.ofSeconds(30));
+    }
+
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, Duration openDuration) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.window = new boolean[windowSize];
+    }
+
+    /**
+     * Asks to make a call.
+     *
+     * @return false if the breaker is rejecting calls
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                state = State.HALF_OPEN;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.HALF_OPEN && !probeInFlight) {
+                probeInFlight = true;
+                return true;
+            }
+            rejected++;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSuccess() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                // The probe got through: start over with a clean window
+                state = State.CLOSED;
+                probeInFlight = false;
+                position = 0;
+                recorded = 0;
+                failures = 0;
+            } else if (state == State.CLOSED) {
+                record(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onFailure() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                open();
+            } else if (state == State.CLOSED) {
+                record(true);
+                if (recorded >= minimumCalls && failures >= failureRateThreshold * recorded) {
+                    open();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onIgnored() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                probeInFlight = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(boolean failure) {
+        if (recorded == windowSize) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % windowSize;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        probeInFlight = false;
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                return State.HALF_OPEN;
+            }
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets how long until an open breaker lets a probe through, or zero if it isn't open.
+     */
+    public Duration getRemainingOpenTime() {
+        lock.lock();
+        try {
+            if (state != State.OPEN) {
+                return Duration.ZERO;
+            }
+            return Duration.ofNanos(Math.max(0, openNanos - (System.nanoTime() - openedAt)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of calls rejected since the breaker was created.
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
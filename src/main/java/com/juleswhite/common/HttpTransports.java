@@ -0,0 +1,288 @@
+package com.juleswhite.common;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of OkHttp clients, one per remote endpoint.
+ *
+ * Every LLM class that talks HTTP directly draws its client from here instead of building its
+ * own, so a JVM running many agents shares one connection pool and one dispatcher per endpoint
+ * and keeps a bounded number of sockets and threads.
+ */
+public class HttpTransports {
+
+    public static final String HUGGING_FACE = "huggingface";
+
+    /**
+     * Name the OpenAI SDK's calls are tracked under, e.g. by ResilientExecutor. The SDK builds
+     * its own HTTP client (see OpenAIClientProvider), so there is no client for it here.
+     */
+    public static final String OPENAI = "openai";
+
+    /**
+     * Tunables for a single endpoint's client.
+     */
+    public static class EndpointConfig {
+        private final int maxIdleConnections;
+        private final long keepAliveSeconds;
+        private final int maxRequests;
+        private final int maxRequestsPerHost;
+        private final long connectTimeoutSeconds;
+        private final long writeTimeoutSeconds;
+        private final long readTimeoutSeconds;
+        private final boolean gzip;
+
+        public EndpointConfig(int maxIdleConnections,
+                              long keepAliveSeconds,
+                              int maxRequests,
+                              int maxRequestsPerHost,
+                              long connectTimeoutSeconds,
+                              long writeTimeoutSeconds,
+                              long readTimeoutSeconds,
+                              boolean gzip) {
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveSeconds = keepAliveSeconds;
+            this.maxRequests = maxRequests;
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            this.connectTimeoutSeconds = connectTimeoutSeconds;
+            this.writeTimeoutSeconds = writeTimeoutSeconds;
+            this.readTimeoutSeconds = readTimeoutSeconds;
+            this.gzip = gzip;
+        }
+
+        public int getMaxIdleConnections() {
+            return maxIdleConnections;
+        }
+
+        public long getKeepAliveSeconds() {
+            return keepAliveSeconds;
+        }
+
+        public int getMaxRequests() {
+            return maxRequests;
+        }
+
+        public int getMaxRequestsPerHost() {
+            return maxRequestsPerHost;
+        }
+
+        public long getConnectTimeoutSeconds() {
+            return connectTimeoutSeconds;
+        }
+
+        public long getWriteTimeoutSeconds() {
+            return writeTimeoutSeconds;
+        }
+
+        public long getReadTimeoutSeconds() {
+            return readTimeoutSeconds;
+        }
+
+        public boolean isGzip() {
+            return gzip;
+        }
+    }
+
+    /**
+     * Connection reuse counters for one endpoint. A call that acquires a connection without
+     * opening a new socket first counts as a pool hit.
+     */
+    public static class ConnectionStats {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong poolHits = new AtomicLong();
+        private final AtomicLong poolMisses = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getPoolHits() {
+            return poolHits.get();
+        }
+
+        public long getPoolMisses() {
+            return poolMisses.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public double getHitRatio() {
+            long total = poolHits.get() + poolMisses.get();
+            return total == 0 ? 0.0 : (double) poolHits.get() / total;
+        }
+    }
+
+    private static final Map<String, EndpointConfig> configs = new ConcurrentHashMap<>();
+    private static final Map<String, OkHttpClient> clients = new ConcurrentHashMap<>();
+    private static final Map<String, ConnectionStats> stats = new ConcurrentHashMap<>();
+    private static final Map<String, String> urlOverrides = new ConcurrentHashMap<>();
+
+    static {
+        // The HF router fronts slow reasoning models, so reads get a generous timeout; connect
+        // and write keep the 60s LLMBase64 used before it shared this client
+        configs.put(HUGGING_FACE, new EndpointConfig(16, 300, 64, 32, 60, 60, 120, true));
+    }
+
+    /**
+     * Sets the configuration for an endpoint. If a client was already built for the endpoint
+     * it is retired (its idle connections are evicted) and the next get() builds a new one.
+     *
+     * @param endpoint Name of the endpoint, e.g. HUGGING_FACE
+     * @param config The settings to use
+     */
+    public static void configure(String endpoint, EndpointConfig config) {
+        configs.put(endpoint, config);
+        OkHttpClient previous = clients.remove(endpoint);
+        if (previous != null) {
+            previous.connectionPool().evictAll();
+        }
+    }
+
+    public static EndpointConfig getConfig(String endpoint) {
+        return configs.get(endpoint);
+    }
+
+    /**
+     * Gets the shared client for an endpoint, building it on first use. Callers should get the
+     * client for each request rather than keep it, since configure() and shutdown() retire it.
+     *
+     * @param endpoint Name of the endpoint, e.g. HUGGING_FACE
+     * @return The shared OkHttpClient for the endpoint
+     */
+    public static OkHttpClient get(String endpoint) {
+        return clients.computeIfAbsent(endpoint, HttpTransports::createClient);
+    }
+
+    /**
+     * Sends an endpoint's requests to another URL, e.g. a MockChatServer for a load test.
+     *
+     * @param endpoint Name of the endpoint, e.g. HUGGING_FACE
+     * @param url The URL to post to instead, or null to go back to the endpoint's own URL
+     */
+    public static void overrideUrl(String endpoint, String url) {
+        if (url == null) {
+            urlOverrides.remove(endpoint);
+        } else {
+            urlOverrides.put(endpoint, url);
+        }
+    }
+
+    /**
+     * Gets the URL to post an endpoint's requests to.
+     *
+     * @param endpoint Name of the endpoint, e.g. HUGGING_FACE
+     * @param defaultUrl The endpoint's own URL
+     */
+    public static String resolveUrl(String endpoint, String defaultUrl) {
+        return urlOverrides.getOrDefault(endpoint, defaultUrl);
+    }
+
+    /**
+     * Gets the connection reuse counters for an endpoint.
+     */
+    public static ConnectionStats getStats(String endpoint) {
+        return stats.computeIfAbsent(endpoint, k -> new ConnectionStats());
+    }
+
+    /**
+     * Cancels in-flight calls and closes pooled connections for every endpoint.
+     */
+    public static void shutdown() {
+        for (String endpoint : clients.keySet()) {
+            OkHttpClient client = clients.remove(endpoint);
+            if (client != null) {
+                client.dispatcher().cancelAll();
+                client.dispatcher().executorService().shutdown();
+                client.connectionPool().evictAll();
+            }
+        }
+    }
+
+    private static OkHttpClient createClient(String endpoint) {
+        EndpointConfig config = configs.get(endpoint);
+        if (config == null) {
+            throw new IllegalArgumentException("No HTTP transport configured for endpoint: " + endpoint);
+        }
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+
+        ConnectionStats endpointStats = getStats(endpoint);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(
+                        config.getMaxIdleConnections(), config.getKeepAliveSeconds(), TimeUnit.SECONDS))
+                .connectTimeout(config.getConnectTimeoutSeconds(), TimeUnit.SECONDS)
+                .writeTimeout(config.getWriteTimeoutSeconds(), TimeUnit.SECONDS)
+                .readTimeout(config.getReadTimeoutSeconds(), TimeUnit.SECONDS)
+                .eventListenerFactory(call -> new StatsListener(endpointStats));
+
+        if (!config.isGzip()) {
+            // OkHttp negotiates gzip transparently; asking for identity turns that off
+            builder.addInterceptor(chain -> {
+                Request request = chain.request().newBuilder()
+                        .header("Accept-Encoding", "identity")
+                        .build();
+                return chain.proceed(request);
+            });
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Per-call listener that classifies the acquired connection as pooled or freshly opened.
+     */
+    private static class StatsListener extends EventListener {
+        private final ConnectionStats stats;
+        private boolean connected;
+
+        StatsListener(ConnectionStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            stats.calls.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connected = true;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            if (connected) {
+                stats.poolMisses.incrementAndGet();
+            } else {
+                stats.poolHits.incrementAndGet();
+            }
+            connected = false;
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            stats.failures.incrementAndGet();
+        }
+    }
+}
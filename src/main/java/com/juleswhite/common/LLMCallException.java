@@ -0,0 +1,143 @@
+package com.juleswhite.common;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A failed call to an LLM endpoint, with what ResilientExecutor needs to decide whether and
+ * when to try again: the HTTP status (0 if no response arrived), whether the failure is worth
+ * retrying, and how long the server asked callers to wait.
+ */
+public class LLMCallException extends RuntimeException {
+
+    private final String endpoint;
+    private final int statusCode;
+    private final Duration retryAfter;
+    private final boolean retryable;
+    private final boolean cancelled;
+
+    public LLMCallException(String endpoint, String message, Throwable cause, int statusCode,
+                            Duration retryAfter, boolean retryable) {
+        this(endpoint, message, cause, statusCode, retryAfter, retryable, false);
+    }
+
+    private LLMCallException(String endpoint, String message, Throwable cause, int statusCode,
+                             Duration retryAfter, boolean retryable, boolean cancelled) {
+        super(message, cause);
+        this.endpoint = endpoint;
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+        this.retryable = retryable;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Creates the exception for an HTTP error response.
+     *
+     * @param retryAfter Value of the Retry-After header, or null if there was none
+     */
+    public static LLMCallException forStatus(String endpoint, int statusCode, String retryAfter, String message) {
+        return forStatus(endpoint, statusCode, retryAfter, message, null);
+    }
+
+    /**
+     * Creates the exception for an HTTP error response reported by a client library.
+     */
+    public static LLMCallException forStatus(String endpoint, int statusCode, String retryAfter, String message,
+                                             Throwable cause) {
+        return new LLMCallException(endpoint, "LLM response failed: " + statusCode + " " + message, cause,
+                statusCode, parseRetryAfter(retryAfter), isRetryableStatus(statusCode));
+    }
+
+    /**
+     * Creates the exception for a request that got no response, e.g. a reset connection or a
+     * timeout. These are always worth retrying.
+     */
+    public static LLMCallException forIoFailure(String endpoint, Throwable cause) {
+        return new LLMCallException(endpoint, "LLM request failed: " + cause.getMessage(), cause, 0, null, true);
+    }
+
+    /**
+     * Wraps a failure that retrying cannot fix, e.g. an unparseable response.
+     */
+    public static LLMCallException permanent(String endpoint, Throwable cause) {
+        return new LLMCallException(endpoint, "Failed to generate response: " + cause.getMessage(), cause,
+                0, null, false);
+    }
+
+    /**
+     * Creates the exception for a call abandoned because its thread was interrupted, e.g. a run
+     * that was cancelled or ran out of time. Says nothing about the endpoint.
+     */
+    public static LLMCallException cancelled(String endpoint, Throwable cause) {
+        return new LLMCallException(endpoint, "LLM request cancelled", cause, 0, null, false, true);
+    }
+
+    /**
+     * Gets whether a status means the request may succeed if sent again: timeouts, rate
+     * limits and server errors.
+     */
+    public static boolean isRetryableStatus(int statusCode) {
+        return statusCode == 408 || statusCode == 409 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Parses a Retry-After value, either a number of seconds or an HTTP date.
+     *
+     * @return The delay, or null if the value is missing or malformed
+     */
+    public static Duration parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String trimmed = value.trim();
+        try {
+            double seconds = Double.parseDouble(trimmed);
+            return seconds >= 0 ? Duration.ofMillis((long) (seconds * 1000)) : null;
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, so it should be a date
+        }
+        try {
+            Duration delay = Duration.between(ZonedDateTime.now(),
+                    ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME));
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Gets the HTTP status of the failed response, or 0 if no response was received.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Gets how long the server asked callers to wait, or null if it didn't say.
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public boolean isRateLimited() {
+        return statusCode == 429;
+    }
+
+    /**
+     * Gets whether the call was abandoned by its caller rather than failed by the endpoint.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
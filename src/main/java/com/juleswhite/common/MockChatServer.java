@@ -0,0 +1,632 @@
+package com.juleswhite.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A local stand-in for an OpenAI-compatible chat completions endpoint, for load testing agents
+ * without a model, a network or an API bill.
+ *
+ * The server listens on the loopback interface, so the real OkHttp and OpenAI SDK clients are
+ * used unchanged: point OpenAIClientProvider, or HttpTransports.overrideUrl, at getBaseUrl() or
+ * getChatCompletionsUrl(). It answers POST /v1/chat/completions with scripted text or tool calls,
+ * streamed as server-sent events when the request asks for it, and can add latency and fail a
+ * share of requests with HTTP errors or dropped connections.
+ *
+ * Everything random is drawn from a generator seeded with the server's seed and the request's
+ * sequence number, and a script is indexed by the conversation turn found in the request, so
+ * thousands of concurrent sessions each see the same replies on every run. Requests are handled
+ * on virtual threads, so injected latency costs no platform threads.
+ */
+public class MockChatServer implements Closeable {
+
+    public static final String CHAT_COMPLETIONS_PATH = "/v1/chat/completions";
+
+    // Reported as the creation time of every completion, so responses are reproducible
+    private static final long CREATED = 1_700_000_000L;
+
+    private static final int DEFAULT_CHUNK_CHARS = 8;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final long seed;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile Function<Request, Reply> responder = request -> Reply.text("OK");
+    private volatile Latency latency = Latency.none();
+    private volatile Duration chunkDelay = Duration.ZERO;
+    private volatile int chunkChars = DEFAULT_CHUNK_CHARS;
+    private final List<Fault> faults = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong streamed = new AtomicLong();
+    private final AtomicLong faulted = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * A chat completion request as the responder sees it.
+     */
+    public static class Request {
+        private final long sequence;
+        private final Map<String, Object> body;
+        private final List<Map<String, Object>> messages;
+        private final int turn;
+
+        @SuppressWarnings("unchecked")
+        Request(long sequence, Map<String, Object> body) {
+            this.sequence = sequence;
+            this.body = body;
+            this.messages = body.get("messages") instanceof List<?> list
+                    ? (List<Map<String, Object>>) list
+                    : List.of();
+
+            int assistantMessages = 0;
+            for (Map<String, Object> message : messages) {
+                if ("assistant".equals(message.get("role"))) {
+                    assistantMessages++;
+                }
+            }
+            this.turn = assistantMessages;
+        }
+
+        /**
+         * Gets the order in which the server received the request, starting at 0.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Map<String, Object> getBody() {
+            return body;
+        }
+
+        public List<Map<String, Object>> getMessages() {
+            return messages;
+        }
+
+        public String getModel() {
+            return String.valueOf(body.getOrDefault("model", "mock"));
+        }
+
+        public boolean isStream() {
+            return Boolean.TRUE.equals(body.get("stream"));
+        }
+
+        /**
+         * Gets the number of assistant messages in the conversation so far, i.e. how many
+         * replies the session has already had.
+         */
+        public int getTurn() {
+            return turn;
+        }
+
+        /**
+         * Gets the content of the last message, or an empty string.
+         */
+        public String getLastContent() {
+            if (messages.isEmpty()) {
+                return "";
+            }
+            Object content = messages.get(messages.size() - 1).get("content");
+            return content != null ? content.toString() : "";
+        }
+    }
+
+    /**
+     * What the model answers: text, one or more tool calls, or both.
+     */
+    public static class Reply {
+        private final String content;
+        private final List<ToolCall> toolCalls;
+
+        public Reply(String content, List<ToolCall> toolCalls) {
+            this.content = content;
+            this.toolCalls = toolCalls != null ? List.copyOf(toolCalls) : List.of();
+        }
+
+        public static Reply text(String content) {
+            return new Reply(content, List.of());
+        }
+
+        public static Reply toolCall(String name, Map<String, Object> arguments) {
+            return new Reply(null, List.of(new ToolCall(name, arguments)));
+        }
+
+        public static Reply toolCalls(List<ToolCall> toolCalls) {
+            return new Reply(null, toolCalls);
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public List<ToolCall> getToolCalls() {
+            return toolCalls;
+        }
+    }
+
+    /**
+     * A function call made by the model.
+     */
+    public static class ToolCall {
+        private final String name;
+        private final Map<String, Object> arguments;
+
+        public ToolCall(String name, Map<String, Object> arguments) {
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, Object> getArguments() {
+            return arguments;
+        }
+    }
+
+    /**
+     * How long the server waits before answering a request.
+     */
+    public interface Latency {
+        Duration next(SplittableRandom random);
+
+        static Latency none() {
+            return random -> Duration.ZERO;
+        }
+
+        static Latency fixed(Duration delay) {
+            return random -> delay;
+        }
+
+        static Latency uniform(Duration min, Duration max) {
+            return random -> Duration.ofNanos(random.nextLong(min.toNanos(), max.toNanos() + 1));
+        }
+
+        /**
+         * A log-normal distribution, the usual shape of model latency: most requests near the
+         * median and a long tail of slow ones.
+         *
+         * @param median The median delay
+         * @param sigma Standard deviation of the delay's logarithm; 0.5 gives a p99 of about 3x the median
+         */
+        static Latency logNormal(Duration median, double sigma) {
+            return random -> {
+                // Box-Muller transform for a standard normal value
+                double normal = Math.sqrt(-2 * Math.log(1 - random.nextDouble()))
+                        * Math.cos(2 * Math.PI * random.nextDouble());
+                return Duration.ofNanos((long) (median.toNanos() * Math.exp(sigma * normal)));
+            };
+        }
+    }
+
+    /**
+     * A failure injected into a share of the requests.
+     */
+    public static class Fault {
+        private final double probability;
+        private final int status;
+        private final long retryAfterSeconds;
+
+        private Fault(double probability, int status, long retryAfterSeconds) {
+            this.probability = probability;
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * Answers with an HTTP error status and an OpenAI-style error body.
+         */
+        public static Fault status(double probability, int status) {
+            return new Fault(probability, status, -1);
+        }
+
+        /**
+         * Answers 429 with a Retry-After header.
+         */
+        public static Fault rateLimited(double probability, long retryAfterSeconds) {
+            return new Fault(probability, 429, retryAfterSeconds);
+        }
+
+        /**
+         * Starts a response and closes the connection partway through it.
+         */
+        public static Fault disconnect(double probability) {
+            return new Fault(probability, 0, -1);
+        }
+
+        public double getProbability() {
+            return probability;
+        }
+
+        /**
+         * Gets the HTTP status, or 0 for a dropped connection.
+         */
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Creates a server with seed 0.
+     */
+    public MockChatServer() {
+        this(0);
+    }
+
+    /**
+     * @param seed Seed for the latency and fault draws
+     */
+    public MockChatServer(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets a function that picks the reply to each request.
+     */
+    public void setResponder(Function<Request, Reply> responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Replies with the script entry for the request's turn: the first reply to a new
+     * conversation, the second once it holds one assistant message, and so on. Turns past the
+     * end of the script get its last reply.
+     */
+    public void setScript(List<Reply> script) {
+        List<Reply> replies = List.copyOf(script);
+        setResponder(request -> replies.get(Math.min(request.getTurn(), replies.size() - 1)));
+    }
+
+    /**
+     * Sets the delay before the first byte of each response.
+     */
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets how a streamed response is split: chunkChars characters per event, chunkDelay apart.
+     */
+    public void setStreaming(int chunkChars, Duration chunkDelay) {
+        this.chunkChars = Math.max(1, chunkChars);
+        this.chunkDelay = chunkDelay;
+    }
+
+    /**
+     * Adds a failure. Faults are drawn independently per request, in the order they were added,
+     * and the first that fires is used.
+     */
+    public void addFault(Fault fault) {
+        faults.add(fault);
+    }
+
+    public void clearFaults() {
+        faults.clear();
+    }
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     */
+    public MockChatServer start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Starts listening on a loopback port.
+     *
+     * @param port The port, or 0 for any free port
+     */
+    public MockChatServer start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext(CHAT_COMPLETIONS_PATH, this::handle);
+        server.start();
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the base URL for the OpenAI SDK, e.g. http://127.0.0.1:50123/v1
+     */
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + getPort() + "/v1";
+    }
+
+    /**
+     * Gets the full chat completions URL, for clients that post to it directly.
+     */
+    public String getChatCompletionsUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + getPort() + CHAT_COMPLETIONS_PATH;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getStreamedCount() {
+        return streamed.get();
+    }
+
+    /**
+     * Gets the number of requests answered with an injected fault.
+     */
+    public long getFaultCount() {
+        return faulted.get();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.close();
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "invalid_request_error", "Only POST is supported");
+                return;
+            }
+
+            long number = sequence.getAndIncrement();
+            requests.incrementAndGet();
+            SplittableRandom random = new SplittableRandom(seed + number * 0x9E3779B97F4A7C15L);
+
+            Request request;
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> body = objectMapper.readValue(exchange.getRequestBody().readAllBytes(), Map.class);
+                request = new Request(number, body);
+            } catch (IOException e) {
+                sendError(exchange, 400, "invalid_request_error", "Invalid JSON body: " + e.getMessage());
+                return;
+            }
+
+            sleep(latency.next(random));
+
+            for (Fault fault : faults) {
+                if (random.nextDouble() < fault.probability) {
+                    faulted.incrementAndGet();
+                    sendFault(exchange, fault);
+                    return;
+                }
+            }
+
+            Reply reply = responder.apply(request);
+            if (request.isStream()) {
+                streamed.incrementAndGet();
+                sendStream(exchange, request, reply);
+            } else {
+                sendJson(exchange, 200, completion(request, reply));
+            }
+        } catch (InterruptedException e) {
+            // The server is stopping
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Map<String, Object> completion(Request request, Reply reply) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("role", "assistant");
+        message.put("content", reply.getContent());
+        if (!reply.getToolCalls().isEmpty()) {
+            List<Map<String, Object>> calls = new ArrayList<>();
+            for (int i = 0; i < reply.getToolCalls().size(); i++) {
+                ToolCall call = reply.getToolCalls().get(i);
+                calls.add(Map.of(
+                        "id", callId(request, i),
+                        "type", "function",
+                        "function", Map.of("name", call.getName(), "arguments", toJson(call.getArguments()))));
+            }
+            message.put("tool_calls", calls);
+        }
+
+        Map<String, Object> choice = new LinkedHashMap<>();
+        choice.put("index", 0);
+        choice.put("message", message);
+        choice.put("finish_reason", finishReason(reply));
+
+        Map<String, Object> completion = envelope(request, "chat.completion");
+        completion.put("choices", List.of(choice));
+        completion.put("usage", usage(request, reply));
+        return completion;
+    }
+
+    /**
+     * Streams a reply as chat.completion.chunk events, the way the OpenAI API does: the role,
+     * then the content or tool call arguments in pieces, then the finish reason and [DONE].
+     */
+    private void sendStream(HttpExchange exchange, Request request, Reply reply) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+
+        sendChunk(out, request, Map.of("role", "assistant", "content", ""), null);
+
+        String content = reply.getContent();
+        if (content != null) {
+            for (int i = 0; i < content.length(); i += chunkChars) {
+                sleep(chunkDelay);
+                String piece = content.substring(i, Math.min(content.length(), i + chunkChars));
+                sendChunk(out, request, Map.of("content", piece), null);
+            }
+        }
+
+        for (int i = 0; i < reply.getToolCalls().size(); i++) {
+            ToolCall call = reply.getToolCalls().get(i);
+            sendChunk(out, request, Map.of("tool_calls", List.of(Map.of(
+                    "index", i,
+                    "id", callId(request, i),
+                    "type", "function",
+                    "function", Map.of("name", call.getName(), "arguments", "")))), null);
+
+            String arguments = toJson(call.getArguments());
+            for (int j = 0; j < arguments.length(); j += chunkChars) {
+                sleep(chunkDelay);
+                String piece = arguments.substring(j, Math.min(arguments.length(), j + chunkChars));
+                sendChunk(out, request, Map.of("tool_calls", List.of(Map.of(
+                        "index", i,
+                        "function", Map.of("arguments", piece)))), null);
+            }
+        }
+
+        sendChunk(out, request, Map.of(), finishReason(reply));
+
+        if (request.getBody().get("stream_options") instanceof Map<?, ?> options
+                && Boolean.TRUE.equals(options.get("include_usage"))) {
+            Map<String, Object> usageChunk = envelope(request, "chat.completion.chunk");
+            usageChunk.put("choices", List.of());
+            usageChunk.put("usage", usage(request, reply));
+            writeEvent(out, toJson(usageChunk));
+        }
+
+        writeEvent(out, "[DONE]");
+    }
+
+    private void sendChunk(OutputStream out, Request request, Map<String, Object> delta, String finishReason)
+            throws IOException {
+        Map<String, Object> choice = new LinkedHashMap<>();
+        choice.put("index", 0);
+        choice.put("delta", delta);
+        choice.put("finish_reason", finishReason);
+
+        Map<String, Object> chunk = envelope(request, "chat.completion.chunk");
+        chunk.put("choices", List.of(choice));
+        writeEvent(out, toJson(chunk));
+    }
+
+    private static void writeEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void sendFault(HttpExchange exchange, Fault fault) throws IOException {
+        if (fault.status == 0) {
+            // Promise a body and stop partway, so the client sees the connection drop
+            byte[] partial = "{\"id\":\"chatcmpl-mock\",\"choices\":[".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, partial.length * 4L);
+            exchange.getResponseBody().write(partial);
+            exchange.getResponseBody().flush();
+            throw new IOException("Injected disconnect");
+        }
+
+        if (fault.retryAfterSeconds >= 0) {
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(fault.retryAfterSeconds));
+        }
+        String type = fault.status == 429 ? "rate_limit_exceeded" : fault.status >= 500 ? "server_error" : "invalid_request_error";
+        sendError(exchange, fault.status, type, "Injected failure (HTTP " + fault.status + ")");
+    }
+
+    private void sendError(HttpExchange exchange, int status, String type, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("message", message);
+        error.put("type", type);
+        error.put("code", type);
+        sendJson(exchange, status, Map.of("error", error));
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, Object> envelope(Request request, String object) {
+        Map<String, Object> envelope = new LinkedHashMap<>();
+        envelope.put("id", "chatcmpl-mock-" + request.getSequence());
+        envelope.put("object", object);
+        envelope.put("created", CREATED);
+        envelope.put("model", request.getModel());
+        return envelope;
+    }
+
+    private Map<String, Object> usage(Request request, Reply reply) {
+        // Roughly four characters per token, which is all a load test needs
+        int promptTokens = 0;
+        for (Map<String, Object> message : request.getMessages()) {
+            Object content = message.get("content");
+            promptTokens += 4 + (content != null ? content.toString().length() / 4 : 0);
+        }
+        int completionTokens = reply.getContent() != null ? reply.getContent().length() / 4 : 0;
+        for (ToolCall call : reply.getToolCalls()) {
+            completionTokens += (call.getName().length() + toJson(call.getArguments()).length()) / 4;
+        }
+
+        Map<String, Object> usage = new LinkedHashMap<>();
+        usage.put("prompt_tokens", promptTokens);
+        usage.put("completion_tokens", completionTokens);
+        usage.put("total_tokens", promptTokens + completionTokens);
+        return usage;
+    }
+
+    private static String finishReason(Reply reply) {
+        return reply.getToolCalls().isEmpty() ? "stop" : "tool_calls";
+    }
+
+    private static String callId(Request request, int index) {
+        return "call_" + request.getSequence() + "_" + index;
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value != null ? value : Map.of());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Reply is not serializable as JSON", e);
+        }
+    }
+
+    private static void sleep(Duration delay) throws InterruptedException {
+        if (!delay.isZero() && !delay.isNegative()) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Runs a server that answers every request with a fixed text, for pointing other processes
+     * at (e.g. with OPENAI_BASE_URL).
+     *
+     * Usage: MockChatServer [port] [reply] [latencyMillis]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        String text = args.length > 1 ? args[1] : "OK";
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        MockChatServer server = new MockChatServer();
+        server.setResponder(request -> Reply.text(text));
+        server.setLatency(Latency.fixed(Duration.ofMillis(latencyMillis)));
+        server.start(port);
+        System.out.println("Mock chat completions server listening at " + server.getBaseUrl());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,740 @@
+package com.juleswhite.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces the LLM requests of every caller in the JVM so that together they stay within the
+ * provider's requests-per-minute and tokens-per-minute limits, instead of each agent finding
+ * the limit with a 429.
+ *
+ * There is one bucket per model and API key, refilled continuously at the configured rates
+ * and holding at most burst's worth of each. A request takes one request token and its
+ * estimated tokens; when the bucket can't cover it, the caller waits in a queue. A request
+ * bigger than the bucket waits until the bucket is full and then overdraws it.
+ *
+ * Waiting callers are served by priority: lower numbers first, as with Goal priorities. So a
+ * flood of low priority callers can't starve forever, each level of priority is worth
+ * PRIORITY_STEP of waiting: a priority 3 caller that has waited that long goes ahead of a
+ * priority 2 caller that just arrived.
+ *
+ * When the provider answers 429 anyway, onRateLimited pauses the bucket for the Retry-After
+ * time, so all the callers back off together rather than each retrying into the limit.
+ *
+ * Models without limits are not paced, but their calls are still counted.
+ */
+public class RequestScheduler {
+
+    /**
+     * Prompt metadata key holding the caller's priority.
+     */
+    public static final String PRIORITY = "priority";
+
+    public static final int DEFAULT_PRIORITY = 5;
+
+    /**
+     * System properties holding the default limits of the shared scheduler, e.g.
+     * -Dllm.rpm=500 -Dllm.tpm=200000
+     */
+    public static final String RPM_PROPERTY = "llm.rpm";
+    public static final String TPM_PROPERTY = "llm.tpm";
+
+    public static final Duration PRIORITY_STEP = Duration.ofSeconds(5);
+
+    // Recent waits kept per bucket for percentiles
+    private static final int WAIT_SAMPLES = 256;
+
+    // Rough size of a token in a JSON request body, for callers that send raw HTTP
+    private static final int BYTES_PER_TOKEN = 4;
+
+    // Most of a response body read to find its usage
+    private static final long MAX_USAGE_PEEK = 1 << 20;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final RequestScheduler SHARED = new RequestScheduler(new Limits(
+            Integer.getInteger(RPM_PROPERTY, 0), Long.getLong(TPM_PROPERTY, 0L)));
+
+    // One daemon thread wakes the buckets whose head waiter can be served
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    // Granted waiters are completed here, since their continuations (building and sending the
+    // request) would otherwise run on the timer thread and hold up every other bucket
+    private static final ExecutorService GRANT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Map<String, Limits> modelLimits = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile Limits defaultLimits;
+
+    /**
+     * Rate limits for one model. A limit of 0 means unlimited.
+     */
+    public static class Limits {
+        public static final Limits UNLIMITED = new Limits(0, 0);
+
+        private final int requestsPerMinute;
+        private final long tokensPerMinute;
+        private final Duration burst;
+
+        /**
+         * Limits allowing bursts of up to ten seconds' worth of traffic.
+         */
+        public Limits(int requestsPerMinute, long tokensPerMinute) {
+            this(requestsPerMinute, tokensPerMinute, Duration.ofSeconds(10));
+        }
+
+        /**
+         * @param requestsPerMinute Set a little below the provider's limit, to leave room for
+         *                          other clients of the same key
+         * @param tokensPerMinute Likewise
+         * @param burst How much of the rate can be used at once after a quiet period
+         */
+        public Limits(int requestsPerMinute, long tokensPerMinute, Duration burst) {
+            this.requestsPerMinute = requestsPerMinute;
+            this.tokensPerMinute = tokensPerMinute;
+            this.burst = burst;
+        }
+
+        public boolean isUnlimited() {
+            return requestsPerMinute <= 0 && tokensPerMinute <= 0;
+        }
+
+        public int getRequestsPerMinute() {
+            return requestsPerMinute;
+        }
+
+        public long getTokensPerMinute() {
+            return tokensPerMinute;
+        }
+
+        public Duration getBurst() {
+            return burst;
+        }
+    }
+
+    /**
+     * Permission to send one request. Once the response arrives, report its actual token
+     * usage with complete() so the estimate is corrected; if the request is never sent, call
+     * cancel() to give the budget back.
+     */
+    public static class Permit {
+        private final Bucket bucket;
+        private final long tokens;
+        private final long waitNanos;
+        private boolean settled;
+
+        Permit(Bucket bucket, long tokens, long waitNanos) {
+            this.bucket = bucket;
+            this.tokens = tokens;
+            this.waitNanos = waitNanos;
+        }
+
+        /**
+         * Gets the tokens charged for the request.
+         */
+        public long getTokens() {
+            return tokens;
+        }
+
+        /**
+         * Gets how long the caller waited for this permit.
+         */
+        public Duration getWait() {
+            return Duration.ofNanos(waitNanos);
+        }
+
+        /**
+         * Corrects the charge to the tokens the request actually used.
+         */
+        public void complete(long actualTokens) {
+            if (!settled) {
+                settled = true;
+                bucket.refund(0, tokens - actualTokens);
+            }
+        }
+
+        /**
+         * Gives back the request and its tokens, for a request that was not sent.
+         */
+        public void cancel() {
+            if (!settled) {
+                settled = true;
+                bucket.refund(1, tokens);
+            }
+        }
+    }
+
+    /**
+     * A waiting caller.
+     */
+    static class Waiter implements Comparable<Waiter> {
+        final long tokens;
+        final long enqueuedAt;
+        final long rank;
+        final long sequence;
+        final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+        Waiter(long tokens, long enqueuedAt, int priority, long sequence) {
+            this.tokens = tokens;
+            this.enqueuedAt = enqueuedAt;
+            // Earlier arrival and lower priority number both move a caller forward
+            this.rank = enqueuedAt + priority * PRIORITY_STEP.toNanos();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byRank = Long.compare(rank, other.rank);
+            return byRank != 0 ? byRank : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The budget, queue and wait statistics of one model and key.
+     */
+    public static class Bucket {
+        private final String model;
+        private final String key;
+        private final Limits limits;
+
+        // Capacities and refill rates per nanosecond; 0 for an unlimited dimension
+        private final double requestCapacity;
+        private final double tokenCapacity;
+        private final double requestRate;
+        private final double tokenRate;
+
+        // A lock rather than synchronized, so virtual threads waiting here are not pinned
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+        private final AtomicLong sequence = new AtomicLong();
+        private double requests;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long pausedUntil = refilledAt;
+        private ScheduledFuture<?> wakeup;
+        private long wakeupAt;
+
+        private long granted;
+        private long delayed;
+        private long rateLimited;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private final long[] recentWaits = new long[WAIT_SAMPLES];
+
+        Bucket(String model, String key, Limits limits) {
+            this.model = model;
+            this.key = key;
+            this.limits = limits;
+
+            double burstNanos = limits.getBurst().toNanos();
+            double minute = TimeUnit.MINUTES.toNanos(1);
+            this.requestRate = limits.getRequestsPerMinute() / minute;
+            this.tokenRate = limits.getTokensPerMinute() / minute;
+            this.requestCapacity = limits.getRequestsPerMinute() > 0 ? Math.max(1, requestRate * burstNanos) : 0;
+            this.tokenCapacity = limits.getTokensPerMinute() > 0 ? Math.max(1, tokenRate * burstNanos) : 0;
+            this.requests = requestCapacity;
+            this.tokens = tokenCapacity;
+        }
+
+        CompletableFuture<Permit> acquire(long cost, int priority) {
+            Waiter waiter;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                refill(now);
+                if (waiters.isEmpty() && delayUntilReady(cost, now) == 0) {
+                    take(cost);
+                    recordWait(0);
+                    return CompletableFuture.completedFuture(new Permit(this, cost, 0));
+                }
+
+                waiter = new Waiter(cost, now, priority, sequence.incrementAndGet());
+                waiters.add(waiter);
+                scheduleWakeup(now);
+            } finally {
+                lock.unlock();
+            }
+            return waiter.future;
+        }
+
+        /**
+         * Serves the waiters at the head of the queue that the bucket can now cover.
+         */
+        private void dispatch() {
+            List<Waiter> ready = new ArrayList<>();
+            long now;
+            lock.lock();
+            try {
+                wakeup = null;
+                now = System.nanoTime();
+                refill(now);
+                while (!waiters.isEmpty()) {
+                    Waiter head = waiters.peek();
+                    if (head.future.isDone()) {
+                        // Cancelled while waiting
+                        waiters.poll();
+                        continue;
+                    }
+                    if (delayUntilReady(head.tokens, now) > 0) {
+                        break;
+                    }
+                    waiters.poll();
+                    take(head.tokens);
+                    recordWait(now - head.enqueuedAt);
+                    ready.add(head);
+                }
+                scheduleWakeup(now);
+            } finally {
+                lock.unlock();
+            }
+
+            // Completed outside the lock and off the timer thread, as completion runs the
+            // callers' continuations
+            for (Waiter waiter : ready) {
+                long waitNanos = now - waiter.enqueuedAt;
+                GRANT_EXECUTOR.execute(() -> {
+                    if (!waiter.future.complete(new Permit(this, waiter.tokens, waitNanos))) {
+                        refund(1, waiter.tokens);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Arranges for dispatch to run when the head waiter can be served. Called with the
+         * lock held.
+         */
+        private void scheduleWakeup(long now) {
+            Waiter head = waiters.peek();
+            if (head == null) {
+                return;
+            }
+            long at = now + delayUntilReady(head.tokens, now);
+            if (wakeup != null && wakeupAt <= at) {
+                return;
+            }
+            if (wakeup != null) {
+                wakeup.cancel(false);
+            }
+            wakeupAt = at;
+            wakeup = TIMER.schedule(this::dispatch, at - now, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets how long until the bucket can cover a request, 0 if it can now. Called with the
+         * lock held.
+         */
+        private long delayUntilReady(long cost, long now) {
+            double delay = Math.max(0, pausedUntil - now);
+            if (requestRate > 0 && requests < 1) {
+                delay = Math.max(delay, (1 - requests) / requestRate);
+            }
+            if (tokenRate > 0) {
+                // A request bigger than the bucket goes once the bucket is full
+                double needed = Math.min(cost, tokenCapacity);
+                if (tokens < needed) {
+                    delay = Math.max(delay, (needed - tokens) / tokenRate);
+                }
+            }
+            return (long) Math.ceil(delay);
+        }
+
+        private void refill(long now) {
+            long elapsed = now - refilledAt;
+            refilledAt = now;
+            requests = Math.min(requestCapacity, requests + elapsed * requestRate);
+            tokens = Math.min(tokenCapacity, tokens + elapsed * tokenRate);
+        }
+
+        private void take(long cost) {
+            if (requestRate > 0) {
+                requests -= 1;
+            }
+            if (tokenRate > 0) {
+                tokens -= cost;
+            }
+        }
+
+        void refund(int requestCount, long tokenCount) {
+            if (limits.isUnlimited() || (requestCount == 0 && tokenCount == 0)) {
+                return;
+            }
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                refill(now);
+                if (requestRate > 0) {
+                    requests = Math.min(requestCapacity, requests + requestCount);
+                }
+                if (tokenRate > 0) {
+                    // A negative refund charges a request that used more than its estimate
+                    tokens = Math.min(tokenCapacity, tokens + tokenCount);
+                }
+                scheduleWakeup(now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void pause(Duration duration) {
+            lock.lock();
+            try {
+                rateLimited++;
+                long now = System.nanoTime();
+                pausedUntil = Math.max(pausedUntil, now + duration.toNanos());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void recordWait(long waitNanos) {
+            recentWaits[(int) (granted % WAIT_SAMPLES)] = waitNanos;
+            granted++;
+            if (waitNanos > 0) {
+                delayed++;
+                totalWaitNanos += waitNanos;
+                maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            }
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Limits getLimits() {
+            return limits;
+        }
+
+        /**
+         * Gets the number of callers waiting now.
+         */
+        public int getQueueLength() {
+            lock.lock();
+            try {
+                return (int) waiters.stream().filter(waiter -> !waiter.future.isDone()).count();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gets the number of permits given out.
+         */
+        public long getGranted() {
+            lock.lock();
+            try {
+                return granted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gets the number of permits that had to wait.
+         */
+        public long getDelayed() {
+            lock.lock();
+            try {
+                return delayed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gets the number of times the provider rate limited this model and key anyway.
+         */
+        public long getRateLimited() {
+            lock.lock();
+            try {
+                return rateLimited;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public Duration getTotalWait() {
+            lock.lock();
+            try {
+                return Duration.ofNanos(totalWaitNanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public Duration getMaxWait() {
+            lock.lock();
+            try {
+                return Duration.ofNanos(maxWaitNanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gets the mean wait over all permits, including those that didn't wait.
+         */
+        public Duration getMeanWait() {
+            lock.lock();
+            try {
+                return granted == 0 ? Duration.ZERO : Duration.ofNanos(totalWaitNanos / granted);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gets a percentile of the recent waits, e.g. 0.95 for p95.
+         */
+        public Duration getWaitPercentile(double p) {
+            lock.lock();
+            try {
+                int size = (int) Math.min(granted, WAIT_SAMPLES);
+                if (size == 0) {
+                    return Duration.ZERO;
+                }
+                long[] sorted = Arrays.copyOf(recentWaits, size);
+                Arrays.sort(sorted);
+                return Duration.ofNanos(sorted[Math.min(size - 1, (int) Math.ceil(p * size) - 1)]);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param defaultLimits Limits for models without their own
+     */
+    public RequestScheduler(Limits defaultLimits) {
+        this.defaultLimits = defaultLimits;
+    }
+
+    /**
+     * Gets the process-wide scheduler used by LLM when none is given. Its default limits come
+     * from RPM_PROPERTY and TPM_PROPERTY, and are unlimited if those aren't set.
+     */
+    public static RequestScheduler shared() {
+        return SHARED;
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "llm-request-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Wakeups are often rescheduled earlier; don't keep the cancelled ones queued
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Sets the limits for one model, for every key. Applies to buckets created afterwards,
+     * so set limits before the first request.
+     */
+    public void setLimits(String model, Limits limits) {
+        modelLimits.put(model, limits);
+    }
+
+    public void setDefaultLimits(Limits limits) {
+        this.defaultLimits = limits;
+    }
+
+    public Limits getLimits(String model) {
+        return modelLimits.getOrDefault(model, defaultLimits);
+    }
+
+    /**
+     * Gets whether requests for a model are paced, i.e. whether callers need to estimate
+     * their token cost.
+     */
+    public boolean isLimited(String model) {
+        return !getLimits(model).isUnlimited();
+    }
+
+    public Bucket getBucket(String model, String key) {
+        return buckets.computeIfAbsent(model + "\u0000" + key, name -> new Bucket(model, key, getLimits(model)));
+    }
+
+    public Collection<Bucket> getBuckets() {
+        return buckets.values();
+    }
+
+    /**
+     * Waits for permission to send a request.
+     *
+     * @param key Identifies the API key, e.g. a fingerprint; never the key itself
+     * @param tokens Estimated tokens the request will use, including the response
+     * @param priority Lower is served first
+     */
+    public Permit acquire(String model, String key, long tokens, int priority) throws InterruptedException {
+        CompletableFuture<Permit> permit = acquireAsync(model, key, tokens, priority);
+        try {
+            return permit.get();
+        } catch (InterruptedException e) {
+            // Leave the queue; if the permit was granted meanwhile, give it back
+            if (!permit.cancel(false)) {
+                permit.join().cancel();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to acquire a permit", e.getCause());
+        }
+    }
+
+    /**
+     * Asks for permission to send a request without blocking. Cancelling the future leaves
+     * the queue.
+     */
+    public CompletableFuture<Permit> acquireAsync(String model, String key, long tokens, int priority) {
+        return getBucket(model, key).acquire(tokens, priority);
+    }
+
+    /**
+     * Sends a chat completions request once the model and key's bucket allows it, for clients
+     * that call the endpoint over HTTP rather than through LLM. The request is charged its
+     * body's estimated tokens plus maxTokens, corrected to the usage the response reports, and
+     * a 429 pauses the bucket.
+     *
+     * @param maxTokens The request's max_tokens, which providers reserve up front
+     * @throws InterruptedIOException If interrupted while waiting for permission
+     */
+    public Response execute(Call call, String model, String key, long maxTokens, int priority) throws IOException {
+        Permit permit;
+        try {
+            permit = acquire(model, key, estimateTokens(call.request(), model, maxTokens), priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to send a request to " + model);
+        }
+
+        // If the call fails, whether the provider counted it is unknown, so the estimate stands
+        Response response = call.execute();
+        settle(permit, model, key, response);
+        return response;
+    }
+
+    /**
+     * Non-blocking variant of execute. The call is enqueued once permitted; cancelling the
+     * future leaves the queue or cancels the call.
+     */
+    public CompletableFuture<Response> executeAsync(Call call, String model, String key, long maxTokens,
+                                                    int priority) {
+        CompletableFuture<Permit> permit = acquireAsync(model, key,
+                estimateTokens(call.request(), model, maxTokens), priority);
+        CompletableFuture<Response> response = new CompletableFuture<>();
+
+        permit.thenAccept(granted -> {
+            if (response.isDone()) {
+                // Cancelled as the permit was granted
+                granted.cancel();
+                return;
+            }
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    response.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response result) {
+                    settle(granted, model, key, result);
+                    if (!response.complete(result)) {
+                        result.close();
+                    }
+                }
+            });
+        });
+
+        response.whenComplete((result, error) -> {
+            if (response.isCancelled()) {
+                permit.cancel(false);
+                call.cancel();
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Estimates the tokens of a raw HTTP request from the length of its body.
+     */
+    private long estimateTokens(Request request, String model, long maxTokens) {
+        if (!isLimited(model)) {
+            return 0;
+        }
+        long length = -1;
+        try {
+            length = request.body() != null ? request.body().contentLength() : 0;
+        } catch (IOException e) {
+            // Unknown length; charge for the response alone
+        }
+        return Math.max(0, length) / BYTES_PER_TOKEN + maxTokens;
+    }
+
+    /**
+     * Settles a raw HTTP request's permit from its response.
+     */
+    private void settle(Permit permit, String model, String key, Response response) {
+        if (response.code() == 429) {
+            onRateLimited(model, key, LLMCallException.parseRetryAfter(response.header("Retry-After")));
+        }
+        long tokens = permit.getTokens();
+        if (tokens > 0 && response.isSuccessful()) {
+            try {
+                // Peeked, so the caller can still read the body
+                JsonNode used = MAPPER.readTree(response.peekBody(MAX_USAGE_PEEK).string())
+                        .path("usage").path("total_tokens");
+                if (used.canConvertToLong()) {
+                    tokens = used.asLong();
+                }
+            } catch (IOException e) {
+                // Not JSON, or too big to peek; the estimate stands
+            }
+        }
+        permit.complete(tokens);
+    }
+
+    /**
+     * Gets the priority a caller put in a prompt's metadata under PRIORITY.
+     */
+    public static int priorityOf(Map<String, Object> metadata) {
+        Object priority = metadata != null ? metadata.get(PRIORITY) : null;
+        return priority instanceof Number ? ((Number) priority).intValue() : DEFAULT_PRIORITY;
+    }
+
+    /**
+     * Reports a 429 from the provider. Every caller of the model and key waits until the
+     * provider's Retry-After has passed.
+     */
+    public void onRateLimited(String model, String key, Duration retryAfter) {
+        getBucket(model, key).pause(retryAfter != null ? retryAfter : Duration.ofSeconds(1));
+    }
+}
@@ -0,0 +1,551 @@
+package com.juleswhite.common;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Sends LLM requests with retries, circuit breaking and, optionally, hedging.
+ *
+ * State is kept per endpoint (e.g. HttpTransports.HUGGING_FACE, or an API base URL): a
+ * CircuitBreaker, a RetryBudget and recent latencies. A failed request is retried when the
+ * failure is retryable, the RetryPolicy allows another attempt and the endpoint's budget has
+ * tokens left; the wait honours Retry-After. Calls to an endpoint whose breaker is open fail
+ * at once.
+ *
+ * With hedging on, a request that hasn't answered by the endpoint's p95 latency is sent a
+ * second time and whichever answer arrives first is used; the other request is cancelled. An
+ * asynchronous request is cancelled through its future; a blocking one runs on its own virtual
+ * thread, which is interrupted, and that aborts the socket read it is blocked in.
+ * Hedges only go out while the breaker is closed and the budget allows a retry, so at most a
+ * few percent of healthy traffic is duplicated and none of an unhealthy endpoint's.
+ *
+ * Whatever goes wrong, callers see an LLMCallException.
+ */
+public class ResilientExecutor {
+
+    /**
+     * System property that turns hedging on for new executors, e.g. -Dllm.hedging=true
+     */
+    public static final String HEDGING_PROPERTY = "llm.hedging";
+
+    private static final ResilientExecutor SHARED = new ResilientExecutor();
+
+    // Latencies kept per endpoint for the hedge delay, and how many are needed before hedging
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    // Blocking calls are hedged by running each attempt on its own virtual thread, which is
+    // interrupted if the attempt loses
+    private static final ExecutorService HEDGE_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final RetryPolicy retryPolicy;
+    private final Supplier<CircuitBreaker> breakerFactory;
+    private final Supplier<RetryBudget> budgetFactory;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private volatile boolean hedging = Boolean.getBoolean(HEDGING_PROPERTY);
+    private volatile Duration minHedgeDelay = Duration.ofMillis(50);
+
+    /**
+     * The state and statistics of one endpoint.
+     */
+    public static class Endpoint {
+        private final String name;
+        private final CircuitBreaker breaker;
+        private final RetryBudget budget;
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder budgetRejections = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        private final LongAdder hedgeWins = new LongAdder();
+
+        // Latencies of successful calls as a ring buffer
+        private final ReentrantLock latencyLock = new ReentrantLock();
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private long latencyCount;
+        private volatile long hedgeDelayNanos = -1;
+
+        Endpoint(String name, CircuitBreaker breaker, RetryBudget budget) {
+            this.name = name;
+            this.breaker = breaker;
+            this.budget = budget;
+        }
+
+        void onSuccess(long latencyNanos) {
+            calls.increment();
+            breaker.onSuccess();
+            budget.onSuccess();
+
+            latencyLock.lock();
+            try {
+                latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = latencyNanos;
+                // Recomputed every few samples rather than on every call
+                if (latencyCount >= MIN_HEDGE_SAMPLES && latencyCount % 16 == 4) {
+                    hedgeDelayNanos = percentile(HEDGE_PERCENTILE);
+                }
+            } finally {
+                latencyLock.unlock();
+            }
+        }
+
+        void onFailure(LLMCallException failure) {
+            calls.increment();
+            failures.increment();
+            if (failure.isRetryable()) {
+                budget.onFailure();
+                // Being rate limited says the endpoint is busy, not broken; Retry-After handles it
+                if (failure.isRateLimited()) {
+                    breaker.onIgnored();
+                } else {
+                    breaker.onFailure();
+                }
+            } else if (failure.getStatusCode() > 0) {
+                // The endpoint answered; the request was at fault
+                breaker.onSuccess();
+            } else {
+                breaker.onIgnored();
+            }
+        }
+
+        LLMCallException circuitOpen() {
+            return new LLMCallException(name, "Circuit breaker open for " + name, null, 0,
+                    breaker.getRemainingOpenTime(), false);
+        }
+
+        private long percentile(double p) {
+            int size = (int) Math.min(latencyCount, LATENCY_SAMPLES);
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(p * size) - 1)];
+        }
+
+        /**
+         * Gets the delay before a hedge, or null if too few calls have been seen to know it.
+         */
+        Duration getHedgeDelay(Duration minimum) {
+            long delay = hedgeDelayNanos;
+            return delay < 0 ? null : Duration.ofNanos(Math.max(delay, minimum.toNanos()));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public CircuitBreaker getBreaker() {
+            return breaker;
+        }
+
+        public RetryBudget getBudget() {
+            return budget;
+        }
+
+        /**
+         * Gets the number of requests that completed, including retries and hedges; requests
+         * cancelled because another answered first are not counted.
+         */
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        /**
+         * Gets the number of retries not made because the budget was spent.
+         */
+        public long getBudgetRejections() {
+            return budgetRejections.sum();
+        }
+
+        public long getHedges() {
+            return hedges.sum();
+        }
+
+        /**
+         * Gets the number of hedged requests that answered before the original.
+         */
+        public long getHedgeWins() {
+            return hedgeWins.sum();
+        }
+
+        /**
+         * Gets a latency percentile of recent successful calls, e.g. 0.95 for p95.
+         *
+         * @return The latency, or null if there have been no successful calls
+         */
+        public Duration getLatencyPercentile(double p) {
+            latencyLock.lock();
+            try {
+                return latencyCount == 0 ? null : Duration.ofNanos(percentile(p));
+            } finally {
+                latencyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Creates an executor with the default RetryPolicy, CircuitBreaker and RetryBudget.
+     */
+    public ResilientExecutor() {
+        this(new RetryPolicy(), CircuitBreaker::new, RetryBudget::new);
+    }
+
+    /**
+     * @param retryPolicy Policy for all endpoints
+     * @param breakerFactory Creates each endpoint's breaker
+     * @param budgetFactory Creates each endpoint's retry budget
+     */
+    public ResilientExecutor(RetryPolicy retryPolicy,
+                             Supplier<CircuitBreaker> breakerFactory,
+                             Supplier<RetryBudget> budgetFactory) {
+        this.retryPolicy = retryPolicy;
+        this.breakerFactory = breakerFactory;
+        this.budgetFactory = budgetFactory;
+    }
+
+    /**
+     * Gets the process-wide executor used by the LLM classes when none is given, so every
+     * agent in the JVM shares one breaker and one budget per endpoint.
+     */
+    public static ResilientExecutor shared() {
+        return SHARED;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /**
+     * Turns hedged requests on or off. Off by default, as each hedge is a second request that
+     * may be billed.
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sets the shortest wait before a hedge, for endpoints whose p95 is very low.
+     */
+    public void setMinHedgeDelay(Duration minHedgeDelay) {
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public Endpoint getEndpoint(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint,
+                name -> new Endpoint(name, breakerFactory.get(), budgetFactory.get()));
+    }
+
+    public <T> T execute(String endpoint, Callable<T> call) {
+        return execute(endpoint, true, call);
+    }
+
+    /**
+     * Makes a blocking call, retrying it on the calling thread.
+     *
+     * @param hedgeable false if the call has side effects that must not happen twice, such as
+     *                  handing streamed tokens to a listener
+     * @throws LLMCallException If the call failed and won't be retried
+     */
+    public <T> T execute(String endpoint, boolean hedgeable, Callable<T> call) {
+        if (hedgeable && hedging) {
+            CompletableFuture<T> result = executeAsync(endpoint, true, () -> runInterruptibly(call));
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                throw LLMCallException.cancelled(endpoint, e);
+            } catch (ExecutionException e) {
+                throw classify(endpoint, e.getCause());
+            }
+        }
+
+        Endpoint state = getEndpoint(endpoint);
+        for (int attempt = 1; ; attempt++) {
+            if (!state.breaker.tryAcquire()) {
+                throw state.circuitOpen();
+            }
+
+            LLMCallException failure;
+            long start = System.nanoTime();
+            try {
+                T value = call.call();
+                state.onSuccess(System.nanoTime() - start);
+                return value;
+            } catch (Exception e) {
+                if (isInterruption(e)) {
+                    // The caller gave up, e.g. a run hit its deadline, and interrupting the
+                    // thread closed the socket; that is no fault of the endpoint's
+                    state.breaker.onIgnored();
+                    Thread.currentThread().interrupt();
+                    throw LLMCallException.cancelled(endpoint, e);
+                }
+                failure = classify(endpoint, e);
+                state.onFailure(failure);
+            }
+
+            Duration delay = retryDelay(state, failure, attempt + 1);
+            if (delay == null) {
+                throw failure;
+            }
+            state.retries.increment();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // Cancelled while waiting; report the failure that led here
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Runs a blocking call on its own virtual thread. Cancelling the returned future interrupts
+     * the thread, which supplyAsync would not do, so a losing hedge stops instead of running on.
+     */
+    private static <T> CompletableFuture<T> runInterruptibly(Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = HEDGE_EXECUTOR.submit(() -> {
+            try {
+                result.complete(call.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public <T> CompletableFuture<T> executeAsync(String endpoint, Supplier<CompletableFuture<T>> call) {
+        return executeAsync(endpoint, true, call);
+    }
+
+    /**
+     * Makes a non-blocking call. Retries are scheduled rather than slept, so no thread waits
+     * during the backoff. Cancelling the returned future cancels the request in flight.
+     *
+     * @param call Starts one attempt
+     * @return A future that fails with an LLMCallException if the call failed and won't be retried
+     */
+    public <T> CompletableFuture<T> executeAsync(String endpoint, boolean hedgeable,
+                                                 Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(getEndpoint(endpoint), hedgeable && hedging, call, 1, result);
+        return result;
+    }
+
+    private <T> void attempt(Endpoint state, boolean hedge, Supplier<CompletableFuture<T>> call,
+                             int attempt, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+
+        CompletableFuture<T> outcome = hedge ? sendHedged(state, call, result) : send(state, call, result);
+        outcome.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+
+            LLMCallException failure = classify(state.name, error);
+            Duration delay = retryDelay(state, failure, attempt + 1);
+            if (delay == null) {
+                result.completeExceptionally(failure);
+                return;
+            }
+            state.retries.increment();
+            CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(() -> attempt(state, hedge, call, attempt + 1, result));
+        });
+    }
+
+    /**
+     * Sends one request and reports its outcome to the endpoint.
+     *
+     * @param owner Future whose completion makes the request unnecessary; if it completes first
+     *              the request is cancelled
+     */
+    private <T> CompletableFuture<T> send(Endpoint state, Supplier<CompletableFuture<T>> call,
+                                          CompletableFuture<T> owner) {
+        if (!state.breaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(state.circuitOpen());
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<T> request;
+        try {
+            request = call.get();
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<T> sent = request;
+        owner.whenComplete((value, error) -> sent.cancel(true));
+
+        return request.handle((value, error) -> {
+            if (error == null) {
+                state.onSuccess(System.nanoTime() - start);
+                return value;
+            }
+            if (unwrap(error) instanceof CancellationException) {
+                state.breaker.onIgnored();
+                throw new CompletionException(error);
+            }
+            LLMCallException failure = classify(state.name, error);
+            state.onFailure(failure);
+            throw failure;
+        });
+    }
+
+    /**
+     * Sends a request, and a second one if the first hasn't answered by the hedge delay.
+     * Completes with the first success, or with a failure once every request sent has failed.
+     */
+    private <T> CompletableFuture<T> sendHedged(Endpoint state, Supplier<CompletableFuture<T>> call,
+                                                CompletableFuture<T> result) {
+        Duration delay = state.getHedgeDelay(minHedgeDelay);
+        if (delay == null) {
+            return send(state, call, result);
+        }
+
+        CompletableFuture<T> first = new CompletableFuture<>();
+        result.whenComplete((value, error) -> first.cancel(true));
+        AtomicInteger outstanding = new AtomicInteger(1);
+        // Set by the first success, so a hedge win is counted before the caller sees the answer
+        AtomicBoolean answered = new AtomicBoolean();
+
+        send(state, call, first).whenComplete((value, error) -> {
+            if (error == null) {
+                if (answered.compareAndSet(false, true)) {
+                    first.complete(value);
+                }
+            } else if (outstanding.decrementAndGet() == 0) {
+                first.completeExceptionally(unwrap(error));
+            }
+        });
+
+        CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+            if (first.isDone()
+                    || state.breaker.getState() != CircuitBreaker.State.CLOSED
+                    || !state.budget.canRetry()) {
+                return;
+            }
+            // The original may have failed meanwhile, in which case the retry logic takes over
+            if (outstanding.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                return;
+            }
+
+            state.hedges.increment();
+            send(state, call, first).whenComplete((value, error) -> {
+                if (error == null) {
+                    if (answered.compareAndSet(false, true)) {
+                        state.hedgeWins.increment();
+                        first.complete(value);
+                    }
+                } else if (outstanding.decrementAndGet() == 0) {
+                    first.completeExceptionally(unwrap(error));
+                }
+            });
+        });
+
+        return first;
+    }
+
+    /**
+     * Gets the wait before the next attempt, or null if there shouldn't be one.
+     */
+    private Duration retryDelay(Endpoint state, LLMCallException failure, int nextAttempt) {
+        if (!failure.isRetryable() || nextAttempt > retryPolicy.getMaxAttempts()) {
+            return null;
+        }
+        if (!state.budget.canRetry()) {
+            state.budgetRejections.increment();
+            return null;
+        }
+        return retryPolicy.delayBefore(nextAttempt, failure.getRetryAfter());
+    }
+
+    /**
+     * Turns whatever a call threw into an LLMCallException. Failures to reach the endpoint are
+     * retryable; anything else not already classified by the caller is not.
+     */
+    private static LLMCallException classify(String endpoint, Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof LLMCallException) {
+            return (LLMCallException) cause;
+        }
+        // A malformed body is an IOException to Jackson, but sending again won't fix it
+        if ((cause instanceof IOException && !(cause instanceof JsonProcessingException))
+                || cause instanceof UncheckedIOException) {
+            return LLMCallException.forIoFailure(endpoint, cause);
+        }
+        return LLMCallException.permanent(endpoint, cause);
+    }
+
+    /**
+     * Gets whether a blocking call failed because the calling thread was interrupted.
+     */
+    private static boolean isInterruption(Throwable error) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            // Timeouts are InterruptedIOExceptions too, but they are the endpoint's
+            boolean timeout = cause instanceof SocketTimeoutException || "timeout".equals(cause.getMessage());
+            if (cause instanceof InterruptedException
+                    || (cause instanceof InterruptedIOException && !timeout)
+                    || cause instanceof ClosedByInterruptException
+                    || "Closed by interrupt".equalsIgnoreCase(cause.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,58 @@
+package com.juleswhite.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries and hedged requests to an endpoint to a fraction of its successful traffic,
+ * so that when the endpoint is overloaded the clients don't multiply its load.
+ *
+ * This is the token scheme gRPC uses for retry throttling: the budget starts full; every
+ * failure takes one token, every success gives back tokenRatio tokens, and extra requests are
+ * only allowed while more than half the tokens are left. With the defaults, retries stop once
+ * failures outnumber successes by about ten to one, and resume as successes come back.
+ */
+public class RetryBudget {
+
+    // Tokens are kept in thousandths so they can be updated atomically as a long
+    private static final long SCALE = 1000;
+
+    private final long maxTokens;
+    private final long tokenRatio;
+    private final AtomicLong tokens;
+
+    public RetryBudget() {
+        this(10, 0.1);
+    }
+
+    /**
+     * @param maxTokens Size of the budget; retries need more than half of it
+     * @param tokenRatio Tokens returned per success
+     */
+    public RetryBudget(int maxTokens, double tokenRatio) {
+        this.maxTokens = maxTokens * SCALE;
+        this.tokenRatio = (long) (tokenRatio * SCALE);
+        this.tokens = new AtomicLong(this.maxTokens);
+    }
+
+    /**
+     * Gets whether a retry or hedged request may be sent now.
+     */
+    public boolean canRetry() {
+        return tokens.get() > maxTokens / 2;
+    }
+
+    public void onSuccess() {
+        tokens.accumulateAndGet(tokenRatio, (current, delta) -> Math.min(maxTokens, current + delta));
+    }
+
+    public void onFailure() {
+        tokens.accumulateAndGet(SCALE, (current, delta) -> Math.max(0, current - delta));
+    }
+
+    /**
+     * Gets the tokens left, e.g. 4.5 of 10.
+     */
+    public double getTokens() {
+        return (double) tokens.get() / SCALE;
+    }
+}
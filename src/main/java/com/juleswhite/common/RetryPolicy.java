@@ -0,0 +1,93 @@
+package com.juleswhite.common;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how long ResilientExecutor waits before sending a failed request again.
+ *
+ * Delays grow exponentially with "full jitter": each wait is a random time between zero and
+ * the exponential bound, so clients that failed together don't come back together. When the
+ * server sends Retry-After, the wait is at least that long (plus a little jitter); if it asks
+ * for longer than maxRetryAfter, the failure is returned to the caller instead.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+    private final Duration maxRetryAfter;
+
+    /**
+     * Three attempts, backing off from 250ms up to 20s, waiting up to a minute when asked.
+     */
+    public RetryPolicy() {
+        this(3, Duration.ofMillis(250), Duration.ofSeconds(20), Duration.ofSeconds(60));
+    }
+
+    /**
+     * @param maxAttempts Attempts in total, including the first; 1 disables retries
+     * @param baseDelay Bound on the wait before the first retry
+     * @param maxDelay Bound on the wait before any retry
+     * @param maxRetryAfter Longest Retry-After that is honoured rather than returned as a failure
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, Duration maxRetryAfter) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    /**
+     * A policy that never retries.
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy(1, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * Gets the wait before the given attempt.
+     *
+     * @param attempt The attempt about to be made, 2 for the first retry
+     * @param retryAfter What the server asked for, or null
+     * @return The delay, or null if the attempt should not be made
+     */
+    public Duration delayBefore(int attempt, Duration retryAfter) {
+        if (attempt > maxAttempts) {
+            return null;
+        }
+        if (retryAfter != null && retryAfter.compareTo(maxRetryAfter) > 0) {
+            return null;
+        }
+
+        // Full jitter: uniform in [0, min(maxDelay, baseDelay * 2^(retry - 1))]
+        int retry = attempt - 1;
+        long bound = baseDelay.toMillis() << Math.min(retry - 1, 30);
+        bound = Math.min(Math.max(bound, 0), maxDelay.toMillis());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = bound > 0 ? random.nextLong(bound + 1) : 0;
+
+        if (retryAfter != null) {
+            // Never earlier than asked; spread the callers that were told the same time
+            long asked = retryAfter.toMillis();
+            delay = Math.max(delay, asked + random.nextLong(asked / 10 + 1));
+        }
+        return Duration.ofMillis(delay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Duration getBaseDelay() {
+        return baseDelay;
+    }
+
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    public Duration getMaxRetryAfter() {
+        return maxRetryAfter;
+    }
+}
@@ -1,6 +1,8 @@
 package com.juleswhite.module1;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.juleswhite.common.HttpTransports;
+import com.juleswhite.common.RequestScheduler;
 import com.juleswhite.module2.Tool;
 import okhttp3.*;
 
@@ -11,10 +13,11 @@ import java.util.List;
 import java.util.Map;
 
 public class LLM1 {
+    private static final int MAX_TOKENS = 1024;
+
     private final String model;
     private final String apiKey;
     private final String baseUrl;
-    private final OkHttpClient client;
     private final ObjectMapper objectMapper;
 
     public LLM1() {
@@ -33,7 +36,6 @@ public class LLM1 {
         String envBase = System.getenv("HF_BASE_URL");
         this.baseUrl = (envBase != null && !envBase.isBlank()) ? envBase : "https://router.huggingface.co/v1/chat/completions";
 
-        this.client = new OkHttpClient();
         this.objectMapper = new ObjectMapper();
     }
 
@@ -50,7 +52,7 @@ public class LLM1 {
             Map<String, Object> requestBody = new java.util.HashMap<>();
             requestBody.put("model", this.model);
             requestBody.put("messages", chatMessages);
-            requestBody.put("max_tokens", 1024);
+            requestBody.put("max_tokens", MAX_TOKENS);
             requestBody.put("temperature", 0.3);
             requestBody.put("top_p", 0.9);
 
@@ -64,7 +66,10 @@ public class LLM1 {
                     .header("Content-Type", "application/json")
                     .build();
 
-            try (Response response = client.newCall(request).execute()) {
+            // Paced with every other Hugging Face caller in the JVM
+            try (Response response = RequestScheduler.shared().execute(
+                    HttpTransports.get(HttpTransports.HUGGING_FACE).newCall(request), model,
+                    HttpTransports.HUGGING_FACE, MAX_TOKENS, RequestScheduler.DEFAULT_PRIORITY)) {
                 int status = response.code();
                 String responseBody = response.body() != null ? response.body().string() : "";
                 if (!response.isSuccessful()) {
@@ -1,5 +1,7 @@
 package com.juleswhite.module1;
 
+import com.juleswhite.common.HttpTransports;
+import com.juleswhite.common.RequestScheduler;
 import okhttp3.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -8,14 +10,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 import java.util.Base64;
 
 public class LLMBase64 {
+    private static final int MAX_TOKENS = 512;
+
     private final String model;
     private final String apiKey;
     private final String baseUrl;
-    private final OkHttpClient client;
     private final ObjectMapper objectMapper;
 
     public LLMBase64() {
@@ -33,12 +35,6 @@ public class LLMBase64 {
 
         this.baseUrl = "https://router.huggingface.co/v1/chat/completions";
 
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(60, TimeUnit.SECONDS)
-                .writeTimeout(60, TimeUnit.SECONDS)
-                .readTimeout(120, TimeUnit.SECONDS)
-                .build();
-
         this.objectMapper = new ObjectMapper();
     }
 
@@ -56,19 +52,22 @@ public class LLMBase64 {
             requestBody.put("model", model);
             requestBody.put("messages", formattedMessages);
             requestBody.put("temperature", 0.7);
-            requestBody.put("max_tokens", 512);
+            requestBody.put("max_tokens", MAX_TOKENS);
 
             String jsonBody = objectMapper.writeValueAsString(requestBody);
             RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
 
             Request request = new Request.Builder()
-                    .url(baseUrl)
+                    .url(HttpTransports.resolveUrl(HttpTransports.HUGGING_FACE, baseUrl))
                     .post(body)
                     .header("Authorization", "Bearer " + apiKey)
                     .header("Content-Type", "application/json")
                     .build();
 
-            try (Response response = client.newCall(request).execute()) {
+            // Paced with every other Hugging Face caller in the JVM
+            try (Response response = RequestScheduler.shared().execute(
+                    HttpTransports.get(HttpTransports.HUGGING_FACE).newCall(request), model,
+                    HttpTransports.HUGGING_FACE, MAX_TOKENS, RequestScheduler.DEFAULT_PRIORITY)) {
                 if (!response.isSuccessful()) {
                     String errorBody = response.body() != null ? response.body().string() : "";
                     throw new IOException("Unexpected response: " + response.code() + " - " + errorBody);
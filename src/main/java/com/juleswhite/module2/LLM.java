@@ -1,6 +1,10 @@
 package com.juleswhite.module2;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.juleswhite.common.HttpTransports;
+import com.juleswhite.common.LLMCallException;
+import com.juleswhite.common.RequestScheduler;
+import com.juleswhite.common.ResilientExecutor;
 import com.juleswhite.module2.Tool;
 import okhttp3.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -10,13 +14,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class LLM {
     private final String model;
     private final String apiKey;
-    private final OkHttpClient client;
     private final ObjectMapper objectMapper;
+    private final ResilientExecutor executor;
     private static final String HF_API_URL = "https://router.huggingface.co/v1/chat/completions";
+    private static final int MAX_TOKENS = 1024;
     /**
      * Class to represent a prompt for the LLM, including messages and optional tools
      */
@@ -57,79 +63,152 @@ public class LLM {
         }
     }
     public LLM() {
-        this.model = "deepseek-ai/DeepSeek-V3.1-Terminus";//"openai/gpt-oss-120b";
-        this.apiKey = System.getenv("HUGGINGFACE_API_KEY");
-        this.client = new OkHttpClient();
-        this.objectMapper = new ObjectMapper();
+        this("deepseek-ai/DeepSeek-V3.1-Terminus");//"openai/gpt-oss-120b";
     }
 
     public LLM(String model) {
+        this(model, ResilientExecutor.shared());
+    }
+
+    /**
+     * @param executor Retries, circuit-breaks and hedges every request to the API
+     */
+    public LLM(String model, ResilientExecutor executor) {
         this.model = model;
         this.apiKey = System.getenv("HUGGINGFACE_API_KEY");
-        this.client = new OkHttpClient();
         this.objectMapper = new ObjectMapper();
+        this.executor = executor;
     }
 
     public String generateResponse(List<Message> messages) {
         return generateResponse(new Prompt(messages));
     }
 
+    /**
+     * @throws LLMCallException If the request failed and was not, or could no longer be, retried
+     */
     public String generateResponse(Prompt prompt) {
+        Request request;
         try {
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", this.model);
-            List<Map<String, String>> modifiedMessages = new ArrayList<>();
-            boolean toolsInjected = false;
-
-            List<Map<String, String>> messageList = new ArrayList<>();
-            for (Message msg : prompt.getMessages()) {
-                Map<String, String> msgObj = new HashMap<>();
-                msgObj.put("role", msg.getRole());
-                msgObj.put("content", msg.getContent());
-                messageList.add(msgObj);
+            request = buildGenerateRequest(prompt);
+        } catch (JsonProcessingException e) {
+            throw LLMCallException.permanent(HttpTransports.HUGGING_FACE, e);
+        }
+
+        int priority = RequestScheduler.priorityOf(prompt.getMetadata());
+        return executor.execute(HttpTransports.HUGGING_FACE, () -> {
+            try (Response response = send(request, priority)) {
+                return parseGenerateResponse(response);
             }
-            requestBody.put("messages", messageList);
-            requestBody.put("max_tokens", 1024);
-            requestBody.put("temperature", 0.7);
-            requestBody.put("top_p", 0.9);
-
-
-          /*  Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("inputs", userPrompt);
-            requestBody.put("parameters", Map.of(
-                    "max_length", 150,
-                    "temperature", 0.7,
-                    "top_p", 0.9,
-                    "return_full_text", false,
-                    "do_sample", true
-            ));*/
-
-            String jsonBody = objectMapper.writeValueAsString(requestBody);
-            RequestBody body = RequestBody.create(jsonBody, MediaType.parse("application/json"));
-
-            Request request = new Request.Builder()
-                    .url(HF_API_URL)
-                    .post(body)
-                    .header("Authorization", "Bearer " + apiKey)
-                    .header("Content-Type", "application/json")
-                    .build();
-
-            try (Response response = client.newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    throw new IOException("Unexpected response " + response);
-                }
+        });
+    }
 
-                String responseBody = response.body().string();
-                List<Map<String, Object>> results = objectMapper.readValue(responseBody, List.class);
-                return results.get(0).get("generated_text").toString();
+    public CompletableFuture<String> generateResponseAsync(List<Message> messages) {
+        return generateResponseAsync(new Prompt(messages));
+    }
+
+    /**
+     * Non-blocking variant of generateResponse. The request is queued on the shared OkHttp
+     * dispatcher and the future completes from its callback, so no caller thread waits on
+     * the round trip, nor on the backoff before a retry.
+     */
+    public CompletableFuture<String> generateResponseAsync(Prompt prompt) {
+        Request request;
+        try {
+            request = buildGenerateRequest(prompt);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(LLMCallException.permanent(HttpTransports.HUGGING_FACE, e));
+        }
+
+        int priority = RequestScheduler.priorityOf(prompt.getMetadata());
+        return executor.executeAsync(HttpTransports.HUGGING_FACE, () -> sendAsync(request, priority));
+    }
+
+    /**
+     * Sends one request once the shared scheduler allows it, so that every Hugging Face
+     * caller in the JVM is paced together.
+     */
+    private Response send(Request request, int priority) throws IOException {
+        return RequestScheduler.shared().execute(HttpTransports.get(HttpTransports.HUGGING_FACE).newCall(request),
+                model, HttpTransports.HUGGING_FACE, MAX_TOKENS, priority);
+    }
+
+    /**
+     * Sends one request asynchronously, once the shared scheduler allows it.
+     */
+    private CompletableFuture<String> sendAsync(Request request, int priority) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<Response> sent = RequestScheduler.shared().executeAsync(
+                HttpTransports.get(HttpTransports.HUGGING_FACE).newCall(request),
+                model, HttpTransports.HUGGING_FACE, MAX_TOKENS, priority);
+        sent.whenComplete((response, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+                return;
             }
+            try (response) {
+                future.complete(parseGenerateResponse(response));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        // Cancelling the future leaves the scheduler's queue or abandons the HTTP call
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                sent.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    private Request buildGenerateRequest(Prompt prompt) throws JsonProcessingException {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("model", this.model);
+
+        List<Map<String, String>> messageList = new ArrayList<>();
+        for (Message msg : prompt.getMessages()) {
+            Map<String, String> msgObj = new HashMap<>();
+            msgObj.put("role", msg.getRole());
+            msgObj.put("content", msg.getContent());
+            messageList.add(msgObj);
+        }
+        requestBody.put("messages", messageList);
+        requestBody.put("max_tokens", MAX_TOKENS);
+        requestBody.put("temperature", 0.7);
+        requestBody.put("top_p", 0.9);
+
+        String jsonBody = objectMapper.writeValueAsString(requestBody);
+        RequestBody body = RequestBody.create(jsonBody, MediaType.parse("application/json"));
+
+        return new Request.Builder()
+                .url(HttpTransports.resolveUrl(HttpTransports.HUGGING_FACE, HF_API_URL))
+                .post(body)
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .build();
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to generate response", e);
+    private String parseGenerateResponse(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw failedResponse(response);
         }
+
+        String responseBody = response.body().string();
+        List<Map<String, Object>> results = objectMapper.readValue(responseBody, List.class);
+        return results.get(0).get("generated_text").toString();
+    }
+
+    /**
+     * Turns an error response into an exception the executor can act on.
+     */
+    private static LLMCallException failedResponse(Response response) {
+        return LLMCallException.forStatus(HttpTransports.HUGGING_FACE, response.code(),
+                response.header("Retry-After"), response.message());
     }
 
     // Call LLM API with context and get response
+    // Throws LLMCallException if the API fails, rather than returning an error the agent would parse
     public String callLLM(Prompt prompt) throws JsonProcessingException {
 
         // Prepare request payload (OpenAI format)
@@ -209,29 +288,32 @@ public class LLM {
 
         RequestBody requestBody = RequestBody.create(jsonPayload, MediaType.parse("application/json"));
         Request request = new Request.Builder()
-                .url(HF_API_URL)
+                .url(HttpTransports.resolveUrl(HttpTransports.HUGGING_FACE, HF_API_URL))
                 .post(requestBody)
                 .header("Authorization", "Bearer " + apiKey)
                 .header("Content-Type", "application/json")
                 .build();
 
-        try (Response response = client.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                return "LLM response failed: " + response.code();
-            }
-            String responseBody = response.body().string();
-            Map<String, Object> responseMap = objectMapper.readValue(responseBody, Map.class);
-            Object choicesObj = responseMap.get("choices");
-            if (choicesObj instanceof List && !((List<?>) choicesObj).isEmpty()) {
-                Object messageObj = ((Map<?, ?>) ((List<?>) choicesObj).get(0)).get("message");
-                if (messageObj instanceof Map) {
-                    return (String) ((Map<?, ?>) messageObj).get("content");
+        // No max_tokens is sent, so the scheduler charges for a reply as long as generateResponse's
+        int priority = RequestScheduler.priorityOf(prompt.getMetadata());
+        return executor.execute(HttpTransports.HUGGING_FACE, () -> {
+            try (Response response = send(request, priority)) {
+                if (!response.isSuccessful()) {
+                    throw failedResponse(response);
+                }
+                String responseBody = response.body().string();
+                Map<String, Object> responseMap = objectMapper.readValue(responseBody, Map.class);
+                Object choicesObj = responseMap.get("choices");
+                if (choicesObj instanceof List && !((List<?>) choicesObj).isEmpty()) {
+                    Object messageObj = ((Map<?, ?>) ((List<?>) choicesObj).get(0)).get("message");
+                    if (messageObj instanceof Map) {
+                        return (String) ((Map<?, ?>) messageObj).get("content");
+                    }
                 }
+                throw new LLMCallException(HttpTransports.HUGGING_FACE, "LLM response parsing failed.", null,
+                        response.code(), null, false);
             }
-            return "LLM response parsing failed.";
-        } catch (Exception e) {
-            return "LLM API error: " + e.getMessage();
-        }
+        });
     }
 
 
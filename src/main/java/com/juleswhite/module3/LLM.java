@@ -2,6 +2,8 @@ package com.juleswhite.module3;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.juleswhite.common.HttpTransports;
+import com.juleswhite.common.RequestScheduler;
 import com.openai.client.OpenAIClient;
 import com.openai.client.okhttp.OpenAIOkHttpClient;
 import com.openai.core.JsonValue;
@@ -20,9 +22,9 @@ public class LLM {
 
     private String model;
     private final String apiKey;
-    private final OkHttpClient client;
     private final ObjectMapper objectMapper;
     private static final String HF_API_URL = "https://router.huggingface.co/v1/chat/completions";
+    private static final int MAX_TOKENS = 1024;
     /**
      * Class to represent a prompt for the LLM, including messages and optional tools
      */
@@ -66,14 +68,12 @@ public class LLM {
     public LLM() {
         this.model = "deepseek-ai/DeepSeek-V3.1-Terminus";
         this.apiKey = System.getenv("HUGGINGFACE_API_KEY");
-        this.client = new OkHttpClient();
         this.objectMapper = new ObjectMapper();
     }
 
     public LLM(String model) {
         this.model = model;
         this.apiKey = System.getenv("HUGGINGFACE_API_KEY");
-        this.client = new OkHttpClient();
         this.objectMapper = new ObjectMapper();
     }
 
@@ -151,7 +151,7 @@ public class LLM {
             // --- End of Tool Injection Logic ---
             requestBody.put("messages", modifiedMessages);
 
-            requestBody.put("max_tokens", 1024);
+            requestBody.put("max_tokens", MAX_TOKENS);
             requestBody.put("temperature", 0.7);
             requestBody.put("top_p", 0.9);
 
@@ -170,18 +170,13 @@ public class LLM {
             RequestBody body = RequestBody.create(jsonBody, MediaType.parse("application/json"));
 
             Request request = new Request.Builder()
-                    .url(HF_API_URL)
+                    .url(HttpTransports.resolveUrl(HttpTransports.HUGGING_FACE, HF_API_URL))
                     .post(body)
                     .header("Authorization", "Bearer " + apiKey)
                     .header("Content-Type", "application/json")
                     .build();
-            OkHttpClient client = new OkHttpClient.Builder()
-                    .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                    .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                    .readTimeout(60, java.util.concurrent.TimeUnit.SECONDS)
-                    .build();
 
-            try (Response response = client.newCall(request).execute()) {
+            try (Response response = send(request, prompt)) {
                 if (!response.isSuccessful()) {
                     throw new IOException("Unexpected response " + response);
                 }
@@ -226,13 +221,14 @@ public class LLM {
 
         RequestBody requestBody = RequestBody.create(jsonPayload, MediaType.parse("application/json"));
         Request request = new Request.Builder()
-                .url(HF_API_URL)
+                .url(HttpTransports.resolveUrl(HttpTransports.HUGGING_FACE, HF_API_URL))
                 .post(requestBody)
                 .header("Authorization", "Bearer " + apiKey)
                 .header("Content-Type", "application/json")
                 .build();
 
-        try (Response response = client.newCall(request).execute()) {
+        // No max_tokens is sent, so the scheduler charges for a reply as long as generateResponse's
+        try (Response response = send(request, prompt)) {
             if (!response.isSuccessful()) {
                 return "LLM response failed: " + response.code();
             }
@@ -251,6 +247,14 @@ public class LLM {
         }
     }
 
+    /**
+     * Sends one request once the shared scheduler allows it, so that every Hugging Face
+     * caller in the JVM is paced together.
+     */
+    private Response send(Request request, Prompt prompt) throws IOException {
+        return RequestScheduler.shared().execute(HttpTransports.get(HttpTransports.HUGGING_FACE).newCall(request),
+                model, HttpTransports.HUGGING_FACE, MAX_TOKENS, RequestScheduler.priorityOf(prompt.getMetadata()));
+    }
 
     private String formatMessages(List<Message> messages) {
         StringBuilder sb = new StringBuilder();
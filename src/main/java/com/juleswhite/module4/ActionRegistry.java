@@ -5,23 +5,54 @@ import com.juleswhite.module4.Environment;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 public class ActionRegistry {
+    // Written under snapshotLock but read without it, by every getAction
     private final Map<String, Tool> tools;
     private final Map<String, Object> toolBindings;
 
+    // Where this registry's discovered tools are recorded
+    private final ToolDiscovery discovery;
+
+    // Rebuilt lazily after each registration change and shared by every prompt until the next one
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile ToolSnapshot snapshot;
+    private long version;
+
     public ActionRegistry() {
-        this.tools = new HashMap<>();
-        this.toolBindings = new HashMap<>();
+        this(new ToolDiscovery());
+    }
+
+    public ActionRegistry(ToolDiscovery discovery) {
+        this.tools = new ConcurrentHashMap<>();
+        this.toolBindings = new ConcurrentHashMap<>();
+        this.discovery = discovery;
+    }
+
+    public ToolDiscovery getToolDiscovery() {
+        return discovery;
     }
 
     public void register(Tool tool, Object binding) {
-        tools.put(tool.getToolName(), tool);
-        toolBindings.put(tool.getToolName(), binding);
+        snapshotLock.lock();
+        try {
+            // The binding goes in first, so a reader that finds the tool also finds its binding
+            if (binding != null) {
+                toolBindings.put(tool.getToolName(), binding);
+            } else {
+                toolBindings.remove(tool.getToolName());
+            }
+            tools.put(tool.getToolName(), tool);
+            version++;
+            snapshot = null;
+        } finally {
+            snapshotLock.unlock();
+        }
     }
 
     public Action getAction(String toolName) {
@@ -45,11 +76,31 @@ public class ActionRegistry {
     }
 
     public List<Tool> getTools() {
-        return new ArrayList<>(tools.values());
+        return getToolSnapshot();
+    }
+
+    /**
+     * Gets the immutable snapshot of the registered tools for the current registration version.
+     */
+    public ToolSnapshot getToolSnapshot() {
+        ToolSnapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+
+        snapshotLock.lock();
+        try {
+            if (snapshot == null) {
+                snapshot = new ToolSnapshot(version, new ArrayList<>(tools.values()));
+            }
+            return snapshot;
+        } finally {
+            snapshotLock.unlock();
+        }
     }
 
     public void discoverTools(String... packageNames) {
-        Map<String, ToolDiscovery.RegisteredTool> discoveredTools = ToolDiscovery.discoverTools(packageNames);
+        Map<String, ToolDiscovery.RegisteredTool> discoveredTools = discovery.discover(packageNames);
 
         for (Map.Entry<String, ToolDiscovery.RegisteredTool> entry : discoveredTools.entrySet()) {
             String toolName = entry.getKey();
@@ -58,18 +109,8 @@ public class ActionRegistry {
             // Find the method that this tool was created from
             try {
 
-                // Create a function that invokes this method
-                Function<Map<String, Object>, Object> binding = args -> {
-                    try {
-                        // Convert arguments to method parameters
-                        Object[] methodArgs = Environment.prepareMethodArguments(tool.originMethod, args);
-
-                        // Invoke the method
-                        return tool.originMethod.invoke(null, methodArgs);
-                    } catch (Exception e) {
-                        return "Error invoking " + toolName + ": " + e.getMessage();
-                    }
-                };
+                // Use the generated direct call, or compile a binding that invokes this method
+                Function<Map<String, Object>, Object> binding = createBinding(toolName, tool, null);
 
                 // Register the tool with its binding
                 register(tool.tool, binding);
@@ -101,28 +142,36 @@ public class ActionRegistry {
     public void discoverInstanceTools(Object instance) {
         Class<?> clazz = instance.getClass();
         Map<String, ToolDiscovery.RegisteredTool> discoveredTools =
-                ToolDiscovery.discoverInstanceTools(clazz);
+                discovery.discoverInstance(clazz);
 
         for (Map.Entry<String, ToolDiscovery.RegisteredTool> entry : discoveredTools.entrySet()) {
             String toolName = entry.getKey();
             ToolDiscovery.RegisteredTool tool = entry.getValue();
 
-            // Create a function that invokes this method on the provided instance
-            Function<Map<String, Object>, Object> binding = args -> {
-                try {
-                    // Convert arguments to method parameters
-                    Object[] methodArgs = Environment.prepareMethodArguments(tool.originMethod, args);
-
-                    // Invoke the method on the instance
-                    return tool.originMethod.invoke(instance, methodArgs);
-                } catch (Exception e) {
-                    return "Error invoking " + toolName + ": " + e.getMessage();
-                }
-            };
+            // Create a binding that invokes this method on the provided instance
+            Function<Map<String, Object>, Object> binding = createBinding(toolName, tool, instance);
 
             // Register the tool with its binding
             register(tool.tool, binding);
         }
     }
 
+    private Function<Map<String, Object>, Object> createBinding(String toolName,
+                                                                 ToolDiscovery.RegisteredTool tool,
+                                                                 Object instance) {
+        if (tool.invoker == null) {
+            // Argument slots and converters are resolved now rather than on every call
+            return ToolInvoker.compile(toolName, tool.originMethod, instance);
+        }
+
+        ToolIndex.Invoker invoker = tool.invoker;
+        return args -> {
+            try {
+                return invoker.invoke(instance, args);
+            } catch (Exception e) {
+                return "Error invoking " + toolName + ": " + e.getMessage();
+            }
+        };
+    }
+
 }
\ No newline at end of file
@@ -1,37 +1,131 @@
 package com.juleswhite.module4;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.juleswhite.common.RequestScheduler;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import com.juleswhite.module4.AgentInstrumentation.Span;
 import com.juleswhite.module4.LLM.Prompt;
 
+import static com.juleswhite.module4.AgentInstrumentation.*;
+
 public class Agent {
 
+    // ObjectMapper is thread-safe once configured, so one instance serves every agent
+    private static final ObjectMapper RESULT_MAPPER = new ObjectMapper();
+
+    // Blocking work in runAsync (a blocking generator, tool calls) gets a virtual thread, so it
+    // holds neither the common pool nor the HTTP client's callback threads
+    private static final ExecutorService BLOCKING_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
     private final List<Goal> goals;
     private final ActionRegistry actions;
     private final AgentLanguage agentLanguage;
     private final Environment environment;
     private final Function<Prompt, String> generateResponse;
+    private final Function<Prompt, CompletableFuture<String>> generateResponseAsync;
+    private BiFunction<Prompt, LLM.TokenListener, String> generateResponseStreaming;
+    private TokenWindowPolicy memoryPolicy;
+    private ToolSelector toolSelector;
+    private AgentInstrumentation instrumentation = AgentInstrumentation.getDefault();
+    private EventSink events = EventSink.console();
+    private Integer priority;
 
     public Agent(List<Goal> goals,
                  ActionRegistry actions,
                  AgentLanguage agentLanguage,
                  Environment environment,
                  Function<Prompt, String> generateResponse) {
+        this(goals, actions, agentLanguage, environment, generateResponse,
+                prompt -> CompletableFuture.supplyAsync(() -> generateResponse.apply(prompt), BLOCKING_EXECUTOR));
+    }
+
+    /**
+     * Creates an agent that also has a non-blocking response generator, used by runAsync().
+     */
+    public Agent(List<Goal> goals,
+                 ActionRegistry actions,
+                 AgentLanguage agentLanguage,
+                 Environment environment,
+                 Function<Prompt, String> generateResponse,
+                 Function<Prompt, CompletableFuture<String>> generateResponseAsync) {
         this.goals = goals;
         this.actions = actions;
         this.agentLanguage = agentLanguage;
         this.environment = environment;
         this.generateResponse = generateResponse;
+        this.generateResponseAsync = generateResponseAsync;
+    }
+
+    /**
+     * Limits how much of the memory is sent to the LLM. The full memory is still kept; only
+     * the prompt sees the bounded window.
+     *
+     * @param memoryPolicy Policy for windowing the memory, or null to send everything
+     */
+    public void setMemoryPolicy(TokenWindowPolicy memoryPolicy) {
+        this.memoryPolicy = memoryPolicy;
+    }
+
+    /**
+     * Limits which tools are offered to the LLM on each step. Any registered tool can still be
+     * executed; only the prompt sees the selection.
+     *
+     * @param toolSelector Selector for the tools in each prompt, or null to offer every tool
+     */
+    public void setToolSelector(ToolSelector toolSelector) {
+        this.toolSelector = toolSelector;
+    }
+
+    /**
+     * Sets where spans and metrics for each run go. Defaults to AgentInstrumentation.getDefault().
+     */
+    public void setInstrumentation(AgentInstrumentation instrumentation) {
+        this.instrumentation = instrumentation != null ? instrumentation : AgentInstrumentation.NOOP;
+    }
+
+    /**
+     * Sets where progress messages go. Defaults to the shared console sink; the decision and
+     * tool results are logged at INFO, "Agent thinking..." at DEBUG.
+     */
+    public void setEventSink(EventSink events) {
+        this.events = events;
+    }
+
+    /**
+     * Sets the priority of this agent's LLM requests when they queue for the rate limit;
+     * lower goes first.
+     *
+     * @param priority The session's priority, or null to use the agent's goals
+     */
+    public void setPriority(Integer priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Gets the priority of this agent's LLM requests: the session priority if one was set,
+     * otherwise that of the agent's most important (lowest numbered) goal.
+     */
+    public int getPriority() {
+        if (priority != null) {
+            return priority;
+        }
+        return goals.stream().mapToInt(Goal::getPriority).min().orElse(RequestScheduler.DEFAULT_PRIORITY);
     }
 
     public Prompt constructPrompt(List<Goal> goals, Memory memory, ActionRegistry actions) {
         return agentLanguage.constructPrompt(
-                actions.getTools(),
+                toolSelector != null ? toolSelector.select(actions, goals, memory) : actions.getTools(),
                 environment,
                 goals,
-                memory
+                memoryPolicy != null ? memoryPolicy.window(memory) : memory
         );
     }
 
@@ -44,63 +138,435 @@ public class Agent {
         return action;
     }
 
+    /**
+     * Parses every action in a response, in the order the model requested them.
+     */
+    public List<Action> parseActions(String response) throws Exception {
+        List<Action> parsed = new ArrayList<>();
+        for (Map<String, Object> invocation : agentLanguage.parseResponses(response)) {
+            String toolName = (String) invocation.get("tool");
+            Map<String, Object> args = (Map<String, Object>) invocation.get("args");
+            parsed.add(actions.getAction(toolName, args));
+        }
+        return parsed;
+    }
+
     public boolean shouldTerminate(String response) throws Exception {
         Action action = parseAction(response);
         return action.isTerminal();
     }
 
     public void setCurrentTask(Memory memory, String task) {
-        Map<String, Object> taskMemory = new HashMap<>();
-        taskMemory.put("type", "user");
-        taskMemory.put("content", task);
-        memory.addMemory(taskMemory);
+        // The task must stay in the prompt even when older turns are windowed out
+        memory.addRecord(new MemoryRecord(MemoryRecord.Role.USER, task, true));
     }
 
     public void updateMemory(Memory memory, String response, Map<String, Object> result) throws Exception {
-        Map<String, Object> responseMemory = new HashMap<>();
-        responseMemory.put("type", "assistant");
-        responseMemory.put("content", response);
-        memory.addMemory(responseMemory);
+        memory.addRecord(new MemoryRecord(MemoryRecord.Role.ASSISTANT, response));
 
-        Map<String, Object> resultMemory = new HashMap<>();
-        resultMemory.put("type", "user"); // The "user" is the other party in the conversation, which is the "computer"
-        resultMemory.put("content", new ObjectMapper().writeValueAsString(result));
-        memory.addMemory(resultMemory);
+        // The "user" is the other party in the conversation, which is the "computer"
+        memory.addRecord(new MemoryRecord(MemoryRecord.Role.USER, RESULT_MAPPER.writeValueAsString(result)));
+    }
+
+    /**
+     * Records a response that made several tool calls: the response once, then one result per
+     * call in call order, each labelled with the tool that produced it.
+     */
+    public void updateMemory(Memory memory, String response, List<Action> executed, List<Map<String, Object>> results) throws Exception {
+        memory.addRecord(new MemoryRecord(MemoryRecord.Role.ASSISTANT, response));
+
+        for (int i = 0; i < results.size(); i++) {
+            Map<String, Object> labelled = new LinkedHashMap<>();
+            labelled.put("tool", executed.get(i) != null ? executed.get(i).getToolName() : null);
+            labelled.putAll(results.get(i));
+            memory.addRecord(new MemoryRecord(MemoryRecord.Role.USER, RESULT_MAPPER.writeValueAsString(labelled)));
+        }
+    }
+
+    /**
+     * Enables streaming responses. When the agent language can parse partial responses, the
+     * stream is cut off as soon as a complete action has arrived, so the tool runs without
+     * waiting for the rest of the model's output.
+     *
+     * @param generateResponseStreaming Streaming generator, e.g. LLM::generateResponseStreaming
+     */
+    public void setStreamingResponseGenerator(BiFunction<Prompt, LLM.TokenListener, String> generateResponseStreaming) {
+        this.generateResponseStreaming = generateResponseStreaming;
     }
 
     public String promptLLMForAction(Prompt fullPrompt) {
+        if (generateResponseStreaming != null) {
+            AgentLanguage.StreamParser parser = agentLanguage.newStreamParser();
+            if (parser != null) {
+                return generateResponseStreaming.apply(fullPrompt, token -> !parser.accept(token));
+            }
+        }
         return generateResponse.apply(fullPrompt);
     }
 
+    public CompletableFuture<String> promptLLMForActionAsync(Prompt fullPrompt) {
+        return generateResponseAsync.apply(fullPrompt);
+    }
+
+    /**
+     * Runs the part of an iteration that follows the LLM call: parse the action, execute it
+     * and record the outcome.
+     *
+     * @return true if the agent has decided to terminate
+     */
+    private boolean handleResponse(Memory memory, String response, Span iteration) throws Exception {
+        events.info(() -> "Agent Decision: " + response);
+
+        // Determine which actions the agent wants to execute
+        List<Action> requested;
+        try (Span span = instrumentation.startSpan(PARSE_SPAN, iteration)) {
+            try {
+                requested = parseActions(response);
+            } catch (AgentLanguage.InvalidActionException e) {
+                // The model can fix this itself once it is told what was wrong
+                failed(span, "parse", e);
+                events.warn(() -> "Invalid action: " + e.getMessage());
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("tool_executed", false);
+                result.put("error", e.getMessage());
+                updateMemory(memory, response, result);
+                return false;
+            } catch (Exception e) {
+                failed(span, "parse", e);
+                events.warn(() -> "Failed to parse response: " + e.getMessage());
+                throw e;
+            }
+        }
+
+        if (requested.size() == 1) {
+            // Execute the action in the environment
+            Action action = requested.get(0);
+            Map<String, Object> result = executeAction(action, iteration);
+            events.info(() -> "Action Result: " + result);
+
+            // Update the agent's memory with information about what happened
+            updateMemory(memory, response, result);
+
+            // Check if the agent has decided to terminate
+            return action.isTerminal();
+        }
+
+        // The calls in one response are independent, so they run concurrently. A terminal call
+        // ends the run, so it waits for the others and only runs if they all succeeded.
+        List<Action> independent = new ArrayList<>();
+        for (Action action : requested) {
+            if (!isTerminal(action)) {
+                independent.add(action);
+            }
+        }
+        List<Map<String, Object>> independentResults = independent.isEmpty()
+                ? List.of()
+                : environment.executeActions(independent, action -> executeAction(action, iteration));
+        boolean othersSucceeded = independentResults.stream()
+                .allMatch(result -> Boolean.TRUE.equals(result.get("tool_executed")));
+
+        // Results are recorded in call order, whatever order they finished in
+        List<Map<String, Object>> results = new ArrayList<>(requested.size());
+        boolean terminate = false;
+        int next = 0;
+        for (Action action : requested) {
+            if (!isTerminal(action)) {
+                results.add(independentResults.get(next++));
+            } else if (othersSucceeded) {
+                results.add(executeAction(action, iteration));
+                terminate = true;
+            } else {
+                Map<String, Object> skipped = new LinkedHashMap<>();
+                skipped.put("tool_executed", false);
+                skipped.put("error", "Not executed because another tool call in the same response failed.");
+                results.add(skipped);
+            }
+        }
+        events.info(() -> "Action Results: " + results);
+
+        updateMemory(memory, response, requested, results);
+
+        return terminate;
+    }
+
+    private static boolean isTerminal(Action action) {
+        return action != null && action.isTerminal();
+    }
+
+    /**
+     * Executes one action in its own span, counting the call by tool and outcome.
+     */
+    private Map<String, Object> executeAction(Action action, Span iteration) {
+        String toolName = action != null ? action.getToolName() : "unknown";
+        try (Span span = instrumentation.startSpan(TOOL_SPAN, iteration)) {
+            span.setAttribute(TOOL_NAME_ATTRIBUTE, toolName);
+
+            Map<String, Object> result = environment.executeAction(action);
+
+            // Tool failures are reported back to the model rather than thrown
+            String outcome = Boolean.TRUE.equals(result.get("tool_executed")) ? "success" : "error";
+            span.setAttribute(OUTCOME_ATTRIBUTE, outcome);
+            instrumentation.count(TOOL_CALLS, 1, Map.of(TOOL_NAME_ATTRIBUTE, toolName, OUTCOME_ATTRIBUTE, outcome));
+            if (!"success".equals(outcome)) {
+                instrumentation.count(ERRORS, 1, Map.of(STAGE_ATTRIBUTE, "tool"));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Starts an iteration's span and records the size of the memory it starts from.
+     */
+    private Span startIteration(Memory memory, int iteration, Span run) {
+        Span span = instrumentation.startSpan(ITERATION_SPAN, run);
+        span.setAttribute(ITERATION_ATTRIBUTE, iteration + 1);
+        instrumentation.count(ITERATIONS, 1, Map.of());
+        if (instrumentation.isEnabled()) {
+            instrumentation.record(MEMORY_SIZE, memory.size(), Map.of());
+        }
+        return span;
+    }
+
+    /**
+     * Constructs the prompt in its own span and records its size.
+     */
+    private Prompt constructPrompt(Memory memory, Span iteration) {
+        Prompt prompt;
+        try (Span span = instrumentation.startSpan(PROMPT_SPAN, iteration)) {
+            try {
+                prompt = constructPrompt(goals, memory, actions);
+            } catch (RuntimeException e) {
+                failed(span, "prompt", e);
+                throw e;
+            }
+        }
+        // Read by the LLM when its request waits for the rate limit
+        prompt.getMetadata().put(RequestScheduler.PRIORITY, getPriority());
+
+        if (instrumentation.isEnabled()) {
+            long bytes = 0;
+            long tokens = 0;
+            for (Message message : prompt.getMessages()) {
+                String content = message.getContent() != null ? message.getContent() : "";
+                bytes += content.getBytes(StandardCharsets.UTF_8).length;
+                tokens += TokenEstimator.estimateMessage(content);
+            }
+            instrumentation.record(PROMPT_BYTES, bytes, Map.of());
+            instrumentation.record(INPUT_TOKENS, tokens, Map.of());
+        }
+        return prompt;
+    }
+
+    private void recordResponse(String response) {
+        if (instrumentation.isEnabled() && response != null) {
+            instrumentation.record(OUTPUT_TOKENS, TokenEstimator.estimate(response), Map.of());
+        }
+    }
+
+    private void failed(Span span, String stage, Throwable error) {
+        span.recordError(unwrap(error));
+        instrumentation.count(ERRORS, 1, Map.of(STAGE_ATTRIBUTE, stage));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private void endRun(Span run, String reason) {
+        run.setAttribute(REASON_ATTRIBUTE, reason);
+        instrumentation.count(TERMINATIONS, 1, Map.of(REASON_ATTRIBUTE, reason));
+        run.close();
+    }
+
     public Memory run(String userInput, Memory memory, int maxIterations) throws Exception {
         memory = memory != null ? memory : new Memory();
         setCurrentTask(memory, userInput);
+        checkpoint(memory, 0, false);
+
+        return iterate(memory, 0, maxIterations);
+    }
+
+    /**
+     * Continues a session recovered from a SessionJournal after its last completed iteration,
+     * without repeating the LLM calls that were already made.
+     *
+     * @param memory Memory obtained from SessionJournal.open
+     * @param maxIterations Maximum number of iterations for the whole session, including the
+     *                      ones completed before the restart
+     */
+    public Memory resume(JournaledMemory memory, int maxIterations) throws Exception {
+        if (memory.isTerminated()) {
+            return memory;
+        }
+        return iterate(memory, memory.getCompletedIterations(), maxIterations);
+    }
+
+    private Memory iterate(Memory memory, int firstIteration, int maxIterations) throws Exception {
+        Span run = instrumentation.startSpan(RUN_SPAN, null);
+        String reason = "max_iterations";
+        try {
+            for (int i = firstIteration; i < maxIterations; i++) {
+                // Stop promptly if the run was cancelled (e.g. by AgentRunner at a deadline)
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Agent run interrupted");
+                }
+
+                if (iterate(memory, i, run)) {
+                    reason = "terminal_tool";
+                    break;
+                }
+            }
 
-        for (int i = 0; i < maxIterations; i++) {
+            return memory;
+        } catch (Exception e) {
+            reason = e instanceof InterruptedException ? "interrupted" : "error";
+            run.recordError(e);
+            throw e;
+        } finally {
+            endRun(run, reason);
+        }
+    }
+
+    /**
+     * Runs one iteration.
+     *
+     * @return true if the agent has decided to terminate
+     */
+    private boolean iterate(Memory memory, int iteration, Span run) throws Exception {
+        Span span = startIteration(memory, iteration, run);
+        try {
             // Construct a prompt that includes the Goals, Actions, and the current Memory
-            Prompt prompt = constructPrompt(goals, memory, actions);
+            Prompt prompt = constructPrompt(memory, span);
 
-            System.out.println("Agent thinking...");
+            events.debug(() -> "Agent thinking...");
             // Generate a response from the agent
-            String response = promptLLMForAction(prompt);
-            System.out.println("Agent Decision: " + response);
+            String response;
+            try (Span llm = instrumentation.startSpan(LLM_SPAN, span)) {
+                try {
+                    response = promptLLMForAction(prompt);
+                } catch (RuntimeException e) {
+                    failed(llm, "llm", e);
+                    throw e;
+                }
+            }
+            recordResponse(response);
 
-            // Determine which action the agent wants to execute
-            Action action = parseAction(response);
+            boolean terminate = handleResponse(memory, response, span);
+            checkpoint(memory, iteration + 1, terminate);
+            return terminate;
+        } catch (Exception e) {
+            span.recordError(e);
+            throw e;
+        } finally {
+            span.close();
+        }
+    }
 
-            // Execute the action in the environment
-            Map<String, Object> result = environment.executeAction(action);
-            System.out.println("Action Result: " + result);
+    /**
+     * Makes the iteration just completed recoverable, if the memory is journaled.
+     */
+    private static void checkpoint(Memory memory, int completedIterations, boolean terminated) {
+        if (memory instanceof JournaledMemory) {
+            ((JournaledMemory) memory).checkpoint(completedIterations, terminated);
+        }
+    }
 
-            // Update the agent's memory with information about what happened
-            updateMemory(memory, response, result);
+    private static CompletableFuture<Void> checkpointAsync(Memory memory, int completedIterations, boolean terminated) {
+        if (memory instanceof JournaledMemory) {
+            return ((JournaledMemory) memory).checkpointAsync(completedIterations, terminated);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
 
-            // Check if the agent has decided to terminate
-            if (shouldTerminate(response)) {
-                break;
+    /**
+     * Runs the agent loop without holding a thread while waiting on the model. Each iteration
+     * is chained onto the completion of the previous LLM call.
+     *
+     * @param userInput The task for the agent
+     * @param memory Existing memory to continue from, or null for a new session
+     * @param maxIterations Maximum number of iterations
+     * @return A future that completes with the final memory
+     */
+    public CompletableFuture<Memory> runAsync(String userInput, Memory memory, int maxIterations) {
+        Memory sessionMemory = memory != null ? memory : new Memory();
+        setCurrentTask(sessionMemory, userInput);
+        return checkpointAsync(sessionMemory, 0, false)
+                .thenCompose(ignored -> iterateAsync(sessionMemory, 0, maxIterations));
+    }
+
+    /**
+     * Async counterpart of resume.
+     */
+    public CompletableFuture<Memory> resumeAsync(JournaledMemory memory, int maxIterations) {
+        if (memory.isTerminated()) {
+            return CompletableFuture.completedFuture(memory);
+        }
+        return iterateAsync(memory, memory.getCompletedIterations(), maxIterations);
+    }
+
+    private CompletableFuture<Memory> iterateAsync(Memory memory, int firstIteration, int maxIterations) {
+        Span run = instrumentation.startSpan(RUN_SPAN, null);
+        return iterateAsync(memory, firstIteration, maxIterations, run).handle((terminated, error) -> {
+            if (error != null) {
+                run.recordError(unwrap(error));
+                endRun(run, "error");
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
             }
+            endRun(run, terminated ? "terminal_tool" : "max_iterations");
+            return memory;
+        });
+    }
+
+    /**
+     * Runs the remaining iterations, each chained onto the completion of the previous one.
+     *
+     * @return A future that completes with true if the agent decided to terminate
+     */
+    private CompletableFuture<Boolean> iterateAsync(Memory memory, int iteration, int maxIterations, Span run) {
+        if (iteration >= maxIterations) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        Span span = startIteration(memory, iteration, run);
+
+        // Construct a prompt that includes the Goals, Actions, and the current Memory
+        Prompt prompt;
+        try {
+            prompt = constructPrompt(memory, span);
+        } catch (RuntimeException e) {
+            span.recordError(e);
+            span.close();
+            return CompletableFuture.failedFuture(e);
         }
 
-        return memory;
+        events.debug(() -> "Agent thinking...");
+        Span llm = instrumentation.startSpan(LLM_SPAN, span);
+        return promptLLMForActionAsync(prompt)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        failed(llm, "llm", error);
+                    }
+                    llm.close();
+                })
+                // Tools may block on I/O, so they don't run on the thread that completed the call
+                .thenComposeAsync(response -> {
+                    recordResponse(response);
+                    boolean terminate;
+                    try {
+                        terminate = handleResponse(memory, response, span);
+                    } catch (Exception e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                    return checkpointAsync(memory, iteration + 1, terminate).thenApply(ignored -> terminate);
+                }, BLOCKING_EXECUTOR)
+                .whenComplete((terminate, error) -> {
+                    if (error != null) {
+                        span.recordError(unwrap(error));
+                    }
+                    span.close();
+                })
+                .thenCompose(terminate -> terminate
+                        ? CompletableFuture.completedFuture(true)
+                        : iterateAsync(memory, iteration + 1, maxIterations, run));
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.juleswhite.module4;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Receives timings and measurements from the agent loop.
+ *
+ * Agent opens a span for each run and, inside it, one per iteration with child spans for prompt
+ * construction, the LLM call, parsing and each tool call (tagged with the tool name). Alongside
+ * the spans it reports the counters and distributions named below. Implementations decide where
+ * these go; AgentTelemetry keeps them in memory and exports them as OpenTelemetry (OTLP) JSON.
+ *
+ * Spans carry their parent explicitly rather than through a thread-local context, because
+ * runAsync continues an iteration on whichever thread completed the LLM call.
+ *
+ * The default is found with ServiceLoader, so an implementation can be plugged in by listing it
+ * in META-INF/services/com.juleswhite.module4.AgentInstrumentation; without one nothing is
+ * measured.
+ */
+public interface AgentInstrumentation {
+
+    // Span names
+    String RUN_SPAN = "agent.run";
+    String ITERATION_SPAN = "agent.iteration";
+    String PROMPT_SPAN = "agent.prompt";
+    String LLM_SPAN = "agent.llm";
+    String PARSE_SPAN = "agent.parse";
+    String TOOL_SPAN = "agent.tool";
+
+    // Span and metric attributes
+    String ITERATION_ATTRIBUTE = "agent.iteration";
+    String TOOL_NAME_ATTRIBUTE = "tool.name";
+    String STAGE_ATTRIBUTE = "agent.stage";
+    String REASON_ATTRIBUTE = "agent.termination.reason";
+    String OUTCOME_ATTRIBUTE = "tool.outcome";
+
+    // Counters
+    String ITERATIONS = "agent.iterations";
+    String ERRORS = "agent.errors";
+    String TERMINATIONS = "agent.terminations";
+    String TOOL_CALLS = "agent.tool.calls";
+
+    // Distributions, one value per iteration. Token counts are TokenEstimator estimates.
+    String INPUT_TOKENS = "agent.llm.input_tokens";
+    String OUTPUT_TOKENS = "agent.llm.output_tokens";
+    String PROMPT_BYTES = "agent.prompt.bytes";
+    String MEMORY_SIZE = "agent.memory.size";
+
+    /**
+     * An instrumentation that measures nothing.
+     */
+    AgentInstrumentation NOOP = new AgentInstrumentation() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public Span startSpan(String name, Span parent) {
+            return Span.NOOP;
+        }
+
+        @Override
+        public void count(String name, long delta, Map<String, String> attributes) {
+        }
+
+        @Override
+        public void record(String name, long value, Map<String, String> attributes) {
+        }
+    };
+
+    /**
+     * A timed operation. Closing it ends it; closing it again has no effect.
+     */
+    interface Span extends AutoCloseable {
+        Span NOOP = new Span() {
+            @Override
+            public void setAttribute(String key, Object value) {
+            }
+
+            @Override
+            public void recordError(Throwable error) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        void setAttribute(String key, Object value);
+
+        /**
+         * Marks the span as failed.
+         */
+        void recordError(Throwable error);
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Gets whether anything is recorded. Agent skips measuring prompts and responses when not.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Starts a span.
+     *
+     * @param parent The enclosing span, or null for a root span
+     */
+    Span startSpan(String name, Span parent);
+
+    /**
+     * Adds to a counter.
+     */
+    void count(String name, long delta, Map<String, String> attributes);
+
+    /**
+     * Records one value of a distribution.
+     */
+    void record(String name, long value, Map<String, String> attributes);
+
+    /**
+     * Gets the instrumentation registered with ServiceLoader, or NOOP if there is none.
+     */
+    static AgentInstrumentation getDefault() {
+        return Default.INSTANCE;
+    }
+
+    /**
+     * Holder for the default, so ServiceLoader runs only on first use.
+     */
+    final class Default {
+        static final AgentInstrumentation INSTANCE = ServiceLoader.load(AgentInstrumentation.class)
+                .findFirst()
+                .orElse(NOOP);
+
+        private Default() {
+        }
+    }
+}
@@ -5,6 +5,17 @@ import java.util.Map;
 
 public interface AgentLanguage {
 
+    /**
+     * Thrown when a response holds an action block that parses but does not describe any
+     * valid action, e.g. an empty list. The agent reports it back to the model so it can
+     * correct itself, rather than failing the run.
+     */
+    class InvalidActionException extends Exception {
+        public InvalidActionException(String message) {
+            super(message);
+        }
+    }
+
     LLM.Prompt constructPrompt(
             List<Tool> tools,
             Environment environment,
@@ -14,6 +25,34 @@ public interface AgentLanguage {
 
     Map<String, Object> parseResponse(String response) throws Exception;
 
+    /**
+     * Parses every tool invocation in a response, in the order the model made them. Languages
+     * that let the model call several independent tools in one response override this; the
+     * default is the single invocation from parseResponse.
+     */
+    default List<Map<String, Object>> parseResponses(String response) throws Exception {
+        return List.of(parseResponse(response));
+    }
+
+    /**
+     * Watches a response as it is streamed from the LLM and reports when enough of it has
+     * arrived to parse an action.
+     */
+    interface StreamParser {
+        /**
+         * @param token The next piece of the response
+         * @return true once the response received so far contains a complete action
+         */
+        boolean accept(String token);
+    }
+
+    /**
+     * Creates a parser for one streamed response, or returns null if this language can only
+     * parse complete responses.
+     */
+    default StreamParser newStreamParser() {
+        return null;
+    }
 
 
 }
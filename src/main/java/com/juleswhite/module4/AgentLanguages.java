@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.juleswhite.module4.LLM.Prompt;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,19 +14,20 @@ public class AgentLanguages {
     public static class FunctionCallingLanguage implements AgentLanguage {
         private final ObjectMapper objectMapper = new ObjectMapper();
 
+        private final IncrementalPromptBuilder promptBuilder = new IncrementalPromptBuilder(
+                (goals, tools) -> List.of(
+                        // Add formatted goals as a system message
+                        new Message("system", formatGoalsContent(goals))),
+                this::formatMemoryItem);
+
         @Override
         public Prompt constructPrompt(
                 List<Tool> tools,
                 Environment environment,
                 List<Goal> goals,
                 Memory memory) {
-            List<Message> messages = new ArrayList<>();
-
-            // Add formatted goals as a system message
-            messages.add(new Message("system", formatGoalsContent(goals)));
-
-            // Add memory messages
-            messages.addAll(formatMemory(memory));
+            // Goals followed by memory messages, reusing what was rendered on earlier iterations
+            List<Message> messages = promptBuilder.build(goals, tools, memory);
 
             // Create and return the Prompt with messages and tools
             return new Prompt(messages, tools);
@@ -43,23 +45,10 @@ public class AgentLanguages {
             return goalsContent.toString();
         }
 
-        private List<Message> formatMemory(Memory memory) {
-            // Convert memory items to Message objects
-            List<Message> messages = new ArrayList<>();
-
-            for (Map<String, Object> memoryItem : memory.getMemories()) {
-                String type = (String) memoryItem.get("type");
-
-                // Determine the role based on type
-                // We default to "user" for any type that is not "assistant" or "system"
-                String role = type.equals("assistant") ? "assistant" :
-                        (type.equals("system") ? "system" : "user");
-
-                String content = (String) memoryItem.get("content");
-                messages.add(new Message(role, content));
-            }
-
-            return messages;
+        private Message formatMemoryItem(MemoryRecord record) {
+            // Convert a memory record to a Message object
+            // The record's role is already "user" for any type that is not "assistant" or "system"
+            return new Message(record.getRole().getType(), record.getContent());
         }
 
         @Override
@@ -83,6 +72,28 @@ public class AgentLanguages {
             }
         }
 
+        @Override
+        public List<Map<String, Object>> parseResponses(String response) throws Exception {
+            // LLM.generateResponse() returns a JSON array when the model made several tool calls
+            if (response.trim().startsWith("[")) {
+                try {
+                    List<Map<String, Object>> calls = objectMapper.readValue(response, List.class);
+                    List<Map<String, Object>> invocations = new ArrayList<>();
+                    for (Map<String, Object> call : calls) {
+                        if (call.containsKey("tool") && call.containsKey("args")) {
+                            invocations.add(call);
+                        }
+                    }
+                    if (!invocations.isEmpty()) {
+                        return invocations;
+                    }
+                } catch (Exception e) {
+                    // Not a list of tool calls; fall through to the single-call handling
+                }
+            }
+            return List.of(parseResponse(response));
+        }
+
         private Map<String, Object> createTerminateAction(String message) {
             Map<String, Object> result = new HashMap<>();
             result.put("tool", "terminate");
@@ -106,26 +117,29 @@ public class AgentLanguages {
                 "args": {...fill in arguments...}
             }
             ```
+            
+            To run several independent tools at once, put a JSON list of these objects in the action block.
             """;
 
         private final ObjectMapper objectMapper = new ObjectMapper();
 
+        // The tool catalog is pretty-printed once per tool set rather than on every iteration
+        private final IncrementalPromptBuilder promptBuilder = new IncrementalPromptBuilder(
+                (goals, tools) -> List.of(
+                        // Add formatted goals as a system message
+                        new Message("system", formatGoalsContent(goals)),
+                        // Add formatted actions as a system message
+                        new Message("system", formatActionsContent(tools))),
+                this::formatMemoryItem);
+
         @Override
         public Prompt constructPrompt(
                 List<Tool> tools,
                 Environment environment,
                 List<Goal> goals,
                 Memory memory) {
-            List<Message> messages = new ArrayList<>();
-
-            // Add formatted goals as a system message
-            messages.add(new Message("system", formatGoalsContent(goals)));
-
-            // Add formatted actions as a system message
-            messages.add(new Message("system", formatActionsContent(tools)));
-
-            // Add memory messages
-            messages.addAll(formatMemory(memory));
+            // Goals, actions, then memory messages, reusing what was rendered on earlier iterations
+            List<Message> messages = promptBuilder.build(goals, tools, memory);
 
             // Create and return the Prompt
             return new Prompt(messages, tools);
@@ -159,22 +173,10 @@ public class AgentLanguages {
             return goalsContent.toString();
         }
 
-        private List<Message> formatMemory(Memory memory) {
-            // Convert memory items to Message objects
-            List<Message> messages = new ArrayList<>();
-
-            for (Map<String, Object> memoryItem : memory.getMemories()) {
-                String type = (String) memoryItem.get("type");
-                // Determine the role based on type
-                // We default to "user" for any type that is not "assistant" or "system"
-                String role = type.equals("assistant") ? "assistant" :
-                        (type.equals("system") ? "system" : "user");
-
-                String content = (String) memoryItem.get("content");
-                messages.add(new Message(role, content));
-            }
-
-            return messages;
+        private Message formatMemoryItem(MemoryRecord record) {
+            // Convert a memory record to a Message object
+            // The record's role is already "user" for any type that is not "assistant" or "system"
+            return new Message(record.getRole().getType(), record.getContent());
         }
 
         private String toJsonString(Object obj) {
@@ -185,25 +187,113 @@ public class AgentLanguages {
             }
         }
 
+        @Override
+        public StreamParser newStreamParser() {
+            return new ActionBlockStreamParser(objectMapper);
+        }
+
         @Override
         public Map<String, Object> parseResponse(String response) throws Exception {
+            return parseResponses(response).get(0);
+        }
+
+        @Override
+        public List<Map<String, Object>> parseResponses(String response) throws Exception {
             // Extract and parse the action block
-            try {
-                String startMarker = "```action";
-                String endMarker = "```";
+            String startMarker = "```action";
+            String endMarker = "```";
+
+            String strippedResponse = response.trim();
+            int startIndex = strippedResponse.indexOf(startMarker);
+            int endIndex = strippedResponse.lastIndexOf(endMarker);
+
+            String jsonStr = strippedResponse.substring(
+                    startIndex + startMarker.length(), endIndex
+            ).trim();
+
+            // The block holds either one action or a list of independent actions
+            Object parsed = objectMapper.readValue(jsonStr, Object.class);
+            List<?> invocations = parsed instanceof List ? (List<?>) parsed : Collections.singletonList(parsed);
+            if (invocations.isEmpty()) {
+                throw new InvalidActionException("The action block is an empty list; it must hold at least one action.");
+            }
 
-                String strippedResponse = response.trim();
-                int startIndex = strippedResponse.indexOf(startMarker);
-                int endIndex = strippedResponse.lastIndexOf(endMarker);
+            List<Map<String, Object>> validated = new ArrayList<>(invocations.size());
+            for (Object invocation : invocations) {
+                validated.add(validateInvocation(invocation));
+            }
+            return validated;
+        }
 
-                String jsonStr = strippedResponse.substring(
-                        startIndex + startMarker.length(), endIndex
-                ).trim();
+        /**
+         * Checks that one parsed action has the shape {"tool": name, "args": {...}}.
+         */
+        private Map<String, Object> validateInvocation(Object invocation) throws InvalidActionException {
+            if (!(invocation instanceof Map)) {
+                throw new InvalidActionException("Each action must be a JSON object with \"tool\" and \"args\", got: "
+                        + toJsonString(invocation));
+            }
+            Map<String, Object> action = (Map<String, Object>) invocation;
+            if (!(action.get("tool") instanceof String)) {
+                throw new InvalidActionException("Each action must name its tool as a string in \"tool\", got: "
+                        + toJsonString(invocation));
+            }
+            if (action.get("args") != null && !(action.get("args") instanceof Map)) {
+                throw new InvalidActionException("The \"args\" of an action must be a JSON object, got: "
+                        + toJsonString(invocation));
+            }
+            return action;
+        }
 
-                return objectMapper.readValue(jsonStr, Map.class);
-            } catch (Exception e) {
-                System.out.println("Failed to parse response: " + e.getMessage());
-                throw e;
+        /**
+         * Incrementally scans a streamed response for a complete ```action block. Each call
+         * only looks at text that has not been scanned yet, so the cost per token stays flat
+         * however long the model's preamble is.
+         */
+        static class ActionBlockStreamParser implements StreamParser {
+            private static final String START_MARKER = "```action";
+            private static final String END_MARKER = "```";
+
+            private final ObjectMapper objectMapper;
+            private final StringBuilder buffer = new StringBuilder();
+            private int blockStart = -1;
+            private int scanFrom = 0;
+
+            ActionBlockStreamParser(ObjectMapper objectMapper) {
+                this.objectMapper = objectMapper;
+            }
+
+            @Override
+            public boolean accept(String token) {
+                buffer.append(token);
+
+                if (blockStart < 0) {
+                    // Back up far enough to catch a marker split across tokens
+                    int start = buffer.indexOf(START_MARKER, Math.max(0, scanFrom - START_MARKER.length() + 1));
+                    if (start < 0) {
+                        scanFrom = buffer.length();
+                        return false;
+                    }
+                    blockStart = start + START_MARKER.length();
+                    scanFrom = blockStart;
+                }
+
+                while (true) {
+                    int end = buffer.indexOf(END_MARKER, Math.max(blockStart, scanFrom - END_MARKER.length() + 1));
+                    if (end < 0) {
+                        scanFrom = buffer.length();
+                        return false;
+                    }
+                    scanFrom = end + END_MARKER.length();
+
+                    // Only report completion once the block holds valid JSON (one action or a list)
+                    try {
+                        objectMapper.readValue(buffer.substring(blockStart, end).trim(), Object.class);
+                        return true;
+                    } catch (Exception e) {
+                        // A fence inside the JSON, keep looking for the real end of the block
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,326 @@
+package com.juleswhite.module4;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs many Agent.run sessions concurrently, one virtual thread per session.
+ *
+ * A global limit bounds how many sessions execute at once; sessions beyond the limit wait
+ * (cheaply, on their own virtual thread) and are reported as queued. A per-session limit
+ * bounds how many runs that share a session id may execute at once, which by default
+ * serializes runs that drive the same conversation and Memory. Each run can be cancelled
+ * or given a deadline, after which its thread is interrupted.
+ *
+ * A run is counted as cancelled or timed out by what happened to its session, not by how
+ * the interrupt surfaced: an interrupted LLM request fails with an LLMCallException, which
+ * is not a failure of the run.
+ */
+public class AgentRunner implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService deadlineScheduler;
+    private final Semaphore globalPermits;
+    private final int maxConcurrentSessions;
+    private final int maxRunsPerSession;
+    // Only sessions with runs submitted and not yet finished have an entry
+    private final Map<String, SessionLimit> sessionLimits = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * The per-session semaphore, and how many unfinished runs use it.
+     */
+    private static class SessionLimit {
+        final Semaphore permits;
+        int runs;
+
+        SessionLimit(int maxRuns) {
+            this.permits = new Semaphore(maxRuns, true);
+        }
+    }
+
+    /**
+     * A submitted agent run.
+     */
+    public static class Session {
+        private final String id;
+        private final AtomicBoolean timedOut = new AtomicBoolean();
+        // Set by whichever happens first: the run starting, or the run being cancelled before it started
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final Consumer<Session> onCancelledBeforeStart;
+        private volatile Future<Memory> future;
+        private volatile ScheduledFuture<?> deadline;
+
+        private Session(String id, Consumer<Session> onCancelledBeforeStart) {
+            this.id = id;
+            this.onCancelledBeforeStart = onCancelledBeforeStart;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Waits for the run to finish and returns the final memory.
+         */
+        public Memory get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        public Memory get(Duration timeout) throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Cancels the run, interrupting its thread if it has started.
+         */
+        public boolean cancel() {
+            boolean result = future.cancel(true);
+            if (result && claimed.compareAndSet(false, true)) {
+                onCancelledBeforeStart.accept(this);
+            }
+            return result;
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isTimedOut() {
+            return timedOut.get();
+        }
+    }
+
+    /**
+     * Creates a runner that allows the given number of sessions to execute at once and
+     * serializes runs that share a session id.
+     *
+     * @param maxConcurrentSessions Global limit on sessions executing at the same time
+     */
+    public AgentRunner(int maxConcurrentSessions) {
+        this(maxConcurrentSessions, 1);
+    }
+
+    /**
+     * @param maxConcurrentSessions Global limit on sessions executing at the same time
+     * @param maxRunsPerSession Limit on concurrent runs that share a session id
+     */
+    public AgentRunner(int maxConcurrentSessions, int maxRunsPerSession) {
+        this.maxConcurrentSessions = maxConcurrentSessions;
+        this.maxRunsPerSession = maxRunsPerSession;
+        this.globalPermits = new Semaphore(maxConcurrentSessions, true);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.deadlineScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "agent-runner-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a standalone run with no session id (so no per-session limit) and no deadline.
+     */
+    public Session submit(Agent agent, String userInput, int maxIterations) {
+        return submit(null, agent, userInput, null, maxIterations, null);
+    }
+
+    /**
+     * Submits a run of agent.run(userInput, memory, maxIterations).
+     *
+     * @param sessionId Id used for the per-session limit, or null for none; runs sharing it are throttled together
+     * @param agent The agent to run
+     * @param userInput The task for the agent
+     * @param memory Memory to continue from, or null for a new session
+     * @param maxIterations Maximum number of iterations
+     * @param deadline Maximum wall-clock time for the run (including time queued), or null
+     * @return A handle for waiting on, cancelling, or inspecting the run
+     */
+    public Session submit(String sessionId,
+                          Agent agent,
+                          String userInput,
+                          Memory memory,
+                          int maxIterations,
+                          Duration deadline) {
+        Semaphore perSession = sessionId != null ? joinSession(sessionId) : null;
+
+        queued.incrementAndGet();
+        Session session = new Session(sessionId, abandoned -> {
+            queued.decrementAndGet();
+            countOutcome(abandoned, false);
+            if (perSession != null) {
+                leaveSession(sessionId);
+            }
+        });
+
+        // Assigned before the task can start, since the task reads the session's state
+        FutureTask<Memory> task = new FutureTask<>(() -> {
+            if (!session.claimed.compareAndSet(false, true)) {
+                // Cancelled before the virtual thread got to run
+                return null;
+            }
+
+            boolean started = false;
+            try {
+                if (perSession != null) {
+                    perSession.acquire();
+                }
+                try {
+                    globalPermits.acquire();
+                    try {
+                        queued.decrementAndGet();
+                        started = true;
+                        inFlight.incrementAndGet();
+
+                        Memory result = agent.run(userInput, memory, maxIterations);
+                        countOutcome(session, true);
+                        return result;
+                    } finally {
+                        if (started) {
+                            inFlight.decrementAndGet();
+                        }
+                        globalPermits.release();
+                    }
+                } finally {
+                    if (perSession != null) {
+                        perSession.release();
+                    }
+                }
+            } catch (Exception e) {
+                countOutcome(session, false);
+                throw e;
+            } finally {
+                if (!started) {
+                    queued.decrementAndGet();
+                }
+                if (perSession != null) {
+                    leaveSession(sessionId);
+                }
+                if (session.deadline != null) {
+                    session.deadline.cancel(false);
+                }
+            }
+        });
+        session.future = task;
+        executor.execute(task);
+
+        if (deadline != null) {
+            session.deadline = deadlineScheduler.schedule(() -> {
+                if (!session.isDone()) {
+                    session.timedOut.set(true);
+                    session.cancel();
+                }
+            }, deadline.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        return session;
+    }
+
+    /**
+     * Gets the semaphore for a session id, creating it for the session's first unfinished run.
+     */
+    private Semaphore joinSession(String sessionId) {
+        return sessionLimits.compute(sessionId, (id, limit) -> {
+            limit = limit != null ? limit : new SessionLimit(maxRunsPerSession);
+            limit.runs++;
+            return limit;
+        }).permits;
+    }
+
+    /**
+     * Drops the semaphore for a session id once its last run has finished, so ids don't pile up.
+     */
+    private void leaveSession(String sessionId) {
+        sessionLimits.computeIfPresent(sessionId, (id, limit) -> --limit.runs == 0 ? null : limit);
+    }
+
+    /**
+     * Counts how a run ended. Cancellation and timeout win over the run's own result, since
+     * the interrupt may surface as any exception, or none.
+     */
+    private void countOutcome(Session session, boolean succeeded) {
+        if (session.isTimedOut()) {
+            timedOut.incrementAndGet();
+        } else if (session.isCancelled()) {
+            cancelled.incrementAndGet();
+        } else if (succeeded) {
+            completed.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of session ids with runs queued or executing.
+     */
+    public int getActiveSessionCount() {
+        return sessionLimits.size();
+    }
+
+    /**
+     * Gets the number of submitted runs waiting for a global or per-session permit.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Gets the number of runs currently executing.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public int getMaxConcurrentSessions() {
+        return maxConcurrentSessions;
+    }
+
+    /**
+     * Interrupts all running sessions and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        deadlineScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,347 @@
+package com.juleswhite.module4;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An AgentInstrumentation that keeps spans and metrics in memory and exports them in the
+ * OpenTelemetry protocol's JSON encoding (OTLP/JSON), ready to be posted to a collector's
+ * /v1/traces and /v1/metrics endpoints or written to a file.
+ *
+ * Finished spans are buffered up to a limit and handed over by exportTraces(); spans that end
+ * while the buffer is full are dropped and counted. Counters and distributions are cumulative
+ * from creation. Every span's duration is also recorded, in microseconds so that fast stages such
+ * as parsing and tool dispatch don't all round down to zero, in the agent.span.duration
+ * distribution by span name (and tool name for tool spans), so stage latencies are available
+ * without traces.
+ */
+public class AgentTelemetry implements AgentInstrumentation {
+
+    public static final String SPAN_DURATION = "agent.span.duration";
+
+    public static final int DEFAULT_MAX_BUFFERED_SPANS = 10_000;
+
+    private static final String SCOPE_NAME = "com.juleswhite.module4";
+
+    // Exponential bucket bounds; cover microseconds up to minutes, tokens, bytes and item counts alike
+    private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000,
+            50_000_000, 100_000_000, 250_000_000};
+
+    private static final Map<String, String> UNITS = Map.of(
+            INPUT_TOKENS, "{token}",
+            OUTPUT_TOKENS, "{token}",
+            PROMPT_BYTES, "By",
+            MEMORY_SIZE, "{item}",
+            SPAN_DURATION, "us");
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String serviceName;
+    private final long startTimeNanos = epochNanos();
+    private final BlockingQueue<SpanData> finishedSpans;
+    private final AtomicLong droppedSpans = new AtomicLong();
+
+    private final Map<MetricKey, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<MetricKey, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private record MetricKey(String name, Map<String, String> attributes) {
+    }
+
+    /**
+     * A distribution: count, sum, extremes and counts per bucket.
+     */
+    private static class Histogram {
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+        void record(long value) {
+            count.increment();
+            sum.add(value);
+            min.accumulateAndGet(value, Math::min);
+            max.accumulateAndGet(value, Math::max);
+
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && value > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+    }
+
+    /**
+     * A span; once ended it is immutable and queued for export.
+     */
+    private class SpanData implements Span {
+        final String traceId;
+        final String spanId;
+        final String parentSpanId;
+        final String name;
+        final long startTimeNanos;
+        final long startTicks;
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        final AtomicBoolean ended = new AtomicBoolean();
+        volatile long endTimeNanos;
+        volatile String errorMessage;
+
+        SpanData(String name, SpanData parent) {
+            this.name = name;
+            this.traceId = parent != null ? parent.traceId : randomHex(16);
+            this.spanId = randomHex(8);
+            this.parentSpanId = parent != null ? parent.spanId : "";
+            this.startTimeNanos = epochNanos();
+            this.startTicks = System.nanoTime();
+        }
+
+        @Override
+        public void setAttribute(String key, Object value) {
+            if (key != null && value != null) {
+                attributes.put(key, value);
+            }
+        }
+
+        @Override
+        public void recordError(Throwable error) {
+            errorMessage = error.getClass().getSimpleName() + ": " + error.getMessage();
+        }
+
+        @Override
+        public void close() {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            long duration = System.nanoTime() - startTicks;
+            endTimeNanos = startTimeNanos + duration;
+
+            Object tool = attributes.get(TOOL_NAME_ATTRIBUTE);
+            record(SPAN_DURATION, duration / 1_000, tool != null
+                    ? Map.of("span.name", name, TOOL_NAME_ATTRIBUTE, tool.toString())
+                    : Map.of("span.name", name));
+
+            if (!finishedSpans.offer(this)) {
+                droppedSpans.incrementAndGet();
+            }
+        }
+    }
+
+    public AgentTelemetry() {
+        this("agent", DEFAULT_MAX_BUFFERED_SPANS);
+    }
+
+    /**
+     * @param serviceName Reported as the service.name resource attribute
+     * @param maxBufferedSpans Finished spans kept until the next exportTraces()
+     */
+    public AgentTelemetry(String serviceName, int maxBufferedSpans) {
+        this.serviceName = serviceName;
+        this.finishedSpans = new ArrayBlockingQueue<>(maxBufferedSpans);
+    }
+
+    @Override
+    public Span startSpan(String name, Span parent) {
+        return new SpanData(name, parent instanceof SpanData data ? data : null);
+    }
+
+    @Override
+    public void count(String name, long delta, Map<String, String> attributes) {
+        counters.computeIfAbsent(new MetricKey(name, Map.copyOf(attributes)), k -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void record(String name, long value, Map<String, String> attributes) {
+        histograms.computeIfAbsent(new MetricKey(name, Map.copyOf(attributes)), k -> new Histogram()).record(value);
+    }
+
+    /**
+     * Gets a counter's total for one set of attributes.
+     */
+    public long getCount(String name, Map<String, String> attributes) {
+        LongAdder counter = counters.get(new MetricKey(name, attributes));
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * Gets a counter's total over all attribute sets.
+     */
+    public long getCount(String name) {
+        long total = 0;
+        for (Map.Entry<MetricKey, LongAdder> entry : counters.entrySet()) {
+            if (entry.getKey().name().equals(name)) {
+                total += entry.getValue().sum();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of finished spans dropped because the buffer was full.
+     */
+    public long getDroppedSpanCount() {
+        return droppedSpans.get();
+    }
+
+    /**
+     * Removes the finished spans from the buffer and returns them as an OTLP/JSON
+     * ExportTraceServiceRequest.
+     */
+    public String exportTraces() {
+        List<SpanData> spans = new ArrayList<>();
+        finishedSpans.drainTo(spans);
+
+        List<Map<String, Object>> encoded = new ArrayList<>(spans.size());
+        for (SpanData span : spans) {
+            Map<String, Object> otlp = new LinkedHashMap<>();
+            otlp.put("traceId", span.traceId);
+            otlp.put("spanId", span.spanId);
+            otlp.put("parentSpanId", span.parentSpanId);
+            otlp.put("name", span.name);
+            // SPAN_KIND_INTERNAL
+            otlp.put("kind", 1);
+            otlp.put("startTimeUnixNano", Long.toString(span.startTimeNanos));
+            otlp.put("endTimeUnixNano", Long.toString(span.endTimeNanos));
+            otlp.put("attributes", attributes(span.attributes));
+            otlp.put("status", span.errorMessage != null
+                    ? Map.of("code", 2, "message", span.errorMessage)
+                    : Map.of("code", 1));
+            encoded.add(otlp);
+        }
+
+        return toJson(Map.of("resourceSpans", List.of(Map.of(
+                "resource", resource(),
+                "scopeSpans", List.of(Map.of(
+                        "scope", Map.of("name", SCOPE_NAME),
+                        "spans", encoded))))));
+    }
+
+    /**
+     * Returns the cumulative metrics as an OTLP/JSON ExportMetricsServiceRequest.
+     */
+    public String exportMetrics() {
+        String now = Long.toString(epochNanos());
+        String start = Long.toString(startTimeNanos);
+
+        // Group the data points of each metric, in name order
+        Map<String, List<Map<String, Object>>> sums = new TreeMap<>();
+        for (Map.Entry<MetricKey, LongAdder> entry : counters.entrySet()) {
+            Map<String, Object> point = new LinkedHashMap<>();
+            point.put("attributes", attributes(entry.getKey().attributes()));
+            point.put("startTimeUnixNano", start);
+            point.put("timeUnixNano", now);
+            point.put("asInt", Long.toString(entry.getValue().sum()));
+            sums.computeIfAbsent(entry.getKey().name(), k -> new ArrayList<>()).add(point);
+        }
+
+        Map<String, List<Map<String, Object>>> distributions = new TreeMap<>();
+        for (Map.Entry<MetricKey, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            List<String> bucketCounts = new ArrayList<>();
+            for (int i = 0; i < histogram.buckets.length(); i++) {
+                bucketCounts.add(Long.toString(histogram.buckets.get(i)));
+            }
+            List<Double> bounds = new ArrayList<>();
+            for (long bound : BUCKET_BOUNDS) {
+                bounds.add((double) bound);
+            }
+
+            Map<String, Object> point = new LinkedHashMap<>();
+            point.put("attributes", attributes(entry.getKey().attributes()));
+            point.put("startTimeUnixNano", start);
+            point.put("timeUnixNano", now);
+            point.put("count", Long.toString(histogram.count.sum()));
+            point.put("sum", (double) histogram.sum.sum());
+            point.put("min", (double) histogram.min.get());
+            point.put("max", (double) histogram.max.get());
+            point.put("bucketCounts", bucketCounts);
+            point.put("explicitBounds", bounds);
+            distributions.computeIfAbsent(entry.getKey().name(), k -> new ArrayList<>()).add(point);
+        }
+
+        List<Map<String, Object>> metrics = new ArrayList<>();
+        for (Map.Entry<String, List<Map<String, Object>>> sum : sums.entrySet()) {
+            // AGGREGATION_TEMPORALITY_CUMULATIVE
+            metrics.add(Map.of(
+                    "name", sum.getKey(),
+                    "unit", UNITS.getOrDefault(sum.getKey(), "1"),
+                    "sum", Map.of("aggregationTemporality", 2, "isMonotonic", true, "dataPoints", sum.getValue())));
+        }
+        for (Map.Entry<String, List<Map<String, Object>>> distribution : distributions.entrySet()) {
+            metrics.add(Map.of(
+                    "name", distribution.getKey(),
+                    "unit", UNITS.getOrDefault(distribution.getKey(), "1"),
+                    "histogram", Map.of("aggregationTemporality", 2, "dataPoints", distribution.getValue())));
+        }
+
+        return toJson(Map.of("resourceMetrics", List.of(Map.of(
+                "resource", resource(),
+                "scopeMetrics", List.of(Map.of(
+                        "scope", Map.of("name", SCOPE_NAME),
+                        "metrics", metrics))))));
+    }
+
+    private Map<String, Object> resource() {
+        return Map.of("attributes", attributes(Map.of("service.name", serviceName)));
+    }
+
+    /**
+     * Encodes attributes as OTLP KeyValue objects.
+     */
+    private static List<Map<String, Object>> attributes(Map<String, ?> values) {
+        List<Map<String, Object>> encoded = new ArrayList<>(values.size());
+        for (Map.Entry<String, ?> entry : new TreeMap<>(values).entrySet()) {
+            Object value = entry.getValue();
+            Map<String, Object> any;
+            if (value instanceof Boolean) {
+                any = Map.of("boolValue", value);
+            } else if (value instanceof Integer || value instanceof Long) {
+                any = Map.of("intValue", value.toString());
+            } else if (value instanceof Number number) {
+                any = Map.of("doubleValue", number.doubleValue());
+            } else {
+                any = Map.of("stringValue", String.valueOf(value));
+            }
+            encoded.add(Map.of("key", entry.getKey(), "value", any));
+        }
+        return encoded;
+    }
+
+    private static String toJson(Object value) {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to encode telemetry", e);
+        }
+    }
+
+    private static long epochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            hex.append(String.format("%02x", random.nextInt(256)));
+        }
+        return hex.toString();
+    }
+}
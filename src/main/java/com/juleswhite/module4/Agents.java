@@ -5,6 +5,8 @@ import com.juleswhite.module4.LLM.Prompt;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 /**
@@ -106,23 +108,29 @@ public class Agents {
      * @return A configured Agent instance
      */
     public static Agent createAgent(String[] packageNames, List<Goal> goals, AgentLanguage agentLanguage, LLM llm) {
+        return createAgent(packageNames, goals, agentLanguage, llm, null);
+    }
+
+    /**
+     * Creates an agent with tools discovered from multiple packages, custom agent language, and
+     * a response cache in front of the LLM.
+     *
+     * @param packageNames Array of package names to scan for tools
+     * @param goals List of goals for the agent
+     * @param agentLanguage AgentLanguage implementation to use
+     * @param llm LLM instance to use for generating responses, or null for default
+     * @param responseCache Cache for LLM responses, or null to always call the LLM
+     * @return A configured Agent instance
+     */
+    public static Agent createAgent(String[] packageNames, List<Goal> goals, AgentLanguage agentLanguage,
+                                    LLM llm, ResponseCache responseCache) {
         // Create the action registry with automatic tool discovery
         ActionRegistry registry = new ActionRegistry();
 
         // Discover tools from all specified packages
         Arrays.stream(packageNames).forEach(registry::discoverTools);
 
-        // Create the environment
-        Environment environment = new Environment(registry);
-
-        // Create or use the provided LLM
-        LLM actualLlm = (llm != null) ? llm : new LLM();
-
-        // Create the LLM response generator
-        Function<Prompt, String> generateResponse = prompt -> actualLlm.generateResponse(prompt);
-
-        // Create and return the agent with discovered tools
-        return new Agent(goals, registry, agentLanguage, environment, generateResponse);
+        return buildAgent(goals, registry, agentLanguage, llm, responseCache);
     }
 
     /**
@@ -155,17 +163,7 @@ public class Agents {
             registry.discoverTools(clazz.getPackageName());
         }
 
-        // Create the environment
-        Environment environment = new Environment(registry);
-
-        // Create or use the provided LLM
-        LLM actualLlm = (llm != null) ? llm : new LLM();
-
-        // Create the LLM response generator
-        Function<Prompt, String> generateResponse = prompt -> actualLlm.generateResponse(prompt);
-
-        // Create and return the agent with discovered tools
-        return new Agent(goals, registry, agentLanguage, environment, generateResponse);
+        return buildAgent(goals, registry, agentLanguage, llm, null);
     }
 
     /**
@@ -256,6 +254,22 @@ public class Agents {
      */
     public static Agent createInstanceAgent(Object toolInstance, List<Goal> goals,
                                             AgentLanguage agentLanguage, LLM llm) {
+        return createInstanceAgent(toolInstance, goals, agentLanguage, llm, null);
+    }
+
+    /**
+     * Creates an agent with tools discovered from an object instance, custom agent language, and
+     * a response cache in front of the LLM.
+     *
+     * @param toolInstance Object instance to discover tools from
+     * @param goals List of goals for the agent
+     * @param agentLanguage AgentLanguage implementation to use
+     * @param llm LLM instance to use for generating responses, or null for default
+     * @param responseCache Cache for LLM responses, or null to always call the LLM
+     * @return A configured Agent instance
+     */
+    public static Agent createInstanceAgent(Object toolInstance, List<Goal> goals,
+                                            AgentLanguage agentLanguage, LLM llm, ResponseCache responseCache) {
         // Create the action registry
         ActionRegistry registry = new ActionRegistry();
 
@@ -265,16 +279,37 @@ public class Agents {
         // Discover instance tools from the provided object
         registry.discoverInstanceTools(toolInstance);
 
+        return buildAgent(goals, registry, agentLanguage, llm, responseCache);
+    }
+
+    /**
+     * Wires a discovered registry into an agent with its environment and LLM generators.
+     */
+    private static Agent buildAgent(List<Goal> goals, ActionRegistry registry, AgentLanguage agentLanguage,
+                                    LLM llm, ResponseCache responseCache) {
         // Create the environment
         Environment environment = new Environment(registry);
 
         // Create or use the provided LLM
         LLM actualLlm = (llm != null) ? llm : new LLM();
 
-        // Create the LLM response generator
-        Function<Prompt, String> generateResponse = prompt -> actualLlm.generateResponse(prompt);
+        // Create the LLM response generators, going through the cache if there is one
+        Function<Prompt, String> generateResponse;
+        Function<Prompt, CompletableFuture<String>> generateResponseAsync;
+        BiFunction<Prompt, LLM.TokenListener, String> generateResponseStreaming;
+        if (responseCache != null) {
+            generateResponse = responseCache.wrap(actualLlm);
+            generateResponseAsync = responseCache.wrapAsync(actualLlm);
+            generateResponseStreaming = responseCache.wrapStreaming(actualLlm);
+        } else {
+            generateResponse = prompt -> actualLlm.generateResponse(prompt);
+            generateResponseAsync = actualLlm::generateResponseAsync;
+            generateResponseStreaming = actualLlm::generateResponseStreaming;
+        }
 
         // Create and return the agent
-        return new Agent(goals, registry, agentLanguage, environment, generateResponse);
+        Agent agent = new Agent(goals, registry, agentLanguage, environment, generateResponse, generateResponseAsync);
+        agent.setStreamingResponseGenerator(generateResponseStreaming);
+        return agent;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1055 @@
+package com.juleswhite.module4;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A trigram index over the text files under a root directory, for fast keyword and regex search.
+ *
+ * Every run of three bytes in a file (ASCII letters folded to lower case) is a trigram, and each
+ * trigram has a posting list of the files that contain it. A query is turned into the trigrams
+ * any match must contain; intersecting their posting lists gives a small set of candidate files,
+ * and only those are read to find the matching lines. Queries with no usable trigrams (short
+ * keywords, regexes without a required literal) check every file.
+ *
+ * The index is built in parallel, kept current by a WatchService thread, and saved to disk so a
+ * restart only re-reads files whose size or modification time changed. Events can arrive after a
+ * file was written, so each search first applies the events already queued, and checks the size
+ * and modification time of each candidate it reads, re-indexing any that changed. A changed file
+ * is given a new id and its old id is marked dead, so posting lists are only ever appended to; they
+ * are compacted once dead ids make up half of them.
+ *
+ * Each index runs a watcher thread, so tools share one per root through shared().
+ */
+public class CodeSearchIndex implements Closeable {
+
+    private static final int MAGIC = 0x43534958;
+    private static final int VERSION = 1;
+
+    // Files larger than this are not indexed, as with readFile
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+
+    // Bytes checked for a NUL when deciding whether a file is text
+    private static final int BINARY_CHECK_BYTES = 8000;
+
+    private static final int BUILD_BATCH_SIZE = 1024;
+    private static final int MAX_LINES_PER_FILE = 10;
+
+    // Directories that are never searched
+    private static final Set<String> SKIPPED_DIRECTORIES = Set.of("node_modules");
+
+    // In comments mode whitespace in a regex is not literal
+    private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-zA-Z]*x");
+
+    private final Path root;
+    private final Path indexFile;
+    private final FileReadCache cache;
+
+    // Guards everything below; searches take the read lock only to find their candidates
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<FileEntry> files = new ArrayList<>();
+    private final Map<String, Integer> idsByPath = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private final Map<Integer, Postings> postings = new HashMap<>();
+    private int deadPostings;
+    private int totalPostings;
+    private volatile boolean dirty;
+
+    private WatchService watcher;
+    private Thread watchThread;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    // Held while applying events, by the watcher thread or by a search catching up
+    private final ReentrantLock eventLock = new ReentrantLock();
+
+    // Indexes opened through shared(), by root; they stay open for the life of the JVM
+    private static final Map<Path, CodeSearchIndex> SHARED = new ConcurrentHashMap<>();
+    private static final ReentrantLock SHARED_LOCK = new ReentrantLock();
+
+    /**
+     * A file as indexed, identified by its path relative to the root with '/' separators.
+     */
+    private static class FileEntry {
+        final String path;
+        final long lastModified;
+        final long size;
+
+        FileEntry(String path, long lastModified, long size) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
+    /**
+     * File ids in increasing order, stored as variable-length deltas.
+     */
+    private static class Postings {
+        byte[] data = new byte[8];
+        int length;
+        int count;
+        int last = -1;
+
+        void add(int id) {
+            if (data.length - length < 5) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = id - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        int[] decode() {
+            int[] ids = new int[count];
+            int position = 0;
+            int id = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static class SearchResult {
+        private final List<Map<String, Object>> results;
+        private final int totalFiles;
+        private final int candidateFiles;
+
+        SearchResult(List<Map<String, Object>> results, int totalFiles, int candidateFiles) {
+            this.results = results;
+            this.totalFiles = totalFiles;
+            this.candidateFiles = candidateFiles;
+        }
+
+        /**
+         * Gets the matching files on this page, best first, each with its path, match count and
+         * first matching lines.
+         */
+        public List<Map<String, Object>> getResults() {
+            return results;
+        }
+
+        /**
+         * Gets the number of matching files across all pages.
+         */
+        public int getTotalFiles() {
+            return totalFiles;
+        }
+
+        /**
+         * Gets the number of files the index could not rule out and that had to be read.
+         */
+        public int getCandidateFiles() {
+            return candidateFiles;
+        }
+    }
+
+    private CodeSearchIndex(Path root, Path indexFile, FileReadCache cache) {
+        this.root = root;
+        this.indexFile = indexFile;
+        this.cache = cache;
+    }
+
+    /**
+     * Opens the index for a directory, loading it from disk if it was saved before and bringing it
+     * up to date, and starts watching the directory for changes.
+     *
+     * @param root The directory to index
+     * @param indexFile Where the index is saved, or null to keep it in memory only
+     */
+    public static CodeSearchIndex open(Path root, Path indexFile) throws IOException {
+        return open(root, indexFile, null);
+    }
+
+    /**
+     * Opens the index for a directory, reading candidate files through a cache when they are
+     * searched.
+     *
+     * @param root The directory to index
+     * @param indexFile Where the index is saved, or null to keep it in memory only
+     * @param cache Cache to read candidate files through, or null to read them from disk
+     */
+    public static CodeSearchIndex open(Path root, Path indexFile, FileReadCache cache) throws IOException {
+        CodeSearchIndex index = new CodeSearchIndex(root.toAbsolutePath().normalize(), indexFile, cache);
+        if (indexFile != null && Files.exists(indexFile)) {
+            try {
+                index.load();
+            } catch (IOException e) {
+                // A damaged or stale index is simply rebuilt
+                System.err.println("Failed to load search index " + indexFile + ": " + e.getMessage());
+                index.clear();
+            }
+        }
+        index.startWatching();
+        index.reconcile();
+        index.save();
+        return index;
+    }
+
+    /**
+     * Gets the index of a directory shared by every caller in the JVM, opening it on first use
+     * with the default index file and the shared read cache.
+     */
+    public static CodeSearchIndex shared(Path root) throws IOException {
+        Path key = root.toAbsolutePath().normalize();
+        CodeSearchIndex index = SHARED.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        // A lock rather than computeIfAbsent, since opening reads the whole tree and can fail
+        SHARED_LOCK.lock();
+        try {
+            index = SHARED.get(key);
+            if (index == null) {
+                index = open(key, defaultIndexFile(key), FileReadCache.shared());
+                SHARED.put(key, index);
+            }
+            return index;
+        } finally {
+            SHARED_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Gets the default place to save the index of a directory, under the temp directory.
+     */
+    public static Path defaultIndexFile(Path root) {
+        String name = Integer.toHexString(root.toAbsolutePath().normalize().toString().hashCode());
+        return Path.of(System.getProperty("java.io.tmpdir"), "agent-code-search", name + ".idx");
+    }
+
+    /**
+     * Searches the indexed files.
+     *
+     * @param directory Only files under this path (relative to the root, '/' separated) are searched;
+     *                  empty for all
+     * @param query A keyword, matched case-sensitively, or a regular expression
+     * @param regex Whether the query is a regular expression
+     * @param offset Number of matching files to skip
+     * @param limit Maximum number of files to return
+     */
+    public SearchResult search(String directory, String query, boolean regex, int offset, int limit) {
+        Pattern pattern = regex ? Pattern.compile(query) : null;
+        List<int[]> required = new ArrayList<>();
+        for (String literal : regex ? requiredLiterals(query) : List.of(query)) {
+            int[] trigrams = trigrams(literal.getBytes(StandardCharsets.UTF_8));
+            if (trigrams.length > 0) {
+                required.add(trigrams);
+            }
+        }
+
+        String prefix = directory == null || directory.isEmpty() ? "" : directory + "/";
+
+        // The watcher thread may not have taken the events of a file written just before this search
+        try {
+            applyPendingEvents();
+        } catch (IOException e) {
+            System.err.println("Failed to refresh search index " + root + ": " + e.getMessage());
+        }
+
+        List<FileEntry> candidates = candidates(required, prefix);
+
+        // Read the candidates in parallel; the index only guarantees they might match
+        List<Map<String, Object>> matches = candidates.parallelStream()
+                .map(entry -> matchFile(entry, query, pattern))
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingDouble((Map<String, Object> m) -> -(double) m.get("score"))
+                        .thenComparing(m -> (String) m.get("file")))
+                .toList();
+
+        List<Map<String, Object>> page = new ArrayList<>();
+        for (int i = Math.max(0, offset); i < matches.size() && page.size() < limit; i++) {
+            Map<String, Object> match = new LinkedHashMap<>(matches.get(i));
+            match.remove("score");
+            page.add(match);
+        }
+        return new SearchResult(page, matches.size(), candidates.size());
+    }
+
+    private List<FileEntry> candidates(List<int[]> required, String prefix) {
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (int[] trigrams : required) {
+                for (int trigram : trigrams) {
+                    Postings list = postings.get(trigram);
+                    if (list == null) {
+                        return List.of();
+                    }
+                    lists.add(list);
+                }
+            }
+
+            // Intersect the shortest lists first, so the selection empties as early as possible
+            lists.sort(Comparator.comparingInt(list -> list.count));
+            BitSet selected = (BitSet) live.clone();
+            for (Postings list : lists) {
+                BitSet containing = new BitSet(files.size());
+                for (int id : list.decode()) {
+                    containing.set(id);
+                }
+                selected.and(containing);
+                if (selected.isEmpty()) {
+                    return List.of();
+                }
+            }
+
+            List<FileEntry> candidates = new ArrayList<>(selected.cardinality());
+            for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1)) {
+                FileEntry entry = files.get(id);
+                if (entry.path.startsWith(prefix)) {
+                    candidates.add(entry);
+                }
+            }
+            return candidates;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the matching lines of one file and scores it, or returns null if nothing matches.
+     */
+    private Map<String, Object> matchFile(FileEntry entry, String query, Pattern pattern) {
+        String content;
+        Path file = root.resolve(entry.path);
+        try {
+            // Changed since it was indexed, with the event still to come
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.lastModifiedTime().toMillis() != entry.lastModified || attrs.size() != entry.size) {
+                indexFiles(List.of(file));
+            }
+            FileReadCache.Entry cached = cache != null ? cache.get(file) : null;
+            content = cached != null
+                    ? cached.getText()
+                    : new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Deleted or unreadable since it was indexed
+            if (!Files.exists(file)) {
+                lock.writeLock().lock();
+                try {
+                    remove(entry.path);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            return null;
+        }
+
+        List<Map<String, Object>> lines = new ArrayList<>();
+        int matchCount = 0;
+        int lineNumber = 0;
+        Matcher matcher = pattern != null ? pattern.matcher("") : null;
+        for (String line : content.split("\r?\n", -1)) {
+            lineNumber++;
+            boolean found = matcher != null ? matcher.reset(line).find() : line.contains(query);
+            if (!found) {
+                continue;
+            }
+            matchCount++;
+            if (lines.size() < MAX_LINES_PER_FILE) {
+                Map<String, Object> match = new LinkedHashMap<>();
+                match.put("lineNumber", lineNumber);
+                match.put("content", line);
+                lines.add(match);
+            }
+        }
+        if (matchCount == 0) {
+            return null;
+        }
+
+        // More matches rank higher, with diminishing returns; a match in the file name counts most
+        String name = entry.path.substring(entry.path.lastIndexOf('/') + 1);
+        boolean nameMatches = matcher != null ? matcher.reset(name).find() : name.contains(query);
+        double score = Math.log1p(matchCount) + (nameMatches ? 2 : 0);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("file", "/" + entry.path);
+        result.put("matchCount", matchCount);
+        result.put("matches", lines);
+        result.put("score", score);
+        return result;
+    }
+
+    /**
+     * Gets literal strings that every match of a regex must contain. Only literals outside groups,
+     * classes and optional parts are used; a regex with alternation yields none.
+     */
+    static List<String> requiredLiterals(String regex) {
+        List<String> literals = new ArrayList<>();
+        if (regex.contains("|") || COMMENTS_FLAG.matcher(regex).find()) {
+            return literals;
+        }
+
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(++i);
+                if (depth == 0 && !Character.isLetterOrDigit(next) && next < 128) {
+                    run.append(next);
+                    continue;
+                }
+                if (next == 'Q') {
+                    // Quoted text is literal up to \E
+                    int end = regex.indexOf("\\E", i + 1);
+                    end = end < 0 ? regex.length() : end;
+                    for (int j = i + 1; j < end; j++) {
+                        char quoted = regex.charAt(j);
+                        if (depth == 0 && quoted < 128) {
+                            run.append(quoted);
+                        } else {
+                            endRun(run, literals);
+                        }
+                    }
+                    i = Math.min(regex.length(), end + 2) - 1;
+                    continue;
+                }
+                // \d and the like are not literals, nor the characters \x41 or \cA stand for
+                endRun(run, literals);
+                i = skipEscapeOperand(regex, next, i + 1) - 1;
+                continue;
+            }
+            switch (c) {
+                case '(' -> {
+                    depth++;
+                    endRun(run, literals);
+                }
+                case ')' -> {
+                    depth = Math.max(0, depth - 1);
+                    endRun(run, literals);
+                }
+                case '[' -> {
+                    endRun(run, literals);
+                    // Skip the class, including a leading ']' and escapes
+                    i++;
+                    if (i < regex.length() && regex.charAt(i) == '^') {
+                        i++;
+                    }
+                    if (i < regex.length() && regex.charAt(i) == ']') {
+                        i++;
+                    }
+                    while (i < regex.length() && regex.charAt(i) != ']') {
+                        if (regex.charAt(i) == '\\') {
+                            i++;
+                        }
+                        i++;
+                    }
+                }
+                case '?', '*', '{' -> {
+                    // The preceding character is optional
+                    if (run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+                    endRun(run, literals);
+                    if (c == '{') {
+                        while (i < regex.length() && regex.charAt(i) != '}') {
+                            i++;
+                        }
+                    }
+                }
+                case '+', '.', '^', '$' -> endRun(run, literals);
+                default -> {
+                    if (depth == 0 && c < 128) {
+                        run.append(c);
+                    } else {
+                        endRun(run, literals);
+                    }
+                }
+            }
+        }
+        endRun(run, literals);
+        return literals;
+    }
+
+    /**
+     * Skips what follows an escape letter as part of it, e.g. the 41 of \x41, the name of
+     * a named back reference or the digits of a numbered one.
+     *
+     * @param i The index after the escape letter
+     * @return The index after the escape
+     */
+    private static int skipEscapeOperand(String regex, char letter, int i) {
+        switch (letter) {
+            case 'x' -> {
+                if (i < regex.length() && regex.charAt(i) == '{') {
+                    return skipPast(regex, '}', i);
+                }
+                return Math.min(regex.length(), i + 2);
+            }
+            case 'u' -> {
+                return Math.min(regex.length(), i + 4);
+            }
+            case '0' -> {
+                int end = i;
+                while (end < regex.length() && end < i + 3 && regex.charAt(end) >= '0' && regex.charAt(end) <= '7') {
+                    end++;
+                }
+                return end;
+            }
+            case 'c' -> {
+                return Math.min(regex.length(), i + 1);
+            }
+            case 'k' -> {
+                return skipPast(regex, '>', i);
+            }
+            case 'p', 'P', 'N' -> {
+                if (i < regex.length() && regex.charAt(i) == '{') {
+                    return skipPast(regex, '}', i);
+                }
+                return Math.min(regex.length(), i + 1);
+            }
+            default -> {
+                if (letter >= '1' && letter <= '9') {
+                    while (i < regex.length() && Character.isDigit(regex.charAt(i))) {
+                        i++;
+                    }
+                }
+                return i;
+            }
+        }
+    }
+
+    private static int skipPast(String regex, char end, int i) {
+        int at = regex.indexOf(end, i);
+        return at < 0 ? regex.length() : at + 1;
+    }
+
+    private static void endRun(StringBuilder run, List<String> literals) {
+        if (run.length() >= 3) {
+            literals.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    /**
+     * Gets the distinct trigrams of some bytes, in sorted order. Trigrams that span a line break
+     * are left out, since searches match within a line.
+     */
+    static int[] trigrams(byte[] bytes) {
+        if (bytes.length < 3) {
+            return new int[0];
+        }
+        int[] trigrams = new int[bytes.length - 2];
+        int count = 0;
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            byte a = bytes[i];
+            byte b = bytes[i + 1];
+            byte c = bytes[i + 2];
+            if (a == '\n' || b == '\n' || c == '\n' || a == '\r' || b == '\r' || c == '\r') {
+                continue;
+            }
+            trigrams[count++] = (fold(a) << 16) | (fold(b) << 8) | fold(c);
+        }
+
+        Arrays.sort(trigrams, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    private static int fold(byte b) {
+        int value = b & 0xFF;
+        return value >= 'A' && value <= 'Z' ? value + ('a' - 'A') : value;
+    }
+
+    /**
+     * Brings the index in line with the files on disk: new and changed files are read (in
+     * parallel) and deleted ones dropped.
+     */
+    private void reconcile() throws IOException {
+        List<Path> changed = new ArrayList<>();
+        Set<String> seen = new LinkedHashSet<>();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && isSkipped(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watch(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || attrs.size() > MAX_FILE_SIZE) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String path = relativePath(file);
+                seen.add(path);
+                if (!isCurrent(path, attrs.lastModifiedTime().toMillis(), attrs.size())) {
+                    changed.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        lock.writeLock().lock();
+        try {
+            for (String path : new ArrayList<>(idsByPath.keySet())) {
+                if (!seen.contains(path)) {
+                    remove(path);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        indexFiles(changed);
+    }
+
+    private boolean isCurrent(String path, long lastModified, long size) {
+        lock.readLock().lock();
+        try {
+            Integer id = idsByPath.get(path);
+            if (id == null) {
+                return false;
+            }
+            FileEntry entry = files.get(id);
+            return entry.lastModified == lastModified && entry.size == size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads and indexes files, in parallel batches so the trigrams of only one batch are held at once.
+     */
+    private void indexFiles(List<Path> paths) {
+        for (int start = 0; start < paths.size(); start += BUILD_BATCH_SIZE) {
+            List<Path> batch = paths.subList(start, Math.min(paths.size(), start + BUILD_BATCH_SIZE));
+            List<Object[]> scanned = batch.parallelStream()
+                    .map(this::scanFile)
+                    .filter(Objects::nonNull)
+                    .toList();
+
+            lock.writeLock().lock();
+            try {
+                for (Object[] result : scanned) {
+                    add((FileEntry) result[0], (int[]) result[1]);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads one file and gets its entry and trigrams, or null if it is missing, binary or too large.
+     */
+    private Object[] scanFile(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || attrs.size() > MAX_FILE_SIZE) {
+                return null;
+            }
+            byte[] bytes = Files.readAllBytes(file);
+            for (int i = 0; i < Math.min(bytes.length, BINARY_CHECK_BYTES); i++) {
+                if (bytes[i] == 0) {
+                    return null;
+                }
+            }
+            FileEntry entry = new FileEntry(relativePath(file), attrs.lastModifiedTime().toMillis(), attrs.size());
+            return new Object[] {entry, trigrams(bytes)};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Callers hold the write lock
+    private void add(FileEntry entry, int[] trigrams) {
+        remove(entry.path);
+
+        int id = files.size();
+        files.add(entry);
+        idsByPath.put(entry.path, id);
+        live.set(id);
+        for (int trigram : trigrams) {
+            postings.computeIfAbsent(trigram, k -> new Postings()).add(id);
+        }
+        totalPostings += trigrams.length;
+        dirty = true;
+    }
+
+    // Callers hold the write lock
+    private void remove(String path) {
+        Integer id = idsByPath.remove(path);
+        if (id == null) {
+            return;
+        }
+        live.clear(id);
+        dirty = true;
+
+        // Estimate the dead postings from the file's share of all postings
+        int liveFiles = Math.max(1, idsByPath.size() + 1);
+        deadPostings += (totalPostings - deadPostings) / liveFiles;
+        if (deadPostings > totalPostings / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Drops dead ids from every posting list.
+     */
+    private void compact() {
+        totalPostings = 0;
+        for (Map.Entry<Integer, Postings> entry : new ArrayList<>(postings.entrySet())) {
+            Postings compacted = new Postings();
+            for (int id : entry.getValue().decode()) {
+                if (live.get(id)) {
+                    compacted.add(id);
+                }
+            }
+            if (compacted.count == 0) {
+                postings.remove(entry.getKey());
+            } else {
+                entry.setValue(compacted);
+                totalPostings += compacted.count;
+            }
+        }
+        deadPostings = 0;
+    }
+
+    private void clear() {
+        lock.writeLock().lock();
+        try {
+            files.clear();
+            idsByPath.clear();
+            live.clear();
+            postings.clear();
+            totalPostings = 0;
+            deadPostings = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private String relativePath(Path file) {
+        return root.relativize(file.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+
+    private static boolean isSkipped(Path dir) {
+        String name = dir.getFileName().toString();
+        return name.startsWith(".") || SKIPPED_DIRECTORIES.contains(name);
+    }
+
+    private void startWatching() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        watchThread = new Thread(this::processEvents, "code-search-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watch(Path dir) {
+        try {
+            WatchKey key = dir.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirectories.put(key, dir);
+        } catch (IOException e) {
+            System.err.println("Failed to watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies file system events as they arrive, and saves the index once things go quiet.
+     */
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(500, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    if (dirty) {
+                        save();
+                    }
+                    continue;
+                }
+                applyEvents(key);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        } catch (IOException e) {
+            System.err.println("Search index stopped watching " + root + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies the events of a signalled key and of any other keys already signalled.
+     */
+    private void applyEvents(WatchKey key) throws IOException {
+        eventLock.lock();
+        try {
+            Set<Path> changed = new LinkedHashSet<>();
+            boolean overflow = false;
+            do {
+                Path dir = watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else if (dir != null) {
+                        changed.add(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+                key = watcher.poll();
+            } while (key != null);
+
+            if (overflow) {
+                reconcile();
+            } else {
+                applyChanges(changed);
+            }
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the events that have arrived and the watcher thread hasn't taken yet. Waits if the
+     * watcher thread is applying some, so a search sees them.
+     */
+    private void applyPendingEvents() throws IOException {
+        eventLock.lock();
+        try {
+            WatchKey key = watcher.poll();
+            if (key != null) {
+                applyEvents(key);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed; search what was indexed
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void applyChanges(Set<Path> changed) throws IOException {
+        List<Path> toIndex = new ArrayList<>();
+        for (Path path : changed) {
+            if (Files.isDirectory(path)) {
+                if (!isSkipped(path)) {
+                    // A new or moved directory: pick up everything in it
+                    reconcileDirectory(path, toIndex);
+                }
+            } else if (Files.isRegularFile(path)) {
+                toIndex.add(path);
+            } else {
+                String relative = relativePath(path);
+                lock.writeLock().lock();
+                try {
+                    // A deleted file, or a deleted directory and everything indexed under it
+                    remove(relative);
+                    String prefix = relative + "/";
+                    for (String indexed : new ArrayList<>(idsByPath.keySet())) {
+                        if (indexed.startsWith(prefix)) {
+                            remove(indexed);
+                        }
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+        indexFiles(toIndex);
+    }
+
+    private void reconcileDirectory(Path dir, List<Path> toIndex) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdirectory, BasicFileAttributes attrs) {
+                if (!subdirectory.equals(dir) && isSkipped(subdirectory)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watch(subdirectory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                toIndex.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Saves the index, replacing the previous file atomically.
+     */
+    public void save() {
+        if (indexFile == null) {
+            return;
+        }
+
+        lock.readLock().lock();
+        try {
+            Files.createDirectories(indexFile.toAbsolutePath().getParent());
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(root.toString());
+
+                out.writeInt(files.size());
+                for (int id = 0; id < files.size(); id++) {
+                    FileEntry entry = files.get(id);
+                    out.writeUTF(entry.path);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.size);
+                    out.writeBoolean(live.get(id));
+                }
+
+                out.writeInt(postings.size());
+                for (Map.Entry<Integer, Postings> entry : postings.entrySet()) {
+                    Postings list = entry.getValue();
+                    out.writeInt(entry.getKey());
+                    out.writeInt(list.count);
+                    out.writeInt(list.last);
+                    out.writeInt(list.length);
+                    out.write(list.data, 0, list.length);
+                }
+                out.writeInt(totalPostings);
+                out.writeInt(deadPostings);
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            System.err.println("Failed to save search index " + indexFile + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a search index");
+            }
+            if (!in.readUTF().equals(root.toString())) {
+                throw new IOException("Index is for another directory");
+            }
+
+            lock.writeLock().lock();
+            try {
+                int fileCount = in.readInt();
+                for (int id = 0; id < fileCount; id++) {
+                    FileEntry entry = new FileEntry(in.readUTF(), in.readLong(), in.readLong());
+                    files.add(entry);
+                    if (in.readBoolean()) {
+                        live.set(id);
+                        idsByPath.put(entry.path, id);
+                    }
+                }
+
+                int postingCount = in.readInt();
+                for (int i = 0; i < postingCount; i++) {
+                    int trigram = in.readInt();
+                    Postings list = new Postings();
+                    list.count = in.readInt();
+                    list.last = in.readInt();
+                    list.length = in.readInt();
+                    list.data = new byte[Math.max(8, list.length)];
+                    in.readFully(list.data, 0, list.length);
+                    postings.put(trigram, list);
+                }
+                totalPostings = in.readInt();
+                deadPostings = in.readInt();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing saved yet
+        }
+    }
+
+    /**
+     * Gets the number of files currently indexed.
+     */
+    public int getFileCount() {
+        lock.readLock().lock();
+        try {
+            return idsByPath.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops watching for changes and saves the index.
+     */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        watchThread.interrupt();
+        save();
+    }
+}
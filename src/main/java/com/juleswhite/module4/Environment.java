@@ -3,16 +3,113 @@ package com.juleswhite.module4;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.function.Function;
 
 public class Environment {
+    public static final int DEFAULT_MAX_PARALLEL_ACTIONS = 8;
+
+    // Tools mostly wait on files and the network, so each one gets its own virtual thread;
+    // the per-environment semaphore is what bounds how many run at once
+    private static final ExecutorService ACTION_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Reflective bindings compiled on first use: Method bindings by method, object bindings by
+    // class, with candidate methods grouped by parameter count
+    private static final Map<Method, ToolInvoker> METHOD_BINDINGS = new ConcurrentHashMap<>();
+    private static final ClassValue<Map<Integer, List<ToolInvoker>>> OBJECT_BINDINGS = new ClassValue<>() {
+        @Override
+        protected Map<Integer, List<ToolInvoker>> computeValue(Class<?> type) {
+            Map<Integer, List<ToolInvoker>> byArity = new HashMap<>();
+            for (Method method : type.getMethods()) {
+                // equals, wait and the like are never tools
+                if (method.getDeclaringClass() == Object.class) {
+                    continue;
+                }
+                try {
+                    byArity.computeIfAbsent(method.getParameterCount(), k -> new ArrayList<>())
+                            .add(ToolInvoker.compile(method.getName(), method, null, true));
+                } catch (RuntimeException e) {
+                    // Not accessible; it could not have been invoked reflectively either
+                }
+            }
+            return byArity;
+        }
+    };
+
+    // Conversions are decided once per target type
+    private static final ClassValue<Function<Object, Object>> CONVERTERS = new ClassValue<>() {
+        @Override
+        protected Function<Object, Object> computeValue(Class<?> type) {
+            return createConverter(type);
+        }
+    };
+
     private final ActionRegistry registry;
+    private final Semaphore actionPermits;
 
     public Environment(ActionRegistry registry) {
+        this(registry, DEFAULT_MAX_PARALLEL_ACTIONS);
+    }
+
+    /**
+     * @param registry The tools this environment can execute
+     * @param maxParallelActions Limit on actions from one response executing at the same time
+     */
+    public Environment(ActionRegistry registry, int maxParallelActions) {
         this.registry = registry;
+        this.actionPermits = new Semaphore(maxParallelActions);
+    }
+
+    /**
+     * Executes independent actions concurrently, e.g. several tool calls the model made in one
+     * response. A failing action does not affect the others.
+     *
+     * @return One result per action, in the same order as the actions
+     */
+    public List<Map<String, Object>> executeActions(List<Action> actions) {
+        return executeActions(actions, this::executeAction);
+    }
+
+    /**
+     * Executes independent actions concurrently like executeActions(actions), running each one
+     * through the given executor, e.g. one that wraps executeAction with timing.
+     */
+    public List<Map<String, Object>> executeActions(List<Action> actions,
+                                                    Function<Action, Map<String, Object>> executor) {
+        if (actions.size() == 1) {
+            return List.of(executor.apply(actions.get(0)));
+        }
+
+        List<CompletableFuture<Map<String, Object>>> pending = new ArrayList<>(actions.size());
+        for (Action action : actions) {
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    actionPermits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return formatError(e);
+                }
+                try {
+                    return executor.apply(action);
+                } finally {
+                    actionPermits.release();
+                }
+            }, ACTION_EXECUTOR));
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(actions.size());
+        for (CompletableFuture<Map<String, Object>> future : pending) {
+            results.add(future.join());
+        }
+        return results;
     }
 
     public Map<String, Object> executeAction(Action action) {
@@ -34,17 +131,21 @@ public class Environment {
 
             return formatResult(result);
         } catch (Exception e) {
-            Map<String, Object> errorResult = new HashMap<>();
-            errorResult.put("tool_executed", false);
-            errorResult.put("error", e.getMessage());
+            return formatError(e);
+        }
+    }
 
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            e.printStackTrace(pw);
-            errorResult.put("traceback", sw.toString());
+    private Map<String, Object> formatError(Exception e) {
+        Map<String, Object> errorResult = new HashMap<>();
+        errorResult.put("tool_executed", false);
+        errorResult.put("error", e.getMessage());
 
-            return errorResult;
-        }
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        e.printStackTrace(pw);
+        errorResult.put("traceback", sw.toString());
+
+        return errorResult;
     }
 
     public Map<String, Object> formatResult(Object result) {
@@ -62,20 +163,18 @@ public class Environment {
         if (binding instanceof Method) {
             // Type 1: Static method binding
             Method method = (Method) binding;
-            Object[] methodArgs = prepareArguments(method, args);
-            return method.invoke(null, methodArgs);
+            ToolInvoker invoker = METHOD_BINDINGS.computeIfAbsent(method,
+                    m -> ToolInvoker.compile(m.getName(), m, null, true));
+            return invoker.invoke(args);
         } else {
             // Type 2: Object method binding
-            // Find appropriate method on the object
-            for (Method method : binding.getClass().getMethods()) {
-                if (method.getParameterCount() == args.size()) {
-                    try {
-                        Object[] methodArgs = prepareArguments(method, args);
-                        return method.invoke(binding, methodArgs);
-                    } catch (Exception e) {
-                        // Try next method
-                        continue;
-                    }
+            // Try the methods on the object that take this many arguments
+            for (ToolInvoker invoker : OBJECT_BINDINGS.get(binding.getClass()).getOrDefault(args.size(), List.of())) {
+                try {
+                    return invoker.invokeOn(binding, args);
+                } catch (Exception e) {
+                    // Try next method
+                    continue;
                 }
             }
             throw new RuntimeException("No suitable method found for arguments: " + args);
@@ -110,44 +209,55 @@ public class Environment {
     }
 
     public static Object convertToType(Object value, Class<?> targetType) {
-        if (value == null) {
-            return null;
-        }
+        return CONVERTERS.get(targetType).apply(value);
+    }
 
-        // If value is already of the correct type, return it
-        if (targetType.isAssignableFrom(value.getClass())) {
-            return value;
-        }
+    /**
+     * Resolves the conversion convertToType applies for a target type, so callers that convert
+     * to the same type repeatedly (e.g. compiled tool bindings) decide how only once.
+     */
+    public static Function<Object, Object> converterFor(Class<?> targetType) {
+        return CONVERTERS.get(targetType);
+    }
 
+    private static Function<Object, Object> createConverter(Class<?> targetType) {
         // Handle primitive types and common conversions
+        Function<Object, Object> conversion;
         if (targetType == String.class) {
-            return value.toString();
+            conversion = Object::toString;
         } else if (targetType == Integer.class || targetType == int.class) {
-            if (value instanceof Number) {
-                return ((Number) value).intValue();
-            } else {
-                return Integer.parseInt(value.toString());
-            }
+            conversion = value -> value instanceof Number
+                    ? (Object) ((Number) value).intValue()
+                    : (Object) Integer.parseInt(value.toString());
         } else if (targetType == Double.class || targetType == double.class) {
-            if (value instanceof Number) {
-                return ((Number) value).doubleValue();
-            } else {
-                return Double.parseDouble(value.toString());
-            }
+            conversion = value -> value instanceof Number
+                    ? (Object) ((Number) value).doubleValue()
+                    : (Object) Double.parseDouble(value.toString());
         } else if (targetType == Boolean.class || targetType == boolean.class) {
-            if (value instanceof Boolean) {
-                return value;
-            } else {
-                return Boolean.parseBoolean(value.toString());
-            }
+            conversion = value -> value instanceof Boolean
+                    ? value
+                    : (Object) Boolean.parseBoolean(value.toString());
+        } else {
+            // For collections, arrays, and other complex types...
+            // This would need more implementation for a complete solution
+
+            // If no conversion is possible, return the original value
+            // and let the method invocation fail if necessary
+            conversion = value -> value;
         }
 
-        // For collections, arrays, and other complex types...
-        // This would need more implementation for a complete solution
+        return value -> {
+            if (value == null) {
+                return null;
+            }
+
+            // If value is already of the correct type, return it
+            if (targetType.isAssignableFrom(value.getClass())) {
+                return value;
+            }
 
-        // If no conversion is possible, return the original value
-        // and let the method invocation fail if necessary
-        return value;
+            return conversion.apply(value);
+        };
     }
 
     /**
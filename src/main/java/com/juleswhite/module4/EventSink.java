@@ -0,0 +1,236 @@
+package com.juleswhite.module4;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Writes the agent's progress messages to the console from a background thread, so a slow
+ * terminal or a redirected stdout never holds up the agent loop.
+ *
+ * Messages below the sink's level are dropped before their text is even built. The rest are
+ * queued; if the queue is full the message is dropped and counted rather than blocking the
+ * caller. WARN and ERROR go to stderr, the rest to stdout, resolved when written so that
+ * System.setOut still applies.
+ */
+public class EventSink implements Closeable {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /**
+     * System property holding the console sink's level, e.g. -Dagent.log.level=DEBUG
+     */
+    public static final String LEVEL_PROPERTY = "agent.log.level";
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static class Console {
+        static final EventSink INSTANCE = createConsole();
+
+        private static EventSink createConsole() {
+            EventSink sink = new EventSink(
+                    Level.valueOf(System.getProperty(LEVEL_PROPERTY, "INFO").toUpperCase(Locale.ROOT)),
+                    DEFAULT_CAPACITY);
+            // Don't lose the last messages when the program exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> sink.flush(1000), "agent-event-sink-flush"));
+            return sink;
+        }
+    }
+
+    private record Event(Level level, String message) {
+    }
+
+    private static final Event END = new Event(Level.OFF, "");
+
+    private volatile Level level;
+    private final BlockingQueue<Event> queue;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Events queued but not yet written, for flush()
+    private final AtomicLong pending = new AtomicLong();
+
+    private final ReentrantLock startLock = new ReentrantLock();
+    private volatile Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param level Messages below this level are dropped
+     * @param capacity Number of messages that can wait to be written
+     */
+    public EventSink(Level level, int capacity) {
+        this.level = level;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Gets the console sink shared by every agent, whose level is taken from LEVEL_PROPERTY
+     * (INFO by default).
+     */
+    public static EventSink console() {
+        return Console.INSTANCE;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level messageLevel) {
+        return messageLevel != Level.OFF && messageLevel.compareTo(level) >= 0;
+    }
+
+    public void emit(Level messageLevel, String message) {
+        if (isEnabled(messageLevel)) {
+            enqueue(new Event(messageLevel, message));
+        }
+    }
+
+    /**
+     * Emits a message whose text is only built if its level is enabled.
+     */
+    public void emit(Level messageLevel, Supplier<String> message) {
+        if (isEnabled(messageLevel)) {
+            enqueue(new Event(messageLevel, message.get()));
+        }
+    }
+
+    public void debug(Supplier<String> message) {
+        emit(Level.DEBUG, message);
+    }
+
+    public void info(Supplier<String> message) {
+        emit(Level.INFO, message);
+    }
+
+    public void warn(Supplier<String> message) {
+        emit(Level.WARN, message);
+    }
+
+    public void error(Supplier<String> message) {
+        emit(Level.ERROR, message);
+    }
+
+    /**
+     * Gets the number of messages dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until every message queued so far has been written.
+     *
+     * @return false if the timeout passed first
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (pending.get() > 0) {
+            if (writer == null || System.nanoTime() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes what is queued and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread current = writer;
+        if (current != null) {
+            while (!queue.offer(END)) {
+                if (queue.poll() != null) {
+                    pending.decrementAndGet();
+                    dropped.incrementAndGet();
+                }
+            }
+            try {
+                current.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void enqueue(Event event) {
+        if (closed) {
+            return;
+        }
+        if (writer == null) {
+            startWriter();
+        }
+        pending.incrementAndGet();
+        if (!queue.offer(event)) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void startWriter() {
+        startLock.lock();
+        try {
+            if (writer == null) {
+                Thread thread = new Thread(this::writeEvents, "agent-event-sink");
+                thread.setDaemon(true);
+                thread.start();
+                writer = thread;
+            }
+        } finally {
+            startLock.unlock();
+        }
+    }
+
+    private void writeEvents() {
+        List<Event> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                PrintStream out = System.out;
+                PrintStream err = System.err;
+                boolean end = false;
+                int written = 0;
+                for (Event event : batch) {
+                    if (event == END) {
+                        end = true;
+                        break;
+                    }
+                    (event.level().compareTo(Level.WARN) >= 0 ? err : out).println(event.message());
+                    written++;
+                }
+                out.flush();
+                err.flush();
+
+                batch.clear();
+                pending.addAndGet(-written);
+                if (end) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.juleswhite.module4;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.PatternSyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 
 /**
  * FileExplorerTools provides a set of tools for navigating and exploring a file system.
@@ -15,6 +19,13 @@ public class FileExplorerTools {
     private final File rootDirectory;
     private final Set<String> visitedPaths;
 
+    // Number of files per page of search results
+    private static final int SEARCH_PAGE_SIZE = 20;
+    private static final int FIND_PAGE_SIZE = 50;
+
+    private final FileWalker fileWalker = new FileWalker();
+    private final FileRangeReader rangeReader = new FileRangeReader(FileReadCache.shared());
+
     /**
      * Constructor initializes with a specified root directory.
      *
@@ -25,7 +36,8 @@ public class FileExplorerTools {
         if (!this.rootDirectory.exists() || !this.rootDirectory.isDirectory()) {
             throw new IllegalArgumentException("Root path must be an existing directory: " + rootPath);
         }
-       this.visitedPaths = new HashSet<>();
+        // Sessions sharing one instance may record visits concurrently
+        this.visitedPaths = ConcurrentHashMap.newKeySet();
         visitedPaths.add("/");
     }
 
@@ -155,21 +167,85 @@ public class FileExplorerTools {
             return error;
         }
 
-        if (file.length() > 1024 * 1024) {  // 1MB limit
+        try {
+            // Large files come back as their first chunk, with the offset to continue from
+            FileRangeReader.Chunk chunk = rangeReader.read(file.toPath(), 0, Long.MAX_VALUE,
+                    FileRangeReader.DEFAULT_MAX_TOKENS);
+
+            Map<String, Object> result = new HashMap<>();
+            result.put("content", chunk.getContent());
+            result.put("path", getRelativePath(file));
+            result.put("size", file.length());
+            result.put("lastModified", new Date(file.lastModified()).toString());
+            if (chunk.hasMore()) {
+                result.put("truncated", true);
+                result.put("nextOffset", chunk.getEndOffset());
+            }
+
+            return result;
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error reading file: " + e.getMessage());
+            return error;
+        }
+    }
+
+    @RegisterTool(tags = {"file_operations"}, optional = {"offset", "length", "startLine", "lineCount"})
+    public Map<String, Object> readFileRange(String path, Long offset, Long length, Long startLine, Integer lineCount) {
+        /**
+         * Reads part of a file, either a byte range or a range of lines, for paging through files too large to read at once.
+         *
+         * @param path The path of the file to read (relative to root or current directory)
+         * @param offset The byte offset to start at, e.g. the nextOffset of a previous read; ignored if startLine is given
+         * @param length The maximum number of bytes to read
+         * @param startLine The line to start at, counting from 1, to read by lines instead of bytes
+         * @param lineCount The maximum number of lines to read
+         * @return A map containing the content read and the offset to continue from
+         */
+        if (path == null || path.isEmpty()) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "File path cannot be empty");
+            return error;
+        }
+
+        File file = resolvePath(path);
+
+        if (file == null) {
             Map<String, Object> error = new HashMap<>();
-            error.put("error", "File is too large to read: " + path);
+            error.put("error", "Path is outside the root directory: " + path);
+            return error;
+        }
+
+        if (!file.isFile()) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "File does not exist: " + path);
             return error;
         }
 
         try {
-            String content = new String(Files.readAllBytes(file.toPath()));
+            FileRangeReader.Chunk chunk = startLine != null
+                    ? rangeReader.readLines(file.toPath(), startLine,
+                            lineCount == null ? Integer.MAX_VALUE : lineCount, FileRangeReader.DEFAULT_MAX_TOKENS)
+                    : rangeReader.read(file.toPath(), offset == null ? 0 : offset,
+                            length == null ? Long.MAX_VALUE : length, FileRangeReader.DEFAULT_MAX_TOKENS);
 
             Map<String, Object> result = new HashMap<>();
-            result.put("content", content);
+            result.put("content", chunk.getContent());
             result.put("path", getRelativePath(file));
-            result.put("size", file.length());
-            result.put("lastModified", new Date(file.lastModified()).toString());
-
+            result.put("charset", chunk.getCharset().name());
+            result.put("size", chunk.getFileSize());
+            result.put("offset", chunk.getOffset());
+            result.put("endOffset", chunk.getEndOffset());
+            if (startLine != null) {
+                result.put("startLine", chunk.getStartLine());
+                result.put("lineCount", chunk.getLineCount());
+            }
+            if (chunk.isTruncated()) {
+                result.put("truncated", true);
+            }
+            if (chunk.hasMore()) {
+                result.put("nextOffset", chunk.getEndOffset());
+            }
             return result;
         } catch (Exception e) {
             Map<String, Object> error = new HashMap<>();
@@ -178,13 +254,14 @@ public class FileExplorerTools {
         }
     }
 
-    @RegisterTool(tags = {"search"})
-    public Map<String, Object> findFiles(String directory, String pattern) {
+    @RegisterTool(tags = {"search"}, optional = {"page"})
+    public Map<String, Object> findFiles(String directory, String pattern, Integer page) {
         /**
-         * Finds files matching the given pattern in the specified directory.
+         * Finds files matching the given pattern in the specified directory and all of its subdirectories, skipping files excluded by .gitignore.
          *
          * @param directory The directory to search in (relative to root or current directory)
-         * @param pattern The file name pattern to match
+         * @param pattern Text contained in the file name, or a glob such as *.java or src/**Test.java, or regex: followed by a regular expression for the relative path
+         * @param page The page of results to return, starting at 1
          * @return A map containing the matching file paths
          */
         if (directory == null || directory.isEmpty()) {
@@ -213,31 +290,46 @@ public class FileExplorerTools {
             return error;
         }
 
-        File[] allFiles = dir.listFiles();
-        List<String> matchingFiles = new ArrayList<>();
+        PathMatcher matcher;
+        try {
+            matcher = FileWalker.matcher(pattern);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Invalid pattern: " + e.getMessage());
+            return error;
+        }
 
-        if (allFiles != null) {
-            for (File file : allFiles) {
-                if (file.isFile() && file.getName().contains(pattern)) {
-                    matchingFiles.add(getRelativePath(file));
-                }
-            }
+        int pageNumber = page == null || page < 1 ? 1 : page;
+        FileWalker.Page found = fileWalker.find(dir.toPath(), matcher,
+                (pageNumber - 1) * FIND_PAGE_SIZE, FIND_PAGE_SIZE, FileWalker.DEFAULT_MAX_RESULTS);
+
+        List<String> matchingFiles = new ArrayList<>();
+        for (Path path : found.getPaths()) {
+            matchingFiles.add(getRelativePath(new File(dir, path.toString())));
         }
 
         Map<String, Object> result = new HashMap<>();
         result.put("pattern", pattern);
         result.put("directory", getRelativePath(dir));
         result.put("matchingFiles", matchingFiles);
+        result.put("page", pageNumber);
+        result.put("totalMatches", found.getTotalMatches());
+        result.put("hasMore", pageNumber * FIND_PAGE_SIZE < found.getTotalMatches());
+        if (found.isTruncated()) {
+            result.put("truncated", true);
+        }
         return result;
     }
 
-    @RegisterTool(tags = {"search"})
-    public Map<String, Object> searchInFiles(String directory, String keyword) {
+    @RegisterTool(tags = {"search"}, optional = {"regex", "page"})
+    public Map<String, Object> searchInFiles(String directory, String keyword, Boolean regex, Integer page) {
         /**
-         * Searches for a keyword in all text files in the specified directory.
+         * Searches for a keyword or regular expression in the text files under the specified directory and its subdirectories.
          *
          * @param directory The directory to search in (relative to root or current directory)
-         * @param keyword The keyword to search for
+         * @param keyword The keyword to search for, or a regular expression if regex is true
+         * @param regex Whether the keyword is a Java regular expression
+         * @param page The page of results to return, starting at 1; files with the most matches come first
          * @return A map containing the matching file paths and lines
          */
         if (directory == null || directory.isEmpty()) {
@@ -266,46 +358,39 @@ public class FileExplorerTools {
             return error;
         }
 
-        File[] files = dir.listFiles();
-        List<Map<String, Object>> results = new ArrayList<>();
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile() && isTextFile(file)) {
-                    try {
-                        List<String> lines = Files.readAllLines(file.toPath());
-                        List<Map<String, Object>> matchingLines = new ArrayList<>();
-
-                        for (int i = 0; i < lines.size(); i++) {
-                            String line = lines.get(i);
-                            if (line.contains(keyword)) {
-                                Map<String, Object> match = new HashMap<>();
-                                match.put("lineNumber", i + 1);
-                                match.put("content", line);
-                                matchingLines.add(match);
-                            }
-                        }
-
-                        if (!matchingLines.isEmpty()) {
-                            Map<String, Object> fileResult = new HashMap<>();
-                            fileResult.put("file", getRelativePath(file));
-                            fileResult.put("matches", matchingLines);
-                            results.add(fileResult);
-                        }
-                    } catch (Exception e) {
-                        // Skip files that can't be read
-                    }
-                }
-            }
+        int pageNumber = page == null || page < 1 ? 1 : page;
+        CodeSearchIndex.SearchResult found;
+        try {
+            found = getSearchIndex().search(getRelativePath(dir).substring(1), keyword,
+                    Boolean.TRUE.equals(regex), (pageNumber - 1) * SEARCH_PAGE_SIZE, SEARCH_PAGE_SIZE);
+        } catch (PatternSyntaxException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Invalid regular expression: " + e.getDescription());
+            return error;
+        } catch (IOException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error searching files: " + e.getMessage());
+            return error;
         }
 
         Map<String, Object> result = new HashMap<>();
         result.put("keyword", keyword);
         result.put("directory", getRelativePath(dir));
-        result.put("results", results);
+        result.put("results", found.getResults());
+        result.put("page", pageNumber);
+        result.put("totalFiles", found.getTotalFiles());
+        result.put("hasMore", pageNumber * SEARCH_PAGE_SIZE < found.getTotalFiles());
         return result;
     }
 
+    /**
+     * Gets the search index for the root directory, shared with every other instance over the
+     * same root so its watcher thread is only started once.
+     */
+    private CodeSearchIndex getSearchIndex() throws IOException {
+        return CodeSearchIndex.shared(rootDirectory.toPath());
+    }
+
     @RegisterTool(tags = {"navigation"})
     public List<String> getVisitedPaths() {
         /**
@@ -331,36 +416,4 @@ public class FileExplorerTools {
         result.put("exploredPaths", new ArrayList<>(visitedPaths));
         return result;
     }
-
-    // Helper method to determine if a file is likely a text file
-    private boolean isTextFile(File file) {
-        String name = file.getName().toLowerCase();
-        String[] textExtensions = {".txt", ".java", ".py", ".md", ".json", ".xml", ".html", ".css", ".js", ".csv"};
-
-        for (String ext : textExtensions) {
-            if (name.endsWith(ext)) {
-                return true;
-            }
-        }
-
-        // Additional check for files without extensions
-        if (!name.contains(".")) {
-            try {
-                // Try to read a few bytes to check if it's text
-                byte[] bytes = Files.readAllBytes(file.toPath());
-                int checkLength = Math.min(bytes.length, 1000);
-                for (int i = 0; i < checkLength; i++) {
-                    // Non-printable characters often indicate binary file
-                    if (bytes[i] < 32 && bytes[i] != 9 && bytes[i] != 10 && bytes[i] != 13) {
-                        return false;
-                    }
-                }
-                return true;
-            } catch (Exception e) {
-                return false;
-            }
-        }
-
-        return false;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,609 @@
+package com.juleswhite.module4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads part of a file, by byte range or by line range, without loading the whole file.
+ *
+ * Only the requested window is memory-mapped, so even a multi-gigabyte log costs the heap no
+ * more than the text returned. Each read is also capped by a token budget: it stops at the last
+ * line that fits (or partway through a line that is too long on its own) and reports where the
+ * next read should start, so an agent can page through a file one prompt-sized chunk at a time.
+ *
+ * The charset is taken from a byte order mark if there is one, and otherwise is UTF-8 if the
+ * start of the file decodes as UTF-8, or ISO-8859-1 if not. Line ranges are found through a sparse
+ * index of line offsets kept per file, so paging forward doesn't rescan from the start.
+ *
+ * Given a FileReadCache, files small enough to cache are read from the cache instead, and a read
+ * that covers a whole cached file returns its already decoded text.
+ */
+public class FileRangeReader {
+
+    /**
+     * Default token budget for one chunk.
+     */
+    public static final int DEFAULT_MAX_TOKENS = 4000;
+
+    // Upper bound on bytes per token, used to size the mapped window for a token budget
+    private static final int BYTES_PER_TOKEN = 8;
+
+    private static final int MAX_WINDOW_BYTES = 64 * 1024 * 1024;
+    private static final int CHARSET_SAMPLE_BYTES = 64 * 1024;
+    private static final int SCAN_BLOCK_BYTES = 64 * 1024;
+    private static final int LINES_PER_CHECKPOINT = 4096;
+    private static final int MAX_INDEXED_FILES = 64;
+
+    // Line offset indexes of recently read files, least recently used first
+    private final ReentrantLock lineIndexLock = new ReentrantLock();
+    private final Map<Path, LineIndex> lineIndexes = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final FileReadCache cache;
+
+    /**
+     * The byte offset of every LINES_PER_CHECKPOINT-th line, for one version of a file.
+     */
+    private static class LineIndex {
+        final long size;
+        final long lastModified;
+        final List<Long> checkpoints = new ArrayList<>(List.of(0L));
+        final ReentrantLock lock = new ReentrantLock();
+
+        LineIndex(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Where a read gets its bytes from: windows mapped from the file, or the cached copy.
+     */
+    private interface Source {
+        ByteBuffer window(long offset, long length) throws IOException;
+
+        byte get(long offset) throws IOException;
+    }
+
+    private static class MappedSource implements Source {
+        private final FileChannel channel;
+        private final ByteBuffer single = ByteBuffer.allocate(1);
+
+        MappedSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public ByteBuffer window(long offset, long length) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+
+        @Override
+        public byte get(long offset) throws IOException {
+            single.clear();
+            channel.read(single, offset);
+            return single.get(0);
+        }
+    }
+
+    private static class CachedSource implements Source {
+        private final ByteBuffer bytes;
+
+        CachedSource(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public ByteBuffer window(long offset, long length) {
+            return bytes.slice((int) offset, (int) length);
+        }
+
+        @Override
+        public byte get(long offset) {
+            return bytes.get((int) offset);
+        }
+    }
+
+    /**
+     * A piece of a file's text and where it came from.
+     */
+    public static class Chunk {
+        private final String content;
+        private final Charset charset;
+        private final long offset;
+        private final long endOffset;
+        private final long fileSize;
+        private final long startLine;
+        private final int lineCount;
+        private final boolean truncated;
+
+        Chunk(String content, Charset charset, long offset, long endOffset, long fileSize,
+              long startLine, int lineCount, boolean truncated) {
+            this.content = content;
+            this.charset = charset;
+            this.offset = offset;
+            this.endOffset = endOffset;
+            this.fileSize = fileSize;
+            this.startLine = startLine;
+            this.lineCount = lineCount;
+            this.truncated = truncated;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public Charset getCharset() {
+            return charset;
+        }
+
+        /**
+         * Gets the byte offset of the first byte of the chunk.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the byte offset just past the chunk, where the next chunk starts.
+         */
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * Gets the 1-based line the chunk starts on, or -1 for a byte-range read.
+         */
+        public long getStartLine() {
+            return startLine;
+        }
+
+        /**
+         * Gets the number of lines the chunk contains, counting a final partial line.
+         */
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        /**
+         * Gets whether the token budget stopped the read before the requested range was covered.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Gets whether the file continues past this chunk.
+         */
+        public boolean hasMore() {
+            return endOffset < fileSize;
+        }
+    }
+
+    /**
+     * Creates a reader that always reads from the file.
+     */
+    public FileRangeReader() {
+        this(null);
+    }
+
+    /**
+     * @param cache Cache to read files through, or null to always read from the file
+     */
+    public FileRangeReader(FileReadCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Reads a byte range. The range is moved back to the start of the character it starts in if
+     * that is a multi-byte character, and a BOM at the start of the file is skipped.
+     *
+     * @param offset Byte offset to start at
+     * @param length Maximum number of bytes to read
+     * @param maxTokens Token budget for the returned text
+     */
+    public Chunk read(Path file, long offset, long length, int maxTokens) throws IOException {
+        FileReadCache.Entry cached = cache != null ? cache.get(file) : null;
+        if (cached != null) {
+            long size = cached.getSize();
+            int bomLength = cached.getBomLength();
+            if (offset <= bomLength && length >= size - bomLength && coversWhole(cached, maxTokens)) {
+                return new Chunk(cached.getText(), cached.getCharset(), bomLength, size, size, -1,
+                        cached.getLineCount(), false);
+            }
+            return read(new CachedSource(cached.getBytes()), size,
+                    new Detected(cached.getCharset(), bomLength), offset, length, maxTokens);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            return read(new MappedSource(channel), size, detectCharset(channel, size), offset, length, maxTokens);
+        }
+    }
+
+    private Chunk read(Source source, long size, Detected detected, long offset, long length, int maxTokens)
+            throws IOException {
+        long start = Math.min(size, Math.max(offset, detected.bomLength));
+        start = alignToCharacter(source, detected.charset, detected.bomLength, start, size);
+        long end = Math.min(size, start + Math.min(Math.max(0, length), windowFor(maxTokens)));
+        return decodeLines(source, detected.charset, start, end, size, Integer.MAX_VALUE, maxTokens, -1);
+    }
+
+    /**
+     * Reads a range of lines.
+     *
+     * @param startLine 1-based line to start at
+     * @param lineCount Maximum number of lines to read
+     * @param maxTokens Token budget for the returned text
+     */
+    public Chunk readLines(Path file, long startLine, int lineCount, int maxTokens) throws IOException {
+        long line = Math.max(1, startLine);
+        FileReadCache.Entry cached = cache != null ? cache.get(file) : null;
+        if (cached != null) {
+            long size = cached.getSize();
+            if (line == 1 && lineCount >= cached.getLineCount() && coversWhole(cached, maxTokens)) {
+                return new Chunk(cached.getText(), cached.getCharset(), cached.getBomLength(), size, size, 1,
+                        cached.getLineCount(), false);
+            }
+            Source source = new CachedSource(cached.getBytes());
+            Detected detected = new Detected(cached.getCharset(), cached.getBomLength());
+            long start = lineOffset(file, source, detected, size, cached.getLastModified(), line);
+            long end = Math.min(size, start + windowFor(maxTokens));
+            return decodeLines(source, detected.charset, start, end, size, lineCount, maxTokens, line);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Detected detected = detectCharset(channel, size);
+            Source source = new MappedSource(channel);
+
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            long start = lineOffset(file, source, detected, size, lastModified, line);
+            long end = Math.min(size, start + windowFor(maxTokens));
+            return decodeLines(source, detected.charset, start, end, size, lineCount, maxTokens, line);
+        }
+    }
+
+    /**
+     * Gets whether a read with this budget would return a whole cached file, so its decoded
+     * text can be returned as it is.
+     */
+    private static boolean coversWhole(FileReadCache.Entry cached, int maxTokens) {
+        return cached.getSize() - cached.getBomLength() <= windowFor(maxTokens)
+                && cached.getTokenCount() <= maxTokens;
+    }
+
+    private static long windowFor(int maxTokens) {
+        return Math.min(MAX_WINDOW_BYTES, (long) Math.max(1, maxTokens) * BYTES_PER_TOKEN);
+    }
+
+    /**
+     * Decodes whole lines from a window until the line count, the token budget or the
+     * window runs out.
+     */
+    private Chunk decodeLines(Source source, Charset charset, long start, long end, long size,
+                              int maxLines, int maxTokens, long startLine) throws IOException {
+        if (start >= end) {
+            return new Chunk("", charset, start, start, size, startLine, 0, false);
+        }
+
+        // The window may end inside a character; leave that character for the next read, unless
+        // it is the only one, so paging makes progress
+        int unit = unitWidth(charset);
+        end = alignToCharacter(source, charset, 0, end, size);
+        if (end <= start) {
+            ByteBuffer first = source.window(start, Math.min(size - start, 4));
+            end = Math.min(size, start + characterLength(first, 0, unit, charset));
+        }
+        ByteBuffer window = source.window(start, end - start);
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        StringBuilder content = new StringBuilder();
+        int tokens = 0;
+        int lines = 0;
+        int position = 0;
+        boolean truncated = false;
+        int limit = window.limit();
+
+        while (position < limit && lines < maxLines) {
+            int lineEnd = nextLineEnd(window, position, limit, unit, charset);
+            String line = decode(decoder, window, position, lineEnd);
+            int lineTokens = TokenEstimator.estimate(line);
+
+            if (tokens + lineTokens > maxTokens) {
+                truncated = true;
+                if (lines > 0) {
+                    break;
+                }
+                // A single line over the budget: keep the share of it that fits
+                int keep = (int) ((long) (lineEnd - position) * Math.max(0, maxTokens - tokens) / lineTokens);
+                keep -= keep % unit;
+                int cut = backToCharacter(window, position, position + keep, charset);
+                if (cut <= position) {
+                    // Always return at least one character, so paging makes progress
+                    cut = Math.min(lineEnd, position + characterLength(window, position, unit, charset));
+                }
+                content.append(decode(decoder, window, position, cut));
+                position = cut;
+                lines = 1;
+                break;
+            }
+
+            content.append(line);
+            tokens += lineTokens;
+            lines++;
+            position = lineEnd;
+        }
+
+        return new Chunk(content.toString(), charset, start, start + position, size, startLine, lines, truncated);
+    }
+
+    /**
+     * Gets the position just past the next line terminator, or the limit.
+     */
+    private static int nextLineEnd(ByteBuffer buffer, int from, int limit, int unit, Charset charset) {
+        boolean bigEndian = charset.equals(StandardCharsets.UTF_16BE);
+        for (int i = from; i + unit <= limit; i += unit) {
+            if (isNewline(buffer, i, unit, bigEndian)) {
+                return i + unit;
+            }
+        }
+        return limit;
+    }
+
+    private static boolean isNewline(ByteBuffer buffer, int position, int unit, boolean bigEndian) {
+        if (unit == 1) {
+            return buffer.get(position) == '\n';
+        }
+        byte low = buffer.get(bigEndian ? position + 1 : position);
+        byte high = buffer.get(bigEndian ? position : position + 1);
+        return low == '\n' && high == 0;
+    }
+
+    private static String decode(CharsetDecoder decoder, ByteBuffer buffer, int from, int to) throws CharacterCodingException {
+        return decoder.reset().decode(buffer.slice(from, to - from)).toString();
+    }
+
+    /**
+     * Finds the byte offset of a line, scanning forward from the nearest indexed line.
+     */
+    private long lineOffset(Path file, Source source, Detected detected, long size, long lastModified, long line)
+            throws IOException {
+        LineIndex index = lineIndex(file, size, lastModified);
+        index.lock.lock();
+        try {
+            long target = line - 1;
+            int checkpoint = (int) Math.min(index.checkpoints.size() - 1, target / LINES_PER_CHECKPOINT);
+            long offset = Math.max(index.checkpoints.get(checkpoint), detected.bomLength);
+            long current = (long) checkpoint * LINES_PER_CHECKPOINT;
+
+            int unit = unitWidth(detected.charset);
+            boolean bigEndian = detected.charset.equals(StandardCharsets.UTF_16BE);
+            byte[] scratch = new byte[SCAN_BLOCK_BYTES];
+            while (current < target && offset < size) {
+                long windowEnd = Math.min(size, offset + MAX_WINDOW_BYTES);
+                ByteBuffer window = source.window(offset, windowEnd - offset);
+                int limit = window.limit() - window.limit() % unit;
+                int position = 0;
+                while (current < target && position < limit) {
+                    // Scan a block at a time from a small heap buffer, which is much faster
+                    // than reading the mapped buffer byte by byte
+                    int blockLength = Math.min(scratch.length, limit - position);
+                    window.get(position, scratch, 0, blockLength);
+                    int i = 0;
+                    while (current < target && i < blockLength) {
+                        boolean newline = unit == 1
+                                ? scratch[i] == '\n'
+                                : scratch[bigEndian ? i + 1 : i] == '\n' && scratch[bigEndian ? i : i + 1] == 0;
+                        i += unit;
+                        if (newline) {
+                            current++;
+                            if (current % LINES_PER_CHECKPOINT == 0
+                                    && current / LINES_PER_CHECKPOINT == index.checkpoints.size()) {
+                                index.checkpoints.add(offset + position + i);
+                            }
+                        }
+                    }
+                    position += i;
+                }
+                offset += position;
+            }
+            return offset;
+        } finally {
+            index.lock.unlock();
+        }
+    }
+
+    private LineIndex lineIndex(Path file, long size, long lastModified) {
+        Path key = file.toAbsolutePath().normalize();
+        lineIndexLock.lock();
+        try {
+            LineIndex index = lineIndexes.get(key);
+            if (index == null || index.size != size || index.lastModified != lastModified) {
+                index = new LineIndex(size, lastModified);
+                lineIndexes.put(key, index);
+                if (lineIndexes.size() > MAX_INDEXED_FILES) {
+                    lineIndexes.remove(lineIndexes.keySet().iterator().next());
+                }
+            }
+            return index;
+        } finally {
+            lineIndexLock.unlock();
+        }
+    }
+
+    /**
+     * A detected charset and the length of the byte order mark that announced it.
+     */
+    static class Detected {
+        final Charset charset;
+        final int bomLength;
+
+        Detected(Charset charset, int bomLength) {
+            this.charset = charset;
+            this.bomLength = bomLength;
+        }
+    }
+
+    /**
+     * Detects the charset of a file from its byte order mark or its first bytes.
+     */
+    public static Charset detectCharset(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return detectCharset(channel, channel.size()).charset;
+        }
+    }
+
+    private static Detected detectCharset(FileChannel channel, long size) throws IOException {
+        int sampleLength = (int) Math.min(size, CHARSET_SAMPLE_BYTES);
+        ByteBuffer sample = ByteBuffer.allocate(sampleLength);
+        while (sample.hasRemaining() && channel.read(sample, sample.position()) > 0) {
+            // Keep reading until the sample is full
+        }
+        sample.flip();
+        return detectCharset(sample, sampleLength == size);
+    }
+
+    /**
+     * Detects the charset of the bytes from the start of a file.
+     *
+     * @param bytes The first bytes of the file; only the first CHARSET_SAMPLE_BYTES are checked
+     * @param wholeFile Whether the bytes are the whole file
+     */
+    static Detected detectCharset(ByteBuffer bytes, boolean wholeFile) {
+        int sampleLength = Math.min(bytes.remaining(), CHARSET_SAMPLE_BYTES);
+        ByteBuffer sample = bytes.slice(bytes.position(), sampleLength);
+        boolean complete = wholeFile && sampleLength == bytes.remaining();
+
+        if (sample.remaining() >= 3 && (sample.get(0) & 0xFF) == 0xEF
+                && (sample.get(1) & 0xFF) == 0xBB && (sample.get(2) & 0xFF) == 0xBF) {
+            return new Detected(StandardCharsets.UTF_8, 3);
+        }
+        if (sample.remaining() >= 2 && (sample.get(0) & 0xFF) == 0xFF && (sample.get(1) & 0xFF) == 0xFE) {
+            return new Detected(StandardCharsets.UTF_16LE, 2);
+        }
+        if (sample.remaining() >= 2 && (sample.get(0) & 0xFF) == 0xFE && (sample.get(1) & 0xFF) == 0xFF) {
+            return new Detected(StandardCharsets.UTF_16BE, 2);
+        }
+
+        // A sequence cut off by the end of the sample is not an error, so decode as unfinished input
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(sampleLength + 1);
+        CoderResult result = decoder.decode(sample, chars, complete);
+        if (result.isError()) {
+            return new Detected(StandardCharsets.ISO_8859_1, 0);
+        }
+        return new Detected(StandardCharsets.UTF_8, 0);
+    }
+
+    private static int unitWidth(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_16LE) || charset.equals(StandardCharsets.UTF_16BE) ? 2 : 1;
+    }
+
+    /**
+     * Moves an offset back to the start of the character it falls in. Offsets at the end of the
+     * file are left alone.
+     */
+    private static long alignToCharacter(Source source, Charset charset, int bomLength, long offset, long size)
+            throws IOException {
+        if (offset >= size || offset <= bomLength) {
+            return offset;
+        }
+        if (unitWidth(charset) == 2) {
+            // Keep surrogate pairs together
+            long aligned = offset - (offset - bomLength) % 2;
+            boolean bigEndian = charset.equals(StandardCharsets.UTF_16BE);
+            if (aligned - 2 >= bomLength && aligned + 1 < size
+                    && isLowSurrogate(source.get(bigEndian ? aligned : aligned + 1))) {
+                aligned -= 2;
+            }
+            return aligned;
+        }
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return offset;
+        }
+
+        // Step back over at most three continuation bytes (10xxxxxx)
+        long aligned = offset;
+        for (int i = 0; i < 3 && aligned > bomLength; i++) {
+            if ((source.get(aligned) & 0xC0) != 0x80) {
+                break;
+            }
+            aligned--;
+        }
+        return aligned;
+    }
+
+    private static int characterLength(ByteBuffer buffer, int position, int unit, Charset charset) {
+        if (unit == 2) {
+            int highByte = charset.equals(StandardCharsets.UTF_16BE) ? position : position + 1;
+            return highByte < buffer.limit() && isHighSurrogate(buffer.get(highByte)) ? 4 : 2;
+        }
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return unit;
+        }
+        int lead = buffer.get(position) & 0xFF;
+        if (lead >= 0xF0) {
+            return 4;
+        } else if (lead >= 0xE0) {
+            return 3;
+        } else if (lead >= 0xC0) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Moves a position within a buffer back to the start of the character it falls in.
+     */
+    private static int backToCharacter(ByteBuffer buffer, int from, int position, Charset charset) {
+        if (position >= buffer.limit()) {
+            return position;
+        }
+        if (unitWidth(charset) == 2) {
+            int highByte = charset.equals(StandardCharsets.UTF_16BE) ? position : position + 1;
+            boolean split = highByte < buffer.limit() && isLowSurrogate(buffer.get(highByte));
+            return split && position - 2 >= from ? position - 2 : position;
+        }
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return position;
+        }
+        int aligned = position;
+        for (int i = 0; i < 3 && aligned > from && (buffer.get(aligned) & 0xC0) == 0x80; i++) {
+            aligned--;
+        }
+        return aligned;
+    }
+
+    // The high byte of a UTF-16 code unit in 0xD800-0xDBFF or 0xDC00-0xDFFF
+    private static boolean isHighSurrogate(byte highByte) {
+        return (highByte & 0xFC) == 0xD8;
+    }
+
+    private static boolean isLowSurrogate(byte highByte) {
+        return (highByte & 0xFC) == 0xDC;
+    }
+}
@@ -0,0 +1,514 @@
+package com.juleswhite.module4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read cache for file contents, shared by every agent in the JVM.
+ *
+ * Entries are keyed by path and hold the file's bytes in off-heap (direct) buffers, bounded in
+ * total, together with the size and modification time they were read at. The decoded text of
+ * an entry is kept on the heap as well, under its own smaller bound, so a hot file is served with
+ * no read and no decoding; when the text has been dropped it is decoded again from the cached
+ * bytes. Both tiers evict least recently used entries first.
+ *
+ * Every hit checks the file's size and modification time with a single stat, since a watch event
+ * can arrive well after the change. The directories of cached files are also watched, so the
+ * entry of a changed or deleted file is dropped without waiting for the next hit to find it.
+ */
+public class FileReadCache implements Closeable {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_MAX_TEXT_CHARS = 32L * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 4L * 1024 * 1024;
+
+    private static class Shared {
+        static final FileReadCache INSTANCE =
+                new FileReadCache(DEFAULT_MAX_BYTES, DEFAULT_MAX_TEXT_CHARS, DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    private final long maxBytes;
+    private final long maxTextChars;
+    private final long maxEntryBytes;
+
+    // Guards the entries, both size counters and the watch bookkeeping
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long cachedTextChars;
+
+    private final WatchService watcher;
+    private final Map<Path, WatchKey> watchedDirectories = new HashMap<>();
+    private final Map<WatchKey, Path> directoriesByKey = new HashMap<>();
+    private final Map<Path, Integer> entriesPerDirectory = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong textHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * The cached contents of one version of a file.
+     */
+    public static class Entry {
+        private final FileReadCache cache;
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final ByteBuffer bytes;
+        private final Charset charset;
+        private final int bomLength;
+
+        private volatile String text;
+        private volatile int tokenCount = -1;
+        private volatile int lineCount = -1;
+
+        Entry(FileReadCache cache, Path path, long size, long lastModified, ByteBuffer bytes,
+              Charset charset, int bomLength) {
+            this.cache = cache;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+            this.charset = charset;
+            this.bomLength = bomLength;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Gets a read-only view of the file's bytes, positioned at the start of the file.
+         */
+        public ByteBuffer getBytes() {
+            return bytes.duplicate();
+        }
+
+        public Charset getCharset() {
+            return charset;
+        }
+
+        /**
+         * Gets the length of the byte order mark at the start of the file, or 0.
+         */
+        public int getBomLength() {
+            return bomLength;
+        }
+
+        /**
+         * Gets the file's text, without the byte order mark. The text is decoded once and then
+         * kept while the heap budget allows.
+         */
+        public String getText() {
+            String current = text;
+            if (current != null) {
+                cache.textHits.incrementAndGet();
+                return current;
+            }
+
+            current = charset.decode(bytes.duplicate().position(bomLength)).toString();
+            int lines = 0;
+            for (int i = 0; i < current.length(); i++) {
+                if (current.charAt(i) == '\n') {
+                    lines++;
+                }
+            }
+            lineCount = current.isEmpty() || current.endsWith("\n") ? lines : lines + 1;
+            tokenCount = TokenEstimator.estimate(current);
+            text = current;
+            cache.textLoaded(this, current.length());
+            return current;
+        }
+
+        /**
+         * Gets the estimated token count of the whole text.
+         */
+        public int getTokenCount() {
+            if (tokenCount < 0) {
+                getText();
+            }
+            return tokenCount;
+        }
+
+        /**
+         * Gets the number of lines in the text, counting a final line without a line break.
+         */
+        public int getLineCount() {
+            if (lineCount < 0) {
+                getText();
+            }
+            return lineCount;
+        }
+    }
+
+    /**
+     * Gets the cache shared by the file tools.
+     */
+    public static FileReadCache shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * @param maxBytes Bound on the off-heap bytes held for all entries
+     * @param maxTextChars Bound on the decoded text kept on the heap
+     * @param maxEntryBytes Files larger than this are not cached
+     */
+    public FileReadCache(long maxBytes, long maxTextChars, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxTextChars = maxTextChars;
+        this.maxEntryBytes = maxEntryBytes;
+
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("File read cache will not watch for changes: " + e.getMessage());
+        }
+        this.watcher = service;
+
+        if (service != null) {
+            Thread thread = new Thread(this::processEvents, "file-read-cache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Gets the cached contents of a file, reading it into the cache on a miss.
+     *
+     * @return The entry, or null if the path is not a regular file or is too large to cache
+     */
+    public Entry get(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry != null) {
+            if (isCurrent(entry, key)) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            invalidate(key);
+        }
+
+        misses.incrementAndGet();
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        if (!attrs.isRegularFile() || attrs.size() > maxEntryBytes || attrs.size() > maxBytes) {
+            return null;
+        }
+
+        // Watch first, so a change made while the file is being read still invalidates it
+        watch(key.getParent());
+        entry = load(key, attrs);
+
+        // Only cache what is still current; a file changing under the read is returned uncached
+        if (isCurrent(entry, key)) {
+            insert(entry);
+        }
+        return entry;
+    }
+
+    private Entry load(Path key, BasicFileAttributes attrs) throws IOException {
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            int size = (int) Math.min(attrs.size(), channel.size());
+            ByteBuffer bytes = ByteBuffer.allocateDirect(size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                // Keep reading until the buffer is full or the file ends early
+            }
+            bytes.flip();
+
+            FileRangeReader.Detected detected = FileRangeReader.detectCharset(bytes.duplicate(), true);
+            return new Entry(this, key, bytes.limit(), attrs.lastModifiedTime().toMillis(),
+                    bytes.asReadOnlyBuffer(), detected.charset, detected.bomLength);
+        }
+    }
+
+    private static boolean isCurrent(Entry entry, Path key) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+            return attrs.size() == entry.size && attrs.lastModifiedTime().toMillis() == entry.lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void insert(Entry entry) {
+        lock.lock();
+        try {
+            Entry replaced = entries.put(entry.path, entry);
+            if (replaced != null) {
+                forget(replaced);
+            }
+            cachedBytes += entry.size;
+            entriesPerDirectory.merge(entry.path.getParent(), 1, Integer::sum);
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (cachedBytes > maxBytes && eldest.hasNext()) {
+                Entry candidate = eldest.next();
+                if (candidate == entry) {
+                    continue;
+                }
+                eldest.remove();
+                forget(candidate);
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accounts for an entry's newly decoded text, dropping the text of older entries if the heap
+     * budget is exceeded.
+     */
+    private void textLoaded(Entry loaded, int chars) {
+        lock.lock();
+        try {
+            if (entries.get(loaded.path) != loaded) {
+                // Evicted or replaced meanwhile; the caller still gets its text
+                return;
+            }
+            cachedTextChars += chars;
+
+            for (Entry entry : entries.values()) {
+                if (cachedTextChars <= maxTextChars) {
+                    break;
+                }
+                String text = entry.text;
+                if (entry != loaded && text != null) {
+                    entry.text = null;
+                    cachedTextChars -= text.length();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Callers hold the lock and have already removed the entry from the map
+    private void forget(Entry entry) {
+        cachedBytes -= entry.size;
+        String text = entry.text;
+        if (text != null) {
+            cachedTextChars -= text.length();
+        }
+
+        Path directory = entry.path.getParent();
+        Integer remaining = entriesPerDirectory.merge(directory, -1, Integer::sum);
+        if (remaining != null && remaining <= 0) {
+            entriesPerDirectory.remove(directory);
+            WatchKey key = watchedDirectories.remove(directory);
+            if (key != null) {
+                directoriesByKey.remove(key);
+                key.cancel();
+            }
+        }
+    }
+
+    /**
+     * Drops the cached contents of a file.
+     */
+    public void invalidate(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        lock.lock();
+        try {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                forget(entry);
+                invalidations.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidateDirectory(Path directory) {
+        lock.lock();
+        try {
+            List<Path> inDirectory = new ArrayList<>();
+            for (Path path : entries.keySet()) {
+                if (directory.equals(path.getParent())) {
+                    inDirectory.add(path);
+                }
+            }
+            for (Path path : inDirectory) {
+                forget(entries.remove(path));
+                invalidations.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void watch(Path directory) {
+        if (watcher == null || directory == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (watchedDirectories.containsKey(directory)) {
+                return;
+            }
+            WatchKey key = directory.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirectories.put(directory, key);
+            directoriesByKey.put(key, directory);
+        } catch (IOException | ClosedWatchServiceException e) {
+            // Its entries are only dropped when a hit finds them out of date
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path directory;
+                lock.lock();
+                try {
+                    directory = directoriesByKey.get(key);
+                } finally {
+                    lock.unlock();
+                }
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (directory == null) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateDirectory(directory);
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+
+                if (!key.reset() && directory != null) {
+                    // The directory itself went away
+                    invalidateDirectory(directory);
+                    lock.lock();
+                    try {
+                        watchedDirectories.remove(directory, key);
+                        directoriesByKey.remove(key);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of hits that were served already-decoded text.
+     */
+    public long getTextHitCount() {
+        return textHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * Gets the off-heap bytes held by the cached entries.
+     */
+    public long getCachedBytes() {
+        lock.lock();
+        try {
+            return cachedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of decoded characters held on the heap.
+     */
+    public long getCachedTextChars() {
+        lock.lock();
+        try {
+            return cachedTextChars;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops watching for changes and drops every entry.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        lock.lock();
+        try {
+            entries.clear();
+            watchedDirectories.clear();
+            directoriesByKey.clear();
+            entriesPerDirectory.clear();
+            cachedBytes = 0;
+            cachedTextChars = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.juleswhite.module4;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds files under a directory tree, walking subdirectories in parallel on the fork/join pool.
+ *
+ * Each directory is listed by its own task, which forks a task per subdirectory, so wide trees
+ * are walked on every core. Files and directories excluded by .gitignore files along the way are
+ * skipped (as is .git itself), and symbolic links are not followed. Matches are delivered as they
+ * are found through a Results iterator, so a caller can act on the first ones while the walk goes
+ * on; find() collects them into a stable, sorted page instead.
+ */
+public class FileWalker {
+
+    /**
+     * Default cap on the number of matches collected by one walk.
+     */
+    public static final int DEFAULT_MAX_RESULTS = 10_000;
+
+    private static final String GITIGNORE = ".gitignore";
+
+    // Marks the end of a walk in the results queue
+    private static final Path END = Path.of("");
+
+    private final ForkJoinPool pool;
+
+    public FileWalker() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public FileWalker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a matcher for a file pattern, applied to paths relative to the search directory.
+     *
+     * A pattern may name its syntax ("glob:src/**.java" or "regex:.*Test\\.java"). Otherwise a
+     * pattern with glob characters is a glob, and anything else matches file names containing it.
+     * A glob or plain pattern without a '/' is matched against the file name alone.
+     */
+    public static PathMatcher matcher(String pattern) {
+        if (pattern.startsWith("glob:") || pattern.startsWith("regex:")) {
+            return FileSystems.getDefault().getPathMatcher(pattern);
+        }
+
+        PathMatcher matcher;
+        if (pattern.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0)) {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        } else {
+            matcher = path -> path.toString().replace('\\', '/').contains(pattern);
+        }
+
+        if (pattern.contains("/")) {
+            return matcher;
+        }
+        PathMatcher nameMatcher = matcher;
+        return path -> path.getFileName() != null && nameMatcher.matches(path.getFileName());
+    }
+
+    /**
+     * Starts walking a directory and returns the matches as they are found, in no particular order.
+     * Close the results to stop the walk early.
+     *
+     * @param start The directory to search
+     * @param matcher Matched against each file's path relative to start
+     * @param maxResults The walk stops after this many matches
+     */
+    public Results walk(Path start, PathMatcher matcher, int maxResults) {
+        Results results = new Results(maxResults);
+        Path root = start.toAbsolutePath().normalize();
+        IgnoreRules rules = IgnoreRules.forDirectory(root);
+        pool.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    new DirectoryTask(root, root, matcher, rules, results).invoke();
+                } finally {
+                    results.queue.add(END);
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Finds matching files and returns one page of them, sorted by path.
+     *
+     * @param offset Number of matches to skip
+     * @param limit Maximum number of matches to return
+     * @param maxResults The walk stops after this many matches
+     */
+    public Page find(Path start, PathMatcher matcher, int offset, int limit, int maxResults) {
+        List<Path> matches = new ArrayList<>();
+        boolean truncated;
+        try (Results results = walk(start, matcher, maxResults)) {
+            while (results.hasNext()) {
+                matches.add(results.next());
+            }
+            truncated = results.isTruncated();
+        }
+
+        Collections.sort(matches);
+        int from = Math.min(Math.max(0, offset), matches.size());
+        int to = Math.min(matches.size(), from + limit);
+        return new Page(new ArrayList<>(matches.subList(from, to)), matches.size(), truncated);
+    }
+
+    /**
+     * One page of matches from find().
+     */
+    public static class Page {
+        private final List<Path> paths;
+        private final int totalMatches;
+        private final boolean truncated;
+
+        Page(List<Path> paths, int totalMatches, boolean truncated) {
+            this.paths = paths;
+            this.totalMatches = totalMatches;
+            this.truncated = truncated;
+        }
+
+        /**
+         * Gets the matching paths on this page, relative to the search directory.
+         */
+        public List<Path> getPaths() {
+            return paths;
+        }
+
+        public int getTotalMatches() {
+            return totalMatches;
+        }
+
+        /**
+         * Gets whether the walk stopped at its cap, so there may be more matches than were counted.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    /**
+     * Matches from a walk that is still running. hasNext() waits for the next match or the end
+     * of the walk.
+     */
+    public static class Results implements Iterator<Path>, AutoCloseable {
+        private final BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+        private final AtomicInteger found = new AtomicInteger();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private final int maxResults;
+        private volatile boolean truncated;
+        private Path next;
+        private boolean done;
+
+        Results(int maxResults) {
+            this.maxResults = maxResults;
+        }
+
+        /**
+         * Records a match; returns false once the cap is reached or the results were closed.
+         */
+        boolean offer(Path path) {
+            if (stopped.get()) {
+                return false;
+            }
+            if (found.incrementAndGet() > maxResults) {
+                truncated = true;
+                stopped.set(true);
+                return false;
+            }
+            queue.add(path);
+            return true;
+        }
+
+        boolean isStopped() {
+            return stopped.get();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
+            try {
+                Path taken = queue.take();
+                if (taken == END) {
+                    done = true;
+                    return false;
+                }
+                next = taken;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                done = true;
+                return false;
+            }
+        }
+
+        @Override
+        public Path next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path result = next;
+            next = null;
+            return result;
+        }
+
+        /**
+         * Gets whether the walk stopped because it reached its cap.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Stops the walk. Matches already found can still be read.
+         */
+        @Override
+        public void close() {
+            stopped.set(true);
+        }
+    }
+
+    /**
+     * Lists one directory, reports its matching files and forks a task per subdirectory.
+     */
+    private static class DirectoryTask extends RecursiveAction {
+        private final Path start;
+        private final Path directory;
+        private final PathMatcher matcher;
+        private final IgnoreRules rules;
+        private final Results results;
+
+        DirectoryTask(Path start, Path directory, PathMatcher matcher, IgnoreRules rules, Results results) {
+            this.start = start;
+            this.directory = directory;
+            this.matcher = matcher;
+            this.rules = rules;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (results.isStopped()) {
+                return;
+            }
+
+            IgnoreRules directoryRules = rules.withDirectory(directory);
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    if (attrs.isDirectory()) {
+                        if (!entry.getFileName().toString().equals(".git")
+                                && !directoryRules.isIgnored(entry, true)) {
+                            subtasks.add(new DirectoryTask(start, entry, matcher, directoryRules, results));
+                        }
+                    } else if (attrs.isRegularFile() && !directoryRules.isIgnored(entry, false)) {
+                        Path relative = start.relativize(entry);
+                        if (matcher.matches(relative) && !results.offer(relative)) {
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Unreadable directories are skipped
+                return;
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * The .gitignore rules that apply in one directory: those of its parent plus its own, with
+     * later rules taking precedence as in git.
+     */
+    static class IgnoreRules {
+        private static final IgnoreRules NONE = new IgnoreRules(null, null, List.of());
+
+        private final IgnoreRules parent;
+        private final Path base;
+        private final List<Rule> rules;
+
+        private static class Rule {
+            final List<PathMatcher> matchers;
+            final boolean negated;
+            final boolean directoryOnly;
+            final boolean anchored;
+
+            Rule(List<PathMatcher> matchers, boolean negated, boolean directoryOnly, boolean anchored) {
+                this.matchers = matchers;
+                this.negated = negated;
+                this.directoryOnly = directoryOnly;
+                this.anchored = anchored;
+            }
+        }
+
+        private IgnoreRules(IgnoreRules parent, Path base, List<Rule> rules) {
+            this.parent = parent;
+            this.base = base;
+            this.rules = rules;
+        }
+
+        /**
+         * Gets the rules for the directory a walk starts in, including those of the enclosing
+         * directories up to the root of its git repository.
+         */
+        static IgnoreRules forDirectory(Path start) {
+            List<Path> enclosing = new ArrayList<>();
+            for (Path dir = start.getParent(); dir != null; dir = dir.getParent()) {
+                enclosing.add(0, dir);
+                if (Files.isDirectory(dir.resolve(".git"))) {
+                    break;
+                }
+            }
+            if (enclosing.isEmpty() || !Files.isDirectory(enclosing.get(0).resolve(".git"))) {
+                // Not inside a repository, so only the tree being walked has rules
+                return NONE;
+            }
+
+            IgnoreRules rules = NONE;
+            for (Path dir : enclosing) {
+                rules = rules.withDirectory(dir);
+            }
+            return rules;
+        }
+
+        /**
+         * Adds the rules of a directory's .gitignore, if it has one.
+         */
+        IgnoreRules withDirectory(Path directory) {
+            Path file = directory.resolve(GITIGNORE);
+            if (!Files.isRegularFile(file)) {
+                return this;
+            }
+            try {
+                List<Rule> parsed = new ArrayList<>();
+                for (String line : Files.readAllLines(file)) {
+                    Rule rule = parse(line);
+                    if (rule != null) {
+                        parsed.add(rule);
+                    }
+                }
+                return parsed.isEmpty() ? this : new IgnoreRules(this, directory, parsed);
+            } catch (IOException | RuntimeException e) {
+                return this;
+            }
+        }
+
+        private static Rule parse(String line) {
+            String pattern = line.stripTrailing();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return null;
+            }
+
+            boolean negated = pattern.startsWith("!");
+            if (negated || pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                return null;
+            }
+
+            // Braces are literal in .gitignore but grouping in a Java glob
+            String glob = pattern.replace("{", "\\{").replace("}", "\\}");
+            List<PathMatcher> matchers = new ArrayList<>();
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+            if (glob.startsWith("**/")) {
+                // In git a leading "**/" also matches at the top level
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(3)));
+            }
+            return new Rule(matchers, negated, directoryOnly, anchored);
+        }
+
+        /**
+         * Gets whether a path is ignored; the last matching rule decides.
+         */
+        boolean isIgnored(Path path, boolean isDirectory) {
+            Boolean decision = decide(path, isDirectory);
+            return decision != null && decision;
+        }
+
+        private Boolean decide(Path path, boolean isDirectory) {
+            Boolean decision = parent != null ? parent.decide(path, isDirectory) : null;
+            if (base == null || !path.startsWith(base)) {
+                return decision;
+            }
+
+            Path relative = base.relativize(path);
+            for (Rule rule : rules) {
+                if (rule.directoryOnly && !isDirectory) {
+                    continue;
+                }
+                Path target = rule.anchored ? relative : path.getFileName();
+                for (PathMatcher matcher : rule.matchers) {
+                    if (matcher.matches(target)) {
+                        decision = !rule.negated;
+                        break;
+                    }
+                }
+            }
+            return decision;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.juleswhite.module4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Builds prompt messages incrementally across the iterations of an agent loop.
+ *
+ * The prefix (goals and, for some languages, the tool catalog) is rendered once and reused
+ * until the goals or tools change, and each memory item is rendered into a Message only once.
+ * Every iteration then costs only the formatting of the items added since the last prompt,
+ * instead of re-rendering the whole conversation. The resulting messages are identical to a
+ * full rebuild.
+ */
+public class IncrementalPromptBuilder {
+
+    /**
+     * What has already been rendered for one Memory.
+     */
+    private static class State {
+        List<Goal> goals;
+        List<Tool> tools;
+        List<Message> prefix;
+        final List<Message> memoryMessages = new ArrayList<>();
+        long memoryGeneration;
+    }
+
+    private final BiFunction<List<Goal>, List<Tool>, List<Message>> prefixRenderer;
+    private final Function<MemoryRecord, Message> memoryRenderer;
+
+    // Keyed by Memory so concurrent sessions of the same agent don't share rendered state
+    private final Map<Memory, State> states = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @param prefixRenderer Renders the messages that precede the conversation
+     * @param memoryRenderer Renders a single memory record into a message
+     */
+    public IncrementalPromptBuilder(BiFunction<List<Goal>, List<Tool>, List<Message>> prefixRenderer,
+                                    Function<MemoryRecord, Message> memoryRenderer) {
+        this.prefixRenderer = prefixRenderer;
+        this.memoryRenderer = memoryRenderer;
+    }
+
+    /**
+     * Gets the full message list for the current state of the memory.
+     */
+    public List<Message> build(List<Goal> goals, List<Tool> tools, Memory memory) {
+        State state = states.computeIfAbsent(memory, k -> new State());
+
+        // Re-render the prefix only if the goals or the tool set changed
+        if (state.prefix == null || !goals.equals(state.goals) || !tools.equals(state.tools)) {
+            state.prefix = prefixRenderer.apply(goals, tools);
+            state.goals = new ArrayList<>(goals);
+            state.tools = new ArrayList<>(tools);
+        }
+
+        // Memory is normally append-only; if it was replaced or shrank, start over
+        if (memory.getGeneration() != state.memoryGeneration || memory.size() < state.memoryMessages.size()) {
+            state.memoryMessages.clear();
+            state.memoryGeneration = memory.getGeneration();
+        }
+        for (MemoryRecord record : memory.getRecordsSince(state.memoryMessages.size())) {
+            state.memoryMessages.add(memoryRenderer.apply(record));
+        }
+
+        List<Message> messages = new ArrayList<>(state.prefix.size() + state.memoryMessages.size());
+        messages.addAll(state.prefix);
+        messages.addAll(state.memoryMessages);
+        return messages;
+    }
+}
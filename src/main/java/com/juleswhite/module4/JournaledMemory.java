@@ -0,0 +1,84 @@
+package com.juleswhite.module4;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Memory whose records are also appended to a SessionJournal, so the session can be rebuilt
+ * after a restart. Obtain one from SessionJournal.open.
+ *
+ * Records become recoverable only once a checkpoint covering them is durable. The agent
+ * checkpoints after setting the task and after every completed iteration, so a recovered
+ * memory never ends halfway through an iteration.
+ */
+public class JournaledMemory extends Memory {
+
+    private final SessionJournal journal;
+    private final String sessionId;
+    private volatile int completedIterations;
+    private volatile boolean terminated;
+
+    JournaledMemory(SessionJournal journal,
+                    String sessionId,
+                    List<MemoryRecord> recoveredRecords,
+                    int completedIterations,
+                    boolean terminated) {
+        this.journal = journal;
+        this.sessionId = sessionId;
+        this.completedIterations = completedIterations;
+        this.terminated = terminated;
+        if (!recoveredRecords.isEmpty()) {
+            // Already in the log; restore without journaling them again
+            super.replaceRecords(recoveredRecords);
+        }
+    }
+
+    @Override
+    public void addRecord(MemoryRecord record) {
+        super.addRecord(record);
+        journal.appendEntry(sessionId, record);
+    }
+
+    @Override
+    public void replaceRecords(List<MemoryRecord> replacementRecords) {
+        super.replaceRecords(replacementRecords);
+        journal.appendReset(sessionId, replacementRecords);
+    }
+
+    /**
+     * Marks the records added so far as a completed step and waits until it is durable.
+     *
+     * @param completedIterations Number of agent iterations completed in this session
+     * @param terminated Whether the agent has finished
+     */
+    public void checkpoint(int completedIterations, boolean terminated) {
+        checkpointAsync(completedIterations, terminated).join();
+    }
+
+    /**
+     * Marks the records added so far as a completed step. The future completes once it is durable.
+     */
+    public CompletableFuture<Void> checkpointAsync(int completedIterations, boolean terminated) {
+        this.completedIterations = completedIterations;
+        this.terminated = terminated;
+        return journal.appendCheckpoint(sessionId, completedIterations, terminated);
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Gets the number of agent iterations completed as of the last checkpoint.
+     */
+    public int getCompletedIterations() {
+        return completedIterations;
+    }
+
+    /**
+     * Gets whether the agent had finished as of the last checkpoint.
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+}
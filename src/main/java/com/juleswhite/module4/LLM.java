@@ -1,24 +1,51 @@
 package com.juleswhite.module4;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.juleswhite.common.HttpTransports;
+import com.juleswhite.common.LLMCallException;
+import com.juleswhite.common.RequestScheduler;
+import com.juleswhite.common.ResilientExecutor;
 import com.openai.client.OpenAIClient;
-import com.openai.client.okhttp.OpenAIOkHttpClient;
 import com.openai.core.JsonValue;
+import com.openai.core.http.StreamResponse;
+import com.openai.errors.OpenAIIoException;
+import com.openai.errors.OpenAIServiceException;
 import com.openai.models.ChatModel;
 import com.openai.models.FunctionDefinition;
 import com.openai.models.chat.completions.*;
+import com.openai.models.completions.CompletionUsage;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class LLM {
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    private static final long MAX_TOKENS = 1024;
+
+    private static final String TOOL_PAYLOAD_PROVIDER = "openai";
+
     private String model;
 
+    private final OpenAIClientProvider clientProvider;
+
+    private final ResilientExecutor executor;
+
+    private final RequestScheduler scheduler;
+
+    // Name under which the executor keeps this API's breaker, budget and latencies
+    private final String endpoint;
+
     /**
      * Class to represent a prompt for the LLM, including messages and optional tools
      */
@@ -59,12 +86,89 @@ public class LLM {
         }
     }
 
+    /**
+     * Receives content tokens as they are streamed from the model.
+     */
+    @FunctionalInterface
+    public interface TokenListener {
+        /**
+         * @param token The next piece of content text
+         * @return true to keep streaming, false to stop and return what has been received so far
+         */
+        boolean onToken(String token);
+    }
+
     public LLM() {
-        this.model = ChatModel.GPT_3_5_TURBO.asString();
+        this(ChatModel.GPT_3_5_TURBO.asString());
     }
 
     public LLM(String model) {
+        this(model, OpenAIClientProvider.shared());
+    }
+
+    /**
+     * Creates an LLM that draws its client from the given provider instead of the shared one.
+     *
+     * @param model The model to use for completions
+     * @param clientProvider Provider that owns the pooled OpenAIClient
+     */
+    public LLM(String model, OpenAIClientProvider clientProvider) {
+        this(model, clientProvider, ResilientExecutor.shared());
+    }
+
+    /**
+     * Creates an LLM whose requests are retried, circuit-broken and hedged by the given executor.
+     *
+     * @param model The model to use for completions
+     * @param clientProvider Provider that owns the pooled OpenAIClient
+     * @param executor Executor that sends each request
+     */
+    public LLM(String model, OpenAIClientProvider clientProvider, ResilientExecutor executor) {
+        this(model, clientProvider, executor, RequestScheduler.shared());
+    }
+
+    /**
+     * Creates an LLM whose requests also wait for the given scheduler's permission, so that
+     * all the LLMs sharing it stay within the model's rate limits together.
+     *
+     * @param model The model to use for completions
+     * @param clientProvider Provider that owns the pooled OpenAIClient
+     * @param executor Executor that sends each request
+     * @param scheduler Scheduler that paces each request, including retries
+     */
+    public LLM(String model, OpenAIClientProvider clientProvider, ResilientExecutor executor,
+               RequestScheduler scheduler) {
         this.model = model;
+        this.clientProvider = clientProvider;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.endpoint = clientProvider.getBaseUrl() != null ? clientProvider.getBaseUrl() : HttpTransports.OPENAI;
+    }
+
+    public OpenAIClientProvider getClientProvider() {
+        return clientProvider;
+    }
+
+    public ResilientExecutor getExecutor() {
+        return executor;
+    }
+
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Gets the sampling parameters sent with every request, so callers such as ResponseCache
+     * can tell requests with different settings apart.
+     */
+    public Map<String, Object> getSamplingParameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("max_tokens", MAX_TOKENS);
+        return parameters;
     }
 
     /**
@@ -72,95 +176,391 @@ public class LLM {
      *
      * @param prompt A Prompt object containing messages, optional tools, and metadata.
      * @return The generated response as a String.
+     * @throws LLMCallException If the request failed and was not, or could no longer be, retried
      */
     public String generateResponse(Prompt prompt) {
         try {
-            // Initialize OpenAI client using environment variables
-            OpenAIClient client = OpenAIOkHttpClient.fromEnv();
-
-            List<Message> messages = prompt.getMessages();
-            List<Tool> tools = prompt.getTools();
-
-            ChatCompletionCreateParams.Builder paramsBuilder = ChatCompletionCreateParams.builder()
-                    .model(this.model)
-                    .maxTokens(1024);
-
-            // Add messages to the request
-            for (Message message : messages) {
-                if (message.getRole().equals("system")) {
-                    ChatCompletionSystemMessageParam systemMsg = ChatCompletionSystemMessageParam.builder()
-                            .content(message.getContent())
-                            .build();
-                    paramsBuilder.addMessage(systemMsg);
-                } else if (message.getRole().equals("user")) {
-                    ChatCompletionUserMessageParam userMsg = ChatCompletionUserMessageParam.builder()
-                            .content(message.getContent())
-                            .build();
-                    paramsBuilder.addMessage(userMsg);
-                } else {
-                    ChatCompletionAssistantMessageParam assistantMsg = ChatCompletionAssistantMessageParam.builder()
-                            .content(message.getContent())
-                            .build();
-                    paramsBuilder.addMessage(assistantMsg);
+            return executor.execute(endpoint, () -> {
+                try {
+                    RequestScheduler.Permit permit = acquirePermit(prompt);
+
+                    // Reuse the pooled client so warm connections survive across calls
+                    OpenAIClient client = clientProvider.getClient();
+
+                    ChatCompletion completion = client.chat().completions().create(buildParams(prompt));
+                    permit.complete(usedTokens(completion, permit));
+                    return extractResult(completion, prompt);
+                } catch (Exception e) {
+                    throw toCallException(e);
                 }
-            }
+            });
+        } catch (LLMCallException e) {
+            logFailure(prompt, e);
+            throw e;
+        }
+    }
 
-            String result = null;
+    /**
+     * Generates an LLM response without blocking the calling thread. The request is sent
+     * through the SDK's async client and the returned future completes when the model answers;
+     * retries are scheduled without holding a thread.
+     *
+     * @param prompt A Prompt object containing messages, optional tools, and metadata.
+     * @return A future holding the generated response, in the same format as generateResponse,
+     *         or failing with an LLMCallException
+     */
+    public CompletableFuture<String> generateResponseAsync(Prompt prompt) {
+        CompletableFuture<String> response = executor.executeAsync(endpoint, () -> {
+            CompletableFuture<RequestScheduler.Permit> permit = scheduler.acquireAsync(
+                    model, clientProvider.getKeyId(), estimateTokens(prompt), priorityOf(prompt));
+
+            CompletableFuture<String> sent = new CompletableFuture<>();
+            // Kept so that cancelling the attempt reaches the SDK; thenCompose wouldn't pass it on
+            AtomicReference<CompletableFuture<ChatCompletion>> request = new AtomicReference<>();
+
+            permit.whenComplete((granted, error) -> {
+                if (error != null) {
+                    sent.completeExceptionally(toCallException(error));
+                    return;
+                }
+                if (sent.isDone()) {
+                    // Cancelled as the permit was granted
+                    granted.cancel();
+                    return;
+                }
 
-            // Handle cases with and without tools
-            if (tools.isEmpty()) {
-                // No tools, just get normal completion
-                ChatCompletion completion = client.chat().completions().create(paramsBuilder.build());
-                result = completion.choices().get(0).message().content().orElse("");
-            } else {
-                // Add tools to the request
-                List<ChatCompletionTool> chatCompletionTools = convertToolsToOpenAIFormat(tools);
-                paramsBuilder.tools(chatCompletionTools);
+                CompletableFuture<ChatCompletion> completion;
+                try {
+                    OpenAIClient client = clientProvider.getClient();
+                    completion = client.async().chat().completions().create(buildParams(prompt));
+                } catch (Exception e) {
+                    sent.completeExceptionally(toCallException(e));
+                    return;
+                }
+                request.set(completion);
+                if (sent.isCancelled()) {
+                    completion.cancel(true);
+                }
 
-                // Get completion with tools
-                ChatCompletion completion = client.chat().completions().create(paramsBuilder.build());
+                completion.whenComplete((result, failure) -> {
+                    if (failure != null) {
+                        sent.completeExceptionally(toCallException(failure));
+                        return;
+                    }
+                    granted.complete(usedTokens(result, granted));
+                    try {
+                        sent.complete(extractResult(result, prompt));
+                    } catch (Exception e) {
+                        sent.completeExceptionally(toCallException(e));
+                    }
+                });
+            });
+
+            // An attempt cancelled (e.g. a hedge that lost) leaves the queue or aborts its request
+            sent.whenComplete((result, error) -> {
+                if (sent.isCancelled()) {
+                    permit.cancel(false);
+                    CompletableFuture<ChatCompletion> completion = request.get();
+                    if (completion != null) {
+                        completion.cancel(true);
+                    }
+                }
+            });
+            return sent;
+        });
 
-                // Check if the model used a tool
-                if (completion.choices().get(0).message().toolCalls() != null &&
-                        !completion.choices().get(0).message().toolCalls().isEmpty()) {
+        response.whenComplete((result, error) -> {
+            if (error != null && !(error instanceof CancellationException)) {
+                logFailure(prompt, error);
+            }
+        });
+        return response;
+    }
 
-                    // Extract the tool call
-                    ChatCompletionMessageToolCall toolCall = completion.choices().get(0).message().toolCalls().get().get(0);
+    /**
+     * Generates an LLM response by streaming chat completion chunks (SSE) and handing each
+     * content token to the listener as it arrives. If the listener returns false the stream
+     * is closed and the content received so far is returned, which lets callers act as soon
+     * as they have what they need instead of waiting for the model to finish.
+     *
+     * The request is retried only if it fails before the listener has seen a token, and is
+     * never hedged.
+     *
+     * @param prompt A Prompt object containing messages, optional tools, and metadata.
+     * @param listener Callback for each content token
+     * @return The generated response, in the same format as generateResponse
+     */
+    public String generateResponseStreaming(Prompt prompt, TokenListener listener) {
+        try {
+            return executor.execute(endpoint, false, () -> streamResponse(prompt, listener));
+        } catch (LLMCallException e) {
+            logFailure(prompt, e);
+            throw e;
+        }
+    }
 
-                    // Format the response as a JSON string
-                    Map<String, Object> toolResponse = new HashMap<>();
-                    toolResponse.put("tool", toolCall.function().name());
-                    toolResponse.put("args", objectMapper.readValue(toolCall.function().arguments(), Map.class));
+    private String streamResponse(Prompt prompt, TokenListener listener) {
+        RequestScheduler.Permit permit = acquirePermit(prompt);
+
+        // Usage comes in a last chunk with no choices; a stream stopped early keeps the estimate
+        ChatCompletionCreateParams params = buildParams(prompt).toBuilder()
+                .streamOptions(ChatCompletionStreamOptions.builder().includeUsage(true).build())
+                .build();
+        long usedTokens = permit.getTokens();
+
+        boolean delivered = false;
+        try (StreamResponse<ChatCompletionChunk> stream =
+                     clientProvider.getClient().chat().completions().createStreaming(params)) {
+            StringBuilder content = new StringBuilder();
+            // Tool call index -> name and arguments received so far
+            Map<Long, StringBuilder[]> toolCalls = new TreeMap<>();
+
+            Iterator<ChatCompletionChunk> chunks = stream.stream().iterator();
+            while (chunks.hasNext()) {
+                ChatCompletionChunk chunk = chunks.next();
+                Optional<CompletionUsage> usage = chunk.usage();
+                if (usage.isPresent()) {
+                    usedTokens = usage.get().totalTokens();
+                }
+                for (ChatCompletionChunk.Choice choice : chunk.choices()) {
+                    ChatCompletionChunk.Choice.Delta delta = choice.delta();
+
+                    String token = delta.content().orElse("");
+                    if (!token.isEmpty()) {
+                        content.append(token);
+                        delivered = true;
+                        if (!listener.onToken(token)) {
+                            return content.toString();
+                        }
+                    }
+
+                    // Tool call names and arguments arrive in fragments, keyed by the call's index
+                    for (ChatCompletionChunk.Choice.Delta.ToolCall toolCall : delta.toolCalls().orElse(List.of())) {
+                        StringBuilder[] call = toolCalls.computeIfAbsent(toolCall.index(),
+                                index -> new StringBuilder[]{new StringBuilder(), new StringBuilder()});
+                        toolCall.function().ifPresent(function -> {
+                            function.name().ifPresent(call[0]::append);
+                            function.arguments().ifPresent(call[1]::append);
+                        });
+                    }
+                }
+            }
 
-                    result = objectMapper.writeValueAsString(toolResponse);
-                } else {
-                    // Model chose to respond with text instead of using a tool
-                    result = completion.choices().get(0).message().content().orElse("");
+            List<String> names = new ArrayList<>();
+            List<String> arguments = new ArrayList<>();
+            for (StringBuilder[] call : toolCalls.values()) {
+                if (call[0].length() > 0) {
+                    names.add(call[0].toString());
+                    arguments.add(call[1].toString());
                 }
             }
+            if (!names.isEmpty()) {
+                return formatToolCalls(names, arguments);
+            }
 
-            return result;
+            return content.toString();
 
         } catch (Exception e) {
-            System.err.println("Error generating response: " + e.getMessage());
-            e.printStackTrace();
-
-            System.out.println("Prompt details:");
-            for (Message message : prompt.getMessages()) {
-                System.out.println("Message: " + message.getRole() + " - " + message.getContent());
+            LLMCallException failure = toCallException(e);
+            if (delivered && failure.isRetryable()) {
+                // The listener has acted on part of this response; a retry would repeat it
+                failure = new LLMCallException(endpoint, failure.getMessage(), failure,
+                        failure.getStatusCode(), null, false);
             }
+            throw failure;
+        } finally {
+            permit.complete(usedTokens);
+        }
+    }
 
-            if (!prompt.getTools().isEmpty()) {
-                System.out.println("Tools:");
-                for (Tool tool : prompt.getTools()) {
-                    System.out.println("Tool: " + tool.getToolName() + " - " + tool.getDescription());
+    /**
+     * Waits for the scheduler's permission to send a prompt.
+     */
+    private RequestScheduler.Permit acquirePermit(Prompt prompt) {
+        try {
+            return scheduler.acquire(model, clientProvider.getKeyId(), estimateTokens(prompt), priorityOf(prompt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw LLMCallException.cancelled(endpoint, e);
+        }
+    }
+
+    /**
+     * Estimates the tokens a request will count against the model's limit: the prompt, the
+     * tool definitions, and max_tokens for the response, which providers reserve up front.
+     */
+    private long estimateTokens(Prompt prompt) {
+        if (!scheduler.isLimited(model)) {
+            // Unpaced, so the estimate isn't needed
+            return 0;
+        }
+
+        long tokens = MAX_TOKENS;
+        for (Message message : prompt.getMessages()) {
+            tokens += TokenEstimator.estimateMessage(message.getContent());
+        }
+        for (Tool tool : prompt.getTools()) {
+            tokens += TokenEstimator.estimate(tool.getToolName())
+                    + TokenEstimator.estimate(tool.getDescription())
+                    + TokenEstimator.estimate(String.valueOf(tool.getParameters()));
+        }
+        return tokens;
+    }
+
+    /**
+     * Gets the priority the caller put in the prompt's metadata, e.g. Agent's.
+     */
+    private static int priorityOf(Prompt prompt) {
+        return RequestScheduler.priorityOf(prompt.getMetadata());
+    }
+
+    private static long usedTokens(ChatCompletion completion, RequestScheduler.Permit permit) {
+        return completion.usage().map(CompletionUsage::totalTokens).orElse(permit.getTokens());
+    }
+
+    /**
+     * Classifies an SDK failure for the executor: HTTP errors by status and Retry-After,
+     * connection failures as retryable, anything else as permanent.
+     */
+    private LLMCallException toCallException(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+        if (cause instanceof LLMCallException) {
+            return (LLMCallException) cause;
+        }
+        if (cause instanceof OpenAIServiceException) {
+            OpenAIServiceException serviceError = (OpenAIServiceException) cause;
+            // OpenAI sends retry-after-ms alongside the standard header, in milliseconds
+            List<String> retryAfterMs = serviceError.headers().values("retry-after-ms");
+            List<String> retryAfter = serviceError.headers().values("retry-after");
+            String delay = null;
+            if (!retryAfterMs.isEmpty()) {
+                try {
+                    delay = Double.toString(Double.parseDouble(retryAfterMs.get(0)) / 1000);
+                } catch (NumberFormatException e) {
+                    // Fall back to the standard header
                 }
             }
+            if (delay == null && !retryAfter.isEmpty()) {
+                delay = retryAfter.get(0);
+            }
+            LLMCallException failure = LLMCallException.forStatus(endpoint, serviceError.statusCode(), delay,
+                    String.valueOf(serviceError.getMessage()), serviceError);
+            if (failure.isRateLimited()) {
+                // Hold back every caller of this model and key, not just this one
+                scheduler.onRateLimited(model, clientProvider.getKeyId(), failure.getRetryAfter());
+            }
+            return failure;
+        }
+        if (cause instanceof OpenAIIoException) {
+            return LLMCallException.forIoFailure(endpoint, cause);
+        }
+        return LLMCallException.permanent(endpoint, cause);
+    }
+
+    /**
+     * Builds the chat completion request for a prompt.
+     */
+    private ChatCompletionCreateParams buildParams(Prompt prompt) {
+        List<Message> messages = prompt.getMessages();
+        List<Tool> tools = prompt.getTools();
+
+        ChatCompletionCreateParams.Builder paramsBuilder = ChatCompletionCreateParams.builder()
+                .model(this.model)
+                .maxTokens(MAX_TOKENS);
+
+        // Add messages to the request
+        for (Message message : messages) {
+            if (message.getRole().equals("system")) {
+                ChatCompletionSystemMessageParam systemMsg = ChatCompletionSystemMessageParam.builder()
+                        .content(message.getContent())
+                        .build();
+                paramsBuilder.addMessage(systemMsg);
+            } else if (message.getRole().equals("user")) {
+                ChatCompletionUserMessageParam userMsg = ChatCompletionUserMessageParam.builder()
+                        .content(message.getContent())
+                        .build();
+                paramsBuilder.addMessage(userMsg);
+            } else {
+                ChatCompletionAssistantMessageParam assistantMsg = ChatCompletionAssistantMessageParam.builder()
+                        .content(message.getContent())
+                        .build();
+                paramsBuilder.addMessage(assistantMsg);
+            }
+        }
 
-            System.out.println("Model: " + this.model);
+        // Add tools to the request
+        if (!tools.isEmpty()) {
+            paramsBuilder.tools(convertToolsToOpenAIFormat(tools));
+        }
 
-            throw new RuntimeException("Failed to generate response", e);
+        return paramsBuilder.build();
+    }
+
+    /**
+     * Turns a completion into the string handed back to the agent: either the text content,
+     * or the tool calls formatted by formatToolCalls if the model called any tools.
+     */
+    private String extractResult(ChatCompletion completion, Prompt prompt) throws Exception {
+        // Handle cases with and without tools
+        if (prompt.getTools().isEmpty()) {
+            // No tools, just get normal completion
+            return completion.choices().get(0).message().content().orElse("");
+        }
+
+        // Check if the model used a tool
+        List<ChatCompletionMessageToolCall> toolCalls =
+                completion.choices().get(0).message().toolCalls().orElse(List.of());
+        if (!toolCalls.isEmpty()) {
+            // Extract every tool call, in the order the model made them
+            List<String> names = new ArrayList<>();
+            List<String> arguments = new ArrayList<>();
+            for (ChatCompletionMessageToolCall toolCall : toolCalls) {
+                names.add(toolCall.function().name());
+                arguments.add(toolCall.function().arguments());
+            }
+            return formatToolCalls(names, arguments);
         }
+
+        // Model chose to respond with text instead of using a tool
+        return completion.choices().get(0).message().content().orElse("");
+    }
+
+    /**
+     * Formats tool calls as the JSON string handed back to the agent. A single call is a
+     * {"tool": ..., "args": ...} object; several calls made in one response are a JSON array
+     * of such objects, in call order.
+     */
+    private String formatToolCalls(List<String> names, List<String> arguments) throws Exception {
+        List<Map<String, Object>> calls = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            String args = arguments.get(i);
+            Map<String, Object> toolResponse = new HashMap<>();
+            toolResponse.put("tool", names.get(i));
+            toolResponse.put("args", objectMapper.readValue(args == null || args.isEmpty() ? "{}" : args, Map.class));
+            calls.add(toolResponse);
+        }
+
+        return objectMapper.writeValueAsString(calls.size() == 1 ? calls.get(0) : calls);
+    }
+
+    private void logFailure(Prompt prompt, Throwable e) {
+        System.err.println("Error generating response: " + e.getMessage());
+        e.printStackTrace();
+
+        System.out.println("Prompt details:");
+        for (Message message : prompt.getMessages()) {
+            System.out.println("Message: " + message.getRole() + " - " + message.getContent());
+        }
+
+        if (!prompt.getTools().isEmpty()) {
+            System.out.println("Tools:");
+            for (Tool tool : prompt.getTools()) {
+                System.out.println("Tool: " + tool.getToolName() + " - " + tool.getDescription());
+            }
+        }
+
+        System.out.println("Model: " + this.model);
     }
 
     /**
@@ -171,24 +571,38 @@ public class LLM {
     }
 
     /**
-     * Converts our Tool objects to OpenAI's ChatCompletionTool format
+     * Convenience method to generate a response asynchronously from just messages
+     */
+    public CompletableFuture<String> generateResponseAsync(List<Message> messages) {
+        return generateResponseAsync(new Prompt(messages));
+    }
+
+    /**
+     * Converts our Tool objects to OpenAI's ChatCompletionTool format. Tools that come from an
+     * ActionRegistry snapshot are converted once per registry version and reused afterwards.
      */
     private List<ChatCompletionTool> convertToolsToOpenAIFormat(List<Tool> tools) {
+        if (tools instanceof ToolSnapshot) {
+            return ((ToolSnapshot) tools).getPayloads(TOOL_PAYLOAD_PROVIDER, this::convertToolToOpenAIFormat);
+        }
+
         List<ChatCompletionTool> chatCompletionTools = new ArrayList<>();
 
         for (Tool tool : tools) {
-            ChatCompletionTool chatCompletionTool = ChatCompletionTool.builder()
-                    .type(JsonValue.from("function"))
-                    .function(FunctionDefinition.builder()
-                            .name(tool.getToolName())
-                            .description(tool.getDescription())
-                            .parameters(JsonValue.from(tool.getParameters()))
-                            .build())
-                    .build();
-
-            chatCompletionTools.add(chatCompletionTool);
+            chatCompletionTools.add(convertToolToOpenAIFormat(tool));
         }
 
         return chatCompletionTools;
     }
+
+    private ChatCompletionTool convertToolToOpenAIFormat(Tool tool) {
+        return ChatCompletionTool.builder()
+                .type(JsonValue.from("function"))
+                .function(FunctionDefinition.builder()
+                        .name(tool.getToolName())
+                        .description(tool.getDescription())
+                        .parameters(JsonValue.from(tool.getParameters()))
+                        .build())
+                .build();
+    }
 }
\ No newline at end of file
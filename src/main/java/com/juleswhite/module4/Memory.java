@@ -1,18 +1,53 @@
 package com.juleswhite.module4;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The conversation history of an agent session.
+ *
+ * Items are stored as MemoryRecords in an append-only array. Readers get zero-copy views over
+ * the records that existed when they asked: appends never touch slots a view can see, and
+ * replacing the memories switches to a new array, so a view is never affected by later writes.
+ * The Map-based methods are adapters over the same storage for code written against the
+ * original API.
+ */
 public class Memory {
-    private final List<Map<String, Object>> items;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private MemoryRecord[] records;
+    private int size;
+
+    // Bumped whenever items are replaced rather than appended, so incremental readers can resync
+    private long generation;
 
     public Memory() {
-        this.items = new ArrayList<>();
+        this.records = new MemoryRecord[INITIAL_CAPACITY];
     }
 
     public void addMemory(Map<String, Object> memory) {
-        items.add(memory);
+        addRecord(MemoryRecord.fromMap(memory));
+    }
+
+    /**
+     * Appends a record to the memory.
+     */
+    public void addRecord(MemoryRecord record) {
+        lock.lock();
+        try {
+            if (size == records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            records[size++] = record;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public List<Map<String, Object>> getMemories() {
@@ -20,9 +55,149 @@ public class Memory {
     }
 
     public List<Map<String, Object>> getMemories(Integer limit) {
-        if (limit == null || limit >= items.size()) {
-            return new ArrayList<>(items);
+        return new MapView(getRecords(limit));
+    }
+
+    /**
+     * Gets the memories added at or after the given position, so callers that have already
+     * processed the first fromIndex items only need to look at what is new.
+     */
+    public List<Map<String, Object>> getMemoriesSince(int fromIndex) {
+        return new MapView(getRecordsSince(fromIndex));
+    }
+
+    /**
+     * Gets a read-only view of all records.
+     */
+    public List<MemoryRecord> getRecords() {
+        return getRecords(null);
+    }
+
+    /**
+     * Gets a read-only view of the first limit records, or all of them if limit is null.
+     */
+    public List<MemoryRecord> getRecords(Integer limit) {
+        lock.lock();
+        try {
+            int end = limit == null ? size : Math.max(0, Math.min(limit, size));
+            return new RecordView(records, 0, end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a read-only view of the records added at or after the given position.
+     */
+    public List<MemoryRecord> getRecordsSince(int fromIndex) {
+        lock.lock();
+        try {
+            int start = Math.max(0, Math.min(fromIndex, size));
+            return new RecordView(records, start, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces all memories at once, e.g. when a window policy evicts old turns.
+     */
+    public void replaceMemories(List<Map<String, Object>> memories) {
+        List<MemoryRecord> replacement = new ArrayList<>(memories.size());
+        for (Map<String, Object> memory : memories) {
+            replacement.add(MemoryRecord.fromMap(memory));
+        }
+        replaceRecords(replacement);
+    }
+
+    /**
+     * Replaces all records at once.
+     */
+    public void replaceRecords(List<MemoryRecord> replacementRecords) {
+        MemoryRecord[] replacement = new MemoryRecord[Math.max(INITIAL_CAPACITY, replacementRecords.size())];
+        int count = 0;
+        for (MemoryRecord record : replacementRecords) {
+            replacement[count++] = record;
+        }
+
+        lock.lock();
+        try {
+            // A fresh array, so views handed out earlier keep seeing the old contents
+            records = replacement;
+            size = count;
+            generation++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a counter that changes every time the memories are replaced instead of appended to.
+     */
+    public long getGeneration() {
+        lock.lock();
+        try {
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A fixed range of a records array. The range is never written again once it is visible.
+     */
+    private static final class RecordView extends AbstractList<MemoryRecord> implements RandomAccess {
+        private final MemoryRecord[] records;
+        private final int from;
+        private final int to;
+
+        RecordView(MemoryRecord[] records, int from, int to) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public MemoryRecord get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+            }
+            return records[from + index];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+
+    /**
+     * The Map form of a record view.
+     */
+    private static final class MapView extends AbstractList<Map<String, Object>> implements RandomAccess {
+        private final List<MemoryRecord> records;
+
+        MapView(List<MemoryRecord> records) {
+            this.records = records;
+        }
+
+        @Override
+        public Map<String, Object> get(int index) {
+            return records.get(index).asMap();
+        }
+
+        @Override
+        public int size() {
+            return records.size();
         }
-        return new ArrayList<>(items.subList(0, limit));
     }
-}
\ No newline at end of file
+}
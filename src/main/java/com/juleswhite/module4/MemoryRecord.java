@@ -0,0 +1,249 @@
+package com.juleswhite.module4;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A single immutable entry in an agent's Memory.
+ *
+ * Records replace the HashMap that used to be allocated per memory item: the role is an enum,
+ * the token count is computed once when the record is created, and the Map form that older
+ * code expects is produced on demand as a read-only view.
+ */
+public final class MemoryRecord {
+
+    /**
+     * Who produced a memory item. The type name is the value used in the Map form.
+     */
+    public enum Role {
+        USER("user"),
+        ASSISTANT("assistant"),
+        SYSTEM("system");
+
+        private final String type;
+
+        Role(String type) {
+            this.type = type;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Gets the role for a memory item type. Anything that is not "assistant" or "system"
+         * is treated as the user, the same way the agent languages render it.
+         */
+        public static Role fromType(Object type) {
+            if ("assistant".equals(type)) {
+                return ASSISTANT;
+            }
+            if ("system".equals(type)) {
+                return SYSTEM;
+            }
+            return USER;
+        }
+    }
+
+    private final Role role;
+    private final String content;
+    private final long timestamp;
+    private final int tokenCount;
+    private final boolean pinned;
+
+    // Keys of the Map form that have no field of their own; null for records created directly
+    private final Map<String, Object> extras;
+
+    public MemoryRecord(Role role, String content) {
+        this(role, content, false);
+    }
+
+    /**
+     * @param role Who produced the item
+     * @param content The item's text
+     * @param pinned Whether the item must stay in the prompt even when older turns are windowed out
+     */
+    public MemoryRecord(Role role, String content, boolean pinned) {
+        this(role, content, System.currentTimeMillis(), TokenEstimator.estimateMessage(content), pinned, null);
+    }
+
+    private MemoryRecord(Role role, String content, long timestamp, int tokenCount, boolean pinned,
+                         Map<String, Object> extras) {
+        this.role = role;
+        this.content = content;
+        this.timestamp = timestamp;
+        this.tokenCount = tokenCount;
+        this.pinned = pinned;
+        this.extras = extras;
+    }
+
+    /**
+     * Converts a memory item in the Map form into a record. Keys other than type, content
+     * and pinned are kept so that the Map view returns them unchanged. A Map that is already
+     * the view of a record gives back that record.
+     */
+    public static MemoryRecord fromMap(Map<String, Object> memory) {
+        if (memory instanceof MapView) {
+            return ((MapView) memory).record;
+        }
+
+        Object type = memory.get("type");
+        Role role = Role.fromType(type);
+        Object rawContent = memory.get("content");
+        String content = rawContent != null ? rawContent.toString() : null;
+        boolean pinned = Boolean.TRUE.equals(memory.get(TokenWindowPolicy.PINNED));
+
+        Map<String, Object> extras = null;
+        for (Map.Entry<String, Object> entry : memory.entrySet()) {
+            String key = entry.getKey();
+            boolean known = "content".equals(key)
+                    || TokenWindowPolicy.PINNED.equals(key)
+                    || ("type".equals(key) && role.getType().equals(entry.getValue()));
+            if (!known) {
+                if (extras == null) {
+                    extras = new HashMap<>();
+                }
+                extras.put(key, entry.getValue());
+            }
+        }
+
+        return new MemoryRecord(role, content, System.currentTimeMillis(),
+                TokenEstimator.estimateMessage(content), pinned, extras);
+    }
+
+    /**
+     * Recreates a record exactly as it was persisted, e.g. by a SessionJournal.
+     *
+     * @param type The item type if it differs from the role's own type, otherwise null
+     */
+    static MemoryRecord restore(Role role, String type, String content, long timestamp, boolean pinned) {
+        Map<String, Object> extras = null;
+        if (type != null) {
+            extras = new HashMap<>();
+            extras.put("type", type);
+        }
+        return new MemoryRecord(role, content, timestamp, TokenEstimator.estimateMessage(content), pinned, extras);
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    /**
+     * Gets the item type as it appears in the Map form, which may be more specific than the role.
+     */
+    public String getType() {
+        if (extras != null && extras.containsKey("type")) {
+            return String.valueOf(extras.get("type"));
+        }
+        return role.getType();
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Gets when the record was created, in epoch milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the estimated prompt cost of this item, including per-message overhead.
+     */
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    /**
+     * Gets a read-only Map view of this record with the keys "type", "content" and, when
+     * set, "pinned".
+     */
+    public Map<String, Object> asMap() {
+        return new MapView(this);
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+
+    /**
+     * Read-only Map form of a record. Lookups go straight to the fields, so rendering a prompt
+     * from Maps does not allocate per key.
+     */
+    private static final class MapView extends AbstractMap<String, Object> {
+        private final MemoryRecord record;
+
+        MapView(MemoryRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if ("type".equals(key)) {
+                return record.getType();
+            }
+            if ("content".equals(key)) {
+                return record.content;
+            }
+            if (TokenWindowPolicy.PINNED.equals(key)) {
+                return record.pinned ? Boolean.TRUE : null;
+            }
+            return record.extras != null ? record.extras.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if ("type".equals(key) || "content".equals(key)) {
+                return true;
+            }
+            if (TokenWindowPolicy.PINNED.equals(key)) {
+                return record.pinned;
+            }
+            return record.extras != null && record.extras.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            List<Entry<String, Object>> entries = new ArrayList<>(4);
+            entries.add(new SimpleImmutableEntry<>("type", record.getType()));
+            entries.add(new SimpleImmutableEntry<>("content", record.content));
+            if (record.pinned) {
+                entries.add(new SimpleImmutableEntry<>(TokenWindowPolicy.PINNED, true));
+            }
+            if (record.extras != null) {
+                for (Entry<String, Object> extra : record.extras.entrySet()) {
+                    if (!"type".equals(extra.getKey())) {
+                        entries.add(new SimpleImmutableEntry<>(extra));
+                    }
+                }
+            }
+            List<Entry<String, Object>> fixed = Collections.unmodifiableList(entries);
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return fixed.iterator();
+                }
+
+                @Override
+                public int size() {
+                    return fixed.size();
+                }
+            };
+        }
+    }
+}
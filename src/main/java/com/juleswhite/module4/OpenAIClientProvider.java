@@ -0,0 +1,193 @@
+package com.juleswhite.module4;
+
+import com.openai.client.OpenAIClient;
+import com.openai.client.okhttp.OpenAIOkHttpClient;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the lifecycle of the OpenAIClient used by LLM.
+ *
+ * Building a client with OpenAIOkHttpClient creates a new OkHttp dispatcher and connection
+ * pool, so doing it per request throws away every warm (keep-alive, HTTP/2) connection.
+ * This provider creates the client once, hands the same instance to every caller, and keeps
+ * track of how often a request was served by the existing client (hit) versus how often a
+ * new client had to be built (miss).
+ */
+public class OpenAIClientProvider implements AutoCloseable {
+
+    private static final OpenAIClientProvider SHARED = new OpenAIClientProvider();
+
+    private final Duration timeout;
+    private final int maxRetries;
+    private final String baseUrl;
+    private final String apiKey;
+    private final String keyId;
+
+    private volatile OpenAIClient client;
+
+    // A lock rather than synchronized, so virtual threads waiting here are not pinned
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a provider with the SDK's default timeout and the SDK's own retries turned off,
+     * since LLM retries through a ResilientExecutor that also has a budget and circuit breaker.
+     */
+    public OpenAIClientProvider() {
+        this(Duration.ofSeconds(60), 0);
+    }
+
+    /**
+     * Creates a provider with custom settings for the underlying client.
+     *
+     * @param timeout Overall request timeout applied to every call
+     * @param maxRetries Number of times the SDK retries a failed request
+     */
+    public OpenAIClientProvider(Duration timeout, int maxRetries) {
+        this(timeout, maxRetries, null, null);
+    }
+
+    /**
+     * Creates a provider for another OpenAI-compatible server, e.g. a MockChatServer.
+     *
+     * @param timeout Overall request timeout applied to every call
+     * @param maxRetries Number of times the SDK retries a failed request
+     * @param baseUrl Base URL of the API, or null for the one from the environment
+     * @param apiKey API key, or null for the one from the environment
+     */
+    public OpenAIClientProvider(Duration timeout, int maxRetries, String baseUrl, String apiKey) {
+        this.timeout = timeout;
+        this.maxRetries = maxRetries;
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+        this.keyId = fingerprint(apiKey != null ? apiKey : System.getenv("OPENAI_API_KEY"));
+    }
+
+    /**
+     * Identifies an API key without revealing it: the start of its SHA-256 hash.
+     */
+    private static String fingerprint(String key) {
+        if (key == null) {
+            return "default";
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Gets the process-wide provider used by LLM when no provider is given.
+     */
+    public static OpenAIClientProvider shared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets the pooled client, creating it on first use (or after close()).
+     *
+     * @return The shared OpenAIClient
+     */
+    public OpenAIClient getClient() {
+        OpenAIClient current = client;
+        if (current != null) {
+            hits.incrementAndGet();
+            return current;
+        }
+
+        lock.lock();
+        try {
+            if (client == null) {
+                // Initialize OpenAI client using environment variables
+                OpenAIOkHttpClient.Builder builder = OpenAIOkHttpClient.builder()
+                        .fromEnv()
+                        .timeout(timeout)
+                        .maxRetries(maxRetries);
+                if (baseUrl != null) {
+                    builder.baseUrl(baseUrl);
+                }
+                if (apiKey != null) {
+                    builder.apiKey(apiKey);
+                }
+                client = builder.build();
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return client;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pooled client and releases its connections and threads.
+     * A later call to getClient() will build a fresh client.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return client != null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the fraction of requests that reused an existing client.
+     */
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Gets a fingerprint of the API key, so rate limits can be kept per key without holding
+     * the key itself.
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Gets the base URL the client is built with, or null if it comes from the environment.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+}
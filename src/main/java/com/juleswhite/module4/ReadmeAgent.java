@@ -2,7 +2,6 @@ package com.juleswhite.module4;
 
 import com.juleswhite.module4.LLM.Prompt;
 import java.io.File;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
@@ -19,14 +18,22 @@ public class ReadmeAgent {
         /**
          * Reads and returns the content of a specified project file.
          *
-         * Opens the file in read mode and returns its entire contents as a string.
+         * Opens the file in read mode and returns its contents as a string. Large files are cut
+         * off after about 4000 tokens, with a note saying how much was returned.
          * Returns an error message if the file doesn't exist.
          *
          * @param name The name of the file to read
          * @return The contents of the file as a string
          */
         try {
-            return new String(Files.readAllBytes(Paths.get(name)));
+            FileRangeReader reader = new FileRangeReader(FileReadCache.shared());
+            FileRangeReader.Chunk chunk = reader.read(Paths.get(name), 0, Long.MAX_VALUE,
+                    FileRangeReader.DEFAULT_MAX_TOKENS);
+            if (!chunk.hasMore()) {
+                return chunk.getContent();
+            }
+            return chunk.getContent() + "\n[Truncated: showing the first " + chunk.getEndOffset()
+                    + " of " + chunk.getFileSize() + " bytes]";
         } catch (Exception e) {
             return "Error reading file: " + e.getMessage();
         }
@@ -27,4 +27,10 @@ public @interface RegisterTool {
      * Tags for categorizing this tool.
      */
     String[] tags() default {};
+
+    /**
+     * Names of the parameters the LLM may leave out, which are passed null. The others are
+     * required; primitive parameters always are.
+     */
+    String[] optional() default {};
 }
\ No newline at end of file
@@ -0,0 +1,463 @@
+package com.juleswhite.module4;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.juleswhite.module4.LLM.Prompt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Caches LLM responses keyed by a canonical hash of the request.
+ *
+ * The key covers the API base URL, the model, every message, the tool schemas and the sampling
+ * parameters, so two prompts share an entry only if the same server would have received the
+ * same request. The first tier is an in-memory LRU bounded by entry count and TTL; an optional
+ * second tier stores responses as files in a directory so they survive restarts. The directory
+ * is swept of expired files every minute, and of the oldest ones when it outgrows its size cap.
+ */
+public class ResponseCache {
+
+    /**
+     * Default size cap of the on-disk tier.
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 256L * 1024 * 1024;
+
+    private static final long SWEEP_INTERVAL_MILLIS = Duration.ofMinutes(1).toMillis();
+
+    private static class Entry {
+        final String response;
+        final long requestBytes;
+        final long createdAt;
+
+        Entry(String response, long requestBytes, long createdAt) {
+            this.response = response;
+            this.requestBytes = requestBytes;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * A computed cache key together with the size of the request it stands for.
+     */
+    private static class Key {
+        final String hash;
+        final long requestBytes;
+
+        Key(String hash, long requestBytes) {
+            this.hash = hash;
+            this.requestBytes = requestBytes;
+        }
+    }
+
+    // Sorted map keys make the serialized request canonical regardless of HashMap ordering
+    private final ObjectMapper canonicalMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Path diskDirectory;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Bytes written since the last sweep are added to what it found, so the cap is checked
+    // without listing the directory on every store
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private final AtomicLong diskBytes = new AtomicLong();
+    private volatile long lastSweep;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Creates a memory-only cache.
+     *
+     * @param maxEntries Maximum number of responses kept in memory
+     * @param ttl How long a response stays valid
+     */
+    public ResponseCache(int maxEntries, Duration ttl) {
+        this(maxEntries, ttl, null);
+    }
+
+    /**
+     * Creates a cache with an on-disk second tier of at most DEFAULT_MAX_DISK_BYTES.
+     *
+     * @param maxEntries Maximum number of responses kept in memory
+     * @param ttl How long a response stays valid, in either tier
+     * @param diskDirectory Directory for persisted responses, or null for memory only
+     */
+    public ResponseCache(int maxEntries, Duration ttl, Path diskDirectory) {
+        this(maxEntries, ttl, diskDirectory, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    /**
+     * Creates a cache with an on-disk second tier.
+     *
+     * @param maxEntries Maximum number of responses kept in memory
+     * @param ttl How long a response stays valid, in either tier
+     * @param diskDirectory Directory for persisted responses, or null for memory only
+     * @param maxDiskBytes Size the directory is kept under; the oldest responses go first
+     */
+    public ResponseCache(int maxEntries, Duration ttl, Path diskDirectory, long maxDiskBytes) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttl.toMillis();
+        this.diskDirectory = diskDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+
+        if (diskDirectory != null) {
+            try {
+                Files.createDirectories(diskDirectory);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot create cache directory: " + diskDirectory, e);
+            }
+            // Clears out what earlier runs left behind
+            sweepDisk();
+        }
+    }
+
+    /**
+     * Wraps an LLM's blocking generator with this cache.
+     */
+    public Function<Prompt, String> wrap(LLM llm) {
+        return prompt -> {
+            Key key = key(llm, prompt);
+            String cached = lookup(key);
+            if (cached != null) {
+                return cached;
+            }
+            String response = llm.generateResponse(prompt);
+            store(key, response);
+            return response;
+        };
+    }
+
+    /**
+     * Wraps an LLM's async generator with this cache. Hits complete immediately.
+     */
+    public Function<Prompt, CompletableFuture<String>> wrapAsync(LLM llm) {
+        return prompt -> {
+            Key key = key(llm, prompt);
+            String cached = lookup(key);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            return llm.generateResponseAsync(prompt).thenApply(response -> {
+                store(key, response);
+                return response;
+            });
+        };
+    }
+
+    /**
+     * Wraps an LLM's streaming generator with this cache. A hit is replayed to the listener as
+     * a single token. Only complete responses are stored; one the listener stopped early is cut
+     * short and would be replayed as the answer to the whole request.
+     */
+    public BiFunction<Prompt, LLM.TokenListener, String> wrapStreaming(LLM llm) {
+        return (prompt, listener) -> {
+            Key key = key(llm, prompt);
+            String cached = lookup(key);
+            if (cached != null) {
+                listener.onToken(cached);
+                return cached;
+            }
+            AtomicBoolean stopped = new AtomicBoolean();
+            String response = llm.generateResponseStreaming(prompt, token -> {
+                if (listener.onToken(token)) {
+                    return true;
+                }
+                stopped.set(true);
+                return false;
+            });
+            if (!stopped.get()) {
+                store(key, response);
+            }
+            return response;
+        };
+    }
+
+    /**
+     * Computes the canonical key for a request: a SHA-256 of the base URL, model, messages,
+     * tool schemas and sampling parameters serialized with sorted keys.
+     */
+    public String computeKey(LLM llm, Prompt prompt) {
+        return key(llm, prompt).hash;
+    }
+
+    private Key key(LLM llm, Prompt prompt) {
+        List<Map<String, Object>> messages = new ArrayList<>();
+        for (Message message : prompt.getMessages()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("role", message.getRole());
+            entry.put("content", message.getContent());
+            messages.add(entry);
+        }
+
+        List<Map<String, Object>> tools = new ArrayList<>();
+        for (Tool tool : prompt.getTools()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", tool.getToolName());
+            entry.put("description", tool.getDescription());
+            entry.put("parameters", tool.getParameters());
+            tools.add(entry);
+        }
+        // Registry order comes from a HashMap and carries no meaning, so normalize it
+        tools.sort((a, b) -> String.valueOf(a.get("name")).compareTo(String.valueOf(b.get("name"))));
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        // A response recorded from a mock server must not be replayed against the real API
+        request.put("baseUrl", baseUrl(llm));
+        request.put("model", llm.getModel());
+        request.put("sampling", llm.getSamplingParameters());
+        request.put("messages", messages);
+        request.put("tools", tools);
+
+        try {
+            byte[] canonical = canonicalMapper.writeValueAsBytes(request);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(canonical);
+            return new Key(HexFormat.of().formatHex(digest), canonical.length);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to compute cache key", e);
+        }
+    }
+
+    /**
+     * Gets the base URL an LLM's requests go to; null stands for the SDK's default.
+     */
+    private static String baseUrl(LLM llm) {
+        String configured = llm.getClientProvider().getBaseUrl();
+        return configured != null ? configured : System.getenv("OPENAI_BASE_URL");
+    }
+
+    private String lookup(Key key) {
+        long now = System.currentTimeMillis();
+
+        lock.lock();
+        try {
+            Entry entry = entries.get(key.hash);
+            if (entry != null) {
+                if (now - entry.createdAt <= ttlMillis) {
+                    recordHit(entry);
+                    hits.incrementAndGet();
+                    return entry.response;
+                }
+                entries.remove(key.hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Entry fromDisk = readFromDisk(key, now);
+        if (fromDisk != null) {
+            recordHit(fromDisk);
+            diskHits.incrementAndGet();
+            putInMemory(key.hash, fromDisk);
+            return fromDisk.response;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void store(Key key, String response) {
+        if (response == null) {
+            return;
+        }
+        Entry entry = new Entry(response, key.requestBytes, System.currentTimeMillis());
+        putInMemory(key.hash, entry);
+        writeToDisk(key.hash, response);
+    }
+
+    private void putInMemory(String hash, Entry entry) {
+        lock.lock();
+        try {
+            entries.put(hash, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordHit(Entry entry) {
+        // Neither the request nor the response had to cross the network
+        bytesSaved.addAndGet(entry.requestBytes + entry.response.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private Entry readFromDisk(Key key, long now) {
+        if (diskDirectory == null) {
+            return null;
+        }
+        Path file = diskDirectory.resolve(key.hash + ".txt");
+        try {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            long createdAt = Files.getLastModifiedTime(file).toMillis();
+            if (now - createdAt > ttlMillis) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+            String response = Files.readString(file, StandardCharsets.UTF_8);
+            return new Entry(response, key.requestBytes, createdAt);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeToDisk(String hash, String response) {
+        if (diskDirectory == null) {
+            return;
+        }
+        try {
+            // Write then rename, so concurrent readers never see a partial file
+            Path temp = Files.createTempFile(diskDirectory, hash, ".tmp");
+            Files.writeString(temp, response, StandardCharsets.UTF_8);
+            long written = Files.size(temp);
+            Files.move(temp, diskDirectory.resolve(hash + ".txt"),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (diskBytes.addAndGet(written) > maxDiskBytes
+                    || System.currentTimeMillis() - lastSweep > SWEEP_INTERVAL_MILLIS) {
+                sweepDisk();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to persist cached response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes expired responses, and then the oldest ones until the directory is under its
+     * size cap. A sweep already in progress on another thread is not repeated.
+     */
+    public void sweepDisk() {
+        if (diskDirectory == null || !sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            lastSweep = now;
+
+            List<Path> files = new ArrayList<>();
+            Map<Path, Long> modified = new HashMap<>();
+            Map<Path, Long> sizes = new HashMap<>();
+            try (Stream<Path> listing = Files.list(diskDirectory)) {
+                for (Path file : (Iterable<Path>) listing::iterator) {
+                    String name = file.getFileName().toString();
+                    boolean temp = name.endsWith(".tmp");
+                    if (!temp && !name.endsWith(".txt")) {
+                        continue;
+                    }
+                    try {
+                        long createdAt = Files.getLastModifiedTime(file).toMillis();
+                        // Temp files older than a sweep were left by a writer that died
+                        long maxAge = temp ? SWEEP_INTERVAL_MILLIS : ttlMillis;
+                        if (now - createdAt > maxAge) {
+                            Files.deleteIfExists(file);
+                        } else if (!temp) {
+                            files.add(file);
+                            modified.put(file, createdAt);
+                            sizes.put(file, Files.size(file));
+                        }
+                    } catch (IOException e) {
+                        // Removed by another process since the listing; nothing to account for
+                    }
+                }
+            }
+
+            long total = sizes.values().stream().mapToLong(Long::longValue).sum();
+            files.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+            for (Path file : files) {
+                if (total <= maxDiskBytes) {
+                    break;
+                }
+                try {
+                    Files.deleteIfExists(file);
+                    total -= sizes.get(file);
+                } catch (IOException e) {
+                    // Left for the next sweep
+                }
+            }
+            diskBytes.set(total);
+        } catch (IOException e) {
+            System.err.println("Failed to sweep response cache: " + e.getMessage());
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every in-memory entry. Persisted responses are left in place.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the fraction of lookups served from either tier.
+     */
+    public double getHitRatio() {
+        long served = hits.get() + diskHits.get();
+        long total = served + misses.get();
+        return total == 0 ? 0.0 : (double) served / total;
+    }
+
+    /**
+     * Gets the request and response bytes that did not have to be sent or received because
+     * of cache hits.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+}
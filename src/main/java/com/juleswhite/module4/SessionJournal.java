@@ -0,0 +1,750 @@
+package com.juleswhite.module4;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of agent session memories.
+ *
+ * All sessions append to one shared log made of memory-mapped segment files, so writing a
+ * record is a copy into the mapped region with no system call. Each completed agent iteration
+ * appends a checkpoint and waits for it to become durable. A background flusher forces the
+ * log to disk once per batch and releases every checkpoint in that batch together (group
+ * commit), so many concurrent sessions share the cost of each fsync.
+ *
+ * On open, the log is scanned and every session is rebuilt up to its last checkpoint. Records
+ * of an iteration that was still in progress, and a torn tail left by a crash, are discarded.
+ * A session stays in the log until it is forgotten; segments whose sessions are all forgotten
+ * are deleted.
+ */
+public class SessionJournal implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final Duration DEFAULT_COMMIT_DELAY = Duration.ofMillis(2);
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int FRAME_HEADER_BYTES = 8; // payload length + CRC32 of the payload
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Frame kinds
+    private static final byte ENTRY = 1;
+    private static final byte CHECKPOINT = 2;
+    private static final byte RESET = 3;
+    private static final byte ROLLBACK = 4;
+    private static final byte CLOSED = 5;
+
+    // Entry flags
+    private static final byte FLAG_PINNED = 1;
+    private static final byte FLAG_TYPE = 2;
+    private static final byte FLAG_NULL_CONTENT = 4;
+
+    private static class Segment {
+        final long number;
+        final Path file;
+        final MappedByteBuffer buffer;
+        final Set<String> sessions = new HashSet<>();
+        int position;
+        volatile int forcedPosition;
+
+        Segment(long number, Path file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A session's state as rebuilt from the log.
+     */
+    private static class SessionState {
+        final List<MemoryRecord> committed = new ArrayList<>();
+        final List<MemoryRecord> pending = new ArrayList<>();
+        boolean pendingReset;
+        int completedIterations;
+        boolean terminated;
+
+        boolean hasPending() {
+            return pendingReset || !pending.isEmpty();
+        }
+    }
+
+    private static class Waiter {
+        final long lsn;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long commitDelayNanos;
+
+    // Guards the segments, the write position and the sessions
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, SessionState> recovered = new LinkedHashMap<>();
+    private final Map<String, JournaledMemory> openSessions = new LinkedHashMap<>();
+    private long appendedLsn;
+
+    // Guards the waiters for group commit
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitRequested = commitLock.newCondition();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private volatile long durableLsn;
+    private volatile boolean running = true;
+    private final Thread flusher;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Opens (or creates) a journal in a directory with the default segment size and commit delay.
+     */
+    public SessionJournal(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_DELAY);
+    }
+
+    /**
+     * @param directory Directory holding the segment files
+     * @param segmentSize Size of each mapped segment file in bytes
+     * @param commitDelay How long the flusher waits for more checkpoints to join a batch
+     *                    before forcing the log to disk
+     */
+    public SessionJournal(Path directory, int segmentSize, Duration commitDelay) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitDelayNanos = commitDelay.toNanos();
+
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open session journal in " + directory, e);
+        }
+
+        this.flusher = Thread.ofPlatform()
+                .name("session-journal-flusher")
+                .daemon(true)
+                .start(this::flushLoop);
+    }
+
+    /**
+     * Opens the memory of a session. A session found in the log is restored to its last
+     * checkpoint; otherwise an empty memory is returned. The same instance is returned for a
+     * session until it is forgotten.
+     *
+     * @throws IllegalArgumentException if the id is empty or longer than Short.MAX_VALUE bytes
+     */
+    public JournaledMemory open(String sessionId) {
+        checkSessionId(sessionId);
+        appendLock.lock();
+        try {
+            JournaledMemory memory = openSessions.get(sessionId);
+            if (memory == null) {
+                SessionState state = recovered.remove(sessionId);
+                memory = state != null
+                        ? new JournaledMemory(this, sessionId, state.committed, state.completedIterations, state.terminated)
+                        : new JournaledMemory(this, sessionId, Collections.emptyList(), 0, false);
+                openSessions.put(sessionId, memory);
+            }
+            return memory;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the ids of all sessions in the journal that have not been forgotten, including the
+     * ones recovered from a previous run.
+     */
+    public Set<String> getSessionIds() {
+        appendLock.lock();
+        try {
+            Set<String> ids = new HashSet<>(recovered.keySet());
+            ids.addAll(openSessions.keySet());
+            return ids;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the ids of sessions recovered from the log that stopped before terminating, i.e.
+     * the ones worth resuming with Agent.resume.
+     */
+    public Set<String> getUnfinishedSessionIds() {
+        appendLock.lock();
+        try {
+            Set<String> ids = new HashSet<>();
+            for (Map.Entry<String, SessionState> entry : recovered.entrySet()) {
+                if (!entry.getValue().terminated) {
+                    ids.add(entry.getKey());
+                }
+            }
+            for (Map.Entry<String, JournaledMemory> entry : openSessions.entrySet()) {
+                if (!entry.getValue().isTerminated()) {
+                    ids.add(entry.getKey());
+                }
+            }
+            return ids;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Drops a session from the journal. Its records are deleted once no other live session
+     * shares their segments.
+     */
+    public void forget(String sessionId) {
+        checkSessionId(sessionId);
+        appendLock.lock();
+        try {
+            appendFrame(CLOSED, sessionId, 0, buffer -> {
+            });
+            recovered.remove(sessionId);
+            openSessions.remove(sessionId);
+            for (Segment segment : segments) {
+                segment.sessions.remove(sessionId);
+            }
+            deleteUnusedSegments();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Checks that an id fits a frame: a frame stores it after a two-byte length, and recovery
+     * takes a frame with no id for the zeroed space after the last one.
+     */
+    private static void checkSessionId(String sessionId) {
+        if (sessionId == null || sessionId.isEmpty()) {
+            throw new IllegalArgumentException("Session id cannot be empty");
+        }
+        if (sessionId.getBytes(StandardCharsets.UTF_8).length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Session id is longer than " + Short.MAX_VALUE + " bytes");
+        }
+    }
+
+    void appendEntry(String sessionId, MemoryRecord record) {
+        byte[] content = record.getContent() != null
+                ? record.getContent().getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        String type = record.getType();
+        byte[] typeBytes = type.equals(record.getRole().getType())
+                ? null
+                : type.getBytes(StandardCharsets.UTF_8);
+
+        byte flags = 0;
+        if (record.isPinned()) {
+            flags |= FLAG_PINNED;
+        }
+        if (typeBytes != null) {
+            flags |= FLAG_TYPE;
+        }
+        if (record.getContent() == null) {
+            flags |= FLAG_NULL_CONTENT;
+        }
+
+        int size = 1 + 1 + 8 + (typeBytes != null ? 2 + typeBytes.length : 0) + 4 + content.length;
+        byte entryFlags = flags;
+
+        appendLock.lock();
+        try {
+            appendFrame(ENTRY, sessionId, size, buffer -> {
+                buffer.put((byte) record.getRole().ordinal());
+                buffer.put(entryFlags);
+                buffer.putLong(record.getTimestamp());
+                if (typeBytes != null) {
+                    buffer.putShort((short) typeBytes.length);
+                    buffer.put(typeBytes);
+                }
+                buffer.putInt(content.length);
+                buffer.put(content);
+            });
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    void appendReset(String sessionId, List<MemoryRecord> records) {
+        appendLock.lock();
+        try {
+            appendFrame(RESET, sessionId, 0, buffer -> {
+            });
+            for (MemoryRecord record : records) {
+                appendEntry(sessionId, record);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a checkpoint and returns a future that completes once it, and everything the
+     * session appended before it, is on disk.
+     */
+    CompletableFuture<Void> appendCheckpoint(String sessionId, int completedIterations, boolean terminated) {
+        long lsn;
+        appendLock.lock();
+        try {
+            lsn = appendFrame(CHECKPOINT, sessionId, 5, buffer -> {
+                buffer.putInt(completedIterations);
+                buffer.put((byte) (terminated ? 1 : 0));
+            });
+        } finally {
+            appendLock.unlock();
+        }
+        commits.incrementAndGet();
+        return awaitDurable(lsn);
+    }
+
+    private interface FrameWriter {
+        void write(ByteBuffer buffer);
+    }
+
+    /**
+     * Writes one frame into the active segment. Must be called with appendLock held.
+     *
+     * @return The log position just after the frame
+     */
+    private long appendFrame(byte kind, String sessionId, int bodySize, FrameWriter body) {
+        if (!running) {
+            throw new IllegalStateException("Session journal is closed");
+        }
+
+        byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+        int payloadSize = 1 + 2 + id.length + bodySize;
+        int frameSize = FRAME_HEADER_BYTES + payloadSize;
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.position + frameSize > segment.buffer.capacity()) {
+            segment = createSegment(segment == null ? 1 : segment.number + 1,
+                    Math.max(segmentSize, SEGMENT_HEADER_BYTES + frameSize));
+        }
+
+        // Encode straight into the mapped region, then checksum it in place
+        ByteBuffer payload = segment.buffer.slice(segment.position + FRAME_HEADER_BYTES, payloadSize);
+        payload.put(kind);
+        payload.putShort((short) id.length);
+        payload.put(id);
+        body.write(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(segment.buffer.slice(segment.position + FRAME_HEADER_BYTES, payloadSize));
+        segment.buffer.putInt(segment.position + 4, (int) crc.getValue());
+        // The length goes in last, so a reader never sees a length without its payload
+        segment.buffer.putInt(segment.position, payloadSize);
+
+        segment.position += frameSize;
+        segment.sessions.add(sessionId);
+        bytesWritten.addAndGet(frameSize);
+        appendedLsn = lsn(segment.number, segment.position);
+        return appendedLsn;
+    }
+
+    private static long lsn(long segmentNumber, int position) {
+        return (segmentNumber << 32) | position;
+    }
+
+    private Segment createSegment(long number, int size) {
+        Path file = directory.resolve(String.format("journal-%012d%s", number, SEGMENT_SUFFIX));
+        try {
+            Segment segment = new Segment(number, file, map(file, size));
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(4, FORMAT_VERSION);
+            segment.position = SEGMENT_HEADER_BYTES;
+            forceDirectory();
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create journal segment " + file, e);
+        }
+    }
+
+    /**
+     * Forces the directory to disk, so a new segment's entry survives a crash along with the
+     * frames later forced into it.
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can't be opened for this on some platforms, e.g. Windows
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while none of their sessions are live. Only a prefix is
+     * deleted, so a CLOSED frame is never lost while older records of its session remain.
+     * Must be called with appendLock held.
+     */
+    private void deleteUnusedSegments() {
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            boolean active = segment == segments.get(segments.size() - 1);
+            if (active || !segment.sessions.isEmpty() || segment.forcedPosition < segment.position) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(segment.file);
+                iterator.remove();
+            } catch (IOException e) {
+                // Still mapped on some platforms; it will be retried on the next open
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> awaitDurable(long lsn) {
+        if (lsn <= durableLsn) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Waiter waiter = new Waiter(lsn);
+        commitLock.lock();
+        try {
+            if (!running) {
+                waiter.future.completeExceptionally(new IllegalStateException("Session journal is closed"));
+                return waiter.future;
+            }
+            waiters.add(waiter);
+            commitRequested.signal();
+        } finally {
+            commitLock.unlock();
+        }
+        return waiter.future;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            commitLock.lock();
+            try {
+                while (running && waiters.isEmpty()) {
+                    commitRequested.await();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                commitLock.unlock();
+            }
+
+            // Give checkpoints from other sessions a moment to join this batch
+            if (commitDelayNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(commitDelayNanos);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            flush();
+        }
+        flush();
+    }
+
+    /**
+     * Forces everything appended so far to disk and releases the checkpoints it covers.
+     */
+    private void flush() {
+        long target;
+        List<Segment> dirty = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        appendLock.lock();
+        try {
+            target = appendedLsn;
+            for (Segment segment : segments) {
+                if (segment.forcedPosition < segment.position) {
+                    dirty.add(segment);
+                    ends.add(segment.position);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+
+        Throwable failure = null;
+        if (!dirty.isEmpty()) {
+            try {
+                for (int i = 0; i < dirty.size(); i++) {
+                    Segment segment = dirty.get(i);
+                    int end = ends.get(i);
+                    segment.buffer.force(segment.forcedPosition, end - segment.forcedPosition);
+                    segment.forcedPosition = end;
+                }
+                flushes.incrementAndGet();
+                durableLsn = Math.max(durableLsn, target);
+            } catch (RuntimeException e) {
+                System.err.println("Failed to flush session journal: " + e.getMessage());
+                failure = e;
+            }
+        }
+
+        List<Waiter> released = new ArrayList<>();
+        commitLock.lock();
+        try {
+            Iterator<Waiter> iterator = waiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                if (failure != null || waiter.lsn <= durableLsn) {
+                    released.add(waiter);
+                    iterator.remove();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+
+        for (Waiter waiter : released) {
+            if (failure != null) {
+                waiter.future.completeExceptionally(failure);
+            } else {
+                waiter.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Scans every segment in order and rebuilds the sessions. Stops at the first invalid frame:
+     * anything after it was never acknowledged as durable.
+     */
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing
+                    .filter(path -> path.getFileName().toString().startsWith("journal-")
+                            && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        boolean torn = false;
+        for (Path file : files) {
+            if (torn) {
+                // Written after the tear, so never acknowledged
+                Files.deleteIfExists(file);
+                continue;
+            }
+
+            String name = file.getFileName().toString();
+            long number = Long.parseLong(name.substring("journal-".length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(number, file, map(file, 0));
+            if (segment.buffer.capacity() < SEGMENT_HEADER_BYTES
+                    || segment.buffer.getInt(0) != MAGIC
+                    || segment.buffer.getInt(4) != FORMAT_VERSION) {
+                Files.deleteIfExists(file);
+                torn = true;
+                continue;
+            }
+
+            segment.position = SEGMENT_HEADER_BYTES;
+            while (true) {
+                int frameEnd = readFrame(segment, segment.position);
+                if (frameEnd < 0) {
+                    break;
+                }
+                segment.position = frameEnd;
+            }
+            segment.forcedPosition = segment.position;
+            segments.add(segment);
+
+            if (segment.position + FRAME_HEADER_BYTES <= segment.buffer.capacity()
+                    && segment.buffer.getInt(segment.position) != 0) {
+                torn = true;
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            // Clear whatever a crash left past the valid end, so it can never be mistaken for frames
+            Segment last = segments.get(segments.size() - 1);
+            for (int i = last.position; i < last.buffer.capacity(); i++) {
+                if (last.buffer.get(i) != 0) {
+                    last.buffer.put(i, (byte) 0);
+                }
+            }
+            last.buffer.force();
+            appendedLsn = lsn(last.number, last.position);
+            durableLsn = appendedLsn;
+        }
+
+        // Iterations that were in progress at the crash are abandoned for good, so a later
+        // checkpoint of the same session does not pick their records up
+        for (Map.Entry<String, SessionState> entry : recovered.entrySet()) {
+            if (entry.getValue().hasPending()) {
+                appendFrame(ROLLBACK, entry.getKey(), 0, buffer -> {
+                });
+            }
+        }
+        deleteUnusedSegments();
+    }
+
+    /**
+     * Reads and applies the frame at a position.
+     *
+     * @return The position after the frame, or -1 if there is no valid frame there
+     */
+    private int readFrame(Segment segment, int position) {
+        ByteBuffer buffer = segment.buffer;
+        if (position + FRAME_HEADER_BYTES > buffer.capacity()) {
+            return -1;
+        }
+        int payloadSize = buffer.getInt(position);
+        if (payloadSize < 3 || position + FRAME_HEADER_BYTES + payloadSize > buffer.capacity()) {
+            return -1;
+        }
+
+        ByteBuffer payload = buffer.slice(position + FRAME_HEADER_BYTES, payloadSize);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return -1;
+        }
+
+        try {
+            byte kind = payload.get();
+            byte[] id = new byte[payload.getShort()];
+            payload.get(id);
+            String sessionId = new String(id, StandardCharsets.UTF_8);
+            apply(kind, sessionId, payload);
+            if (kind == CLOSED) {
+                for (Segment each : segments) {
+                    each.sessions.remove(sessionId);
+                }
+            } else {
+                segment.sessions.add(sessionId);
+            }
+        } catch (RuntimeException e) {
+            // A checksum collision on garbage; treat it like any other torn frame
+            return -1;
+        }
+
+        return position + FRAME_HEADER_BYTES + payloadSize;
+    }
+
+    private void apply(byte kind, String sessionId, ByteBuffer payload) {
+        if (kind == CLOSED) {
+            recovered.remove(sessionId);
+            return;
+        }
+
+        SessionState state = recovered.computeIfAbsent(sessionId, k -> new SessionState());
+        switch (kind) {
+            case ENTRY -> state.pending.add(readEntry(payload));
+            case RESET -> {
+                state.pendingReset = true;
+                state.pending.clear();
+            }
+            case ROLLBACK -> {
+                state.pendingReset = false;
+                state.pending.clear();
+            }
+            case CHECKPOINT -> {
+                if (state.pendingReset) {
+                    state.committed.clear();
+                }
+                state.committed.addAll(state.pending);
+                state.pending.clear();
+                state.pendingReset = false;
+                state.completedIterations = payload.getInt();
+                state.terminated = payload.get() != 0;
+            }
+            default -> throw new IllegalStateException("Unknown journal frame kind " + kind);
+        }
+    }
+
+    private MemoryRecord readEntry(ByteBuffer payload) {
+        MemoryRecord.Role role = MemoryRecord.Role.values()[payload.get()];
+        byte flags = payload.get();
+        long timestamp = payload.getLong();
+        String type = null;
+        if ((flags & FLAG_TYPE) != 0) {
+            byte[] typeBytes = new byte[payload.getShort()];
+            payload.get(typeBytes);
+            type = new String(typeBytes, StandardCharsets.UTF_8);
+        }
+        byte[] content = new byte[payload.getInt()];
+        payload.get(content);
+
+        return MemoryRecord.restore(role, type,
+                (flags & FLAG_NULL_CONTENT) != 0 ? null : new String(content, StandardCharsets.UTF_8),
+                timestamp, (flags & FLAG_PINNED) != 0);
+    }
+
+    /**
+     * Gets the number of checkpoints appended.
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * Gets the number of times the log was forced to disk. Commits per flush shows how much
+     * group commit is amortizing.
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Flushes everything appended so far and stops the flusher. Mapped segments are released
+     * when they are garbage collected.
+     */
+    @Override
+    public void close() {
+        commitLock.lock();
+        try {
+            running = false;
+            commitRequested.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.juleswhite.module4;
+
+/**
+ * Cheap local estimate of how many tokens a piece of text costs.
+ *
+ * BPE tokenizers used by chat models split English into roughly one token per four
+ * characters of a word, and give most punctuation its own token. Counting that way is
+ * close enough to budget prompts without shipping a tokenizer vocabulary.
+ */
+public class TokenEstimator {
+
+    // Role markers and separators the provider adds around every message
+    public static final int MESSAGE_OVERHEAD = 4;
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * Estimates the token count of a text.
+     */
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+
+        int tokens = 0;
+        int wordLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                wordLength++;
+                continue;
+            }
+            tokens += (wordLength + 3) / 4;
+            wordLength = 0;
+            if (!Character.isWhitespace(c)) {
+                tokens++;
+            }
+        }
+        tokens += (wordLength + 3) / 4;
+        return tokens;
+    }
+
+    /**
+     * Estimates the token count of a chat message including its per-message overhead.
+     */
+    public static int estimateMessage(String content) {
+        return estimate(content) + MESSAGE_OVERHEAD;
+    }
+}
@@ -0,0 +1,189 @@
+package com.juleswhite.module4;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps the memory sent to the LLM within a token budget.
+ *
+ * The window is made of three parts: pinned items (the task, and any "system" item or item
+ * marked with PINNED), a rolling summary of turns that no longer fit, and the most recent
+ * turns. When the total goes over budget the oldest turns are evicted and folded into the
+ * summary, so the prompt stays bounded however long the session runs.
+ *
+ * The policy never modifies the agent's own Memory; it maintains a separate windowed Memory
+ * per session and updates it incrementally as new items arrive.
+ */
+public class TokenWindowPolicy {
+
+    /**
+     * Key of the Map form of a memory item that keeps the item in the window regardless of age.
+     */
+    public static final String PINNED = "pinned";
+
+    private static final int SUMMARY_LINE_CHARS = 160;
+
+    private final int maxTokens;
+    private final int minRecentItems;
+    private final int maxSummaryTokens;
+    private final BiFunction<String, List<MemoryRecord>, String> summarizer;
+
+    private final Map<Memory, WindowState> states = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static class WindowState {
+        final Memory window = new Memory();
+        final List<MemoryRecord> pinned = new ArrayList<>();
+        final Deque<MemoryRecord> recent = new ArrayDeque<>();
+        long sourceGeneration;
+        int processed;
+        int pinnedTokenCount;
+        int recentTokenCount;
+        String summary;
+        int summaryTokenCount;
+    }
+
+    /**
+     * Creates a policy with the built-in extractive summarizer.
+     *
+     * @param maxTokens Token budget for the memory part of the prompt
+     */
+    public TokenWindowPolicy(int maxTokens) {
+        this(maxTokens, 2, maxTokens / 4, TokenWindowPolicy::summarizeLocally);
+    }
+
+    /**
+     * @param maxTokens Token budget for the memory part of the prompt
+     * @param minRecentItems Number of most recent items that are never evicted
+     * @param maxSummaryTokens Cap on the rolling summary; its oldest lines are dropped beyond it
+     * @param summarizer Folds evicted items into the previous summary (which may be null),
+     *                   e.g. with an LLM call; the default keeps the start of each turn
+     */
+    public TokenWindowPolicy(int maxTokens,
+                             int minRecentItems,
+                             int maxSummaryTokens,
+                             BiFunction<String, List<MemoryRecord>, String> summarizer) {
+        this.maxTokens = maxTokens;
+        this.minRecentItems = minRecentItems;
+        this.maxSummaryTokens = maxSummaryTokens;
+        this.summarizer = summarizer;
+    }
+
+    /**
+     * Gets the windowed view of a memory, bringing it up to date with any items added since
+     * the last call. The same Memory instance is returned for the same source every time.
+     */
+    public Memory window(Memory memory) {
+        WindowState state = states.computeIfAbsent(memory, k -> new WindowState());
+
+        // The source is normally append-only; if it was replaced or shrank, start over
+        boolean rebuild = memory.getGeneration() != state.sourceGeneration || memory.size() < state.processed;
+        if (rebuild) {
+            state.sourceGeneration = memory.getGeneration();
+            state.pinned.clear();
+            state.recent.clear();
+            state.processed = 0;
+            state.pinnedTokenCount = 0;
+            state.recentTokenCount = 0;
+            state.summary = null;
+            state.summaryTokenCount = 0;
+        }
+
+        List<MemoryRecord> added = memory.getRecordsSince(state.processed);
+        state.processed += added.size();
+
+        for (MemoryRecord record : added) {
+            if (isPinned(record)) {
+                state.pinned.add(record);
+                state.pinnedTokenCount += record.getTokenCount();
+            } else {
+                state.recent.addLast(record);
+                state.recentTokenCount += record.getTokenCount();
+            }
+        }
+
+        // Once over budget, evict down to a low-water mark so that the next few turns can be
+        // appended without rebuilding the window again
+        List<MemoryRecord> evicted = new ArrayList<>();
+        if (state.pinnedTokenCount + state.summaryTokenCount + state.recentTokenCount > maxTokens) {
+            int lowWaterMark = maxTokens * 3 / 4;
+            while (state.recent.size() > minRecentItems
+                    && state.pinnedTokenCount + state.summaryTokenCount + state.recentTokenCount > lowWaterMark) {
+                MemoryRecord oldest = state.recent.removeFirst();
+                evicted.add(oldest);
+                state.recentTokenCount -= oldest.getTokenCount();
+            }
+        }
+
+        if (evicted.isEmpty()) {
+            if (rebuild) {
+                state.window.replaceRecords(added);
+                return state.window;
+            }
+            // Nothing left the window, so the new items can simply be appended
+            for (MemoryRecord record : added) {
+                state.window.addRecord(record);
+            }
+            return state.window;
+        }
+
+        state.summary = capSummary(summarizer.apply(state.summary, evicted));
+        state.summaryTokenCount = TokenEstimator.estimateMessage(state.summary);
+
+        List<MemoryRecord> records = new ArrayList<>(state.pinned);
+        records.add(new MemoryRecord(MemoryRecord.Role.SYSTEM, state.summary));
+        records.addAll(state.recent);
+        state.window.replaceRecords(records);
+
+        return state.window;
+    }
+
+    private boolean isPinned(MemoryRecord record) {
+        return record.isPinned() || record.getRole() == MemoryRecord.Role.SYSTEM;
+    }
+
+    private String capSummary(String summary) {
+        if (TokenEstimator.estimateMessage(summary) <= maxSummaryTokens) {
+            return summary;
+        }
+
+        // Keep the header line and the newest lines that fit
+        String[] lines = summary.split("\n");
+        Deque<String> kept = new ArrayDeque<>();
+        int tokens = TokenEstimator.estimateMessage(lines[0]);
+        for (int i = lines.length - 1; i > 0; i--) {
+            int lineTokens = TokenEstimator.estimate(lines[i]) + 1;
+            if (tokens + lineTokens > maxSummaryTokens) {
+                break;
+            }
+            kept.addFirst(lines[i]);
+            tokens += lineTokens;
+        }
+        kept.addFirst(lines[0]);
+        return String.join("\n", kept);
+    }
+
+    /**
+     * Default summarizer: appends the start of each evicted turn to the running summary.
+     */
+    public static String summarizeLocally(String previousSummary, List<MemoryRecord> evicted) {
+        StringBuilder summary = new StringBuilder(previousSummary != null
+                ? previousSummary
+                : "Summary of earlier conversation:");
+
+        for (MemoryRecord record : evicted) {
+            String content = String.valueOf(record.getContent()).replace('\n', ' ');
+            if (content.length() > SUMMARY_LINE_CHARS) {
+                content = content.substring(0, SUMMARY_LINE_CHARS) + "...";
+            }
+            summary.append("\n- ").append(record.getType()).append(": ").append(content);
+        }
+
+        return summary.toString();
+    }
+}
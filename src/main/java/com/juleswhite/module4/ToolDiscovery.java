@@ -2,13 +2,33 @@ package com.juleswhite.module4;
 
 import org.reflections.Reflections;
 import org.reflections.scanners.Scanners;
+import org.reflections.util.ClasspathHelper;
 import org.reflections.util.ConfigurationBuilder;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A registry of the tools found from @RegisterTool methods.
+ *
+ * Each instance is a separate registry, so agents built in parallel don't share mutable state.
+ * Reads go to an immutable catalog (tools by name plus an inverted tag index) that discovery
+ * swaps out copy-on-write. Finding the tools is cached for the whole JVM, per package set and
+ * per class, so creating many registries doesn't repeat the classpath scan. The static methods
+ * work on one shared registry, as before.
+ */
 public class ToolDiscovery {
 
     public static class RegisteredTool {
@@ -17,57 +37,477 @@ public class ToolDiscovery {
         public final Method originMethod;
         public final Tool tool;
 
+        // Direct call generated at compile time, or null if the tool was found by reflection
+        public final ToolIndex.Invoker invoker;
+
+        public final Set<String> tags;
+
         public RegisteredTool(Class<?> originClass, Method originMethod, Tool tool) {
+            this(originClass, originMethod, tool, null);
+        }
+
+        public RegisteredTool(Class<?> originClass, Method originMethod, Tool tool, ToolIndex.Invoker invoker) {
+            this(originClass, originMethod, tool, invoker, annotatedTags(originMethod));
+        }
+
+        public RegisteredTool(Class<?> originClass, Method originMethod, Tool tool, ToolIndex.Invoker invoker,
+                              String[] tags) {
             this.originClass = originClass;
             this.originMethod = originMethod;
             this.tool = tool;
+            this.invoker = invoker;
+            this.tags = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(tags)));
+        }
+
+        private static String[] annotatedTags(Method method) {
+            RegisterTool annotation = method == null ? null : method.getAnnotation(RegisterTool.class);
+            return annotation == null ? new String[0] : annotation.tags();
         }
 
     }
 
-    private static final Map<String, RegisteredTool> tools = new HashMap<>();
-    private static final Map<String, List<String>> toolsByTag = new HashMap<>();
+    /**
+     * An immutable view of the discovered tools and the tag index over them. Readers use the
+     * current catalog without locking; a discovery replaces it with an updated copy.
+     */
+    private static final class Catalog {
+        static final Catalog EMPTY = new Catalog(Map.of(), Map.of());
+
+        final Map<String, RegisteredTool> tools;
+        final Map<String, Set<String>> toolsByTag;
+
+        private Catalog(Map<String, RegisteredTool> tools, Map<String, Set<String>> toolsByTag) {
+            this.tools = tools;
+            this.toolsByTag = toolsByTag;
+        }
+
+        /**
+         * Creates a catalog with these tools added, replacing any with the same name.
+         */
+        Catalog with(Collection<RegisteredTool> added) {
+            Map<String, RegisteredTool> newTools = new LinkedHashMap<>(tools);
+            Map<String, Set<String>> newTags = new HashMap<>();
+            for (Map.Entry<String, Set<String>> entry : toolsByTag.entrySet()) {
+                newTags.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+            }
+
+            for (RegisteredTool registeredTool : added) {
+                String toolName = registeredTool.tool.getToolName();
+                RegisteredTool replaced = newTools.put(toolName, registeredTool);
+
+                // Drop the tags of the tool being replaced so they don't linger
+                if (replaced != null) {
+                    for (String tag : replaced.tags) {
+                        Set<String> names = newTags.get(tag);
+                        names.remove(toolName);
+                        if (names.isEmpty()) {
+                            newTags.remove(tag);
+                        }
+                    }
+                }
+                for (String tag : registeredTool.tags) {
+                    newTags.computeIfAbsent(tag, k -> new LinkedHashSet<>()).add(toolName);
+                }
+            }
+
+            Map<String, Set<String>> frozenTags = new HashMap<>();
+            for (Map.Entry<String, Set<String>> entry : newTags.entrySet()) {
+                frozenTags.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+            }
+            return new Catalog(Collections.unmodifiableMap(newTools), Collections.unmodifiableMap(frozenTags));
+        }
+    }
+
+    // Backs the static methods, for code that shares one registry across the JVM
+    private static final ToolDiscovery SHARED = new ToolDiscovery();
+
+    // Discovery results by package set and by class; tools never change while the JVM runs,
+    // so each package set is scanned at most once however many registries ask for it
+    private static final Map<Set<String>, CompletableFuture<Map<String, RegisteredTool>>> packageScans =
+            new ConcurrentHashMap<>();
+    private static final ClassValue<Map<String, RegisteredTool>> classScans = new ClassValue<>() {
+        @Override
+        protected Map<String, RegisteredTool> computeValue(Class<?> clazz) {
+            return Collections.unmodifiableMap(scanClass(clazz));
+        }
+    };
+
+    // Tool indexes generated at compile time, by package, and the classpath roots they were
+    // generated for; loaded once
+    private static volatile Indexes indexes;
+
+    private static final class Indexes {
+        // Several roots (e.g. main and test output) can each index the same package
+        final Map<String, List<ToolIndex>> byPackage;
+
+        // The processor indexes every tool in a compilation, so a root with an index list has
+        // no unindexed tools in any package
+        final Set<Path> indexedRoots;
+
+        Indexes(Map<String, List<ToolIndex>> byPackage, Set<Path> indexedRoots) {
+            this.byPackage = byPackage;
+            this.indexedRoots = indexedRoots;
+        }
+    }
+
+    // Writers take the lock and publish a new catalog; readers never block
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Catalog catalog = Catalog.EMPTY;
 
     /**
-     * Scans the specified packages for @RegisterTool annotations and
-     * registers those methods as tools.
+     * Creates an empty registry. Each agent can have its own; discovery results are cached
+     * across all of them.
+     */
+    public ToolDiscovery() {
+    }
+
+    /**
+     * Gets the registry used by the static methods.
+     */
+    public static ToolDiscovery getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Finds the @RegisterTool methods in the specified packages and registers them as tools
+     * in the shared registry.
      *
      * @param packageNames The packages to scan
-     * @return A map of discovered tools
+     * @return A map of the tools discovered in these packages
      */
     public static Map<String, RegisteredTool> discoverTools(String... packageNames) {
-        Reflections reflections =  new Reflections(new ConfigurationBuilder()
-                .forPackages(packageNames)
-                .addScanners(Scanners.MethodsAnnotated));
+        return SHARED.discover(packageNames);
+    }
+
+    /**
+     * Discovers instance methods with @RegisterTool annotations in a class and registers them
+     * in the shared registry.
+     *
+     * @param clazz The class to scan for annotated instance methods
+     * @return Map of tool names to RegisteredTool objects
+     */
+    public static Map<String, RegisteredTool> discoverInstanceTools(Class<?> clazz) {
+        return SHARED.discoverInstance(clazz);
+    }
 
-        // Find all methods annotated with @RegisterTool
-        Set<Method> methods = reflections.getMethodsAnnotatedWith(RegisterTool.class);
+    /**
+     * Gets all tools in the shared registry.
+     */
+    public static Map<String, RegisteredTool> getAllTools() {
+        return SHARED.getTools();
+    }
 
-        for (Method method : methods) {
-            RegisterTool annotation = method.getAnnotation(RegisterTool.class);
-            Tool tool = createToolFromMethod(method, annotation);
+    /**
+     * Gets the tools in the shared registry that have a tag.
+     */
+    public static List<RegisteredTool> getToolsByTag(String tag) {
+        return SHARED.getToolsWithTag(tag);
+    }
 
-            // Register the tool
-            tools.put(tool.getToolName(), new RegisteredTool(method.getDeclaringClass(), method, tool));
+    /**
+     * Registers the @RegisterTool methods in the specified packages. Tools in classpath roots
+     * with a generated tool index are read from it; other roots are scanned, once per package set.
+     *
+     * @param packageNames The packages to scan
+     * @return A map of the tools discovered in these packages
+     */
+    public Map<String, RegisteredTool> discover(String... packageNames) {
+        Map<String, RegisteredTool> discovered = scanPackages(packageNames);
+        add(discovered.values());
+        return discovered;
+    }
+
+    /**
+     * Registers the @RegisterTool instance methods of a class.
+     *
+     * @param clazz The class to scan for annotated instance methods
+     * @return Map of tool names to RegisteredTool objects
+     */
+    public Map<String, RegisteredTool> discoverInstance(Class<?> clazz) {
+        Map<String, RegisteredTool> discovered = classScans.get(clazz);
+        add(discovered.values());
+        return discovered;
+    }
+
+    /**
+     * Gets an immutable snapshot of the registered tools by name.
+     */
+    public Map<String, RegisteredTool> getTools() {
+        return catalog.tools;
+    }
+
+    /**
+     * Gets a registered tool by name, or null.
+     */
+    public RegisteredTool getTool(String toolName) {
+        return catalog.tools.get(toolName);
+    }
+
+    /**
+     * Gets the tools that have a tag.
+     */
+    public List<RegisteredTool> getToolsWithTag(String tag) {
+        return getToolsWithAnyTag(tag);
+    }
+
+    /**
+     * Gets the tools that have every one of the tags.
+     */
+    public List<RegisteredTool> getToolsWithAllTags(String... tags) {
+        Catalog current = catalog;
+        if (tags.length == 0) {
+            return List.of();
+        }
 
-            // Register by tags
-            for (String tag : annotation.tags()) {
-                toolsByTag.computeIfAbsent(tag, k -> new ArrayList<>())
-                        .add(tool.getToolName());
+        // Intersect starting from the rarest tag, so the candidate set only shrinks
+        List<Set<String>> postings = new ArrayList<>();
+        for (String tag : tags) {
+            Set<String> names = current.toolsByTag.get(tag);
+            if (names == null) {
+                return List.of();
             }
+            postings.add(names);
         }
+        postings.sort(Comparator.comparingInt(Set::size));
 
-        return tools;
+        List<RegisteredTool> result = new ArrayList<>();
+        for (String toolName : postings.get(0)) {
+            boolean inAll = true;
+            for (int i = 1; i < postings.size() && inAll; i++) {
+                inAll = postings.get(i).contains(toolName);
+            }
+            if (inAll) {
+                result.add(current.tools.get(toolName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the tools that have at least one of the tags, each once.
+     */
+    public List<RegisteredTool> getToolsWithAnyTag(String... tags) {
+        Catalog current = catalog;
+        Set<String> names = new LinkedHashSet<>();
+        for (String tag : tags) {
+            names.addAll(current.toolsByTag.getOrDefault(tag, Set.of()));
+        }
+
+        List<RegisteredTool> result = new ArrayList<>(names.size());
+        for (String toolName : names) {
+            result.add(current.tools.get(toolName));
+        }
+        return result;
     }
 
     /**
-     * Discovers instance methods with @RegisterTool annotations in a class.
+     * Gets every tag in use.
+     */
+    public Set<String> getTags() {
+        return catalog.toolsByTag.keySet();
+    }
+
+    private void add(Collection<RegisteredTool> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            catalog = catalog.with(added);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the tools in the packages, scanning them only the first time this package set is asked for.
+     */
+    private static Map<String, RegisteredTool> scanPackages(String... packageNames) {
+        Set<String> key = Set.copyOf(Arrays.asList(packageNames));
+        CompletableFuture<Map<String, RegisteredTool>> scan = packageScans.get(key);
+        if (scan == null) {
+            CompletableFuture<Map<String, RegisteredTool>> created = new CompletableFuture<>();
+            scan = packageScans.putIfAbsent(key, created);
+            if (scan == null) {
+                // This caller won; everyone else asking for the same packages waits on its result
+                scan = created;
+                try {
+                    created.complete(Collections.unmodifiableMap(findTools(packageNames)));
+                } catch (RuntimeException | Error e) {
+                    packageScans.remove(key, created);
+                    created.completeExceptionally(e);
+                }
+            }
+        }
+
+        try {
+            return scan.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the @RegisterTool methods in the specified packages.
+     */
+    private static Map<String, RegisteredTool> findTools(String... packageNames) {
+        Map<String, RegisteredTool> discovered = new LinkedHashMap<>();
+        Indexes loaded = loadIndexes();
+        ClassLoader classLoader = ToolDiscovery.class.getClassLoader();
+
+        for (String packageName : packageNames) {
+            for (ToolIndex index : indexesUnder(loaded, packageName)) {
+                for (ToolIndex.Entry entry : index.getEntries()) {
+                    RegisteredTool registeredTool = new RegisteredTool(entry.getDeclaringClass(), entry.getMethod(),
+                            entry.getTool(), entry.getInvoker(), entry.getTags());
+                    discovered.put(registeredTool.tool.getToolName(), registeredTool);
+                }
+            }
+
+            // Classes compiled without the processor (another jar, a build without it) are
+            // only found by scanning their roots
+            List<URL> unindexedRoots = new ArrayList<>();
+            for (URL root : ClasspathHelper.forPackage(packageName, classLoader)) {
+                if (!loaded.indexedRoots.contains(classpathRoot(root, null))) {
+                    unindexedRoots.add(root);
+                }
+            }
+            if (unindexedRoots.isEmpty()) {
+                continue;
+            }
+
+            Reflections reflections = new Reflections(new ConfigurationBuilder()
+                    .setUrls(unindexedRoots)
+                    .addScanners(Scanners.MethodsAnnotated));
+
+            // Find all methods annotated with @RegisterTool
+            Set<Method> methods = reflections.getMethodsAnnotatedWith(RegisterTool.class);
+
+            for (Method method : methods) {
+                String methodPackage = method.getDeclaringClass().getPackageName();
+                if (!methodPackage.equals(packageName) && !methodPackage.startsWith(packageName + ".")) {
+                    continue;
+                }
+                RegisterTool annotation = method.getAnnotation(RegisterTool.class);
+                Tool tool = createToolFromMethod(method, annotation);
+                discovered.put(tool.getToolName(), new RegisteredTool(method.getDeclaringClass(), method, tool));
+            }
+        }
+
+        return discovered;
+    }
+
+    /**
+     * Gets the generated indexes for a package and its subpackages, matching what a scan of
+     * the package would cover.
+     */
+    private static List<ToolIndex> indexesUnder(Indexes loaded, String packageName) {
+        List<ToolIndex> matching = new ArrayList<>();
+        for (Map.Entry<String, List<ToolIndex>> entry : loaded.byPackage.entrySet()) {
+            String indexedPackage = entry.getKey();
+            if (indexedPackage.equals(packageName) || indexedPackage.startsWith(packageName + ".")) {
+                matching.addAll(entry.getValue());
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Loads every index listed in META-INF/tool-index.list on the classpath.
+     */
+    private static Indexes loadIndexes() {
+        Indexes current = indexes;
+        if (current != null) {
+            return current;
+        }
+
+        Map<String, List<ToolIndex>> byPackage = new HashMap<>();
+        Set<Path> indexedRoots = new HashSet<>();
+        ClassLoader classLoader = ToolDiscovery.class.getClassLoader();
+        try {
+            Enumeration<URL> resources = classLoader.getResources(ToolIndex.RESOURCE);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                Path root = classpathRoot(resource, ToolIndex.RESOURCE);
+                if (root != null) {
+                    indexedRoots.add(root);
+                }
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(resource.openStream(), StandardCharsets.UTF_8))) {
+                    String className;
+                    while ((className = reader.readLine()) != null) {
+                        className = className.trim();
+                        if (className.isEmpty()) {
+                            continue;
+                        }
+                        try {
+                            ToolIndex index = (ToolIndex) Class.forName(className, true, classLoader)
+                                    .getDeclaredConstructor().newInstance();
+                            byPackage.computeIfAbsent(className.substring(0, className.lastIndexOf('.')),
+                                    k -> new ArrayList<>()).add(index);
+                        } catch (ReflectiveOperationException | LinkageError e) {
+                            System.err.println("Failed to load tool index " + className + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read tool indexes: " + e.getMessage());
+        }
+
+        current = new Indexes(byPackage, indexedRoots);
+        indexes = current;
+        return current;
+    }
+
+    /**
+     * Gets the directory or jar a classpath URL belongs to, so URLs from getResources and from
+     * ClasspathHelper can be compared.
      *
-     * @param clazz The class to scan for annotated instance methods
-     * @return Map of tool names to RegisteredTool objects
+     * @param url A resource URL, or the URL of a classpath root
+     * @param resource The resource path the URL ends with, or null for a root
+     * @return The root, or null if it is not a local file
      */
-    public static Map<String, RegisteredTool> discoverInstanceTools(Class<?> clazz) {
-        Map<String, RegisteredTool> result = new HashMap<>();
+    private static Path classpathRoot(URL url, String resource) {
+        String spec = url.toExternalForm();
+        if (spec.startsWith("jar:")) {
+            int separator = spec.indexOf("!/");
+            spec = spec.substring("jar:".length(), separator >= 0 ? separator : spec.length());
+        } else if (resource != null && spec.endsWith(resource)) {
+            spec = spec.substring(0, spec.length() - resource.length());
+        }
+        try {
+            return Path.of(new URI(spec)).toAbsolutePath().normalize();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the @RegisterTool instance methods in a class.
+     */
+    private static Map<String, RegisteredTool> scanClass(Class<?> clazz) {
+        Map<String, RegisteredTool> result = new LinkedHashMap<>();
+        boolean indexed = false;
+
+        // The generated index covers all of the class's tools, if the class is in one
+        for (ToolIndex index : loadIndexes().byPackage.getOrDefault(clazz.getPackageName(), List.of())) {
+            for (ToolIndex.Entry entry : index.getEntries()) {
+                if (entry.getDeclaringClass() == clazz) {
+                    if (!entry.isStatic()) {
+                        result.put(entry.getTool().getToolName(), new RegisteredTool(
+                                clazz, entry.getMethod(), entry.getTool(), entry.getInvoker(), entry.getTags()));
+                    }
+                    indexed = true;
+                }
+            }
+        }
+        if (indexed) {
+            return result;
+        }
 
         // Get all declared methods, including instance methods
         for (Method method : clazz.getDeclaredMethods()) {
@@ -145,9 +585,9 @@ public class ToolDiscovery {
             paramSchema.put("type", getJsonType(param.getType()));
             properties.put(param.getName(), paramSchema);
 
-            // If parameter doesn't have default value (not possible to check in Java reflection)
-            // assume it's required
-            required.add(param.getName());
+            if (isRequired(method, param)) {
+                required.add(param.getName());
+            }
         }
 
         schema.put("properties", properties);
@@ -156,6 +596,22 @@ public class ToolDiscovery {
         return schema;
     }
 
+    /**
+     * Whether the LLM must give an argument for a parameter: every primitive, and the others
+     * unless the tool lists them as optional. The agent's own parameters never are.
+     */
+    static boolean isRequired(Method method, Parameter param) {
+        if (param.getType().isPrimitive()) {
+            return true;
+        }
+        RegisterTool annotation = method.getAnnotation(RegisterTool.class);
+        if (annotation == null
+                || param.getName().equals("actionContext") || param.getName().equals("actionAgent")) {
+            return false;
+        }
+        return !Arrays.asList(annotation.optional()).contains(param.getName());
+    }
+
     /**
      * Converts a Java type to a JSON Schema type.
      */
@@ -179,20 +635,4 @@ public class ToolDiscovery {
         }
     }
 
-    /**
-     * Gets all registered tools.
-     */
-    public static Map<String, RegisteredTool> getAllTools() {
-        return tools;
-    }
-
-    /**
-     * Gets tools by tag.
-     */
-    public static List<RegisteredTool> getToolsByTag(String tag) {
-        return toolsByTag.getOrDefault(tag, Collections.emptyList())
-                .stream()
-                .map(tools::get)
-                .collect(Collectors.toList());
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,159 @@
+package com.juleswhite.module4;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compile-time index of the @RegisterTool methods in one package.
+ *
+ * Implementations named GeneratedToolIndex are written by ToolIndexProcessor (see the
+ * processor source set) and listed in META-INF/tool-index.list. ToolDiscovery uses them instead
+ * of scanning the classpath, and because the index was built from source it carries the real
+ * parameter names and the Javadoc descriptions, and calls each tool directly.
+ */
+public interface ToolIndex {
+
+    /**
+     * Name of the generated index class in each package.
+     */
+    String CLASS_NAME = "GeneratedToolIndex";
+
+    /**
+     * Resource listing the generated index classes, one fully qualified name per line.
+     */
+    String RESOURCE = "META-INF/tool-index.list";
+
+    /**
+     * Calls a tool method directly.
+     */
+    interface Invoker {
+        /**
+         * @param target The receiver for an instance tool, ignored for a static tool
+         * @param args The tool arguments by parameter name
+         */
+        Object invoke(Object target, Map<String, Object> args) throws Exception;
+    }
+
+    /**
+     * Gets an argument that cannot be left out, which generated invokers use for required
+     * parameters so a missing one is reported as a tool error rather than passed on as null
+     * (or unboxed into an NPE, for a primitive).
+     */
+    static Object required(Map<String, Object> args, String name) {
+        Object value = args.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing required argument: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * One indexed tool method.
+     */
+    class Entry {
+        private final Class<?> declaringClass;
+        private final String methodName;
+        private final Class<?>[] parameterTypes;
+        private final boolean isStatic;
+        private final Tool tool;
+        private final String[] tags;
+        private final Invoker invoker;
+
+        /**
+         * @param parameterNames Names of the parameters exposed to the LLM
+         * @param parameterTypes JSON Schema types of those parameters
+         * @param parameterDescriptions Javadoc @param text for each parameter, or null entries
+         * @param parameterRequired Whether each parameter must be given; all are but the ones the
+         *                          tool lists as optional
+         */
+        public Entry(Class<?> declaringClass,
+                     String methodName,
+                     Class<?>[] methodParameterTypes,
+                     boolean isStatic,
+                     String toolName,
+                     String description,
+                     boolean terminal,
+                     String[] tags,
+                     String[] parameterNames,
+                     String[] parameterTypes,
+                     String[] parameterDescriptions,
+                     boolean[] parameterRequired,
+                     Invoker invoker) {
+            this.declaringClass = declaringClass;
+            this.methodName = methodName;
+            this.parameterTypes = methodParameterTypes;
+            this.isStatic = isStatic;
+            this.tool = new Tool(toolName, description,
+                    schema(parameterNames, parameterTypes, parameterDescriptions, parameterRequired), terminal);
+            this.tags = tags;
+            this.invoker = invoker;
+        }
+
+        public Class<?> getDeclaringClass() {
+            return declaringClass;
+        }
+
+        public boolean isStatic() {
+            return isStatic;
+        }
+
+        public Tool getTool() {
+            return tool;
+        }
+
+        public String[] getTags() {
+            return tags;
+        }
+
+        public Invoker getInvoker() {
+            return invoker;
+        }
+
+        /**
+         * Looks up the indexed method. This is a direct lookup on the declaring class, not a scan.
+         */
+        public Method getMethod() {
+            try {
+                return declaringClass.getDeclaredMethod(methodName, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("Tool index is out of date for " + declaringClass.getName()
+                        + "." + methodName, e);
+            }
+        }
+
+        /**
+         * Builds the parameters schema in the same shape as ToolDiscovery does at runtime.
+         */
+        private static Map<String, Object> schema(String[] names, String[] types, String[] descriptions,
+                                                  boolean[] required) {
+            Map<String, Object> schema = new HashMap<>();
+            schema.put("type", "object");
+
+            Map<String, Object> properties = new HashMap<>();
+            List<String> requiredNames = new ArrayList<>();
+            for (int i = 0; i < names.length; i++) {
+                Map<String, Object> paramSchema = new HashMap<>();
+                paramSchema.put("type", types[i]);
+                if (descriptions[i] != null) {
+                    paramSchema.put("description", descriptions[i]);
+                }
+                properties.put(names[i], paramSchema);
+                if (required[i]) {
+                    requiredNames.add(names[i]);
+                }
+            }
+
+            schema.put("properties", properties);
+            schema.put("required", requiredNames);
+            return schema;
+        }
+    }
+
+    /**
+     * Gets the indexed tools of the package.
+     */
+    List<Entry> getEntries();
+}
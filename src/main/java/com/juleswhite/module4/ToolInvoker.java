@@ -0,0 +1,168 @@
+package com.juleswhite.module4;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A tool binding compiled once, when the tool is registered.
+ *
+ * The method is turned into a MethodHandle that takes its arguments as one Object[], with the
+ * receiver already bound for instance tools (or passed on each call, for an unbound invoker).
+ * The argument name for each parameter slot and the converter for each parameter type are
+ * resolved up front, so a call is a few map lookups and a handle invocation instead of a
+ * reflective lookup and Method.invoke.
+ *
+ * It is a Function over the argument map, so Environment executes it like any other binding.
+ */
+public class ToolInvoker implements Function<Map<String, Object>, Object> {
+
+    private final String toolName;
+    private final MethodHandle handle;
+    private final String[] parameterNames;
+    private final Function<Object, Object>[] converters;
+    private final boolean positionalFallback;
+
+    // Whether each parameter must be given, so a missing argument is reported instead of passed
+    // on as null (or unboxed, for a primitive)
+    private final boolean[] required;
+
+    // Whether the handle takes the receiver as its first argument
+    private final boolean receiverSlot;
+
+    private ToolInvoker(String toolName,
+                        MethodHandle handle,
+                        String[] parameterNames,
+                        Function<Object, Object>[] converters,
+                        boolean[] required,
+                        boolean positionalFallback,
+                        boolean receiverSlot) {
+        this.toolName = toolName;
+        this.handle = handle;
+        this.parameterNames = parameterNames;
+        this.converters = converters;
+        this.required = required;
+        this.positionalFallback = positionalFallback;
+        this.receiverSlot = receiverSlot;
+    }
+
+    /**
+     * Compiles a binding that matches arguments to parameters by name.
+     *
+     * @param toolName Name used in error messages
+     * @param method The tool method
+     * @param instance The receiver for an instance method, or null for a static method or
+     *                 to pass the receiver on each call with invokeOn
+     */
+    public static ToolInvoker compile(String toolName, Method method, Object instance) {
+        return compile(toolName, method, instance, false);
+    }
+
+    /**
+     * Compiles a binding.
+     *
+     * @param positionalFallback Whether parameters with no argument of the same name are filled
+     *                           from the arguments in order, as Environment.prepareArguments does
+     */
+    @SuppressWarnings("unchecked")
+    public static ToolInvoker compile(String toolName, Method method, Object instance, boolean positionalFallback) {
+        try {
+            if (!Modifier.isPublic(method.getModifiers())
+                    || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                method.setAccessible(true);
+            }
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            boolean receiverSlot = !Modifier.isStatic(method.getModifiers()) && instance == null;
+            if (!Modifier.isStatic(method.getModifiers()) && instance != null) {
+                handle = handle.bindTo(instance);
+            }
+
+            Parameter[] parameters = method.getParameters();
+            handle = handle
+                    .asSpreader(Object[].class, parameters.length + (receiverSlot ? 1 : 0))
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+
+            String[] names = new String[parameters.length];
+            Function<Object, Object>[] converters = new Function[parameters.length];
+            boolean[] required = new boolean[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                names[i] = parameters[i].getName();
+                converters[i] = Environment.converterFor(parameters[i].getType());
+                required[i] = ToolDiscovery.isRequired(method, parameters[i]);
+            }
+
+            return new ToolInvoker(toolName, handle, names, converters, required, positionalFallback, receiverSlot);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot bind tool " + toolName + " to " + method, e);
+        }
+    }
+
+    /**
+     * Calls the tool, returning an error message instead of throwing, like the reflective
+     * bindings this replaces.
+     */
+    @Override
+    public Object apply(Map<String, Object> args) {
+        try {
+            return invoke(args);
+        } catch (Exception e) {
+            return "Error invoking " + toolName + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * Calls the tool, letting any exception it throws propagate.
+     */
+    public Object invoke(Map<String, Object> args) throws Exception {
+        return invokeOn(null, args);
+    }
+
+    /**
+     * Calls the tool on a receiver. The receiver is only used by unbound instance invokers.
+     */
+    public Object invokeOn(Object receiver, Map<String, Object> args) throws Exception {
+        int offset = receiverSlot ? 1 : 0;
+        Object[] methodArgs = new Object[offset + parameterNames.length];
+        if (receiverSlot) {
+            methodArgs[0] = receiver;
+        }
+        for (int i = 0; i < parameterNames.length; i++) {
+            methodArgs[offset + i] = converters[i].apply(args.get(parameterNames[i]));
+        }
+
+        // Fill parameters that had no argument of the same name from the arguments in order
+        if (positionalFallback && parameterNames.length == args.size() && args.size() <= 10) {
+            Iterator<Object> values = args.values().iterator();
+            for (int i = 0; i < parameterNames.length && values.hasNext(); i++) {
+                Object value = values.next();
+                if (methodArgs[offset + i] == null) {
+                    methodArgs[offset + i] = converters[i].apply(value);
+                }
+            }
+        }
+
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (methodArgs[offset + i] == null && required[i]) {
+                throw new IllegalArgumentException("Missing required argument: " + parameterNames[i]);
+            }
+        }
+
+        try {
+            return handle.invokeExact(methodArgs);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    public int getParameterCount() {
+        return parameterNames.length;
+    }
+}
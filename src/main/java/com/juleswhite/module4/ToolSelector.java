@@ -0,0 +1,255 @@
+package com.juleswhite.module4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the tools offered to the LLM for one step, so a large registry doesn't make every
+ * prompt carry every tool.
+ *
+ * Tools are ranked with BM25 over their name, description, parameters and tags, using the
+ * goals, the task and the latest memory items as the query. The top maxTools are offered, plus
+ * every terminal tool and every tool with one of the always-included tags. The selection keeps
+ * the registry's order and is a subset of its ToolSnapshot, so provider payloads stay cached.
+ *
+ * The index is built once per snapshot version and needs no model or network access.
+ */
+public class ToolSelector {
+
+    // Standard BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // Tag and name words say more about what a tool is for than its description does
+    private static final int TAG_WEIGHT = 3;
+    private static final int NAME_WEIGHT = 2;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "the", "and", "or", "of", "to", "in", "on", "for", "with", "by", "from",
+            "is", "are", "be", "it", "its", "this", "that", "as", "at", "if", "all", "any",
+            "return", "returns", "specified", "given", "map", "containing");
+
+    private final int maxTools;
+    private final int recentItems;
+    private final Set<String> alwaysIncludedTags;
+
+    private volatile RelevanceIndex index;
+
+    /**
+     * An index over the tools of one snapshot.
+     */
+    private static class RelevanceIndex {
+        final ToolSnapshot snapshot;
+        final List<Map<String, Integer>> termFrequencies = new ArrayList<>();
+        final int[] lengths;
+        final Map<String, Integer> documentFrequencies = new HashMap<>();
+        final boolean[] alwaysIncluded;
+        double averageLength;
+
+        RelevanceIndex(ToolSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.lengths = new int[snapshot.size()];
+            this.alwaysIncluded = new boolean[snapshot.size()];
+        }
+    }
+
+    /**
+     * Creates a selector that uses the last 3 memory items as context.
+     *
+     * @param maxTools Number of tools picked by relevance, not counting the always-included ones
+     */
+    public ToolSelector(int maxTools) {
+        this(maxTools, 3, Set.of());
+    }
+
+    /**
+     * @param maxTools Number of tools picked by relevance, not counting the always-included ones
+     * @param recentItems Number of most recent memory items added to the query
+     * @param alwaysIncludedTags Tools with any of these tags are offered on every step
+     */
+    public ToolSelector(int maxTools, int recentItems, Set<String> alwaysIncludedTags) {
+        this.maxTools = maxTools;
+        this.recentItems = recentItems;
+        this.alwaysIncludedTags = alwaysIncludedTags;
+    }
+
+    /**
+     * Selects the tools to offer for the next step.
+     *
+     * @return The registry's snapshot itself when it is small enough, otherwise a subset of it
+     */
+    public List<Tool> select(ActionRegistry actions, List<Goal> goals, Memory memory) {
+        ToolSnapshot snapshot = actions.getToolSnapshot();
+        if (snapshot.size() <= maxTools) {
+            return snapshot;
+        }
+
+        RelevanceIndex current = index;
+        if (current == null || current.snapshot != snapshot) {
+            current = buildIndex(snapshot, actions.getToolDiscovery());
+            index = current;
+        }
+
+        double[] scores = score(current, queryTerms(goals, memory));
+
+        // Rank the tools that aren't included anyway and keep the best maxTools
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!current.alwaysIncluded[i]) {
+                candidates.add(i);
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(scores[b], scores[a]));
+
+        boolean[] selected = current.alwaysIncluded.clone();
+        for (int i = 0; i < Math.min(maxTools, candidates.size()); i++) {
+            selected[candidates.get(i)] = true;
+        }
+
+        List<Tool> tools = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (selected[i]) {
+                tools.add(snapshot.get(i));
+            }
+        }
+        return snapshot.subset(tools);
+    }
+
+    private RelevanceIndex buildIndex(ToolSnapshot snapshot, ToolDiscovery discovery) {
+        RelevanceIndex built = new RelevanceIndex(snapshot);
+        long totalLength = 0;
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            Tool tool = snapshot.get(i);
+            ToolDiscovery.RegisteredTool registered = discovery.getTool(tool.getToolName());
+            Set<String> tags = registered != null ? registered.tags : Set.of();
+
+            List<String> terms = new ArrayList<>();
+            for (int w = 0; w < NAME_WEIGHT; w++) {
+                tokenize(tool.getToolName(), terms);
+            }
+            for (int w = 0; w < TAG_WEIGHT; w++) {
+                for (String tag : tags) {
+                    tokenize(tag, terms);
+                }
+            }
+            tokenize(tool.getDescription(), terms);
+            addParameterTerms(tool.getParameters(), terms);
+
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String term : terms) {
+                frequencies.merge(term, 1, Integer::sum);
+            }
+            for (String term : frequencies.keySet()) {
+                built.documentFrequencies.merge(term, 1, Integer::sum);
+            }
+            built.termFrequencies.add(frequencies);
+            built.lengths[i] = terms.size();
+            totalLength += terms.size();
+
+            built.alwaysIncluded[i] = tool.isTerminal() || !Collections.disjoint(tags, alwaysIncludedTags);
+        }
+
+        built.averageLength = snapshot.isEmpty() ? 1 : Math.max(1, (double) totalLength / snapshot.size());
+        return built;
+    }
+
+    private static void addParameterTerms(Map<String, Object> parameters, List<String> terms) {
+        if (parameters == null || !(parameters.get("properties") instanceof Map<?, ?> properties)) {
+            return;
+        }
+        for (Map.Entry<?, ?> property : properties.entrySet()) {
+            tokenize(String.valueOf(property.getKey()), terms);
+            if (property.getValue() instanceof Map<?, ?> schema && schema.get("description") instanceof String text) {
+                tokenize(text, terms);
+            }
+        }
+    }
+
+    /**
+     * Builds the query from the goals, the task and the most recent memory items.
+     */
+    private Set<String> queryTerms(List<Goal> goals, Memory memory) {
+        List<String> terms = new ArrayList<>();
+        for (Goal goal : goals) {
+            tokenize(goal.getName(), terms);
+            tokenize(goal.getDescription(), terms);
+        }
+
+        int size = memory.size();
+        int from = Math.max(0, size - recentItems);
+        if (from > 0) {
+            // The task is set first and pinned; it stays relevant for the whole session
+            List<MemoryRecord> first = memory.getRecords(1);
+            if (!first.isEmpty() && first.get(0).isPinned()) {
+                tokenize(first.get(0).getContent(), terms);
+            }
+        }
+        for (MemoryRecord record : memory.getRecordsSince(from)) {
+            tokenize(record.getContent(), terms);
+        }
+
+        return new HashSet<>(terms);
+    }
+
+    private static double[] score(RelevanceIndex index, Set<String> queryTerms) {
+        int documents = index.lengths.length;
+        double[] scores = new double[documents];
+
+        for (String term : queryTerms) {
+            Integer documentFrequency = index.documentFrequencies.get(term);
+            if (documentFrequency == null) {
+                continue;
+            }
+            double idf = Math.log(1 + (documents - documentFrequency + 0.5) / (documentFrequency + 0.5));
+            for (int i = 0; i < documents; i++) {
+                Integer frequency = index.termFrequencies.get(i).get(term);
+                if (frequency == null) {
+                    continue;
+                }
+                double norm = K1 * (1 - B + B * index.lengths[i] / index.averageLength);
+                scores[i] += idf * frequency * (K1 + 1) / (frequency + norm);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Splits text into lower-case words, breaking camelCase and snake_case names apart and
+     * dropping stop words and a plural "s".
+     */
+    static void tokenize(String text, List<String> terms) {
+        if (text == null) {
+            return;
+        }
+
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            boolean boundary = !Character.isLetterOrDigit(c)
+                    || (Character.isUpperCase(c) && i > 0 && Character.isLowerCase(text.charAt(i - 1)));
+            if (boundary && word.length() > 0) {
+                addTerm(word.toString(), terms);
+                word.setLength(0);
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            }
+        }
+    }
+
+    private static void addTerm(String word, List<String> terms) {
+        if (word.length() < 2 || STOP_WORDS.contains(word)) {
+            return;
+        }
+        if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss")) {
+            word = word.substring(0, word.length() - 1);
+        }
+        terms.add(word);
+    }
+}
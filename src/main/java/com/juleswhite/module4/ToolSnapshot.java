@@ -0,0 +1,83 @@
+package com.juleswhite.module4;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * An immutable, versioned view of the tools in an ActionRegistry.
+ *
+ * A snapshot is built once per registration change and handed to every prompt until the
+ * registry changes again. Because it is a List&lt;Tool&gt;, it flows through AgentLanguage and
+ * Prompt unchanged, and an LLM that recognises it can reuse provider-specific tool payloads
+ * (e.g. OpenAI ChatCompletionTool objects) instead of converting every tool on every request.
+ */
+public class ToolSnapshot extends AbstractList<Tool> {
+
+    private final long version;
+    private final List<Tool> tools;
+
+    // provider -> tool name -> converted payload; shared with subsets of this snapshot
+    private final Map<String, Map<String, Object>> toolPayloads;
+
+    // provider -> payloads for exactly this list of tools
+    private final Map<String, List<?>> listPayloads = new ConcurrentHashMap<>();
+
+    public ToolSnapshot(long version, List<Tool> tools) {
+        this(version, tools, new ConcurrentHashMap<>());
+    }
+
+    private ToolSnapshot(long version, List<Tool> tools, Map<String, Map<String, Object>> toolPayloads) {
+        this.version = version;
+        this.tools = Collections.unmodifiableList(new ArrayList<>(tools));
+        this.toolPayloads = toolPayloads;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public Tool get(int index) {
+        return tools.get(index);
+    }
+
+    @Override
+    public int size() {
+        return tools.size();
+    }
+
+    /**
+     * Gets the provider-specific payloads for these tools, converting each tool at most once
+     * per snapshot version.
+     *
+     * @param provider Name of the payload format, e.g. "openai"
+     * @param converter Converts one tool into the provider's format
+     * @return An immutable list of payloads, in the same order as the tools
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getPayloads(String provider, Function<Tool, T> converter) {
+        return (List<T>) listPayloads.computeIfAbsent(provider, key -> {
+            Map<String, Object> converted = toolPayloads.computeIfAbsent(provider, k -> new ConcurrentHashMap<>());
+            List<T> payloads = new ArrayList<>(tools.size());
+            for (Tool tool : tools) {
+                payloads.add((T) converted.computeIfAbsent(tool.getToolName(), name -> converter.apply(tool)));
+            }
+            return Collections.unmodifiableList(payloads);
+        });
+    }
+
+    /**
+     * Creates a snapshot holding only some of these tools. It has the same version and shares
+     * the already converted per-tool payloads.
+     *
+     * @param selected Tools taken from this snapshot
+     */
+    public ToolSnapshot subset(List<Tool> selected) {
+        return new ToolSnapshot(version, selected, toolPayloads);
+    }
+}
@@ -0,0 +1,468 @@
+package com.juleswhite.processor;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a GeneratedToolIndex class into every package that has @RegisterTool methods, and
+ * lists them in META-INF/tool-index.list, so ToolDiscovery can load the tools without scanning
+ * the classpath.
+ *
+ * Working from source gives the index what reflection cannot: the declared parameter names, the
+ * Javadoc for the tool and parameter descriptions, and a direct call to each method in place of a
+ * reflective one. The tools in this repo keep their Javadoc as the first comment inside the method
+ * body, so when a method has no Javadoc of its own that comment is read from the source instead.
+ */
+@SupportedAnnotationTypes(ToolIndexProcessor.REGISTER_TOOL)
+public class ToolIndexProcessor extends AbstractProcessor {
+
+    static final String REGISTER_TOOL = "com.juleswhite.module4.RegisterTool";
+    private static final String TOOL_INDEX = "com.juleswhite.module4.ToolIndex";
+    private static final String ENVIRONMENT = "com.juleswhite.module4.Environment";
+    private static final String CLASS_NAME = "GeneratedToolIndex";
+    private static final String RESOURCE = "META-INF/tool-index.list";
+
+    // Parameters the agent supplies itself; they are callable but not described to the LLM
+    private static final Set<String> SPECIAL_PARAMETERS = Set.of("actionContext", "actionAgent");
+
+    private static final Pattern LEADING_DOC_COMMENT = Pattern.compile("\\A\\{\\s*/\\*\\*(.*?)\\*/", Pattern.DOTALL);
+
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Trees trees;
+
+    // Generated index class names, written to the resource once processing is over
+    private final Set<String> generated = new LinkedHashSet<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.elements = processingEnv.getElementUtils();
+        this.types = processingEnv.getTypeUtils();
+        this.filer = processingEnv.getFiler();
+        try {
+            this.trees = Trees.instance(processingEnv);
+        } catch (IllegalArgumentException e) {
+            // Not running inside javac; only regular Javadoc comments will be used
+            this.trees = null;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndexList();
+            return false;
+        }
+
+        TypeElement registerTool = elements.getTypeElement(REGISTER_TOOL);
+        if (registerTool == null) {
+            return false;
+        }
+
+        // Group the tool methods by package, in a stable order so the output is reproducible
+        Map<String, List<ExecutableElement>> byPackage = new TreeMap<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(registerTool)) {
+            ExecutableElement method = (ExecutableElement) element;
+            if (method.getModifiers().contains(Modifier.PRIVATE)
+                    || method.getEnclosingElement().getModifiers().contains(Modifier.PRIVATE)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "@RegisterTool methods and their classes cannot be private", method);
+                continue;
+            }
+            String packageName = elements.getPackageOf(method).getQualifiedName().toString();
+            byPackage.computeIfAbsent(packageName, k -> new ArrayList<>()).add(method);
+        }
+
+        for (Map.Entry<String, List<ExecutableElement>> entry : byPackage.entrySet()) {
+            String className = entry.getKey().isEmpty() ? CLASS_NAME : entry.getKey() + "." + CLASS_NAME;
+            if (!generated.add(className)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "@RegisterTool methods in " + entry.getKey() + " were found in more than one processing round",
+                        entry.getValue().get(0));
+                continue;
+            }
+            writeIndex(entry.getKey(), className, entry.getValue());
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the index class for one package.
+     */
+    private void writeIndex(String packageName, String className, List<ExecutableElement> methods) {
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+        source.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        source.append("public final class ").append(CLASS_NAME).append(" implements ").append(TOOL_INDEX).append(" {\n\n");
+        source.append("    private static final java.util.List<").append(TOOL_INDEX).append(".Entry> ENTRIES = java.util.List.of(\n");
+        for (int i = 0; i < methods.size(); i++) {
+            appendEntry(source, methods.get(i));
+            source.append(i < methods.size() - 1 ? ",\n" : "\n");
+        }
+        source.append("    );\n\n");
+        source.append("    @Override\n");
+        source.append("    public java.util.List<").append(TOOL_INDEX).append(".Entry> getEntries() {\n");
+        source.append("        return ENTRIES;\n");
+        source.append("    }\n");
+        source.append("}\n");
+
+        Element[] origins = methods.stream().map(Element::getEnclosingElement).distinct().toArray(Element[]::new);
+        try {
+            JavaFileObject file = filer.createSourceFile(className, origins);
+            try (Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + className + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends the ToolIndex.Entry constructor call for one method.
+     */
+    private void appendEntry(StringBuilder source, ExecutableElement method) {
+        TypeElement declaringClass = (TypeElement) method.getEnclosingElement();
+        String declaringName = declaringClass.getQualifiedName().toString();
+        String methodName = method.getSimpleName().toString();
+        boolean isStatic = method.getModifiers().contains(Modifier.STATIC);
+        Map<String, Object> annotation = annotationValues(method);
+
+        String toolName = (String) annotation.getOrDefault("name", "");
+        if (toolName.isEmpty()) {
+            toolName = methodName;
+        }
+
+        String doc = docComment(method);
+        String description = (String) annotation.getOrDefault("description", "");
+        if (description.isEmpty()) {
+            description = doc == null ? null : summary(doc);
+        }
+        if (description == null || description.isEmpty()) {
+            description = "Description for " + methodName;
+        }
+        Map<String, String> paramDocs = doc == null ? Map.of() : paramDescriptions(doc);
+        Set<String> optional = optionalParameters(method, annotation);
+
+        List<String> classLiterals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> jsonTypes = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        List<String> required = new ArrayList<>();
+        List<String> arguments = new ArrayList<>();
+        for (VariableElement parameter : method.getParameters()) {
+            String name = parameter.getSimpleName().toString();
+            TypeMirror type = parameter.asType();
+            String erasure = types.erasure(type).toString();
+
+            boolean isRequired = !SPECIAL_PARAMETERS.contains(name) && !optional.contains(name);
+
+            // Missing required arguments are reported before any cast, which a null primitive would fail
+            classLiterals.add(erasure + ".class");
+            String value = isRequired
+                    ? TOOL_INDEX + ".required(args, " + literal(name) + ")"
+                    : "args.get(" + literal(name) + ")";
+            arguments.add("(" + type + ") " + ENVIRONMENT + ".convertToType(" + value + ", " + erasure + ".class)");
+
+            if (!SPECIAL_PARAMETERS.contains(name)) {
+                names.add(literal(name));
+                jsonTypes.add(literal(jsonType(type)));
+                descriptions.add(paramDocs.containsKey(name) ? literal(paramDocs.get(name)) : "null");
+                required.add(String.valueOf(isRequired));
+            }
+        }
+
+        List<String> tags = new ArrayList<>();
+        Object tagValues = annotation.get("tags");
+        if (tagValues instanceof List<?> list) {
+            for (Object tag : list) {
+                tags.add(literal((String) ((AnnotationValue) tag).getValue()));
+            }
+        }
+
+        String receiver = isStatic ? declaringName : "((" + declaringName + ") target)";
+        String call = receiver + "." + methodName + "(" + String.join(", ", arguments) + ")";
+        String invoker = method.getReturnType().getKind() == TypeKind.VOID
+                ? "(target, args) -> { " + call + "; return null; }"
+                : "(target, args) -> " + call;
+
+        source.append("            new ").append(TOOL_INDEX).append(".Entry(\n");
+        source.append("                    ").append(declaringName).append(".class,\n");
+        source.append("                    ").append(literal(methodName)).append(",\n");
+        source.append("                    new Class<?>[] {").append(String.join(", ", classLiterals)).append("},\n");
+        source.append("                    ").append(isStatic).append(",\n");
+        source.append("                    ").append(literal(toolName)).append(",\n");
+        source.append("                    ").append(literal(description)).append(",\n");
+        source.append("                    ").append(Boolean.TRUE.equals(annotation.get("terminal"))).append(",\n");
+        source.append("                    new String[] {").append(String.join(", ", tags)).append("},\n");
+        source.append("                    new String[] {").append(String.join(", ", names)).append("},\n");
+        source.append("                    new String[] {").append(String.join(", ", jsonTypes)).append("},\n");
+        source.append("                    new String[] {").append(String.join(", ", descriptions)).append("},\n");
+        source.append("                    new boolean[] {").append(String.join(", ", required)).append("},\n");
+        source.append("                    ").append(invoker).append(")");
+    }
+
+    /**
+     * Gets the explicitly set @RegisterTool values of a method by name.
+     */
+    private Map<String, Object> annotationValues(ExecutableElement method) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (!type.getQualifiedName().contentEquals(REGISTER_TOOL)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                    : mirror.getElementValues().entrySet()) {
+                values.put(entry.getKey().getSimpleName().toString(), entry.getValue().getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gets the parameters the tool lists as optional, reporting names that are not parameters
+     * and primitives, which cannot be passed null.
+     */
+    private Set<String> optionalParameters(ExecutableElement method, Map<String, Object> annotation) {
+        Set<String> optional = new LinkedHashSet<>();
+        if (annotation.get("optional") instanceof List<?> list) {
+            for (Object value : list) {
+                optional.add((String) ((AnnotationValue) value).getValue());
+            }
+        }
+
+        for (String name : optional) {
+            VariableElement parameter = method.getParameters().stream()
+                    .filter(p -> p.getSimpleName().contentEquals(name))
+                    .findFirst()
+                    .orElse(null);
+            if (parameter == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Optional parameter " + name + " is not a parameter of " + method.getSimpleName(), method);
+            } else if (parameter.asType().getKind().isPrimitive()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Primitive parameter " + name + " cannot be optional", parameter);
+            }
+        }
+        return optional;
+    }
+
+    /**
+     * Gets the method's Javadoc, or the doc comment that opens its body.
+     */
+    private String docComment(ExecutableElement method) {
+        String doc = elements.getDocComment(method);
+        if (doc != null && !doc.isBlank()) {
+            return doc;
+        }
+        if (trees == null) {
+            return null;
+        }
+
+        try {
+            TreePath path = trees.getPath(method);
+            if (path == null || ((MethodTree) path.getLeaf()).getBody() == null) {
+                return null;
+            }
+            CompilationUnitTree unit = path.getCompilationUnit();
+            SourcePositions positions = trees.getSourcePositions();
+            MethodTree tree = (MethodTree) path.getLeaf();
+            long start = positions.getStartPosition(unit, tree.getBody());
+            long end = positions.getEndPosition(unit, tree.getBody());
+            CharSequence content = unit.getSourceFile().getCharContent(true);
+            if (start < 0 || end > content.length()) {
+                return null;
+            }
+
+            Matcher matcher = LEADING_DOC_COMMENT.matcher(content.subSequence((int) start, (int) end));
+            if (!matcher.find()) {
+                return null;
+            }
+            // Strip the leading asterisks, as getDocComment does
+            StringBuilder text = new StringBuilder();
+            for (String line : matcher.group(1).split("\\R")) {
+                text.append(line.replaceFirst("^\\s*\\*?\\s?", "")).append('\n');
+            }
+            return text.toString();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the text before the first block tag, with whitespace collapsed.
+     */
+    private static String summary(String doc) {
+        StringBuilder text = new StringBuilder();
+        for (String line : doc.split("\\R")) {
+            if (line.trim().startsWith("@")) {
+                break;
+            }
+            text.append(line.trim()).append(' ');
+        }
+        return text.toString().trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Gets the @param descriptions by parameter name.
+     */
+    private static Map<String, String> paramDescriptions(String doc) {
+        Map<String, String> descriptions = new LinkedHashMap<>();
+        String current = null;
+        StringBuilder text = new StringBuilder();
+        for (String line : doc.split("\\R")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("@")) {
+                if (current != null) {
+                    descriptions.put(current, text.toString().trim().replaceAll("\\s+", " "));
+                }
+                current = null;
+                text.setLength(0);
+                String[] parts = trimmed.split("\\s+", 3);
+                if (parts[0].equals("@param") && parts.length > 1) {
+                    current = parts[1];
+                    text.append(parts.length > 2 ? parts[2] : "");
+                }
+            } else if (current != null) {
+                text.append(' ').append(trimmed);
+            }
+        }
+        if (current != null) {
+            descriptions.put(current, text.toString().trim().replaceAll("\\s+", " "));
+        }
+        return descriptions;
+    }
+
+    /**
+     * Converts a Java type to a JSON Schema type, matching ToolDiscovery.getJsonType.
+     */
+    private String jsonType(TypeMirror type) {
+        TypeKind kind = type.getKind();
+        if (kind == TypeKind.DECLARED) {
+            TypeMirror unboxed;
+            try {
+                unboxed = types.unboxedType(type);
+                kind = unboxed.getKind();
+            } catch (IllegalArgumentException e) {
+                // Not a boxed primitive
+            }
+        }
+
+        switch (kind) {
+            case INT, LONG, SHORT, BYTE:
+                return "integer";
+            case FLOAT, DOUBLE:
+                return "number";
+            case BOOLEAN:
+                return "boolean";
+            case ARRAY:
+                return "array";
+            default:
+                break;
+        }
+
+        String erasure = types.erasure(type).toString();
+        if (erasure.equals("java.lang.String")) {
+            return "string";
+        }
+        TypeElement collection = elements.getTypeElement("java.util.Collection");
+        if (collection != null && kind == TypeKind.DECLARED
+                && types.isAssignable(types.erasure(type), types.erasure(collection.asType()))) {
+            return "array";
+        }
+        return "object";
+    }
+
+    /**
+     * Writes the list of generated index classes that ToolDiscovery reads at runtime.
+     */
+    private void writeIndexList() {
+        if (generated.isEmpty()) {
+            return;
+        }
+        try {
+            FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "", RESOURCE);
+            try (Writer writer = file.openWriter()) {
+                for (String className : generated) {
+                    writer.write(className);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + RESOURCE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Quotes a string as a Java string literal.
+     */
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> literal.append("\\\"");
+                case '\\' -> literal.append("\\\\");
+                case '\n' -> literal.append("\\n");
+                case '\r' -> literal.append("\\r");
+                case '\t' -> literal.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+                }
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.juleswhite.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    // Opens when half of the last 4 calls (at least 4 seen) failed
+    private static CircuitBreaker breaker(Duration openDuration) {
+        return new CircuitBreaker(4, 4, 0.5, openDuration);
+    }
+
+    private static void fail(CircuitBreaker breaker, int calls) {
+        for (int i = 0; i < calls; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+    }
+
+    private static void succeed(CircuitBreaker breaker, int calls) {
+        for (int i = 0; i < calls; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onSuccess();
+        }
+    }
+
+    @Test
+    void staysClosedUntilMinimumCallsAreSeen() {
+        CircuitBreaker breaker = breaker(Duration.ofHours(1));
+        fail(breaker, 3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void opensAtTheFailureRateOverTheWindow() {
+        CircuitBreaker breaker = breaker(Duration.ofHours(1));
+        succeed(breaker, 3);
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // The oldest success slides out of the window: two failures in the last four
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void rejectsAndCountsCallsWhileOpen() {
+        CircuitBreaker breaker = breaker(Duration.ofHours(1));
+        fail(breaker, 4);
+
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(2, breaker.getRejectedCount());
+        assertTrue(breaker.getRemainingOpenTime().compareTo(Duration.ofMinutes(59)) > 0);
+    }
+
+    @Test
+    void halfOpenLetsOneProbeThrough() {
+        CircuitBreaker breaker = breaker(Duration.ZERO);
+        fail(breaker, 4);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    void successfulProbeClosesWithAFreshWindow() {
+        CircuitBreaker breaker = breaker(Duration.ZERO);
+        fail(breaker, 4);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // The failures before opening were forgotten, so three more don't reach the minimum
+        fail(breaker, 3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failedProbeOpensAgain() {
+        CircuitBreaker breaker = breaker(Duration.ofMillis(200));
+        fail(breaker, 4);
+        assertFalse(breaker.tryAcquire());
+
+        try {
+            Thread.sleep(250);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertTrue(breaker.getRemainingOpenTime().compareTo(Duration.ZERO) > 0);
+    }
+
+    @Test
+    void ignoredProbeFreesTheSlotForAnother() {
+        CircuitBreaker breaker = breaker(Duration.ZERO);
+        fail(breaker, 4);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onIgnored();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void ignoredCallsDoNotCountTowardsTheWindow() {
+        CircuitBreaker breaker = breaker(Duration.ofHours(1));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onIgnored();
+        }
+        fail(breaker, 3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,146 @@
+package com.juleswhite.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestSchedulerTest {
+
+    private static final String MODEL = "test-model";
+    private static final String KEY = "test-key";
+
+    // One request a second, and a bucket holding just one
+    private static final RequestScheduler.Limits ONE_PER_SECOND =
+            new RequestScheduler.Limits(60, 0, Duration.ofSeconds(1));
+
+    private static RequestScheduler.Permit await(CompletableFuture<RequestScheduler.Permit> permit) throws Exception {
+        return permit.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void unlimitedModelsAreGrantedAtOnceButCounted() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(RequestScheduler.Limits.UNLIMITED);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(scheduler.acquireAsync(MODEL, KEY, 1_000_000, 5).isDone());
+        }
+
+        RequestScheduler.Bucket bucket = scheduler.getBucket(MODEL, KEY);
+        assertEquals(100, bucket.getGranted());
+        assertEquals(0, bucket.getDelayed());
+        assertFalse(scheduler.isLimited(MODEL));
+    }
+
+    @Test
+    void lowerPriorityNumberIsServedFirst() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(ONE_PER_SECOND);
+        scheduler.acquire(MODEL, KEY, 0, 5);
+
+        CompletableFuture<RequestScheduler.Permit> background = scheduler.acquireAsync(MODEL, KEY, 0, 8);
+        CompletableFuture<RequestScheduler.Permit> urgent = scheduler.acquireAsync(MODEL, KEY, 0, 1);
+        assertEquals(2, scheduler.getBucket(MODEL, KEY).getQueueLength());
+
+        await(urgent);
+        assertFalse(background.isDone());
+        await(background);
+        assertEquals(2, scheduler.getBucket(MODEL, KEY).getDelayed());
+    }
+
+    @Test
+    void waitingEarnsPriority() {
+        long step = RequestScheduler.PRIORITY_STEP.toNanos();
+        RequestScheduler.Waiter old = new RequestScheduler.Waiter(0, 0, 3, 1);
+
+        // A priority 2 caller arriving just under one step later still goes first...
+        RequestScheduler.Waiter soonAfter = new RequestScheduler.Waiter(0, step - 1, 2, 2);
+        assertTrue(soonAfter.compareTo(old) < 0);
+
+        // ...but not once the priority 3 caller has waited a whole step
+        RequestScheduler.Waiter stepAfter = new RequestScheduler.Waiter(0, step + 1, 2, 3);
+        assertTrue(old.compareTo(stepAfter) < 0);
+
+        // Equal ranks are served in arrival order
+        RequestScheduler.Waiter tie = new RequestScheduler.Waiter(0, step, 2, 4);
+        assertTrue(old.compareTo(tie) < 0);
+    }
+
+    @Test
+    void cancelledWaiterLeavesTheQueue() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(ONE_PER_SECOND);
+        scheduler.acquire(MODEL, KEY, 0, 5);
+
+        CompletableFuture<RequestScheduler.Permit> abandoned = scheduler.acquireAsync(MODEL, KEY, 0, 1);
+        CompletableFuture<RequestScheduler.Permit> next = scheduler.acquireAsync(MODEL, KEY, 0, 5);
+        assertTrue(abandoned.cancel(false));
+        assertEquals(1, scheduler.getBucket(MODEL, KEY).getQueueLength());
+
+        // The cancelled waiter's turn goes to the next one instead of being used up
+        await(next);
+        assertTrue(abandoned.isCancelled());
+        assertEquals(0, scheduler.getBucket(MODEL, KEY).getQueueLength());
+        assertEquals(2, scheduler.getBucket(MODEL, KEY).getGranted());
+    }
+
+    @Test
+    void cancelledPermitGivesTheRequestBack() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(ONE_PER_SECOND);
+        RequestScheduler.Permit permit = scheduler.acquire(MODEL, KEY, 0, 5);
+        permit.cancel();
+        assertTrue(scheduler.acquireAsync(MODEL, KEY, 0, 5).isDone());
+
+        // Settling twice doesn't refund twice
+        permit.cancel();
+        permit.complete(0);
+        CompletableFuture<RequestScheduler.Permit> next = scheduler.acquireAsync(MODEL, KEY, 0, 5);
+        assertFalse(next.isDone());
+        next.cancel(false);
+    }
+
+    @Test
+    void completeCorrectsTheTokenCharge() throws Exception {
+        // Ten tokens a second, holding up to 100
+        RequestScheduler scheduler = new RequestScheduler(new RequestScheduler.Limits(0, 600, Duration.ofSeconds(10)));
+        RequestScheduler.Permit permit = scheduler.acquire(MODEL, KEY, 100, 5);
+        assertEquals(100, permit.getTokens());
+
+        // The request used 20 of the 100 estimated, so 80 come back
+        permit.complete(20);
+        assertTrue(scheduler.acquireAsync(MODEL, KEY, 70, 5).isDone());
+    }
+
+    @Test
+    void usageOverTheEstimateIsCharged() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(new RequestScheduler.Limits(0, 600, Duration.ofSeconds(10)));
+        RequestScheduler.Permit permit = scheduler.acquire(MODEL, KEY, 50, 5);
+        permit.complete(150);
+
+        // 50 were left, and the extra 100 used takes the bucket below empty
+        CompletableFuture<RequestScheduler.Permit> next = scheduler.acquireAsync(MODEL, KEY, 1, 5);
+        assertFalse(next.isDone());
+        next.cancel(false);
+    }
+
+    @Test
+    void rateLimitPausesEveryCaller() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(new RequestScheduler.Limits(6000, 0));
+        scheduler.onRateLimited(MODEL, KEY, Duration.ofMillis(300));
+
+        long start = System.nanoTime();
+        CompletableFuture<RequestScheduler.Permit> permit = scheduler.acquireAsync(MODEL, KEY, 0, 5);
+        assertFalse(permit.isDone());
+        await(permit);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+        assertEquals(1, scheduler.getBucket(MODEL, KEY).getRateLimited());
+    }
+
+    @Test
+    void priorityIsReadFromMetadata() {
+        assertEquals(2, RequestScheduler.priorityOf(Map.of(RequestScheduler.PRIORITY, 2)));
+        assertEquals(RequestScheduler.DEFAULT_PRIORITY, RequestScheduler.priorityOf(Map.of()));
+        assertEquals(RequestScheduler.DEFAULT_PRIORITY, RequestScheduler.priorityOf(null));
+    }
+}
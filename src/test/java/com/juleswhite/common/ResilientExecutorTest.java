@@ -0,0 +1,161 @@
+package com.juleswhite.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResilientExecutorTest {
+
+    private static final String ENDPOINT = "test";
+
+    private static ResilientExecutor executor() {
+        return new ResilientExecutor(new RetryPolicy(3, Duration.ZERO, Duration.ZERO, Duration.ofSeconds(1)),
+                CircuitBreaker::new, RetryBudget::new);
+    }
+
+    @Test
+    void retryableFailuresAreRetried() {
+        ResilientExecutor executor = executor();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String value = executor.execute(ENDPOINT, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("connection reset");
+            }
+            return "ok";
+        });
+
+        assertEquals("ok", value);
+        assertEquals(2, executor.getEndpoint(ENDPOINT).getRetries());
+    }
+
+    @Test
+    void permanentFailuresAreNot() {
+        ResilientExecutor executor = executor();
+        AtomicInteger attempts = new AtomicInteger();
+
+        LLMCallException failure = assertThrows(LLMCallException.class, () -> executor.execute(ENDPOINT, () -> {
+            attempts.incrementAndGet();
+            throw LLMCallException.forStatus(ENDPOINT, 400, null, "bad request");
+        }));
+
+        assertEquals(400, failure.getStatusCode());
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void interruptedCallsDontCountAgainstTheEndpoint() {
+        ResilientExecutor executor = executor();
+        ResilientExecutor.Endpoint endpoint = executor.getEndpoint(ENDPOINT);
+        double tokens = endpoint.getBudget().getTokens();
+        AtomicInteger attempts = new AtomicInteger();
+
+        // As when a run's deadline interrupts its thread and that closes the socket
+        for (int i = 0; i < 20; i++) {
+            LLMCallException failure = assertThrows(LLMCallException.class, () -> executor.execute(ENDPOINT, () -> {
+                attempts.incrementAndGet();
+                Thread.currentThread().interrupt();
+                throw new SocketException("Closed by interrupt");
+            }));
+            assertTrue(failure.isCancelled());
+            assertTrue(Thread.interrupted(), "the interrupt should be kept");
+        }
+
+        assertEquals(20, attempts.get());
+        assertEquals(0, endpoint.getFailures());
+        assertEquals(0, endpoint.getRetries());
+        assertEquals(CircuitBreaker.State.CLOSED, endpoint.getBreaker().getState());
+        assertEquals(tokens, endpoint.getBudget().getTokens(), 1e-9);
+    }
+
+    @Test
+    void timeoutsAreStillRetried() {
+        ResilientExecutor executor = executor();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String value = executor.execute(ENDPOINT, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new SocketTimeoutException("timeout");
+            }
+            return "ok";
+        });
+
+        assertEquals("ok", value);
+        assertEquals(1, executor.getEndpoint(ENDPOINT).getFailures());
+    }
+
+    @Test
+    void losingBlockingHedgeIsInterrupted() throws Exception {
+        ResilientExecutor executor = executor();
+        executor.setHedging(true);
+        executor.setMinHedgeDelay(Duration.ofMillis(20));
+
+        // The hedge delay is only known once enough calls have completed
+        for (int i = 0; i < 20; i++) {
+            executor.execute(ENDPOINT, false, () -> "warm");
+        }
+
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch interrupted = new CountDownLatch(1);
+        String value = executor.execute(ENDPOINT, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(Duration.ofSeconds(30));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+            return "hedge";
+        });
+
+        assertEquals("hedge", value);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "the losing attempt should be interrupted");
+        assertEquals(1, executor.getEndpoint(ENDPOINT).getHedgeWins());
+    }
+
+    @Test
+    void losingAsyncHedgeIsCancelled() throws Exception {
+        ResilientExecutor executor = executor();
+        executor.setHedging(true);
+        executor.setMinHedgeDelay(Duration.ofMillis(20));
+
+        for (int i = 0; i < 20; i++) {
+            executor.executeAsync(ENDPOINT, false, () -> CompletableFuture.completedFuture("warm")).join();
+        }
+
+        // The original never answers; the hedge does
+        CompletableFuture<String> original = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+        String value = executor.executeAsync(ENDPOINT, () -> attempts.incrementAndGet() == 1
+                ? original : CompletableFuture.completedFuture("hedge")).get(5, TimeUnit.SECONDS);
+
+        assertEquals("hedge", value);
+        assertThrows(CancellationException.class, () -> original.get(5, TimeUnit.SECONDS),
+                "the losing request should be cancelled");
+        assertEquals(1, executor.getEndpoint(ENDPOINT).getHedgeWins());
+    }
+
+    @Test
+    void cancellingTheResultCancelsTheRequest() {
+        ResilientExecutor executor = executor();
+        CompletableFuture<String> request = new CompletableFuture<>();
+
+        CompletableFuture<String> result = executor.executeAsync(ENDPOINT, () -> request);
+        assertTrue(result.cancel(true));
+
+        assertTrue(request.isCancelled());
+        // Nothing answered, so the breaker has nothing to count
+        assertEquals(0, executor.getEndpoint(ENDPOINT).getFailures());
+    }
+}
@@ -0,0 +1,65 @@
+package com.juleswhite.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryBudgetTest {
+
+    @Test
+    void startsFull() {
+        RetryBudget budget = new RetryBudget(10, 0.1);
+        assertEquals(10.0, budget.getTokens(), 1e-9);
+        assertTrue(budget.canRetry());
+    }
+
+    @Test
+    void retriesStopOnceHalfTheTokensAreSpent() {
+        RetryBudget budget = new RetryBudget(10, 0.1);
+        for (int i = 0; i < 4; i++) {
+            budget.onFailure();
+        }
+        assertEquals(6.0, budget.getTokens(), 1e-9);
+        assertTrue(budget.canRetry());
+
+        // Exactly half left is not more than half
+        budget.onFailure();
+        assertFalse(budget.canRetry());
+    }
+
+    @Test
+    void successesEarnRetriesBack() {
+        RetryBudget budget = new RetryBudget(10, 0.1);
+        for (int i = 0; i < 5; i++) {
+            budget.onFailure();
+        }
+        assertFalse(budget.canRetry());
+
+        budget.onSuccess();
+        assertEquals(5.1, budget.getTokens(), 1e-9);
+        assertTrue(budget.canRetry());
+    }
+
+    @Test
+    void tokensStayWithinBounds() {
+        RetryBudget budget = new RetryBudget(10, 0.5);
+        for (int i = 0; i < 100; i++) {
+            budget.onSuccess();
+        }
+        assertEquals(10.0, budget.getTokens(), 1e-9);
+
+        for (int i = 0; i < 100; i++) {
+            budget.onFailure();
+        }
+        assertEquals(0.0, budget.getTokens(), 1e-9);
+
+        // Recovering from empty takes ten successes at 0.5 each to pass half again
+        for (int i = 0; i < 10; i++) {
+            assertFalse(budget.canRetry());
+            budget.onSuccess();
+        }
+        assertFalse(budget.canRetry());
+        budget.onSuccess();
+        assertTrue(budget.canRetry());
+    }
+}
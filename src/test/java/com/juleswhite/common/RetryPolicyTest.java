@@ -0,0 +1,88 @@
+package com.juleswhite.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    // Enough draws that a jitter bug would show, without making the test slow
+    private static final int DRAWS = 2_000;
+
+    private final RetryPolicy policy = new RetryPolicy(5, Duration.ofMillis(100), Duration.ofSeconds(1),
+            Duration.ofSeconds(30));
+
+    private long maxDelay(int attempt, Duration retryAfter) {
+        long max = 0;
+        for (int i = 0; i < DRAWS; i++) {
+            max = Math.max(max, policy.delayBefore(attempt, retryAfter).toMillis());
+        }
+        return max;
+    }
+
+    private long minDelay(int attempt, Duration retryAfter) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DRAWS; i++) {
+            min = Math.min(min, policy.delayBefore(attempt, retryAfter).toMillis());
+        }
+        return min;
+    }
+
+    @Test
+    void noAttemptPastTheMaximum() {
+        assertNotNull(policy.delayBefore(5, null));
+        assertNull(policy.delayBefore(6, null));
+        assertNull(RetryPolicy.none().delayBefore(2, null));
+    }
+
+    @Test
+    void boundDoublesWithEachRetry() {
+        // Attempt 2 is the first retry, bounded by the base delay, then 200ms, then 400ms
+        assertTrue(maxDelay(2, null) <= 100);
+        assertTrue(maxDelay(3, null) <= 200);
+        assertTrue(maxDelay(4, null) <= 400);
+        assertTrue(maxDelay(4, null) > 200, "full jitter should use the whole range");
+    }
+
+    @Test
+    void boundIsCappedAtTheMaximumDelay() {
+        RetryPolicy many = new RetryPolicy(100, Duration.ofMillis(100), Duration.ofSeconds(1), Duration.ofSeconds(30));
+        for (int attempt = 2; attempt <= 100; attempt++) {
+            long delay = many.delayBefore(attempt, null).toMillis();
+            assertTrue(delay >= 0 && delay <= 1000, "attempt " + attempt + " waited " + delay);
+        }
+    }
+
+    @Test
+    void jitterReachesDownToZero() {
+        assertTrue(minDelay(3, null) < 20);
+    }
+
+    @Test
+    void retryAfterIsAFloorWithALittleJitter() {
+        Duration retryAfter = Duration.ofSeconds(2);
+        assertTrue(minDelay(2, retryAfter) >= 2000);
+        assertTrue(maxDelay(2, retryAfter) <= 2200);
+    }
+
+    @Test
+    void shortRetryAfterDoesNotShortenTheBackoff() {
+        assertTrue(maxDelay(4, Duration.ZERO) > 200);
+    }
+
+    @Test
+    void retryAfterBeyondTheLimitGivesUp() {
+        assertNotNull(policy.delayBefore(2, Duration.ofSeconds(30)));
+        assertNull(policy.delayBefore(2, Duration.ofSeconds(31)));
+    }
+
+    @Test
+    void retryAfterIsParsedFromSecondsOrADate() {
+        assertEquals(Duration.ofMillis(1500), LLMCallException.parseRetryAfter(" 1.5 "));
+        assertNull(LLMCallException.parseRetryAfter("-1"));
+        assertNull(LLMCallException.parseRetryAfter("soon"));
+        assertEquals(Duration.ZERO, LLMCallException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}
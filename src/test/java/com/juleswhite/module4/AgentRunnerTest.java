@@ -0,0 +1,188 @@
+package com.juleswhite.module4;
+
+import com.juleswhite.common.LLMCallException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AgentRunnerTest {
+
+    private AgentRunner runner;
+
+    @AfterEach
+    void close() {
+        if (runner != null) {
+            runner.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    /**
+     * An agent whose run is the given body instead of calls to a model.
+     */
+    private static Agent agent(Body body) {
+        return new Agent(List.of(), null, null, null, prompt -> "") {
+            @Override
+            public Memory run(String userInput, Memory memory, int maxIterations) throws Exception {
+                body.run();
+                return new Memory();
+            }
+        };
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void runsBeyondTheGlobalLimitAreQueued() throws Exception {
+        runner = new AgentRunner(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Agent agent = agent(release::await);
+
+        List<AgentRunner.Session> sessions = List.of(
+                runner.submit(agent, "a", 1), runner.submit(agent, "b", 1), runner.submit(agent, "c", 1));
+        await(() -> runner.getInFlight() == 1);
+        assertEquals(2, runner.getQueueDepth());
+
+        release.countDown();
+        for (AgentRunner.Session session : sessions) {
+            session.get(Duration.ofSeconds(5));
+        }
+        await(() -> runner.getInFlight() == 0);
+        assertEquals(0, runner.getQueueDepth());
+        assertEquals(3, runner.getCompletedCount());
+    }
+
+    @Test
+    void runsSharingASessionIdAreSerialized() throws Exception {
+        runner = new AgentRunner(10);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Agent agent = agent(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+        });
+
+        List<AgentRunner.Session> sessions = List.of(
+                runner.submit("s", agent, "a", null, 1, null),
+                runner.submit("s", agent, "b", null, 1, null),
+                runner.submit("s", agent, "c", null, 1, null));
+        for (AgentRunner.Session session : sessions) {
+            session.get(Duration.ofSeconds(5));
+        }
+
+        assertEquals(1, maxRunning.get());
+        assertEquals(3, runner.getCompletedCount());
+    }
+
+    @Test
+    void differentSessionIdsRunConcurrently() throws Exception {
+        runner = new AgentRunner(10);
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        Agent agent = agent(() -> {
+            bothStarted.countDown();
+            assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+        });
+
+        AgentRunner.Session first = runner.submit("s1", agent, "a", null, 1, null);
+        AgentRunner.Session second = runner.submit("s2", agent, "b", null, 1, null);
+        first.get(Duration.ofSeconds(5));
+        second.get(Duration.ofSeconds(5));
+        assertEquals(2, runner.getCompletedCount());
+    }
+
+    @Test
+    void finishedSessionsDontKeepTheirLimiter() throws Exception {
+        runner = new AgentRunner(10);
+        Agent agent = agent(() -> { });
+
+        for (int i = 0; i < 100; i++) {
+            runner.submit("session-" + i, agent, "a", null, 1, null).get(Duration.ofSeconds(5));
+        }
+        await(() -> runner.getActiveSessionCount() == 0);
+    }
+
+    @Test
+    void deadlineIsCountedAsATimeout() throws Exception {
+        runner = new AgentRunner(10);
+        AgentRunner.Session session = runner.submit("s", agent(() -> Thread.sleep(30_000)),
+                "a", null, 1, Duration.ofMillis(50));
+
+        await(() -> runner.getTimedOutCount() == 1);
+        assertTrue(session.isTimedOut());
+        assertEquals(0, runner.getFailedCount());
+        assertEquals(0, runner.getCancelledCount());
+        await(() -> runner.getActiveSessionCount() == 0);
+    }
+
+    @Test
+    void interruptedRequestIsNotAFailure() throws Exception {
+        runner = new AgentRunner(10);
+        // As an LLM request does when the interrupt closes its socket
+        Agent agent = agent(() -> {
+            try {
+                Thread.sleep(30_000);
+            } catch (InterruptedException e) {
+                throw LLMCallException.cancelled("test", new IOException("Closed by interrupt"));
+            }
+        });
+
+        runner.submit(null, agent, "a", null, 1, Duration.ofMillis(50));
+        AgentRunner.Session cancelled = runner.submit(null, agent, "b", null, 1, null);
+        Thread.sleep(20);
+        assertTrue(cancelled.cancel());
+
+        await(() -> runner.getTimedOutCount() == 1 && runner.getCancelledCount() == 1);
+        assertEquals(0, runner.getFailedCount());
+    }
+
+    @Test
+    void cancellingAQueuedRunLeavesTheQueue() throws Exception {
+        runner = new AgentRunner(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Agent agent = agent(release::await);
+
+        AgentRunner.Session running = runner.submit(agent, "a", 1);
+        AgentRunner.Session waiting = runner.submit(agent, "b", 1);
+        await(() -> runner.getInFlight() == 1 && runner.getQueueDepth() == 1);
+
+        assertTrue(waiting.cancel());
+        await(() -> runner.getQueueDepth() == 0 && runner.getCancelledCount() == 1);
+
+        release.countDown();
+        running.get(Duration.ofSeconds(5));
+        assertEquals(1, runner.getCompletedCount());
+    }
+
+    @Test
+    void failuresAreCounted() throws Exception {
+        runner = new AgentRunner(10);
+        AgentRunner.Session session = runner.submit(agent(() -> {
+            throw new IllegalStateException("broken tool");
+        }), "a", 1);
+
+        assertThrows(ExecutionException.class, () -> session.get(Duration.ofSeconds(5)));
+        assertEquals(1, runner.getFailedCount());
+        assertEquals(0, runner.getCancelledCount());
+    }
+}
@@ -0,0 +1,206 @@
+package com.juleswhite.module4;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodeSearchIndexTest {
+
+    @TempDir
+    Path root;
+
+    private void write(String path, String content) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private static List<Object> files(CodeSearchIndex.SearchResult result) {
+        return result.getResults().stream().map(match -> match.get("file")).toList();
+    }
+
+    @Test
+    void literalRegexIsRequiredAsAWhole() {
+        assertEquals(List.of("getSearchIndex"), CodeSearchIndex.requiredLiterals("getSearchIndex"));
+    }
+
+    @Test
+    void metacharactersSplitTheLiterals() {
+        assertEquals(List.of("public", "void", "main"), CodeSearchIndex.requiredLiterals("public.*void\\s+main"));
+        assertEquals(List.of("import ", ".util"), CodeSearchIndex.requiredLiterals("^import [a-z]+\\.util$"));
+    }
+
+    @Test
+    void escapedPunctuationIsLiteral() {
+        assertEquals(List.of("a.b(c)"), CodeSearchIndex.requiredLiterals("a\\.b\\(c\\)"));
+    }
+
+    @Test
+    void escapeOperandsAreNotLiterals() {
+        // Each stands for a character, which may be any case or not ASCII
+        assertEquals(List.of("pple"), CodeSearchIndex.requiredLiterals("\\x41pple"));
+        assertEquals(List.of("pple"), CodeSearchIndex.requiredLiterals("\\x{41}pple"));
+        assertEquals(List.of("clair"), CodeSearchIndex.requiredLiterals("\\u00e9clair"));
+        assertEquals(List.of("pple"), CodeSearchIndex.requiredLiterals("\\0101pple"));
+        assertEquals(List.of("beep"), CodeSearchIndex.requiredLiterals("\\cGbeep"));
+        assertEquals(List.of("Upper"), CodeSearchIndex.requiredLiterals("\\p{Lu}Upper"));
+    }
+
+    @Test
+    void backReferencesAreNotLiterals() {
+        assertEquals(List.of("end"), CodeSearchIndex.requiredLiterals("(?<word>\\w+)\\k<word>end"));
+        assertEquals(List.of("end"), CodeSearchIndex.requiredLiterals("(a)\\12end"));
+    }
+
+    @Test
+    void quotedTextIsLiteral() {
+        assertEquals(List.of("a.b(c)*d"), CodeSearchIndex.requiredLiterals("\\Qa.b(c)*d\\E"));
+        assertEquals(List.of("foo(", "bar"), CodeSearchIndex.requiredLiterals("\\Qfoo(\\E\\d+bar"));
+    }
+
+    @Test
+    void hexEscapeStillFindsTheFile() throws IOException {
+        write("Fruit.java", "String name = \"Apple\";");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, null)) {
+            assertEquals(List.of("/Fruit.java"), files(index.search("", "\\x41pple", true, 0, 10)));
+        }
+    }
+
+    @Test
+    void optionalCharactersAreDropped() {
+        // The 's' may be missing and the 'x' repeated zero times
+        assertEquals(List.of("color", "prefi"), CodeSearchIndex.requiredLiterals("colors?prefix*"));
+        assertEquals(List.of("abc"), CodeSearchIndex.requiredLiterals("abcd{0,2}"));
+    }
+
+    @Test
+    void groupsAndClassesContributeNothing() {
+        assertEquals(List.of("foo", "bar"), CodeSearchIndex.requiredLiterals("foo(xyz)+bar"));
+        assertEquals(List.of("get", "Name"), CodeSearchIndex.requiredLiterals("get[]A-Z]Name"));
+    }
+
+    @Test
+    void alternationAndCommentsModeYieldNoLiterals() {
+        assertTrue(CodeSearchIndex.requiredLiterals("foo|bar").isEmpty());
+        assertTrue(CodeSearchIndex.requiredLiterals("(?x) foo bar").isEmpty());
+    }
+
+    @Test
+    void shortRunsAreNotUsed() {
+        assertTrue(CodeSearchIndex.requiredLiterals("ab.cd\\d+ef").isEmpty());
+    }
+
+    @Test
+    void trigramsAreDistinctFoldedAndStayWithinLines() {
+        int[] trigrams = CodeSearchIndex.trigrams("ABCabc".getBytes());
+        // abc, bca, cab; the upper case run folds onto the lower case one
+        assertEquals(3, trigrams.length);
+        assertEquals(0, CodeSearchIndex.trigrams("ab\ncd".getBytes()).length);
+    }
+
+    @Test
+    void onlyFilesWithEveryTrigramAreRead() throws IOException {
+        write("a/Alpha.java", "class Alpha { void render() {} }");
+        write("a/Beta.java", "class Beta { void update() {} }");
+        write("b/Gamma.java", "class Gamma { void render() {} }");
+        write("b/Notes.txt", "nothing to see");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, null)) {
+            CodeSearchIndex.SearchResult result = index.search("", "render", false, 0, 10);
+            assertEquals(List.of("/a/Alpha.java", "/b/Gamma.java"), files(result));
+            assertEquals(2, result.getCandidateFiles());
+
+            // The regex needs "void up" and "date", which only Beta has
+            result = index.search("", "void up[a-z]*date", true, 0, 10);
+            assertEquals(List.of("/a/Beta.java"), files(result));
+            assertEquals(1, result.getCandidateFiles());
+
+            // Alternation can't be pruned, so every file is a candidate
+            result = index.search("", "Alpha|Gamma", true, 0, 10);
+            assertEquals(2, result.getTotalFiles());
+            assertEquals(4, result.getCandidateFiles());
+        }
+    }
+
+    @Test
+    void searchIsLimitedToTheDirectory() throws IOException {
+        write("a/Alpha.java", "render");
+        write("b/Gamma.java", "render");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, null)) {
+            CodeSearchIndex.SearchResult result = index.search("b", "render", false, 0, 10);
+            assertEquals(List.of("/b/Gamma.java"), files(result));
+        }
+    }
+
+    @Test
+    void changedCandidateIsReadAndReindexed() throws IOException {
+        write("a/Alpha.java", "class Alpha { int staleField; }");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, null)) {
+            // Written and searched at once, whether or not the watch event has been applied
+            write("a/Alpha.java", "class Alpha { int freshField; }");
+            Files.setLastModifiedTime(root.resolve("a/Alpha.java"), FileTime.fromMillis(1_000_000));
+
+            assertTrue(files(index.search("", "staleField", false, 0, 10)).isEmpty());
+            // Reading it as a candidate re-indexed it
+            assertEquals(List.of("/a/Alpha.java"), files(index.search("", "freshField", false, 0, 10)));
+        }
+    }
+
+    @Test
+    void deletedCandidateIsDropped() throws IOException {
+        write("a/Alpha.java", "int field;");
+        write("a/Beta.java", "int field;");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, null)) {
+            Files.delete(root.resolve("a/Beta.java"));
+
+            assertEquals(List.of("/a/Alpha.java"), files(index.search("", "field", false, 0, 10)));
+            assertEquals(1, index.getFileCount());
+        }
+    }
+
+    @Test
+    void newFileIsFoundOnceItsEventArrives() throws Exception {
+        write("a/Alpha.java", "class Alpha {}");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, null)) {
+            write("a/Added.java", "int freshField;");
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+            while (files(index.search("", "freshField", false, 0, 10)).isEmpty()) {
+                assertTrue(System.nanoTime() < deadline, "the new file was never indexed");
+                Thread.sleep(20);
+            }
+            assertEquals(List.of("/a/Added.java"), files(index.search("a", "freshField", false, 0, 10)));
+        }
+    }
+
+    @Test
+    void savedIndexIsReloaded() throws IOException {
+        write("Main.java", "public static void main");
+        Path indexFile = root.resolve(".index/search.idx");
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, indexFile)) {
+            assertEquals(1, index.getFileCount());
+        }
+        assertTrue(Files.exists(indexFile));
+
+        try (CodeSearchIndex index = CodeSearchIndex.open(root, indexFile)) {
+            assertEquals(1, index.getFileCount());
+            Map<String, Object> match = index.search("", "main", false, 0, 10).getResults().get(0);
+            assertEquals("/Main.java", match.get("file"));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.juleswhite.module4;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileRangeReaderTest {
+
+    // One, two, three and four byte characters in UTF-8; the last is a surrogate pair in UTF-16
+    private static final String MIXED = "aé€😀";
+
+    private static final byte[] UTF_16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+    private static final byte[] UTF_16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+
+    @TempDir
+    Path directory;
+
+    private final FileRangeReader reader = new FileRangeReader();
+
+    private Path write(String name, byte[] bom, String text, Charset charset) throws IOException {
+        byte[] encoded = text.getBytes(charset);
+        byte[] bytes = new byte[bom.length + encoded.length];
+        System.arraycopy(bom, 0, bytes, 0, bom.length);
+        System.arraycopy(encoded, 0, bytes, bom.length, encoded.length);
+        Path file = directory.resolve(name);
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private static String text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= lines; i++) {
+            text.append(i).append(' ').append(MIXED).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads the whole file in byte ranges of the given length, following each chunk's end offset.
+     */
+    private String readInRanges(Path file, long length, int maxTokens) throws IOException {
+        StringBuilder content = new StringBuilder();
+        long offset = 0;
+        FileRangeReader.Chunk chunk;
+        do {
+            chunk = reader.read(file, offset, length, maxTokens);
+            assertTrue(chunk.getEndOffset() > offset || !chunk.hasMore(), "no progress at offset " + offset);
+            content.append(chunk.getContent());
+            offset = chunk.getEndOffset();
+        } while (chunk.hasMore());
+        return content.toString();
+    }
+
+    @Test
+    void utf8RangesNeverSplitACharacter() throws IOException {
+        String text = text(20);
+        Path file = write("mixed.txt", new byte[0], text, StandardCharsets.UTF_8);
+
+        for (int length = 1; length <= 13; length++) {
+            assertEquals(text, readInRanges(file, length, FileRangeReader.DEFAULT_MAX_TOKENS), "length " + length);
+        }
+    }
+
+    @Test
+    void utf8RangeStartingInsideACharacterStartsAtIt() throws IOException {
+        Path file = write("euro.txt", new byte[0], "ab€cd", StandardCharsets.UTF_8);
+
+        // Bytes 3 and 4 are the continuation bytes of the euro sign at 2
+        FileRangeReader.Chunk chunk = reader.read(file, 4, 100, FileRangeReader.DEFAULT_MAX_TOKENS);
+        assertEquals(2, chunk.getOffset());
+        assertEquals("€cd", chunk.getContent());
+    }
+
+    @Test
+    void utf8BomIsSkipped() throws IOException {
+        Path file = write("bom.txt", new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}, MIXED, StandardCharsets.UTF_8);
+
+        FileRangeReader.Chunk chunk = reader.read(file, 0, 100, FileRangeReader.DEFAULT_MAX_TOKENS);
+        assertEquals(StandardCharsets.UTF_8, chunk.getCharset());
+        assertEquals(3, chunk.getOffset());
+        assertEquals(MIXED, chunk.getContent());
+    }
+
+    @Test
+    void utf16LittleEndianRangesKeepSurrogatePairsTogether() throws IOException {
+        String text = text(20);
+        Path file = write("le.txt", UTF_16LE_BOM, text, StandardCharsets.UTF_16LE);
+
+        assertEquals(StandardCharsets.UTF_16LE, FileRangeReader.detectCharset(file));
+        for (int length = 1; length <= 13; length++) {
+            assertEquals(text, readInRanges(file, length, FileRangeReader.DEFAULT_MAX_TOKENS), "length " + length);
+        }
+    }
+
+    @Test
+    void utf16BigEndianRangesKeepSurrogatePairsTogether() throws IOException {
+        String text = text(20);
+        Path file = write("be.txt", UTF_16BE_BOM, text, StandardCharsets.UTF_16BE);
+
+        assertEquals(StandardCharsets.UTF_16BE, FileRangeReader.detectCharset(file));
+        for (int length = 1; length <= 13; length++) {
+            assertEquals(text, readInRanges(file, length, FileRangeReader.DEFAULT_MAX_TOKENS), "length " + length);
+        }
+    }
+
+    @Test
+    void utf16OddOffsetIsAlignedToACodeUnit() throws IOException {
+        Path file = write("odd.txt", UTF_16LE_BOM, "abc", StandardCharsets.UTF_16LE);
+
+        // "b" starts at 4, after the BOM and "a"
+        FileRangeReader.Chunk chunk = reader.read(file, 5, 100, FileRangeReader.DEFAULT_MAX_TOKENS);
+        assertEquals(4, chunk.getOffset());
+        assertEquals("bc", chunk.getContent());
+    }
+
+    @Test
+    void utf16OffsetInsideASurrogatePairStartsAtThePair() throws IOException {
+        Path file = write("pair.txt", UTF_16LE_BOM, "a😀b", StandardCharsets.UTF_16LE);
+
+        // The pair is at 4, its low surrogate at 6
+        FileRangeReader.Chunk chunk = reader.read(file, 6, 100, FileRangeReader.DEFAULT_MAX_TOKENS);
+        assertEquals(4, chunk.getOffset());
+        assertEquals("😀b", chunk.getContent());
+    }
+
+    @Test
+    void longLineIsCutOnACharacterBoundaryByTheTokenBudget() throws IOException {
+        String line = MIXED.repeat(200);
+        Path utf8 = write("long8.txt", new byte[0], line, StandardCharsets.UTF_8);
+        Path utf16 = write("long16.txt", UTF_16LE_BOM, line, StandardCharsets.UTF_16LE);
+
+        FileRangeReader.Chunk chunk = reader.read(utf8, 0, Long.MAX_VALUE, 10);
+        assertTrue(chunk.isTruncated());
+        assertTrue(chunk.hasMore());
+        assertFalse(chunk.getContent().contains("�"));
+
+        assertEquals(line, readInRanges(utf8, Long.MAX_VALUE, 10));
+        assertEquals(line, readInRanges(utf16, Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    void linesAreCountedInEachCharset() throws IOException {
+        String text = text(10_000);
+        Path utf8 = write("lines8.txt", new byte[0], text, StandardCharsets.UTF_8);
+        Path utf16 = write("lines16.txt", UTF_16BE_BOM, text, StandardCharsets.UTF_16BE);
+
+        for (Path file : new Path[] {utf8, utf16}) {
+            // Past the first checkpoint of the line index, then back before it
+            FileRangeReader.Chunk chunk = reader.readLines(file, 9_000, 2, FileRangeReader.DEFAULT_MAX_TOKENS);
+            assertEquals("9000 " + MIXED + "\n9001 " + MIXED + "\n", chunk.getContent());
+            assertEquals(2, chunk.getLineCount());
+
+            chunk = reader.readLines(file, 3, 1, FileRangeReader.DEFAULT_MAX_TOKENS);
+            assertEquals("3 " + MIXED + "\n", chunk.getContent());
+        }
+    }
+
+    @Test
+    void invalidUtf8IsReadAsLatin1() throws IOException {
+        Path file = directory.resolve("latin1.txt");
+        Files.write(file, new byte[] {'c', 'a', 'f', (byte) 0xE9});
+
+        FileRangeReader.Chunk chunk = reader.read(file, 0, 100, FileRangeReader.DEFAULT_MAX_TOKENS);
+        assertEquals(StandardCharsets.ISO_8859_1, chunk.getCharset());
+        assertEquals("café", chunk.getContent());
+    }
+}
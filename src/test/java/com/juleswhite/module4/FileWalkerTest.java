@@ -0,0 +1,126 @@
+package com.juleswhite.module4;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileWalkerTest {
+
+    @TempDir
+    Path root;
+
+    private final FileWalker walker = new FileWalker();
+
+    private void write(String path, String content) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private void touch(String... paths) throws IOException {
+        for (String path : paths) {
+            write(path, "");
+        }
+    }
+
+    private List<String> findAll(Path start) {
+        FileWalker.Page page = walker.find(start, FileWalker.matcher("*"), 0, 1000, FileWalker.DEFAULT_MAX_RESULTS);
+        return page.getPaths().stream().map(path -> path.toString().replace('\\', '/')).toList();
+    }
+
+    @Test
+    void unanchoredPatternMatchesAtAnyDepth() throws IOException {
+        write(".gitignore", "*.class\n");
+        touch("A.java", "A.class", "pkg/B.class", "pkg/deep/C.class", "pkg/deep/C.java");
+
+        assertEquals(List.of(".gitignore", "A.java", "pkg/deep/C.java"), findAll(root));
+    }
+
+    @Test
+    void patternWithSlashIsAnchoredToItsDirectory() throws IOException {
+        write(".gitignore", "/out\ndocs/*.tmp\n");
+        touch("out/a.txt", "src/out/b.txt", "docs/x.tmp", "docs/sub/y.tmp", "src/docs/z.tmp");
+
+        assertEquals(List.of(".gitignore", "docs/sub/y.tmp", "src/docs/z.tmp", "src/out/b.txt"), findAll(root));
+    }
+
+    @Test
+    void trailingSlashOnlyMatchesDirectories() throws IOException {
+        write(".gitignore", "build/\n");
+        touch("build/output.jar", "src/build/nested.jar", "tools/build");
+
+        assertEquals(List.of(".gitignore", "tools/build"), findAll(root));
+    }
+
+    @Test
+    void laterNegationReincludesAFile() throws IOException {
+        write(".gitignore", "*.log\n!keep.log\n");
+        touch("debug.log", "keep.log", "logs/keep.log", "logs/trace.log");
+
+        assertEquals(List.of(".gitignore", "keep.log", "logs/keep.log"), findAll(root));
+    }
+
+    @Test
+    void leadingDoubleStarAlsoMatchesAtTheTop() throws IOException {
+        write(".gitignore", "**/generated\n");
+        touch("generated/A.java", "module/generated/B.java", "module/src/C.java");
+
+        assertEquals(List.of(".gitignore", "module/src/C.java"), findAll(root));
+    }
+
+    @Test
+    void commentsBlankLinesAndEscapesAreHandled() throws IOException {
+        write(".gitignore", "# build output\n\n\\#notes\n\\!important\n");
+        touch("#notes", "!important", "# build output", "other");
+
+        assertEquals(List.of("# build output", ".gitignore", "other"), findAll(root));
+    }
+
+    @Test
+    void nestedGitignoreOnlyAppliesBelowItsDirectory() throws IOException {
+        write(".gitignore", "*.tmp\n");
+        write("module/.gitignore", "*.txt\n!scratch.tmp\n");
+        touch("notes.txt", "a.tmp", "module/notes.txt", "module/scratch.tmp", "module/b.tmp");
+
+        assertEquals(List.of(".gitignore", "module/.gitignore", "module/scratch.tmp", "notes.txt"), findAll(root));
+    }
+
+    @Test
+    void parentRepositoryRulesApplyWhenStartingInASubdirectory() throws IOException {
+        Files.createDirectories(root.resolve(".git"));
+        write(".gitignore", "*.bak\n/sub/private/\n");
+        touch("sub/a.txt", "sub/a.bak", "sub/private/secret.txt");
+
+        assertEquals(List.of("a.txt"), findAll(root.resolve("sub")));
+    }
+
+    @Test
+    void parentRulesAreNotReadOutsideARepository() throws IOException {
+        write(".gitignore", "*.bak\n");
+        touch("sub/a.bak");
+
+        assertEquals(List.of("a.bak"), findAll(root.resolve("sub")));
+    }
+
+    @Test
+    void gitDirectoryIsNeverWalked() throws IOException {
+        touch(".git/HEAD", ".git/objects/ab/cdef", "README");
+
+        assertEquals(List.of("README"), findAll(root));
+    }
+
+    @Test
+    void walkStopsAtTheCap() throws IOException {
+        touch("a", "b", "c", "d");
+
+        FileWalker.Page page = walker.find(root, FileWalker.matcher("*"), 0, 10, 2);
+        assertTrue(page.isTruncated());
+        assertEquals(2, page.getPaths().size());
+    }
+}
@@ -0,0 +1,243 @@
+package com.juleswhite.module4;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionJournalTest {
+
+    // Small segments, so a few records fill one
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path directory;
+
+    private SessionJournal openJournal() {
+        return new SessionJournal(directory, SEGMENT_SIZE, Duration.ZERO);
+    }
+
+    private static MemoryRecord record(String content) {
+        return new MemoryRecord(MemoryRecord.Role.USER, content);
+    }
+
+    private static List<String> contents(Memory memory) {
+        return memory.getRecords().stream().map(MemoryRecord::getContent).toList();
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            return listing.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    @Test
+    void restoresSessionUpToLastCheckpoint() {
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            memory.addRecord(record("task"));
+            memory.checkpoint(0, false);
+            memory.addRecord(record("decision"));
+            memory.addRecord(record("result"));
+            memory.checkpoint(1, false);
+            // An iteration still in progress at the crash
+            memory.addRecord(record("half done"));
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(Set.of("s1"), journal.getUnfinishedSessionIds());
+            JournaledMemory memory = journal.open("s1");
+            assertEquals(List.of("task", "decision", "result"), contents(memory));
+            assertEquals(1, memory.getCompletedIterations());
+            assertFalse(memory.isTerminated());
+        }
+    }
+
+    @Test
+    void abandonedIterationIsNotPickedUpByLaterCheckpoint() {
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            memory.addRecord(record("task"));
+            memory.checkpoint(0, false);
+            memory.addRecord(record("lost"));
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            memory.addRecord(record("retried"));
+            memory.checkpoint(1, false);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(List.of("task", "retried"), contents(journal.open("s1")));
+        }
+    }
+
+    @Test
+    void discardsTornTailAndKeepsAppending() throws IOException {
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            memory.addRecord(record("task"));
+            memory.checkpoint(0, false);
+            memory.addRecord(record("decision"));
+            memory.checkpoint(1, false);
+        }
+
+        // Flip the last written byte, which belongs to the final checkpoint's payload
+        Path segment = segmentFiles().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            last--;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) ~bytes[last]}), last);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            // The decision was never covered by a valid checkpoint
+            assertEquals(List.of("task"), contents(memory));
+            assertEquals(0, memory.getCompletedIterations());
+
+            memory.addRecord(record("after recovery"));
+            memory.checkpoint(1, true);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            assertEquals(List.of("task", "after recovery"), contents(memory));
+            assertTrue(memory.isTerminated());
+            assertTrue(journal.getUnfinishedSessionIds().isEmpty());
+        }
+    }
+
+    @Test
+    void discardsPartiallyWrittenFrame() throws IOException {
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            memory.addRecord(record("task"));
+            // Terminated, so the frame ends with a non-zero byte
+            memory.checkpoint(0, true);
+        }
+
+        // A length that was written without its payload
+        Path segment = segmentFiles().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length - 1;
+        while (bytes[end] == 0) {
+            end--;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 100), end + 1);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            assertEquals(List.of("task"), contents(memory));
+            memory.addRecord(record("next"));
+            memory.checkpoint(1, true);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(List.of("task", "next"), contents(journal.open("s1")));
+        }
+    }
+
+    @Test
+    void deletesSegmentsWrittenAfterTear() throws IOException {
+        String filler = "x".repeat(1500);
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory memory = journal.open("s1");
+            memory.addRecord(record("task"));
+            memory.checkpoint(0, false);
+            for (int i = 0; i < 6; i++) {
+                memory.addRecord(record(filler));
+            }
+            memory.checkpoint(1, false);
+        }
+        List<Path> written = segmentFiles();
+        assertTrue(written.size() >= 3, "expected the records to span several segments");
+
+        // Break the second segment's header
+        try (FileChannel channel = FileChannel.open(written.get(1), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(List.of(written.get(0)), segmentFiles());
+            assertEquals(List.of("task"), contents(journal.open("s1")));
+        }
+    }
+
+    @Test
+    void forgettingSessionsDeletesTheirSegments() throws IOException {
+        String filler = "x".repeat(1500);
+        try (SessionJournal journal = openJournal()) {
+            JournaledMemory first = journal.open("first");
+            for (int i = 0; i < 6; i++) {
+                first.addRecord(record(filler));
+            }
+            first.checkpoint(1, true);
+
+            JournaledMemory second = journal.open("second");
+            second.addRecord(record("task"));
+            second.checkpoint(0, false);
+
+            List<Path> before = segmentFiles();
+            assertTrue(before.size() >= 3, "expected the records to span several segments");
+
+            journal.forget("first");
+            List<Path> after = segmentFiles();
+            assertTrue(after.size() < before.size(), "segments holding only the forgotten session are deleted");
+            assertFalse(after.contains(before.get(0)));
+            assertEquals(Set.of("second"), journal.getSessionIds());
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(Set.of("second"), journal.getSessionIds());
+            assertEquals(List.of("task"), contents(journal.open("second")));
+
+            journal.forget("second");
+            journal.open("third").checkpoint(0, false);
+        }
+
+        // Only the segment being written to is left
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(Set.of("third"), journal.getSessionIds());
+            assertEquals(1, segmentFiles().size());
+        }
+    }
+
+    @Test
+    void sessionIdMustFitAFrame() {
+        String longest = "x".repeat(Short.MAX_VALUE);
+        try (SessionJournal journal = new SessionJournal(directory, 2 * Short.MAX_VALUE, Duration.ZERO)) {
+            assertThrows(IllegalArgumentException.class, () -> journal.open(""));
+            assertThrows(IllegalArgumentException.class, () -> journal.open(longest + "x"));
+            // Two bytes in UTF-8 each
+            assertThrows(IllegalArgumentException.class, () -> journal.open("\u00e9".repeat(Short.MAX_VALUE / 2 + 1)));
+            assertThrows(IllegalArgumentException.class, () -> journal.forget(""));
+
+            JournaledMemory memory = journal.open(longest);
+            memory.addRecord(record("task"));
+            memory.checkpoint(0, false);
+        }
+
+        try (SessionJournal journal = openJournal()) {
+            assertEquals(Set.of(longest), journal.getSessionIds());
+            assertEquals(List.of("task"), contents(journal.open(longest)));
+        }
+    }
+}